@@ -0,0 +1,165 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.jmh;
+
+import net.semanticmetadata.lire.builders.DocumentBuilder;
+import net.semanticmetadata.lire.imageanalysis.features.ByteArrayDistance;
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.utils.ImageUtils;
+import org.openjdk.jmh.annotations.*;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micro benchmarks for the hot paths of the global features: extraction, serialization and distance computation.
+ * Two fixed images from the test data are used, one for the query and one for the document. The images are scaled
+ * like in {@link net.semanticmetadata.lire.builders.GlobalDocumentBuilder} before the benchmark starts.
+ * <p/>
+ * Run from the project directory with <code>gradle jmh</code> or <code>mvn -P jmh package &amp;&amp; java -jar
+ * target/benchmarks.jar</code>, eg. <code>java -jar target/benchmarks.jar GlobalFeatureBenchmark -p feature=CEDD</code>.
+ *
+ * @author Mathias Lux, mathias@juggle.at
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class GlobalFeatureBenchmark {
+    /**
+     * The feature class, relative to the package of the global features.
+     */
+    @Param({"ACCID", "AutoColorCorrelogram", "BinaryPatternsPyramid", "CEDD", "COMO", "ColorLayout", "EdgeHistogram",
+            "FCTH", "FuzzyColorHistogram", "FuzzyOpponentHistogram", "Gabor", "JCD", "JpegCoefficientHistogram",
+            "LocalBinaryPatterns", "LuminanceLayout", "OpponentHistogram", "PHOG", "RotationInvariantLocalBinaryPatterns",
+            "SaCoCo", "ScalableColor", "SimpleColorHistogram", "Tamura", "centrist.SimpleCentrist",
+            "centrist.SpatialPyramidCentrist", "joint.JointHistogram", "joint.LocalBinaryPatternsAndOpponent",
+            "joint.RankAndOpponent", "spatialpyramid.SPACC", "spatialpyramid.SPCEDD", "spatialpyramid.SPFCTH",
+            "spatialpyramid.SPJCD", "spatialpyramid.SPLBP"})
+    public String feature;
+
+    /**
+     * The directory the first two images (in alphabetical order) are taken from.
+     */
+    @Param({"testdata/ferrari/red"})
+    public String images;
+
+    private BufferedImage image;
+    private GlobalFeature extractor, query, document, decoded;
+    private byte[] documentData;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        List<BufferedImage> testImages = readImages(images, 2);
+        Class<?> featureClass = Class.forName(GlobalFeature.class.getPackage().getName() + ".global." + feature);
+        extractor = (GlobalFeature) featureClass.newInstance();
+        query = (GlobalFeature) featureClass.newInstance();
+        document = (GlobalFeature) featureClass.newInstance();
+        decoded = (GlobalFeature) featureClass.newInstance();
+        image = testImages.get(0);
+        query.extract(testImages.get(0));
+        document.extract(testImages.get(1));
+        documentData = document.getByteArrayRepresentation();
+    }
+
+    /**
+     * Reads the first images of a directory, scaled to {@link DocumentBuilder#MAX_IMAGE_DIMENSION}.
+     */
+    static List<BufferedImage> readImages(String directory, int count) throws IOException {
+        List<String> fileNames = new ArrayList<String>();
+        String[] files = new File(directory).list();
+        if (files == null) throw new IOException("Could not read directory " + new File(directory).getAbsolutePath());
+        for (String fileName : files) {
+            if (fileName.toLowerCase().endsWith(".jpg") || fileName.toLowerCase().endsWith(".png")) fileNames.add(fileName);
+        }
+        Collections.sort(fileNames);
+        List<BufferedImage> result = new ArrayList<BufferedImage>(count);
+        for (int i = 0; i < count && i < fileNames.size(); i++) {
+            BufferedImage img = ImageIO.read(new File(directory, fileNames.get(i)));
+            if (Math.max(img.getHeight(), img.getWidth()) > DocumentBuilder.MAX_IMAGE_DIMENSION)
+                img = ImageUtils.scaleImage(img, DocumentBuilder.MAX_IMAGE_DIMENSION);
+            result.add(img);
+        }
+        if (result.size() < count) throw new IOException("Found only " + result.size() + " images in " + directory);
+        return result;
+    }
+
+    @Benchmark
+    public GlobalFeature extract() {
+        extractor.extract(image);
+        return extractor;
+    }
+
+    @Benchmark
+    public byte[] getByteArrayRepresentation() {
+        return document.getByteArrayRepresentation();
+    }
+
+    @Benchmark
+    public GlobalFeature setByteArrayRepresentation() {
+        decoded.setByteArrayRepresentation(documentData, 0, documentData.length);
+        return decoded;
+    }
+
+    @Benchmark
+    public double getDistance() {
+        return query.getDistance(document);
+    }
+
+    /**
+     * The distance to a serialized feature, as in the linear search: directly on the bytes if the feature supports
+     * it, otherwise the feature is decoded first.
+     */
+    @Benchmark
+    public double getDistanceSerialized() {
+        if (query instanceof ByteArrayDistance)
+            return ((ByteArrayDistance) query).getDistance(documentData, 0, documentData.length);
+        decoded.setByteArrayRepresentation(documentData, 0, documentData.length);
+        return query.getDistance(decoded);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.jmh;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.global.CEDD;
+import net.semanticmetadata.lire.indexers.hashing.BitSampling;
+import net.semanticmetadata.lire.indexers.hashing.MetricSpaces;
+import net.semanticmetadata.lire.indexers.hashing.ProductQuantizer;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Micro benchmarks for creating the hashes and codes of a CEDD feature at indexing and search time.
+ *
+ * @author Mathias Lux, mathias@juggle.at
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class HashingBenchmark {
+    @Param({"src/test/resources/metricspaces/refPoints_CEDD.dat.gz"})
+    public String referencePoints;
+
+    @Param({"testdata/ferrari/red"})
+    public String images;
+
+    private GlobalFeature feature;
+    private double[][] batch;
+    private ProductQuantizer quantizer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BitSampling.readHashFunctions();
+        try (InputStream in = new GZIPInputStream(new FileInputStream(referencePoints))) {
+            MetricSpaces.loadReferencePoints(in);
+        }
+        feature = new CEDD();
+        feature.extract(GlobalFeatureBenchmark.readImages(images, 1).get(0));
+        batch = new double[64][];
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = feature.getFeatureVector();
+        }
+        // the codebooks are trained on synthetic images, it's only about the runtime.
+        Random r = new Random(1);
+        List<CEDD> samples = new ArrayList<CEDD>();
+        for (int i = 0; i < 500; i++) {
+            BufferedImage image = new BufferedImage(32, 32, BufferedImage.TYPE_INT_RGB);
+            for (int x = 0; x < image.getWidth(); x++)
+                for (int y = 0; y < image.getHeight(); y++)
+                    image.setRGB(x, y, r.nextInt(0xffffff));
+            CEDD cedd = new CEDD();
+            cedd.extract(image);
+            samples.add(cedd);
+        }
+        quantizer = ProductQuantizer.train(samples, 16, 64, 10);
+    }
+
+    @Benchmark
+    public int[] bitSampling() {
+        return BitSampling.generateHashes(feature.getFeatureVector());
+    }
+
+    /**
+     * Hashes 64 feature vectors in one call, divide by 64 to compare with {@link #bitSampling()}.
+     */
+    @Benchmark
+    public int[][] bitSamplingBatch() {
+        return BitSampling.generateHashes(batch);
+    }
+
+    @Benchmark
+    public long[] bitSamplingBinaryCode() {
+        return BitSampling.generateBinaryCode(feature.getFeatureVector());
+    }
+
+    @Benchmark
+    public String metricSpaces() {
+        return MetricSpaces.generateHashString(feature);
+    }
+
+    @Benchmark
+    public byte[] productQuantization() {
+        return quantizer.encode(feature.getFeatureVector());
+    }
+
+    @Benchmark
+    public double[] productQuantizationDistanceTable() {
+        return quantizer.getDistanceTable(feature.getFeatureVector());
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.jmh;
+
+import net.semanticmetadata.lire.builders.DocumentBuilder;
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.global.CEDD;
+import net.semanticmetadata.lire.indexers.hashing.ProductQuantizer;
+import net.semanticmetadata.lire.searchers.*;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.*;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end benchmarks of the searchers on a synthetic in-memory index of CEDD features. The features are stored
+ * in a stored field and in DocValues, together with product quantization codes, so all the searchers run on the same
+ * documents. The queries are taken from the index in turn. Note that the index is force merged, so the document
+ * ids of the queries are the same as in the list of features.
+ *
+ * @author Mathias Lux, mathias@juggle.at
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SearcherBenchmark {
+    @Param({"20000"})
+    public int numDocs;
+
+    @Param({"50"})
+    public int maxHits;
+
+    private static final int numQueries = 64, batchSize = 16;
+    private IndexReader reader;
+    private GenericFastImageSearcher cached, offHeap;
+    private GenericDocValuesImageSearcher docValues;
+    private ProductQuantizationImageSearcher productQuantization;
+    private List<CEDD> queries = new ArrayList<CEDD>();
+    private List<Document> queryDocuments = new ArrayList<Document>();
+    private int[] queryIds = new int[numQueries];
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        String fieldName = new CEDD().getFieldName();
+        Random r = new Random(7);
+        List<CEDD> features = new ArrayList<CEDD>(numDocs);
+        for (int i = 0; i < numDocs; i++) {
+            BufferedImage image = new BufferedImage(32, 32, BufferedImage.TYPE_INT_RGB);
+            int base = r.nextInt(0xffffff);
+            for (int x = 0; x < image.getWidth(); x++)
+                for (int y = 0; y < image.getHeight(); y++)
+                    image.setRGB(x, y, r.nextInt(8) == 0 ? r.nextInt(0xffffff) : base);
+            CEDD cedd = new CEDD();
+            cedd.extract(image);
+            features.add(cedd);
+        }
+        ProductQuantizer quantizer = ProductQuantizer.train(features.subList(0, Math.min(numDocs, 5000)), 16, 256, 10);
+
+        ByteBuffersDirectory directory = new ByteBuffersDirectory();
+        IndexWriter iw = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer()));
+        for (int i = 0; i < numDocs; i++) {
+            byte[] data = features.get(i).getByteArrayRepresentation();
+            Document document = new Document();
+            document.add(new StringField(DocumentBuilder.FIELD_NAME_IDENTIFIER, "img" + i, Field.Store.YES));
+            document.add(new StoredField(fieldName, new BytesRef(data)));
+            document.add(new BinaryDocValuesField(fieldName, new BytesRef(data)));
+            document.add(new StoredField(fieldName + DocumentBuilder.PQ_FIELD_SUFFIX, new BytesRef(quantizer.encode(features.get(i).getFeatureVector()))));
+            iw.addDocument(document);
+        }
+        iw.forceMerge(1);
+        iw.close();
+        reader = DirectoryReader.open(directory);
+
+        for (int i = 0; i < numQueries; i++) {
+            queryIds[i] = r.nextInt(numDocs);
+            CEDD query = features.get(queryIds[i]);
+            queries.add(query);
+            Document document = new Document();
+            document.add(new StoredField(fieldName, new BytesRef(query.getByteArrayRepresentation())));
+            queryDocuments.add(document);
+        }
+        cached = new GenericFastImageSearcher(maxHits, CEDD.class, true, reader);
+        offHeap = new GenericFastImageSearcher(maxHits, CEDD.class, reader, false, true);
+        docValues = new GenericDocValuesImageSearcher(maxHits, CEDD.class, reader);
+        productQuantization = new ProductQuantizationImageSearcher(maxHits, CEDD.class, reader, 10 * maxHits, quantizer);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        reader.close();
+    }
+
+    private int nextQuery() {
+        next = (next + 1) % numQueries;
+        return next;
+    }
+
+    @Benchmark
+    public ImageSearchHits cachedSearch() throws IOException {
+        return cached.search(queryDocuments.get(nextQuery()), reader);
+    }
+
+    @Benchmark
+    public ImageSearchHits offHeapSearch() throws IOException {
+        return offHeap.search(queryDocuments.get(nextQuery()), reader);
+    }
+
+    @Benchmark
+    public ImageSearchHits docValuesSearch() throws IOException {
+        return docValues.search(queryIds[nextQuery()]);
+    }
+
+    @Benchmark
+    public ImageSearchHits productQuantizationSearch() throws IOException {
+        return productQuantization.search(queries.get(nextQuery()));
+    }
+
+    /**
+     * Searches for a batch of queries at once, divide by the batch size to compare to the other benchmarks.
+     */
+    @Benchmark
+    public List<ImageSearchHits> cachedSearchBatch() throws IOException {
+        int from = nextQuery() % (numQueries - batchSize);
+        return cached.searchBatch(queries.subList(from, from + batchSize), maxHits);
+    }
+}
@@ -37,13 +37,48 @@ package net.semanticmetadata.lire.aggregators;
 import net.semanticmetadata.lire.classifiers.Cluster;
 
 /**
- * This class implements the clusterForFeature method for both BOVW and VLAD
+ * This class implements the clusterForFeature method for both BOVW and VLAD, using a shared {@link CodebookIndex}
  * Created by Nektarios on 03/06/2015.
  *
  * @author Nektarios Anagnostopoulos, nek.anag@gmail.com
  * (c) 2015 by Nektarios Anagnostopoulos
  */
 public abstract class AbstractAggregator implements Aggregator {
+    private static volatile int assignmentChecks = 0;
+
+    /**
+     * Sets the number of codebook entries a feature is compared to when assigning it to a cluster. With 0, the
+     * default, all of them are compared and the nearest one is found, with smaller numbers a kd-forest over the
+     * codebook picks the candidates, which is faster for large codebooks but might pick a slightly worse cluster.
+     * See {@link CodebookIndex}.
+     * @param checks the number of comparisons per feature, 0 for the exact search.
+     */
+    public static void setAssignmentChecks(int checks) {
+        assignmentChecks = Math.max(0, checks);
+    }
+
+    public static int getAssignmentChecks() {
+        return assignmentChecks;
+    }
+
+    /**
+     * Returns the shared index used for assigning features to the clusters of a codebook.
+     * @param clustersArray is the codebook.
+     * @return the index.
+     */
+    protected CodebookIndex indexFor(Cluster[] clustersArray) {
+        return CodebookIndex.get(clustersArray);
+    }
+
+    /**
+     * Returns the index of the cluster with the min distance between a feature and a codebook.
+     * @param f is the feature.
+     * @param index is the index of the codebook, see {@link #indexFor(Cluster[])}.
+     * @return index of the cluster.
+     */
+    protected int clusterForFeature(double[] f, CodebookIndex index) {
+        return index.nearest(f, assignmentChecks);
+    }
 
     /**
      * Returns the index of the cluster with the min distance between a feature and a codebook.
@@ -52,15 +87,6 @@ public abstract class AbstractAggregator implements Aggregator {
      * @return index of the cluster.
      */
     protected int clusterForFeature(double[] f, Cluster[] clustersArray) {
-        double distance, min = clustersArray[0].getDistance(f);
-        int result = 0;
-        for (int i = 1; i < clustersArray.length; i++) {
-            distance = clustersArray[i].getDistance(f);
-            if (distance < min) {
-                min = distance;
-                result = i;
-            }
-        }
-        return result;
+        return clusterForFeature(f, indexFor(clustersArray));
     }
 }
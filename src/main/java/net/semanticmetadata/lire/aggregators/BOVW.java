@@ -63,9 +63,10 @@ public class BOVW extends AbstractAggregator {
     public void createVectorRepresentation(List<? extends LocalFeature> listOfLocalFeatures, Cluster[] clustersArray) {
         histogram = new double[clustersArray.length];
         Arrays.fill(histogram, 0d);
+        CodebookIndex index = indexFor(clustersArray);
         // find the appropriate cluster for each feature:
         for (LocalFeature listOfLocalFeature : listOfLocalFeatures) {
-            histogram[clusterForFeature(listOfLocalFeature.getFeatureVector(), clustersArray)]++;
+            histogram[clusterForFeature(listOfLocalFeature.getFeatureVector(), index)]++;
         }
 //        quantize(histogram);
     }
@@ -0,0 +1,339 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.aggregators;
+
+import net.semanticmetadata.lire.classifiers.Cluster;
+
+import java.util.*;
+
+/**
+ * Finds the nearest codebook entry for local features. The exact search compares a feature to all means, stored
+ * in one flat array, and stops summing up a distance as soon as it exceeds the best one found so far. For large
+ * codebooks a forest of randomized kd-trees over the means (Silpa-Anan & Hartley, Muja & Lowe) gives an
+ * approximate search: the trees are descended in best bin first order and the search stops after a given number
+ * of means has been compared, so accuracy is traded for speed with that one parameter.
+ * <p>
+ * Indexes are created once per codebook array and shared by all threads through {@link #get(Cluster[])}, the
+ * means of a codebook must not be changed in place afterwards.
+ *
+ * @author Mathias Lux, mathias@juggle.at
+ */
+public class CodebookIndex {
+    /**
+     * Number of randomized trees in the forest.
+     */
+    public static final int NUM_TREES = 4;
+    /**
+     * Maximum number of means in a leaf.
+     */
+    static final int LEAF_SIZE = 4;
+    /**
+     * The split dimension is chosen randomly among the ones with the highest variance.
+     */
+    private static final int SPLIT_CANDIDATES = 5;
+    /**
+     * Maximum number of means the variance is estimated from when splitting a node.
+     */
+    private static final int VARIANCE_SAMPLES = 128;
+
+    private static final Map<Cluster[], CodebookIndex> indexes = Collections.synchronizedMap(new WeakHashMap<Cluster[], CodebookIndex>());
+
+    private final double[][] meanArrays;
+    private final double[] means;
+    private final int numClusters, length;
+    private volatile Node[] trees = null;
+    private final ThreadLocal<Marks> marks = new ThreadLocal<Marks>() {
+        @Override
+        protected Marks initialValue() {
+            return new Marks(numClusters);
+        }
+    };
+
+    /**
+     * Returns the index for a codebook, it is created on first use and kept as long as the codebook is referenced.
+     *
+     * @param codebook the codebook, its means must not be changed afterwards.
+     * @return the shared index.
+     */
+    public static CodebookIndex get(Cluster[] codebook) {
+        CodebookIndex index = indexes.get(codebook);
+        if (index == null || !index.matches(codebook)) {
+            index = new CodebookIndex(codebook);
+            indexes.put(codebook, index);
+        }
+        return index;
+    }
+
+    public CodebookIndex(Cluster[] codebook) {
+        numClusters = codebook.length;
+        length = codebook[0].getMean().length;
+        meanArrays = new double[numClusters][];
+        means = new double[numClusters * length];
+        for (int i = 0; i < numClusters; i++) {
+            meanArrays[i] = codebook[i].getMean();
+            System.arraycopy(meanArrays[i], 0, means, i * length, length);
+        }
+    }
+
+    /**
+     * Checks if the index has been built from the means of the given codebook, replaced mean arrays, e.g. by
+     * {@link Cluster#setByteRepresentation(byte[])}, are detected, values changed in place are not.
+     */
+    private boolean matches(Cluster[] codebook) {
+        if (codebook.length != numClusters) return false;
+        for (int i = 0; i < numClusters; i++) {
+            if (codebook[i].getMean() != meanArrays[i]) return false;
+        }
+        return true;
+    }
+
+    public int getNumClusters() {
+        return numClusters;
+    }
+
+    /**
+     * Returns the index of the nearest mean in terms of L2 distance, the first one in case of ties.
+     *
+     * @param feature the feature vector.
+     * @return the index of the cluster.
+     */
+    public int nearest(double[] feature) {
+        int result = 0;
+        double min = Double.MAX_VALUE, distance;
+        for (int i = 0; i < numClusters; i++) {
+            distance = distance(feature, i, min);
+            if (distance < min) {
+                min = distance;
+                result = i;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the index of the nearest mean found by comparing the feature to at most maxChecks means selected
+     * by the kd-forest. Falls back to the exact search if maxChecks is not positive or not smaller than the size
+     * of the codebook.
+     *
+     * @param feature   the feature vector.
+     * @param maxChecks the number of means to compare with, higher values give more accurate results.
+     * @return the index of the cluster.
+     */
+    public int nearest(double[] feature, int maxChecks) {
+        if (maxChecks <= 0 || maxChecks >= numClusters) return nearest(feature);
+        Node[] forest = getTrees();
+        Search search = new Search(feature, marks.get().next());
+        for (Node tree : forest) {
+            search.descend(tree);
+        }
+        Branch branch;
+        while (search.checks < maxChecks && (branch = search.queue.poll()) != null) {
+            if (branch.bound < search.min) search.descend(branch.node);
+        }
+        return search.result;
+    }
+
+    /**
+     * Squared L2 distance between a feature and a mean, stops early with a partial sum once the bound is exceeded.
+     */
+    private double distance(double[] feature, int cluster, double bound) {
+        double sum = 0, d;
+        int offset = cluster * length;
+        for (int i = 0; i < length; i++) {
+            d = feature[i] - means[offset + i];
+            sum += d * d;
+            if ((i & 15) == 15 && sum > bound) return sum;
+        }
+        return sum;
+    }
+
+    private Node[] getTrees() {
+        Node[] result = trees;
+        if (result == null) {
+            synchronized (this) {
+                result = trees;
+                if (result == null) {
+                    Random random = new Random(numClusters);
+                    result = new Node[NUM_TREES];
+                    for (int i = 0; i < result.length; i++) {
+                        int[] order = new int[numClusters];
+                        for (int j = 0; j < order.length; j++) order[j] = j;
+                        result[i] = build(order, 0, numClusters, random);
+                    }
+                    trees = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Splits the means order[start, end) at the mean value of a dimension with high variance.
+     */
+    private Node build(int[] order, int start, int end, Random random) {
+        Node node = new Node();
+        if (end - start <= LEAF_SIZE) {
+            node.clusters = Arrays.copyOfRange(order, start, end);
+            return node;
+        }
+        // estimate mean and variance per dimension:
+        int samples = Math.min(end - start, VARIANCE_SAMPLES);
+        double[] sum = new double[length], sumOfSquares = new double[length];
+        for (int s = 0; s < samples; s++) {
+            int offset = order[start + s * (end - start) / samples] * length;
+            for (int i = 0; i < length; i++) {
+                double v = means[offset + i];
+                sum[i] += v;
+                sumOfSquares[i] += v * v;
+            }
+        }
+        // pick one of the dimensions with the highest variance:
+        int[] candidates = new int[Math.min(SPLIT_CANDIDATES, length)];
+        double[] variances = new double[candidates.length];
+        Arrays.fill(variances, -1);
+        for (int i = 0; i < length; i++) {
+            double variance = sumOfSquares[i] / samples - (sum[i] / samples) * (sum[i] / samples);
+            for (int j = 0; j < candidates.length; j++) {
+                if (variance > variances[j]) {
+                    System.arraycopy(variances, j, variances, j + 1, variances.length - j - 1);
+                    System.arraycopy(candidates, j, candidates, j + 1, candidates.length - j - 1);
+                    variances[j] = variance;
+                    candidates[j] = i;
+                    break;
+                }
+            }
+        }
+        node.dimension = candidates[random.nextInt(candidates.length)];
+        node.value = sum[node.dimension] / samples;
+        // partition:
+        int middle = start;
+        for (int i = start; i < end; i++) {
+            if (means[order[i] * length + node.dimension] < node.value) {
+                int tmp = order[i];
+                order[i] = order[middle];
+                order[middle++] = tmp;
+            }
+        }
+        // all means on one side, e.g. duplicates, so just split the list.
+        if (middle == start || middle == end) middle = (start + end) / 2;
+        node.left = build(order, start, middle, random);
+        node.right = build(order, middle, end, random);
+        return node;
+    }
+
+    private static class Node {
+        int dimension;
+        double value;
+        Node left, right;
+        int[] clusters = null;
+    }
+
+    private static class Branch implements Comparable<Branch> {
+        final Node node;
+        final double bound;
+
+        Branch(Node node, double bound) {
+            this.node = node;
+            this.bound = bound;
+        }
+
+        @Override
+        public int compareTo(Branch o) {
+            return Double.compare(bound, o.bound);
+        }
+    }
+
+    /**
+     * Per thread marks of the means already compared in a search, a new stamp per search avoids clearing them.
+     */
+    private static class Marks {
+        final int[] stamps;
+        int stamp = 0;
+
+        Marks(int size) {
+            stamps = new int[size];
+        }
+
+        Marks next() {
+            if (++stamp == Integer.MAX_VALUE) {
+                Arrays.fill(stamps, 0);
+                stamp = 1;
+            }
+            return this;
+        }
+    }
+
+    /**
+     * State of a single best bin first search through the forest.
+     */
+    private class Search {
+        final double[] feature;
+        final Marks marks;
+        final PriorityQueue<Branch> queue = new PriorityQueue<Branch>();
+        double min = Double.MAX_VALUE;
+        int result = 0, checks = 0;
+
+        Search(double[] feature, Marks marks) {
+            this.feature = feature;
+            this.marks = marks;
+        }
+
+        /**
+         * Follows the closer branches down to a leaf, remembers the others and compares the means in the leaf.
+         */
+        void descend(Node node) {
+            while (node.clusters == null) {
+                double diff = feature[node.dimension] - node.value;
+                queue.add(new Branch(diff < 0 ? node.right : node.left, diff * diff));
+                node = diff < 0 ? node.left : node.right;
+            }
+            for (int cluster : node.clusters) {
+                if (marks.stamps[cluster] == marks.stamp) continue;
+                marks.stamps[cluster] = marks.stamp;
+                checks++;
+                double distance = distance(feature, cluster, min);
+                if (distance < min || (distance == min && cluster < result)) {
+                    min = distance;
+                    result = cluster;
+                }
+            }
+        }
+    }
+}
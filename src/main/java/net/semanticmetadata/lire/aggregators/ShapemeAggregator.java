@@ -25,8 +25,9 @@ public class ShapemeAggregator extends net.semanticmetadata.lire.aggregators.Abs
     public void createVisualWords(List<? extends net.semanticmetadata.lire.imageanalysis.features.LocalFeature> list, net.semanticmetadata.lire.classifiers.Cluster[] clusters) {
         histogram = new int[clusters.length];
         Arrays.fill(histogram, 0);
+        CodebookIndex index = indexFor(clusters);
         for (net.semanticmetadata.lire.imageanalysis.features.LocalFeature listOfLocalFeature : list) {
-            histogram[clusterForFeature(listOfLocalFeature.getFeatureVector(), clusters)]++;
+            histogram[clusterForFeature(listOfLocalFeature.getFeatureVector(), index)]++;
         }
     }
 
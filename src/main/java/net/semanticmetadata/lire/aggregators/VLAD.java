@@ -65,9 +65,10 @@ public class VLAD extends AbstractAggregator {
         Arrays.fill(vector, 0d);
         int clusterIndex;
         double[] mean;
+        CodebookIndex index = indexFor(clustersArray);
         // VLAD - Vector of Locally Aggregated Descriptors
         for (LocalFeature localFeature : listOfLocalFeatures) {
-            clusterIndex = clusterForFeature(localFeature.getFeatureVector(), clustersArray);
+            clusterIndex = clusterForFeature(localFeature.getFeatureVector(), index);
             mean = clustersArray[clusterIndex].getMean();
             for (int i = 0; i < localFeature.getFeatureVector().length; i++) {
                 vector[clusterIndex * localFeature.getFeatureVector().length + i] += (localFeature.getFeatureVector()[i] - mean[i]);
@@ -41,6 +41,7 @@ import net.semanticmetadata.lire.imageanalysis.features.LocalFeature;
 import net.semanticmetadata.lire.imageanalysis.features.LocalFeatureExtractor;
 import net.semanticmetadata.lire.indexers.parallel.ExtractorItem;
 import net.semanticmetadata.lire.utils.ImageUtils;
+import net.semanticmetadata.lire.utils.VisualWordsTokenStream;
 import org.apache.lucene.document.*;
 
 import java.awt.image.BufferedImage;
@@ -105,16 +106,22 @@ public abstract class AbstractLocalDocumentBuilder implements DocumentBuilder {
      * @return Lucene Fields with the vector representation of the list of local features.
      */
     public Field[] createLocalDescriptorFields(List<? extends LocalFeature> listOfLocalFeatures, ExtractorItem extractorItem, LinkedList<Cluster[]> listOfCodebooks){
-        Field[] result = new Field[listOfCodebooks.size() * 2];
-        int count = 0;
+        ArrayList<Field> result = new ArrayList<Field>(listOfCodebooks.size() * 3);
+        String[] fieldNames;
         for (Cluster[] codebook : listOfCodebooks) {
             aggregator.createVectorRepresentation(listOfLocalFeatures, codebook);
-            result[count] = new StoredField(fieldNamesDictionary.get(extractorItem).get(codebook.length)[0], aggregator.getByteVectorRepresentation());
-            result[count + 1] = new TextField(fieldNamesDictionary.get(extractorItem).get(codebook.length)[1], aggregator.getStringVectorRepresentation(), Field.Store.YES);
-            count += 2;
+            fieldNames = fieldNamesDictionary.get(extractorItem).get(codebook.length);
+            result.add(new StoredField(fieldNames[0], aggregator.getByteVectorRepresentation()));
+            if (aggregator instanceof BOVW) {
+                // visual words are indexed with their frequencies, the string is only stored.
+                result.add(VisualWordsTokenStream.createField(fieldNames[1], aggregator.getVectorRepresentation()));
+                result.add(new StoredField(fieldNames[1], aggregator.getStringVectorRepresentation()));
+            } else {
+                result.add(new TextField(fieldNames[1], aggregator.getStringVectorRepresentation(), Field.Store.YES));
+            }
         }
 
-        return result;
+        return result.toArray(new Field[result.size()]);
     }
 
     /**
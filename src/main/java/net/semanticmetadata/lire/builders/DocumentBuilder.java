@@ -89,6 +89,10 @@ public interface DocumentBuilder {
 
     String HASH_FIELD_SUFFIX = "_hash";
 
+    String PQ_FIELD_SUFFIX = "_pq";
+
+    String BINARY_HASH_FIELD_SUFFIX = "_bits";
+
     String FIELD_NAME_IDENTIFIER = "ImageIdentifier";
 
     String FIELD_NAME_AUTOCOLORCORRELOGRAM = "ACC";
@@ -35,9 +35,11 @@
 package net.semanticmetadata.lire.builders;
 
 import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.ImageContext;
 import net.semanticmetadata.lire.indexers.hashing.BitSampling;
 import net.semanticmetadata.lire.indexers.hashing.LocalitySensitiveHashing;
 import net.semanticmetadata.lire.indexers.hashing.MetricSpaces;
+import net.semanticmetadata.lire.indexers.hashing.ProductQuantizer;
 import net.semanticmetadata.lire.indexers.parallel.ExtractorItem;
 import net.semanticmetadata.lire.utils.ImageUtils;
 import net.semanticmetadata.lire.utils.SerializationUtils;
@@ -61,7 +63,7 @@ public class GlobalDocumentBuilder implements DocumentBuilder {
 
     private boolean useDocValues = false;
 
-    public enum HashingMode {BitSampling, LSH, MetricSpaces, None}
+    public enum HashingMode {BitSampling, BinaryBitSampling, LSH, MetricSpaces, ProductQuantization, None}
 
     private HashingMode hashingMode = HashingMode.BitSampling;
     private boolean hashingEnabled = false;
@@ -166,7 +168,7 @@ public class GlobalDocumentBuilder implements DocumentBuilder {
             throw new UnsupportedOperationException("ExtractorItem must contain GlobalFeature");
 
         String fieldName = extractorItem.getFieldName();
-        extractorItems.put(extractorItem, new String[]{fieldName, fieldName + DocumentBuilder.HASH_FIELD_SUFFIX});
+        extractorItems.put(extractorItem, new String[]{fieldName, fieldName + DocumentBuilder.HASH_FIELD_SUFFIX, fieldName + DocumentBuilder.PQ_FIELD_SUFFIX, fieldName + DocumentBuilder.BINARY_HASH_FIELD_SUFFIX});
     }
 
     private static void testHashes() {
@@ -203,18 +205,21 @@ public class GlobalDocumentBuilder implements DocumentBuilder {
     /**
      * Extracts the global feature and returns the Lucene Fields for the selected image.
      *
-     * @param image         is the selected image.
+     * @param context       the (already scaled) image and the intermediate results shared among the extractors.
      * @param extractorItem is the extractor to be used to extract the features.
      * @return Lucene Fields.
      */
-    private Field[] getGlobalDescriptorFields(BufferedImage image, ExtractorItem extractorItem) {
+    private Field[] getGlobalDescriptorFields(ImageContext context, ExtractorItem extractorItem) {
         Field[] result;
 //        if (hashingEnabled) result = new Field[2];
 //        else result = new Field[1];
         Field hash = null;
         Field vector = null;
 
-        GlobalFeature globalFeature = extractGlobalFeature(image, (GlobalFeature) extractorItem.getExtractorInstance());
+        GlobalFeature globalFeature = (GlobalFeature) extractorItem.getExtractorInstance();
+        globalFeature.extract(context);
+        // composite features like JCD take it from the context instead of extracting it again.
+        context.putFeature(globalFeature);
 
         if (!useDocValues) {
             // TODO: Stored field is compressed and upon search decompression takes a lot of time (> 50% with a small index with 50k images). Find something else ...
@@ -227,12 +232,26 @@ public class GlobalDocumentBuilder implements DocumentBuilder {
 
         // if BitSampling is an issue we add a field with the given hashFunctionsFileName and the suffix "hash":
         if (hashingEnabled) {
-            // TODO: check eventually if there is a more compressed string version of the integers. i.e. the hex string
-            if (globalFeature.getFeatureVector().length <= 3100) {
+            if (hashingMode == HashingMode.ProductQuantization) {
+                // the codes are not searched as terms, but scanned by the ProductQuantizationImageSearcher. The
+                // dimensions are only limited by the quantizer registered for the feature, if there is one.
+                if (ProductQuantizer.supportsFeature(globalFeature)) {
+                    BytesRef codes = new BytesRef(ProductQuantizer.generateCodes(globalFeature));
+                    if (!useDocValues)
+                        hash = new StoredField(extractorItems.get(extractorItem)[2], codes);
+                    else
+                        hash = new BinaryDocValuesField(extractorItems.get(extractorItem)[2], codes);
+                }
+            } else if (globalFeature.getFeatureVector().length <= 3100) {
+                // TODO: check eventually if there is a more compressed string version of the integers. i.e. the hex string
                 int[] hashes;
                 if (hashingMode == HashingMode.BitSampling) {
                     hashes = BitSampling.generateHashes(globalFeature.getFeatureVector());
                     hash = new TextField(extractorItems.get(extractorItem)[1], SerializationUtils.arrayToString(hashes), Field.Store.YES);
+                } else if (hashingMode == HashingMode.BinaryBitSampling) {
+                    // the bits of the hashes, searched with the Hamming distance by the HammingImageSearcher.
+                    long[] code = BitSampling.generateBinaryCode(globalFeature.getFeatureVector());
+                    hash = new BinaryDocValuesField(extractorItems.get(extractorItem)[3], new BytesRef(SerializationUtils.toByteArray(code)));
                 } else if (hashingMode == HashingMode.LSH) {
                     hashes = LocalitySensitiveHashing.generateHashes(globalFeature.getFeatureVector());
                     hash = new TextField(extractorItems.get(extractorItem)[1], SerializationUtils.arrayToString(hashes), Field.Store.YES);
@@ -261,10 +280,17 @@ public class GlobalDocumentBuilder implements DocumentBuilder {
         LinkedList<Field> resultList = new LinkedList<Field>();
         Field[] fields;
         if (extractorItems.size() > 0) {
-            for (Map.Entry<ExtractorItem, String[]> extractorItemEntry : extractorItems.entrySet()) {
-                fields = getGlobalDescriptorFields(image, extractorItemEntry.getKey());
+            // the image is scaled once and converted once for all the extractors, see extractGlobalFeature(..)
+            if (Math.max(image.getHeight(), image.getWidth()) > DocumentBuilder.MAX_IMAGE_DIMENSION) {
+                image = ImageUtils.scaleImage(image, DocumentBuilder.MAX_IMAGE_DIMENSION);
+            }
+            // closing the context hands its working arrays back to the thread's ScratchArena for the next image.
+            try (ImageContext context = new ImageContext(image)) {
+                for (Map.Entry<ExtractorItem, String[]> extractorItemEntry : extractorItems.entrySet()) {
+                    fields = getGlobalDescriptorFields(context, extractorItemEntry.getKey());
 
-                Collections.addAll(resultList, fields);
+                    Collections.addAll(resultList, fields);
+                }
             }
         }
 
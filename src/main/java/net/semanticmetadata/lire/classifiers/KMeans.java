@@ -76,18 +76,7 @@ public class KMeans {
     }
 
     public void init(boolean kmeansPlusPlus) {
-        if (features.size() < numClusters * 2) {
-            System.err.println("WARNING: Please note that the number of local features, in this case " + features.size() + ", is" +
-                    "smaller than the recommended minimum number, which is two times the number of visual words, in your case 2*" + numClusters +
-                    ". Please adapt your data and either use images with more local features or more images for creating the visual vocabulary.");
-        }
-        if (features.size() < numClusters + 1) {
-            System.err.println("CRITICAL: The number of features is smaller than the number of clusters. This cannot work as there has to be at least one " +
-                    "feature per cluster. Aborting process now.");
-            System.out.println("features: " + features.size());
-            System.out.println("clusters: " + numClusters);
-            System.exit(1);
-        }
+        checkFeatureCount(features.size());
         // find first clusters:
         clusters = new Cluster[numClusters];
         if (kmeansPlusPlus) {
@@ -116,6 +105,27 @@ public class KMeans {
         }
     }
 
+    /**
+     * Warns if there are too few features for the number of clusters and aborts if there are less features than
+     * clusters.
+     *
+     * @param numFeatures the number of features to cluster.
+     */
+    protected void checkFeatureCount(int numFeatures) {
+        if (numFeatures < numClusters * 2) {
+            System.err.println("WARNING: Please note that the number of local features, in this case " + numFeatures + ", is" +
+                    "smaller than the recommended minimum number, which is two times the number of visual words, in your case 2*" + numClusters +
+                    ". Please adapt your data and either use images with more local features or more images for creating the visual vocabulary.");
+        }
+        if (numFeatures < numClusters + 1) {
+            System.err.println("CRITICAL: The number of features is smaller than the number of clusters. This cannot work as there has to be at least one " +
+                    "feature per cluster. Aborting process now.");
+            System.out.println("features: " + numFeatures);
+            System.out.println("clusters: " + numClusters);
+            System.exit(1);
+        }
+    }
+
     protected Set<Integer> selectInitialMedians(int numClusters) {
         return StatsUtils.drawSample(numClusters, features.size());
     }
@@ -0,0 +1,205 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * --------------------
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *     http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.classifiers;
+
+import java.util.Arrays;
+
+/**
+ * Mini-batch k-means for codebooks trained on more features than fit into memory. The features are streamed into
+ * a reservoir of fixed size, which holds a uniform random sample of all features added so far, so they can be added
+ * while they are extracted and do not have to be kept anywhere else. The means are seeded from the reservoir, with
+ * k-means++ or randomly, and each step moves them towards mini-batches of features drawn from the reservoir, each
+ * mean with a learning rate of one over the number of features it has been moved towards (D. Sculley, Web-Scale
+ * K-Means Clustering, WWW 2010).
+ *
+ * @author Mathias Lux, mathias@juggle.at
+ */
+public class MiniBatchKMeans extends ParallelKMeans {
+    private int batchSize;
+    // the number of features each mean has been moved towards.
+    private long[] counts = null;
+
+    /**
+     * Creates a k-means with a reservoir of 20 features per cluster, but at least 100,000 features, and mini-batches
+     * of 1,000 features.
+     *
+     * @param numClusters the number of clusters.
+     */
+    public MiniBatchKMeans(int numClusters) {
+        this(numClusters, Math.max(100000, 20 * numClusters), 1000);
+    }
+
+    /**
+     * @param numClusters   the number of clusters.
+     * @param reservoirSize the maximum number of features kept, at least the number of clusters.
+     * @param batchSize     the number of features per mini-batch.
+     */
+    public MiniBatchKMeans(int numClusters, int reservoirSize, int batchSize) {
+        super(numClusters);
+        if (reservoirSize < numClusters)
+            throw new IllegalArgumentException("The reservoir has to hold at least one feature per cluster: " + reservoirSize + " < " + numClusters);
+        this.maxFeatures = reservoirSize;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Adds a feature to the reservoir. Once the reservoir is full, the n-th feature replaces a random one with a
+     * probability of reservoir size / n. Can be called from several threads.
+     *
+     * @param feature the feature, all have to have the same length.
+     */
+    @Override
+    public synchronized void addFeature(double[] feature) {
+        if (hasNaNs(feature)) return;
+        countAllFeatures++;
+        if (numFeatures < maxFeatures) {
+            store(numFeatures, feature);
+            numFeatures++;
+        } else {
+            long index = (long) (random.nextDouble() * countAllFeatures);
+            if (index < maxFeatures) store((int) index, feature);
+        }
+    }
+
+    /**
+     * Number of features in the reservoir.
+     */
+    public int getReservoirCount() {
+        return numFeatures;
+    }
+
+    @Override
+    public void init(boolean kmeansPlusPlus) {
+        super.init(kmeansPlusPlus);
+        counts = new long[numClusters];
+    }
+
+    /**
+     * Moves the means towards as many features as there are in the reservoir, drawn in mini-batches. The
+     * features of a batch are assigned to their nearest means in parallel, then each mean is moved towards its
+     * features one after the other. {@link #getSquaredError()} is estimated from the drawn features.
+     *
+     * @return the squared distance the means moved, weighted by the number of features they were moved towards.
+     */
+    @Override
+    public double clusteringStep() {
+        if (assignment.length < numFeatures) {
+            // features were added after init.
+            int from = assignment.length;
+            assignment = Arrays.copyOf(assignment, numFeatures);
+            Arrays.fill(assignment, from, numFeatures, -1);
+        }
+        int numClusters = clusters.length;
+        final float[] means = new float[numClusters * length];
+        double[][] start = new double[numClusters][];
+        for (int c = 0; c < numClusters; c++) {
+            start[c] = clusters[c].getMean().clone();
+            for (int i = 0; i < length; i++) {
+                means[c * length + i] = (float) start[c][i];
+            }
+        }
+        final int[] batch = new int[Math.min(batchSize, numFeatures)];
+        final int[] nearest = new int[batch.length];
+        final float[] distances = new float[batch.length];
+        int[] stepCounts = new int[numClusters];
+        double error = 0d;
+        int changed = 0;
+        Range[] ranges = createRanges(batch.length);
+        for (int b = 0; b < numFeatures; b += batch.length) {
+            for (int i = 0; i < batch.length; i++) {
+                batch[i] = random.nextInt(numFeatures);
+            }
+            run(ranges, new RangeAction() {
+                public void run(Range range) {
+                    for (int i = range.start; i < range.end; i++) {
+                        int offset = batch[i] * length;
+                        int best = 0;
+                        float minDistance = distance(offset, means, 0, Float.POSITIVE_INFINITY);
+                        for (int c = 1; c < means.length / length; c++) {
+                            float d = distance(offset, means, c * length, minDistance);
+                            if (d < minDistance) {
+                                best = c;
+                                minDistance = d;
+                            }
+                        }
+                        nearest[i] = best;
+                        distances[i] = minDistance;
+                    }
+                }
+            });
+            for (int i = 0; i < batch.length; i++) {
+                int c = nearest[i];
+                if (assignment[batch[i]] != c) {
+                    assignment[batch[i]] = c;
+                    changed++;
+                }
+                error += distances[i];
+                stepCounts[c]++;
+                counts[c]++;
+                double rate = 1d / counts[c];
+                double[] mean = clusters[c].getMean();
+                int offset = batch[i] * length;
+                for (int j = 0; j < length; j++) {
+                    mean[j] += rate * (data[offset + j] - mean[j]);
+                    means[c * length + j] = (float) mean[j];
+                }
+            }
+        }
+        double stress = 0d;
+        emptyClusters = 0;
+        for (int c = 0; c < numClusters; c++) {
+            double[] mean = clusters[c].getMean();
+            double clusterStress = 0d;
+            for (int i = 0; i < length; i++) {
+                double diff = start[c][i] - mean[i];
+                clusterStress += diff * diff;
+            }
+            clusterStress *= stepCounts[c];
+            clusters[c].size.set(stepCounts[c]);
+            clusters[c].setStress(clusterStress);
+            stress += clusterStress;
+            if (counts[c] == 0) emptyClusters++;
+        }
+        int sampled = Math.max(1, (numFeatures + batch.length - 1) / batch.length * batch.length);
+        squaredError = error * numFeatures / sampled;
+        reassigned = changed;
+        return stress;
+    }
+}
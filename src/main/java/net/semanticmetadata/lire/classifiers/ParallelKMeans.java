@@ -39,13 +39,20 @@
 
 package net.semanticmetadata.lire.classifiers;
 
-import net.semanticmetadata.lire.builders.DocumentBuilder;
+import net.semanticmetadata.lire.utils.StatsUtils;
 
-import java.util.LinkedList;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 /**
+ * K-means on all cores. The features are stored in one contiguous float array, each step splits them into one range
+ * per thread of the fork-join pool. Each range assigns its features to the nearest means and sums them up in its own
+ * arrays, which are added up at the end of the step, so the threads never write to shared data.
  * Created by Mathias on 12/10/11.
  *
  * @author Mathias Lux, mathias@juggle.at
@@ -53,269 +60,327 @@ import java.util.concurrent.LinkedBlockingQueue;
  * @author Lazaros Tsochatzidis, ltsochat@ee.duth.gr
  */
 public class ParallelKMeans extends KMeans {
-    int numThreads = DocumentBuilder.NUM_OF_THREADS;
-    private LinkedBlockingQueue<Item> queue = new LinkedBlockingQueue<Item>(100);
+    ForkJoinPool pool = ForkJoinPool.commonPool();
+    Random random = new Random();
+    // the features, one after the other.
+    float[] data = new float[0];
+    // the number of features in data, and the number data grows to at most.
+    int numFeatures = 0;
+    int maxFeatures = Integer.MAX_VALUE;
+    // the index of the cluster each feature has been assigned to in the last step.
+    int[] assignment = null;
+    // statistics of the last step.
+    double squaredError = 0d;
+    int reassigned = 0;
+    int emptyClusters = 0;
 
     public ParallelKMeans(int numClusters) {
         super(numClusters);
     }
 
     /**
-     * Re-shuffle all features.
+     * Adds a feature, it is copied to the feature storage and not kept. The storage is a single float[], so it holds
+     * at most about 2^31 / feature length features.
+     *
+     * @param feature the feature, all have to have the same length.
+     * @throws IllegalStateException if the storage is full.
      */
-    protected void reOrganizeFeatures() {
-        LinkedList<Thread> threads = new LinkedList<Thread>();
-        Thread thread;
-        Thread p = new Thread(new ProducerForFeatures());
-        p.start();
-        for (int i = 0; i < numThreads; i++) {
-            thread = new Thread(new FeatureToClass());
-            thread.start();
-            threads.add(thread);
-        }
-        for (Thread next : threads) {
-            try {
-                next.join();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
-        threads.clear();
+    @Override
+    public void addFeature(double[] feature) {
+        if (hasNaNs(feature)) return;
+        store(numFeatures, feature);
+        numFeatures++;
+        countAllFeatures++;
     }
 
-    protected void recomputeMeans() {
-        LinkedList<Thread> threads = new LinkedList<Thread>();
-        Thread p = new Thread(new ProducerForClusters());
-        p.start();
-        Thread thread;
-        for (int i = 0; i < numThreads; i++) {
-            thread = new Thread(new MeanOfCluster());
-            thread.start();
-            threads.add(thread);
+    /**
+     * Copies a feature to the given position of the feature storage, which grows if needed.
+     */
+    void store(int index, double[] feature) {
+        if (numFeatures == 0) length = feature.length;
+        else if (feature.length != length)
+            throw new IllegalArgumentException("Feature length " + feature.length + " does not match " + length);
+        long needed = (long) (index + 1) * length;
+        if (needed > data.length) {
+            if (needed > Integer.MAX_VALUE - 8)
+                throw new IllegalStateException("Too many features for the storage: " + index + " of length " + length);
+            long limit = Math.min(Integer.MAX_VALUE - 8, (long) maxFeatures * length);
+            data = Arrays.copyOf(data, (int) Math.min(limit, Math.max(needed, 2L * data.length)));
         }
-        for (Thread next : threads) {
-            try {
-                next.join();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+        int offset = index * length;
+        for (int i = 0; i < length; i++) {
+            data[offset + i] = (float) feature[i];
         }
-        threads.clear();
     }
 
-    protected double overallStress() {
-        double v = 0.0;
-        LinkedList<ComputeStress> tasks = new LinkedList<ComputeStress>();
-        LinkedList<Thread> threads = new LinkedList<Thread>();
-        ComputeStress computeStress;
-        Thread thread;
-        Thread p = new Thread(new ProducerForClusters());
-        p.start();
-        for (int i = 0; i < numThreads; i++) {
-            computeStress = new ComputeStress();
-            thread = new Thread(computeStress);
-            thread.start();
-            tasks.add(computeStress);
-            threads.add(thread);
-        }
-        for (Thread next : threads) {
-            try {
-                next.join();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+    @Override
+    public void init(boolean kmeansPlusPlus) {
+        checkFeatureCount(numFeatures);
+        data = Arrays.copyOf(data, numFeatures * length);
+        assignment = new int[numFeatures];
+        Arrays.fill(assignment, -1);
+        clusters = new Cluster[numClusters];
+        if (kmeansPlusPlus) {
+            selectMediansPlusPlus();
+        } else {
+            Set<Integer> medians = selectInitialMedians(numClusters);
+            Iterator<Integer> mediansIterator = medians.iterator();
+            for (int i = 0; i < clusters.length; i++) {
+                clusters[i] = createCluster(mediansIterator.next());
             }
         }
-        for (ComputeStress task : tasks) {
-            v += task.getResult();
-        }
-        tasks.clear();
-        threads.clear();
-//        for(Cluster cluster : clusters){
-//            v += cluster.getStress();
-//        }
-
-        return v;
     }
 
+    @Override
+    protected Set<Integer> selectInitialMedians(int numClusters) {
+        return StatsUtils.drawSample(numClusters, numFeatures);
+    }
 
-    private class ComputeStress implements Runnable {
-        private boolean locallyEnded;
-        double result;
-
-        private ComputeStress() {
-            this.result  = 0.0;
-            this.locallyEnded = false;
+    private Cluster createCluster(int feature) {
+        double[] mean = new double[length];
+        for (int i = 0; i < length; i++) {
+            mean[i] = data[feature * length + i];
         }
+        return new Cluster(mean);
+    }
 
-        public void run() {
-            Item tmp;
-            while (!locallyEnded) {
-                try {
-                    tmp = queue.take();
-                    if (tmp.getNum() == -1)  locallyEnded = true;
-                    if (!locallyEnded) {    // && tmp != -1
-//                        for (Integer member : tmp.getCluster().members) {
-//                            for (int j = 0; j < length; j++) {
-//                                result += Math.abs(tmp.getCluster().mean[j] - features.get(member)[j]);
-//                            }
-//                        }
-                        result += tmp.getCluster().getStress();
+    /**
+     * k-means++ seeding: each new mean is a feature drawn with a probability proportional to its squared distance
+     * to the nearest mean chosen so far. The distances are updated in parallel.
+     */
+    private void selectMediansPlusPlus() {
+        final float[] minDistance = new float[numFeatures];
+        Arrays.fill(minDistance, Float.POSITIVE_INFINITY);
+        final Range[] ranges = createRanges();
+        clusters[0] = createCluster(random.nextInt(numFeatures));
+        for (int c = 1; c < clusters.length; c++) {
+            final float[] mean = toFloat(clusters[c - 1].getMean());
+            run(ranges, new RangeAction() {
+                public void run(Range range) {
+                    range.distanceSum = 0d;
+                    for (int i = range.start; i < range.end; i++) {
+                        float d = distance(i * length, mean, 0, Float.POSITIVE_INFINITY);
+                        if (d < minDistance[i]) minDistance[i] = d;
+                        range.distanceSum += minDistance[i];
                     }
-                } catch (InterruptedException e) {
-                    e.getMessage();
                 }
+            });
+            double total = 0d;
+            for (Range range : ranges) total += range.distanceSum;
+            double r = random.nextDouble() * total;
+            int choose = random.nextInt(numFeatures);
+            for (Range range : ranges) {
+                if (r >= range.distanceSum) {
+                    r -= range.distanceSum;
+                    continue;
+                }
+                for (int i = range.start; i < range.end; i++) {
+                    r -= minDistance[i];
+                    if (r < 0d && minDistance[i] > 0f) {
+                        choose = i;
+                        break;
+                    }
+                }
+                break;
             }
-        }
-
-        public double getResult() {
-            return result;
+            clusters[c] = createCluster(choose);
         }
     }
 
-
-    private class MeanOfCluster implements Runnable {
-        private boolean locallyEnded;
-
-        private MeanOfCluster() {
-            this.locallyEnded = false;
+    /**
+     * Does one step, i.e. assigns all features to the nearest mean and moves the means to the center of their
+     * features, and returns the squared distance the means moved, weighted by the size of their clusters.
+     * See {@link #getSquaredError()}, {@link #getReassigned()} and {@link #getEmptyClusters()} for other measures
+     * of convergence.
+     *
+     * @return the weighted squared distance the means moved, 0 if no feature changed its cluster.
+     */
+    @Override
+    public double clusteringStep() {
+        final float[] means = new float[clusters.length * length];
+        for (int c = 0; c < clusters.length; c++) {
+            double[] mean = clusters[c].getMean();
+            for (int i = 0; i < length; i++) {
+                means[c * length + i] = (float) mean[i];
+            }
         }
-
-        public void run() {
-            Cluster cluster;
-            double[] mean, f;
-            Item tmp;
-            double size, stress;
-            while (!locallyEnded) {
-                try {
-                    tmp = queue.take();
-                    if (tmp.getNum() == -1) locallyEnded = true;
-                    if (!locallyEnded) {    // && tmp != -1
-                        cluster = tmp.getCluster();
-                        if (cluster.getSize() == 1) {
-                            System.err.println("** There is just one member in cluster " + tmp.getNum());
-                        } else if (cluster.getSize() < 1) {
-                            System.err.println("** There is NO member in cluster " + tmp.getNum());
-                            // fill it with a random member?!?
-                            cluster.assignMember(features.get((int) Math.floor(Math.random() * features.size())));
-                        }
-                        cluster.move();
-                    }
-                } catch (InterruptedException e) {
-                    e.getMessage();
+        Range[] ranges = createRanges();
+        run(ranges, new RangeAction() {
+            public void run(Range range) {
+                range.assign(means);
+            }
+        });
+        // add up the ranges' sums in a fixed order, so the same assignment gives exactly the same means.
+        Range total = ranges[0];
+        for (int r = 1; r < ranges.length; r++) {
+            total.add(ranges[r]);
+        }
+        squaredError = total.distanceSum;
+        reassigned = total.reassigned;
+        emptyClusters = 0;
+        double stress = 0d;
+        for (int c = 0; c < clusters.length; c++) {
+            Cluster cluster = clusters[c];
+            double[] mean = cluster.getMean();
+            int size = total.counts[c];
+            if (size < 1) {
+                System.err.println("** There is NO member in cluster " + c);
+                // fill it with a random member.
+                emptyClusters++;
+                size = 1;
+                int feature = random.nextInt(numFeatures);
+                for (int i = 0; i < length; i++) {
+                    total.sums[c * length + i] = data[feature * length + i];
                 }
             }
+            double clusterStress = 0d;
+            for (int i = 0; i < length; i++) {
+                double newMean = total.sums[c * length + i] / size;
+                double diff = mean[i] - newMean;
+                clusterStress += size * diff * diff;
+                mean[i] = newMean;
+            }
+            cluster.size.set(size);
+            cluster.setStress(clusterStress);
+            stress += clusterStress;
         }
+        return stress;
     }
 
-    private class FeatureToClass implements Runnable {
-        private boolean locallyEnded;
+    /**
+     * Sum of the squared distances of the features to the nearest mean in the last step, before the means were
+     * moved.
+     */
+    public double getSquaredError() {
+        return squaredError;
+    }
 
-        private FeatureToClass() {
-            this.locallyEnded = false;
+    /**
+     * Number of features that changed their cluster in the last step.
+     */
+    public int getReassigned() {
+        return reassigned;
+    }
+
+    /**
+     * Number of clusters without features in the last step, they were moved to a random feature.
+     */
+    public int getEmptyClusters() {
+        return emptyClusters;
+    }
+
+    /**
+     * Squared L2 distance of a feature to a mean, stops adding up once the distance is above the bound.
+     */
+    float distance(int offset, float[] means, int meanOffset, float bound) {
+        float sum = 0f, diff;
+        for (int i = 0; i < length; i++) {
+            diff = data[offset + i] - means[meanOffset + i];
+            sum += diff * diff;
+            if ((i & 15) == 15 && sum > bound) return sum;
         }
+        return sum;
+    }
 
-        public void run() {
-            double v, minDistance;
-            double[] f;
-            Item tmp;
-            int best;
-            while (!locallyEnded) {
-                try {
-                    tmp = queue.take();
-                    if (tmp.getNum() == -1) locallyEnded = true;
-                    if (!locallyEnded) {    // && tmp != -1
-                        f = tmp.getArray();
-                        best = 0;
-                        minDistance = clusters[0].getDistance(f);
-                        for (int i = 1; i < clusters.length; i++) {
-                            v = clusters[i].getDistance(f);
-                            if (minDistance > v) {
-                                best = i;
-                                minDistance = v;
-                            }
-                        }
-                        clusters[best].assignMember(f);
-                    }
-                } catch (InterruptedException e) {
-                    e.getMessage();
-                }
-            }
+    static float[] toFloat(double[] array) {
+        float[] result = new float[array.length];
+        for (int i = 0; i < array.length; i++) {
+            result[i] = (float) array[i];
         }
+        return result;
     }
 
+    private Range[] createRanges() {
+        return createRanges(numFeatures);
+    }
 
-    class ProducerForClusters implements Runnable {
-        private ProducerForClusters() {
-            queue.clear();
+    /**
+     * Splits the indices from 0 to count into one range per thread of the pool.
+     */
+    Range[] createRanges(int count) {
+        int numRanges = Math.max(1, Math.min(pool.getParallelism(), count));
+        Range[] ranges = new Range[numRanges];
+        for (int r = 0; r < numRanges; r++) {
+            ranges[r] = new Range((int) ((long) count * r / numRanges), (int) ((long) count * (r + 1) / numRanges));
         }
+        return ranges;
+    }
 
-        public void run() {
-            int counter = 0;
-            for(Cluster cluster : clusters){
-                try {
-                    queue.put(new Item(counter, cluster));
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-                counter++;
-            }
-            Cluster cluster = null;
-            for (int i = 0; i < numThreads * 3; i++)  {
-                try {
-                    queue.put(new Item(-1, cluster));
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+    /**
+     * Runs the action for all ranges in the pool and waits for them.
+     */
+    void run(Range[] ranges, final RangeAction action) {
+        final RecursiveAction[] tasks = new RecursiveAction[ranges.length];
+        for (int r = 0; r < ranges.length; r++) {
+            final Range range = ranges[r];
+            tasks[r] = new RecursiveAction() {
+                protected void compute() {
+                    action.run(range);
                 }
-            }
+            };
         }
+        pool.invoke(new RecursiveAction() {
+            protected void compute() {
+                ForkJoinTask.invokeAll(tasks);
+            }
+        });
+    }
+
+    interface RangeAction {
+        void run(Range range);
     }
 
-    class ProducerForFeatures implements Runnable {
-        private ProducerForFeatures() {
-            queue.clear();
+    /**
+     * A range of features with the partial sums of its features per cluster.
+     */
+    class Range {
+        int start, end;
+        double[] sums;
+        int[] counts;
+        double distanceSum = 0d;
+        int reassigned = 0;
+
+        Range(int start, int end) {
+            this.start = start;
+            this.end = end;
         }
 
-        public void run() {
-            int counter = 0;
-            for (double[] feature : features) {
-                try {
-                    queue.put(new Item(counter, feature));
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+        void assign(float[] means) {
+            sums = new double[clusters.length * length];
+            counts = new int[clusters.length];
+            for (int f = start; f < end; f++) {
+                int offset = f * length;
+                int best = 0;
+                float minDistance = distance(offset, means, 0, Float.POSITIVE_INFINITY);
+                for (int c = 1; c < clusters.length; c++) {
+                    float d = distance(offset, means, c * length, minDistance);
+                    if (d < minDistance) {
+                        best = c;
+                        minDistance = d;
+                    }
                 }
-                counter++;
-            }
-            double[] tmp = null;
-            for (int i = 0; i < numThreads * 3; i++)  {
-                try {
-                    queue.put(new Item(-1, tmp));
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+                if (assignment[f] != best) {
+                    assignment[f] = best;
+                    reassigned++;
+                }
+                distanceSum += minDistance;
+                counts[best]++;
+                int meanOffset = best * length;
+                for (int i = 0; i < length; i++) {
+                    sums[meanOffset + i] += data[offset + i];
                 }
             }
         }
-    }
-
-    private class Item {
-        private double[] array;
-        private Cluster cluster;
-        private int num;
-
-        Item(int num, double[] array) {
-            this.num = num;
-            this.array = array;
-        }
 
-        Item(int num, Cluster cluster) {
-            this.num = num;
-            this.cluster = cluster;
+        void add(Range range) {
+            for (int i = 0; i < sums.length; i++) {
+                sums[i] += range.sums[i];
+            }
+            for (int c = 0; c < counts.length; c++) {
+                counts[c] += range.counts[c];
+            }
+            distanceSum += range.distanceSum;
+            reassigned += range.reassigned;
         }
-
-        private int getNum() { return num; }
-
-        private Cluster getCluster() { return cluster; }
-
-        private double[] getArray() { return array; }
     }
-
-}
\ No newline at end of file
+}
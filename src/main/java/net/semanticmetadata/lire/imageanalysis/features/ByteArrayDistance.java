@@ -0,0 +1,74 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.imageanalysis.features;
+
+/**
+ * Implemented by features that can compute their distance directly on the serialized form of another feature, i.e.
+ * on the data created by {@link LireFeature#getByteArrayRepresentation()}, without calling
+ * {@link LireFeature#setByteArrayRepresentation(byte[], int, int)} on an instance first. Linear searchers use it to
+ * skip decoding each and every candidate. The results are the same as the ones of
+ * {@link LireFeature#getDistance(LireFeature)} with the decoded feature.
+ *
+ * @author Mathias Lux, mathias@juggle.at
+ */
+public interface ByteArrayDistance {
+    /**
+     * Computes the distance between the instance and a serialized feature of the same class.
+     * @param featureData the byte[] array containing the serialized feature.
+     * @param offset the offset, i.e. where the feature vector starts.
+     * @param length the length of the data representing the feature vector.
+     * @return the distance (or dissimilarity) between the instance and the serialized feature.
+     * @see LireFeature#getDistance(LireFeature)
+     */
+    double getDistance(byte[] featureData, int offset, int length);
+
+    /**
+     * Like {@link #getDistance(byte[], int, int)} with a pruning threshold, see
+     * {@link LireFeature#getDistance(LireFeature, double)}. The default implementation computes the full distance.
+     * @param featureData the byte[] array containing the serialized feature.
+     * @param offset the offset, i.e. where the feature vector starts.
+     * @param length the length of the data representing the feature vector.
+     * @param threshold the distance above which the exact value is not needed.
+     * @return the distance if it is not larger than the threshold, a value larger than the threshold otherwise.
+     */
+    default double getDistance(byte[] featureData, int offset, int length, double threshold) {
+        return getDistance(featureData, offset, length);
+    }
+}
@@ -46,7 +46,7 @@ import net.semanticmetadata.lire.utils.SerializationUtils;
  * Generic byte[] based feature implementation using L1 to compare features. Users have to make sure themselves that all features have the same length and L1 makes sense for them.
  * @author Mathias Lux, mathias@juggle.at, 27.09.13 17:00
  */
-public class GenericByteLireFeature implements LireFeature {
+public class GenericByteLireFeature implements LireFeature, ByteArrayDistance {
     protected byte[] data = null;
     private String featureName = "GenericByteFeature";
     private String fieldName = "featGenericByte";
@@ -96,6 +96,28 @@ public class GenericByteLireFeature implements LireFeature {
         return MetricsUtils.distL1(((GenericByteLireFeature) feature).data, data);
     }
 
+    @Override
+    public double getDistance(byte[] featureData, int offset, int length) {
+        return getDistance(featureData, offset, length, Double.MAX_VALUE);
+    }
+
+    /**
+     * L1 distance to a serialized feature, which is just the byte[] itself, with early abandoning like
+     * {@link MetricsUtils#distL1(byte[], byte[], double)}.
+     */
+    @Override
+    public double getDistance(byte[] featureData, int offset, int length, double threshold) {
+        assert length == data.length;
+        double sum = 0d;
+        for (int i = 0; i < data.length; ) {
+            for (int end = Math.min(i + MetricsUtils.PRUNING_BLOCK_SIZE, data.length); i < end; i++) {
+                sum += Math.abs(featureData[offset + i] - data[i]);
+            }
+            if (sum > threshold) break;
+        }
+        return sum;
+    }
+
 //    @Override
 //    public String getStringRepresentation() {
 //        if (data == null) throw new UnsupportedOperationException("You need to set the histogram first.");
@@ -46,7 +46,7 @@ import net.semanticmetadata.lire.utils.SerializationUtils;
  * Generic double[] based feature implementation.
  * @author Mathias Lux, mathias@juggle.at, 27.09.13 17:00
  */
-public class GenericDoubleLireFeature implements LireFeature {
+public class GenericDoubleLireFeature implements LireFeature, ByteArrayDistance {
     private double[] data = null;
     private String featureName = "GenericDoubleFeature";
     private String fieldName = "featGenericDouble";
@@ -94,6 +94,31 @@ public class GenericDoubleLireFeature implements LireFeature {
         return MetricsUtils.distL2(feature.getFeatureVector(), data);
     }
 
+    @Override
+    public double getDistance(byte[] featureData, int offset, int length) {
+        return getDistance(featureData, offset, length, Double.MAX_VALUE);
+    }
+
+    /**
+     * L2 distance to a serialized feature, eight bytes per dimension as written by
+     * {@link SerializationUtils#toByteArray(double[])}, with early abandoning like
+     * {@link MetricsUtils#distL2(double[], double[], double)}.
+     */
+    @Override
+    public double getDistance(byte[] featureData, int offset, int length, double threshold) {
+        assert (length >> 3) == data.length;
+        double bound = threshold * threshold;
+        double sum = 0d, diff;
+        for (int i = 0; i < data.length; ) {
+            for (int end = Math.min(i + MetricsUtils.PRUNING_BLOCK_SIZE, data.length); i < end; i++) {
+                diff = SerializationUtils.toDouble(featureData, offset + (i << 3)) - data[i];
+                sum += diff * diff;
+            }
+            if (sum > bound) break;
+        }
+        return Math.sqrt(sum);
+    }
+
 //    @Override
 //    public String getStringRepresentation() {
 //        if (data == null) throw new UnsupportedOperationException("You need to set the histogram first.");
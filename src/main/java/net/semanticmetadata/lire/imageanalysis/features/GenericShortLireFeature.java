@@ -46,7 +46,7 @@ import net.semanticmetadata.lire.utils.SerializationUtils;
  * Generic short[] based feature implementation using L1 to compare features. Users have to make sure themselves that all features have the same length and L1 makes sense for them.
  * @author Mathias Lux, mathias@juggle.at, 27.09.13 17:00
  */
-public class GenericShortLireFeature implements LireFeature {
+public class GenericShortLireFeature implements LireFeature, ByteArrayDistance {
     protected short[] data = null;
     private String featureName = "GenericShortFeature";
     private String fieldName = "featGenericShort";
@@ -92,6 +92,30 @@ public class GenericShortLireFeature implements LireFeature {
         return MetricsUtils.distL1(((GenericShortLireFeature) feature).data, data);
     }
 
+    @Override
+    public double getDistance(byte[] featureData, int offset, int length) {
+        return getDistance(featureData, offset, length, Double.MAX_VALUE);
+    }
+
+    /**
+     * L1 distance to a serialized feature, two bytes per dimension as written by
+     * {@link SerializationUtils#toByteArray(short[])}, with early abandoning like
+     * {@link MetricsUtils#distL1(short[], short[], double)}.
+     */
+    @Override
+    public double getDistance(byte[] featureData, int offset, int length, double threshold) {
+        assert (length >> 1) == data.length;
+        double bound = threshold * data.length;
+        double sum = 0d;
+        for (int i = 0; i < data.length; ) {
+            for (int end = Math.min(i + MetricsUtils.PRUNING_BLOCK_SIZE, data.length); i < end; i++) {
+                sum += Math.abs(SerializationUtils.toShort(featureData, offset + (i << 1)) - data[i]);
+            }
+            if (sum > bound) break;
+        }
+        return sum / data.length;
+    }
+
     /**
      * We assume that it is numbers ...
      * @param data
@@ -50,4 +50,12 @@ package net.semanticmetadata.lire.imageanalysis.features;
  */
 public interface GlobalFeature extends LireFeature, Extractor {
 
+    /**
+     * Extracts the feature vector from an image, using the intermediate results shared by all features
+     * extracted from the same image. The default implementation just extracts from the image.
+     * @param context the image and its shared intermediate results.
+     */
+    default void extract(ImageContext context) {
+        extract(context.getImage());
+    }
 }
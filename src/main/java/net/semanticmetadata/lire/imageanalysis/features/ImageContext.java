@@ -0,0 +1,234 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.imageanalysis.features;
+
+import net.semanticmetadata.lire.utils.ImageUtils;
+import net.semanticmetadata.lire.utils.ScratchArena;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.*;
+import java.util.HashMap;
+
+/**
+ * Holds the intermediate results of the extraction of global features from one image, so they are computed once
+ * and shared among all the extractors, see {@link GlobalFeature#extract(ImageContext)}. Everything is computed
+ * lazily on first access: the 8 bit RGB version of the image, its packed pixels, the red, green, blue and
+ * luminance planes, the grey scale image and the features that have been extracted already.
+ * <p/>
+ * The arrays returned are shared, so they must not be changed. They are taken from the {@link ScratchArena} of
+ * the current thread and handed back by {@link #close()}, so they must not be used after the context is closed.
+ * An instance is meant to be used by one thread for one image.
+ *
+ * @author Mathias Lux, mathias@juggle.at
+ */
+public class ImageContext implements AutoCloseable {
+    private static final ColorConvertOp GRAYSCALE = new ColorConvertOp(ColorSpace.getInstance(ColorSpace.CS_GRAY), null);
+
+    private final BufferedImage image;
+    private final int width, height;
+    private BufferedImage rgbImage = null, grayscaleImage = null;
+    private int[] rgbPixels = null;
+    // true if the pixels have been copied to an array of the arena, false if it's the image's own data buffer.
+    private boolean rgbPixelsCopied = false;
+    private int[] red = null, green = null, blue = null;
+    private double[] luminance = null;
+    private HashMap<Class<? extends GlobalFeature>, GlobalFeature> features = new HashMap<>();
+
+    /**
+     * @param image the image the features are extracted from. Scaling, if needed, has to be done before.
+     */
+    public ImageContext(BufferedImage image) {
+        this.image = image;
+        this.width = image.getWidth();
+        this.height = image.getHeight();
+    }
+
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the image as 8 bit RGB image, see {@link ImageUtils#get8BitRGBImage(BufferedImage)}.
+     */
+    public BufferedImage getRGBImage() {
+        if (rgbImage == null) rgbImage = ImageUtils.get8BitRGBImage(image);
+        return rgbImage;
+    }
+
+    /**
+     * @return the pixels of the 8 bit RGB image, row by row, packed as in {@link BufferedImage#TYPE_INT_RGB}.
+     * The upper 8 bits might be set and the array might be longer than width * height.
+     */
+    public int[] getRGBPixels() {
+        if (rgbPixels == null) {
+            BufferedImage rgb = getRGBImage();
+            WritableRaster raster = rgb.getRaster();
+            // the data buffer is used directly if it holds just the image's pixels, row by row.
+            if (raster.getDataBuffer() instanceof DataBufferInt && raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+                    && ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride() == width
+                    && raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0
+                    && raster.getDataBuffer().getOffset() == 0 && raster.getDataBuffer().getSize() == width * height) {
+                rgbPixels = ((DataBufferInt) raster.getDataBuffer()).getData();
+            } else {
+                rgbPixels = rgb.getRGB(0, 0, width, height, ScratchArena.get().getIntArray(width * height), 0, width);
+                rgbPixelsCopied = true;
+            }
+        }
+        return rgbPixels;
+    }
+
+    private void createPlanes() {
+        int[] pixels = getRGBPixels();
+        ScratchArena arena = ScratchArena.get();
+        int size = width * height;
+        red = arena.getIntArray(size);
+        green = arena.getIntArray(size);
+        blue = arena.getIntArray(size);
+        luminance = arena.getDoubleArray(size);
+        int pixel, r, g, b;
+        for (int i = 0; i < size; i++) {
+            pixel = pixels[i];
+            r = (pixel >> 16) & 0xFF;
+            g = (pixel >> 8) & 0xFF;
+            b = (pixel) & 0xFF;
+            red[i] = r;
+            green[i] = g;
+            blue[i] = b;
+            luminance[i] = (0.114 * b + 0.587 * g + 0.299 * r);
+        }
+    }
+
+    /**
+     * @return the red channel of the 8 bit RGB image, row by row, the pixel (x, y) is at y * width + x.
+     */
+    public int[] getRedPlane() {
+        if (red == null) createPlanes();
+        return red;
+    }
+
+    /**
+     * @return the green channel of the 8 bit RGB image, row by row, the pixel (x, y) is at y * width + x.
+     */
+    public int[] getGreenPlane() {
+        if (green == null) createPlanes();
+        return green;
+    }
+
+    /**
+     * @return the blue channel of the 8 bit RGB image, row by row, the pixel (x, y) is at y * width + x.
+     */
+    public int[] getBluePlane() {
+        if (blue == null) createPlanes();
+        return blue;
+    }
+
+    /**
+     * @return the luminance 0.299*R + 0.587*G + 0.114*B of the 8 bit RGB image, row by row, the pixel (x, y) is
+     * at y * width + x.
+     */
+    public double[] getLuminancePlane() {
+        if (luminance == null) createPlanes();
+        return luminance;
+    }
+
+    /**
+     * @return the image converted to the grey color space, as {@link BufferedImage#TYPE_BYTE_GRAY}.
+     */
+    public BufferedImage getGrayscaleImage() {
+        if (grayscaleImage == null)
+            grayscaleImage = GRAYSCALE.filter(image, new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY));
+        return grayscaleImage;
+    }
+
+    /**
+     * Returns a feature of the image, it is extracted if it has not been extracted for this context before.
+     * Features are cached by their class, so just use it for features without parameters.
+     *
+     * @param featureClass the class of the feature.
+     * @return the extracted feature, do not change it.
+     */
+    public <T extends GlobalFeature> T getFeature(Class<T> featureClass) {
+        GlobalFeature feature = features.get(featureClass);
+        if (feature == null) {
+            try {
+                feature = featureClass.newInstance();
+            } catch (InstantiationException | IllegalAccessException e) {
+                throw new UnsupportedOperationException("Could not instantiate " + featureClass.getName(), e);
+            }
+            feature.extract(this);
+            features.put(featureClass, feature);
+        }
+        return featureClass.cast(feature);
+    }
+
+    /**
+     * Adds a feature extracted from the image to the cache of {@link #getFeature(Class)}.
+     *
+     * @param feature the feature, it must not be changed as long as the context is in use.
+     */
+    public void putFeature(GlobalFeature feature) {
+        features.put(feature.getClass(), feature);
+    }
+
+    /**
+     * Hands the arrays back to the arena of the current thread, the features extracted are kept.
+     */
+    @Override
+    public void close() {
+        ScratchArena arena = ScratchArena.get();
+        if (rgbPixelsCopied) arena.release(rgbPixels);
+        arena.release(red);
+        arena.release(green);
+        arena.release(blue);
+        arena.release(luminance);
+        rgbPixels = null;
+        rgbPixelsCopied = false;
+        red = green = blue = null;
+        luminance = null;
+    }
+}
@@ -87,4 +87,17 @@ public interface LireFeature extends FeatureVector {
      * @return the distance (or dissimilarity) between the instance and the parameter.
      */
     double getDistance(LireFeature feature);
+
+    /**
+     * The distance function with a pruning threshold, used by linear searchers that only need the exact distance if
+     * it is not larger than the distance of the worst result found so far. Implementations may stop computing as
+     * soon as the distance is known to exceed the threshold and return any value larger than the threshold then.
+     * The default implementation computes the full distance.
+     * @param feature the feature vector to compare the current instance to.
+     * @param threshold the distance above which the exact value is not needed.
+     * @return the distance if it is not larger than the threshold, a value larger than the threshold otherwise.
+     */
+    default double getDistance(LireFeature feature, double threshold) {
+        return getDistance(feature);
+    }
 }
@@ -42,14 +42,14 @@
 package net.semanticmetadata.lire.imageanalysis.features.global;
 
 import net.semanticmetadata.lire.builders.DocumentBuilder;
+import net.semanticmetadata.lire.imageanalysis.features.ByteArrayDistance;
 import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.ImageContext;
 import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
 import net.semanticmetadata.lire.imageanalysis.features.global.cedd.*;
-import net.semanticmetadata.lire.utils.ImageUtils;
 import net.semanticmetadata.lire.utils.SerializationUtils;
 
 import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferInt;
 import java.util.Arrays;
 
 /**
@@ -61,7 +61,7 @@ import java.util.Arrays;
  *
  * @author: Savvas A. Chatzichristofis, savvash@gmail.com
  */
-public class CEDD implements GlobalFeature {
+public class CEDD implements GlobalFeature, ByteArrayDistance {
     private double T0;
     private double T1;
     private double T2;
@@ -97,7 +97,18 @@ public class CEDD implements GlobalFeature {
     // signature changed by mlux
     @Override
     public void extract(BufferedImage image) {
-        image = ImageUtils.get8BitRGBImage(image);
+        try (ImageContext context = new ImageContext(image)) {
+            extract(context);
+        }
+    }
+
+    /**
+     * Extracts CEDD based on the red, green, blue and luminance planes of the context.
+     *
+     * @param context the image and its shared intermediate results.
+     */
+    @Override
+    public void extract(ImageContext context) {
         Fuzzy10Bin Fuzzy10 = new Fuzzy10Bin(false);
         Fuzzy24Bin Fuzzy24 = new Fuzzy24Bin(false);
         RGB2HSV HSVConverter = new RGB2HSV();
@@ -107,15 +118,16 @@ public class CEDD implements GlobalFeature {
         double[] Fuzzy24BinResultTable = new double[24];
         double[] CEDD = new double[144];
 
-        int width = image.getWidth();
-        int height = image.getHeight();
+        int width = context.getWidth();
+        int height = context.getHeight();
 
 
-        double[][] ImageGrid = new double[width][height];
+        // the planes are shared with other features and hold the pixel (x, y) at y * width + x, see ImageContext.
+        double[] ImageGrid = context.getLuminancePlane();
         double[][] PixelCount = new double[2][2];
-        int[][] ImageGridRed = new int[width][height];
-        int[][] ImageGridGreen = new int[width][height];
-        int[][] ImageGridBlue = new int[width][height];
+        int[] ImageGridRed = context.getRedPlane();
+        int[] ImageGridGreen = context.getGreenPlane();
+        int[] ImageGridBlue = context.getBluePlane();
 
 
 //please double check from here
@@ -155,35 +167,12 @@ public class CEDD implements GlobalFeature {
         for (int i = 0; i < 144; i++) {
             CEDD[i] = 0;
         }
-        int pixel, r, g, b;
-
-        // extraction is based on a speedup fix from Michael Riegler & Konstantin Pogorelov
-        BufferedImage image_rgb = new BufferedImage(width, height, BufferedImage.TYPE_INT_BGR);
-        image_rgb.getGraphics().drawImage(image, 0, 0, null);
-        int[] pixels = ((DataBufferInt) image_rgb.getRaster().getDataBuffer()).getData();
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
-                pixel = pixels[y * width + x];
-                b = (pixel >> 16) & 0xFF;
-                g = (pixel >> 8) & 0xFF;
-                r = (pixel) & 0xFF;
-                ImageGridRed[x][y] = r;
-                ImageGridGreen[x][y] = g;
-                ImageGridBlue[x][y] = b;
-
-                ImageGrid[x][y] = (0.114 * b + 0.587 * g + 0.299 * r);
-            }
-        }
 
 
         int[] CororRed = new int[Step_Y * Step_X];
         int[] CororGreen = new int[Step_Y * Step_X];
         int[] CororBlue = new int[Step_Y * Step_X];
 
-        int[] CororRedTemp = new int[Step_Y * Step_X];
-        int[] CororGreenTemp = new int[Step_Y * Step_X];
-        int[] CororBlueTemp = new int[Step_Y * Step_X];
-
         int MeanRed, MeanGreen, MeanBlue;
 
 //plase double check from here
@@ -191,8 +180,8 @@ public class CEDD implements GlobalFeature {
         int TempSum = 0;
         double Max = 0;
 
-        int TemoMAX_X = Step_X * (int) Math.floor(image.getWidth() >> 1);
-        int TemoMAX_Y = Step_Y * (int) Math.floor(image.getHeight() >> 1);
+        int TemoMAX_X = Step_X * (int) Math.floor(width >> 1);
+        int TemoMAX_Y = Step_Y * (int) Math.floor(height >> 1);
 
         if (NumberOfBlocks > 0) {
             TemoMAX_X = Step_X * (int) Math.sqrt(NumberOfBlocks);
@@ -229,25 +218,21 @@ public class CEDD implements GlobalFeature {
                 TempSum = 0;
 
                 for (int i = y; i < y + Step_Y; i++) {
-                    for (int j = x; j < x + Step_X; j++) {
-
-                        CororRed[TempSum] = ImageGridRed[j][i];
-                        CororGreen[TempSum] = ImageGridGreen[j][i];
-                        CororBlue[TempSum] = ImageGridBlue[j][i];
+                    for (int j = x, pos = i * width + x; j < x + Step_X; j++, pos++) {
 
-                        CororRedTemp[TempSum] = ImageGridRed[j][i];
-                        CororGreenTemp[TempSum] = ImageGridGreen[j][i];
-                        CororBlueTemp[TempSum] = ImageGridBlue[j][i];
+                        CororRed[TempSum] = ImageGridRed[pos];
+                        CororGreen[TempSum] = ImageGridGreen[pos];
+                        CororBlue[TempSum] = ImageGridBlue[pos];
 
                         TempSum++;
 
-                        if (j < (x + Step_X / 2) && i < (y + Step_Y / 2)) PixelsNeighborhood.Area1 += (ImageGrid[j][i]);
+                        if (j < (x + Step_X / 2) && i < (y + Step_Y / 2)) PixelsNeighborhood.Area1 += (ImageGrid[pos]);
                         if (j >= (x + Step_X / 2) && i < (y + Step_Y / 2))
-                            PixelsNeighborhood.Area2 += (ImageGrid[j][i]);
+                            PixelsNeighborhood.Area2 += (ImageGrid[pos]);
                         if (j < (x + Step_X / 2) && i >= (y + Step_Y / 2))
-                            PixelsNeighborhood.Area3 += (ImageGrid[j][i]);
+                            PixelsNeighborhood.Area3 += (ImageGrid[pos]);
                         if (j >= (x + Step_X / 2) && i >= (y + Step_Y / 2))
-                            PixelsNeighborhood.Area4 += (ImageGrid[j][i]);
+                            PixelsNeighborhood.Area4 += (ImageGrid[pos]);
 
                     }
                 }
@@ -413,6 +398,51 @@ public class CEDD implements GlobalFeature {
 
     }
 
+    /**
+     * Tanimoto distance to a serialized CEDD descriptor, two bins per byte as written by
+     * {@link #getByteArrayRepresentation()}. The bins are read in the same order as in {@link #getDistance(LireFeature)},
+     * so the result is the same, but there is no need to decode the histogram first.
+     */
+    @Override
+    public double getDistance(byte[] featureData, int offset, int length) {
+        int end = offset + Math.min(length, histogram.length >> 1);
+        int value;
+        // local variables only, the method is also called concurrently on the same query instance.
+        double temp1 = 0, temp2 = 0, count1 = 0, count2 = 0, count3 = 0, tmp1, tmp2;
+        for (int i = offset; i < end; i++) {
+            value = featureData[i] + 128;
+            temp1 += (value >> 4) + (value & 0x000F);
+        }
+        for (int i = 0; i < histogram.length; i++) {
+            temp2 += histogram[i];
+        }
+
+        if (temp1 == 0 && temp2 == 0) return 0d;
+        if (temp1 == 0 || temp2 == 0) return 100d;
+
+        int bin = 0;
+        for (int i = offset; i < end; i++) {
+            value = featureData[i] + 128;
+            tmp1 = (value >> 4) / temp1;
+            tmp2 = histogram[bin++] / temp2;
+            count1 += tmp1 * tmp2;
+            count2 += tmp2 * tmp2;
+            count3 += tmp1 * tmp1;
+            tmp1 = (value & 0x000F) / temp1;
+            tmp2 = histogram[bin++] / temp2;
+            count1 += tmp1 * tmp2;
+            count2 += tmp2 * tmp2;
+            count3 += tmp1 * tmp1;
+        }
+        // trailing zeros of the serialized histogram.
+        for (; bin < histogram.length; bin++) {
+            tmp2 = histogram[bin] / temp2;
+            count2 += tmp2 * tmp2;
+        }
+
+        return (100 - 100 * (count1 / (count2 + count3 - count1)));
+    }
+
     @SuppressWarnings("unused")
     private double scalarMult(double[] a, double[] b) {
         double sum = 0.0;
@@ -42,14 +42,13 @@ package net.semanticmetadata.lire.imageanalysis.features.global;
 
 import net.semanticmetadata.lire.builders.DocumentBuilder;
 import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.ImageContext;
 import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
 import net.semanticmetadata.lire.imageanalysis.features.global.como.*;
-import net.semanticmetadata.lire.utils.ImageUtils;
 import net.semanticmetadata.lire.utils.MetricsUtils;
 import net.semanticmetadata.lire.utils.SerializationUtils;
 
 import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferInt;
 import java.util.Arrays;
 
 /**
@@ -71,32 +70,20 @@ public class COMO implements GlobalFeature {
 
     @Override
     public void extract(BufferedImage image) {
-        image = ImageUtils.get8BitRGBImage(image);
-
-        int width = image.getWidth(), height = image.getHeight();
-
-        double[][] ImageGrid = new double[width][height];
-        int[][] ImageGridRed = new int[width][height];
-        int[][] ImageGridGreen = new int[width][height];
-        int[][] ImageGridBlue = new int[width][height];
-        // extraction is based on a speedup fix from Michael Riegler & Konstantin Pogorelov
-        BufferedImage image_rgb = new BufferedImage(width, height, BufferedImage.TYPE_INT_BGR);
-        image_rgb.getGraphics().drawImage(image, 0, 0, null);
-        int[] pixels = ((DataBufferInt) image_rgb.getRaster().getDataBuffer()).getData();
-        int pixel, r, g, b;
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
-                pixel = pixels[y * width + x];
-                b = (pixel >> 16) & 0xFF;
-                g = (pixel >> 8) & 0xFF;
-                r = (pixel) & 0xFF;
-                ImageGridRed[x][y] = r;
-                ImageGridGreen[x][y] = g;
-                ImageGridBlue[x][y] = b;
-
-                ImageGrid[x][y] = Math.round((0.114 * b + 0.587 * g + 0.299 * r));
-            }
+        try (ImageContext context = new ImageContext(image)) {
+            extract(context);
         }
+    }
+
+    @Override
+    public void extract(ImageContext context) {
+        int width = context.getWidth(), height = context.getHeight();
+
+        // the planes are shared with other features and hold the pixel (x, y) at y * width + x, see ImageContext.
+        double[] ImageGrid = context.getLuminancePlane();
+        int[] ImageGridRed = context.getRedPlane();
+        int[] ImageGridGreen = context.getGreenPlane();
+        int[] ImageGridBlue = context.getBluePlane();
 
 
         int NumberOfBlocks = -1;
@@ -165,12 +152,12 @@ public class COMO implements GlobalFeature {
                     jj = x;
                     jjj = 1.0;
                     for (double j = x; j < x + Step_X; j++, jj++, jjj++) {
-                        MeanRed += ImageGridRed[jj][ii];
-                        MeanGreen += ImageGridGreen[jj][ii];
-                        MeanBlue += ImageGridBlue[jj][ii];
+                        MeanRed += ImageGridRed[ii * width + jj];
+                        MeanGreen += ImageGridGreen[ii * width + jj];
+                        MeanBlue += ImageGridBlue[ii * width + jj];
 
-                        hist[(int) ImageGrid[jj][ii]]++;
-                        tmpm00 = ImageGrid[jj][ii];
+                        tmpm00 = Math.round(ImageGrid[ii * width + jj]);
+                        hist[(int) tmpm00]++;
                         tmpm10 = (jjj) * tmpm00;
                         tmpm01 = (iii) * tmpm00;
                         tmpm11 = (jjj) * tmpm01;
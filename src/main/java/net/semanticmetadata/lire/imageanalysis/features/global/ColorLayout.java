@@ -41,6 +41,7 @@
 package net.semanticmetadata.lire.imageanalysis.features.global;
 
 import net.semanticmetadata.lire.builders.DocumentBuilder;
+import net.semanticmetadata.lire.imageanalysis.features.ByteArrayDistance;
 import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
 import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
 import net.semanticmetadata.lire.imageanalysis.features.global.mpeg7.ColorLayoutImpl;
@@ -52,7 +53,7 @@ import net.semanticmetadata.lire.imageanalysis.features.global.mpeg7.ColorLayout
  *
  * @author Mathias Lux, mathias@juggle.at
  */
-public class ColorLayout extends ColorLayoutImpl implements GlobalFeature {
+public class ColorLayout extends ColorLayoutImpl implements GlobalFeature, ByteArrayDistance {
     /**
      * Provides a much faster way of serialization.
      *
@@ -134,6 +135,46 @@ public class ColorLayout extends ColorLayoutImpl implements GlobalFeature {
         return getSimilarity(YCoeff, CbCoeff, CrCoeff, cl.YCoeff, cl.CbCoeff, cl.CrCoeff);
     }
 
+    @Override
+    public double getDistance(LireFeature descriptor, double threshold) {
+        if (!(descriptor instanceof ColorLayoutImpl)) return -1d;
+        ColorLayoutImpl cl = (ColorLayoutImpl) descriptor;
+        return getSimilarity(YCoeff, CbCoeff, CrCoeff, cl.YCoeff, cl.CbCoeff, cl.CrCoeff, threshold);
+    }
+
+    @Override
+    public double getDistance(byte[] featureData, int offset, int length) {
+        return getDistance(featureData, offset, length, Double.MAX_VALUE);
+    }
+
+    /**
+     * Computes the distance to a serialized ColorLayout descriptor like
+     * {@link #getSimilarity(int[], int[], int[], int[], int[], int[], double)}, reading the coefficients directly
+     * from the layout written by {@link #getByteArrayRepresentation()}.
+     */
+    @Override
+    public double getDistance(byte[] featureData, int offset, int length, double threshold) {
+        int numY = featureData[offset], numC = featureData[offset + 1];
+        int offsetY = offset + 2, offsetCb = offsetY + numY, offsetCr = offsetCb + numC;
+        int diffCb, diffCr, sumCb = 0, sumCr = 0, sumY = 0;
+
+        for (int j = 0; j < Math.min(YCoeff.length, numY); j++) {
+            diffCb = (YCoeff[j] - featureData[offsetY + j]);
+            sumY += (weightMatrix[0][j] * diffCb * diffCb);
+        }
+        double distY = Math.sqrt(sumY);
+        if (distY > threshold) return distY;
+
+        for (int j = 0; j < Math.min(CbCoeff.length, numC); j++) {
+            diffCb = (CbCoeff[j] - featureData[offsetCb + j]);
+            sumCb += (weightMatrix[1][j] * diffCb * diffCb);
+            diffCr = (CrCoeff[j] - featureData[offsetCr + j]);
+            sumCr += (weightMatrix[2][j] * diffCr * diffCr);
+        }
+
+        return distY + Math.sqrt(sumCb) + Math.sqrt(sumCr);
+    }
+
     @Override
     public String getFeatureName() {
         return "MPEG-7 Color Layout";
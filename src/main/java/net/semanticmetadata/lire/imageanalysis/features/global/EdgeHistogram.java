@@ -42,6 +42,7 @@ package net.semanticmetadata.lire.imageanalysis.features.global;
 
 
 import net.semanticmetadata.lire.builders.DocumentBuilder;
+import net.semanticmetadata.lire.imageanalysis.features.ByteArrayDistance;
 import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
 import net.semanticmetadata.lire.imageanalysis.features.global.mpeg7.EdgeHistogramImplementation;
 import net.semanticmetadata.lire.utils.ConversionUtils;
@@ -53,7 +54,7 @@ import net.semanticmetadata.lire.utils.ConversionUtils;
  *
  * @author Mathias Lux, mathias@juggle.at
  */
-public class EdgeHistogram extends EdgeHistogramImplementation implements GlobalFeature {
+public class EdgeHistogram extends EdgeHistogramImplementation implements GlobalFeature, ByteArrayDistance {
     private int tmp;
 
 
@@ -93,6 +94,16 @@ public class EdgeHistogram extends EdgeHistogramImplementation implements Global
         }
     }
 
+    @Override
+    public double getDistance(byte[] featureData, int offset, int length) {
+        return calculateDistance(edgeHistogram, featureData, offset, Double.MAX_VALUE);
+    }
+
+    @Override
+    public double getDistance(byte[] featureData, int offset, int length, double threshold) {
+        return calculateDistance(edgeHistogram, featureData, offset, threshold);
+    }
+
 
     /*
     public byte[] getByteArrayRepresentation() {
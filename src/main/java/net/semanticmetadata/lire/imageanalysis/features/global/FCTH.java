@@ -41,13 +41,13 @@
 package net.semanticmetadata.lire.imageanalysis.features.global;
 
 import net.semanticmetadata.lire.builders.DocumentBuilder;
+import net.semanticmetadata.lire.imageanalysis.features.ByteArrayDistance;
 import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.ImageContext;
 import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
 import net.semanticmetadata.lire.imageanalysis.features.global.fcth.*;
-import net.semanticmetadata.lire.utils.ImageUtils;
 
 import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferInt;
 import java.util.Arrays;
 
 /**
@@ -60,7 +60,7 @@ import java.util.Arrays;
  * @author: Savvas A. Chatzichristofis, savvash@gmail.com
  */
 
-public class FCTH implements GlobalFeature {
+public class FCTH implements GlobalFeature, ByteArrayDistance {
     public boolean Compact = false;
     protected double[] histogram = new double[192];
     int tmp;
@@ -77,6 +77,18 @@ public class FCTH implements GlobalFeature {
 
     // Apply filter
     public double[] Apply(BufferedImage image) {
+        try (ImageContext context = new ImageContext(image)) {
+            return Apply(context);
+        }
+    }
+
+    /**
+     * Computes FCTH based on the red, green, blue and luminance planes of the context.
+     *
+     * @param context the image and its shared intermediate results.
+     * @return the FCTH histogram.
+     */
+    private double[] Apply(ImageContext context) {
         Fuzzy10Bin Fuzzy10 = new Fuzzy10Bin(false);
         Fuzzy24Bin Fuzzy24 = new Fuzzy24Bin(false);
         FuzzyFCTHpart FuccyFCTH = new FuzzyFCTHpart();
@@ -88,8 +100,8 @@ public class FCTH implements GlobalFeature {
 
 
         int Method = 2;
-        int width = image.getWidth();
-        int height = image.getHeight();
+        int width = context.getWidth();
+        int height = context.getHeight();
 
 
         for (int R = 0; R < 192; R++) {
@@ -103,30 +115,11 @@ public class FCTH implements GlobalFeature {
         WaveletMatrixPlus Matrix = new WaveletMatrixPlus();
 
 
-        double[][] ImageGrid = new double[width][height];
-        int[][] ImageGridRed = new int[width][height];
-        int[][] ImageGridGreen = new int[width][height];
-        int[][] ImageGridBlue = new int[width][height];
-
-        int pixel, r,g,b;
-        // extraction is based on a speedup fix from Michael Riegler & Konstantin Pogorelov
-        BufferedImage image_rgb = new BufferedImage(width, height, BufferedImage.TYPE_INT_BGR);
-        image_rgb.getGraphics().drawImage(image, 0, 0, null);
-        int[] pixels = ((DataBufferInt) image_rgb.getRaster().getDataBuffer()).getData();
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
-                pixel = pixels[y * width + x];
-                b = (pixel >> 16) & 0xFF;
-                g = (pixel >> 8) & 0xFF;
-                r = (pixel) & 0xFF;
-                ImageGridRed[x][y] = r;
-                ImageGridGreen[x][y] = g;
-                ImageGridBlue[x][y] = b;
-
-                int mean = (int) (0.114 * b + 0.587 * g + 0.299 * r);
-                ImageGrid[x][y] = mean;
-            }
-        }
+        // the planes are shared with other features and hold the pixel (x, y) at y * width + x, see ImageContext.
+        double[] ImageGrid = context.getLuminancePlane();
+        int[] ImageGridRed = context.getRedPlane();
+        int[] ImageGridGreen = context.getGreenPlane();
+        int[] ImageGridBlue = context.getBluePlane();
 
         int NumberOfBlocks = 1600;
         int Step_X = (int) Math.floor(width / Math.sqrt(NumberOfBlocks));
@@ -143,25 +136,16 @@ public class FCTH implements GlobalFeature {
         if (Step_Y < 4) Step_Y = 4;
         if (Step_X < 4) Step_X = 4;
         ///
-        // Filter
+        // Filter, the working arrays are reused for all the blocks.
+        double[][] Block = new double[4][4];
+        int[][] BlockCount = new int[4][4];
+
+        int[] CororRed = new int[Step_Y * Step_X];
+        int[] CororGreen = new int[Step_Y * Step_X];
+        int[] CororBlue = new int[Step_Y * Step_X];
 
         for (int y = 0; y < height - Step_Y; y += Step_Y) {
             for (int x = 0; x < width - Step_X; x += Step_X) {
-                //int[][] BinaryBlock = new int[4][4];
-                double[][] Block = new double[4][4];
-                int[][] BlockR = new int[4][4];
-                int[][] BlockG = new int[4][4];
-                int[][] BlockB = new int[4][4];
-                int[][] BlockCount = new int[4][4];
-
-                int[] CororRed = new int[Step_Y * Step_X];
-                int[] CororGreen = new int[Step_Y * Step_X];
-                int[] CororBlue = new int[Step_Y * Step_X];
-
-                int[] CororRedTemp = new int[Step_Y * Step_X];
-                int[] CororGreenTemp = new int[Step_Y * Step_X];
-                int[] CororBlueTemp = new int[Step_Y * Step_X];
-
                 int MeanRed = 0;
                 int MeanGreen = 0;
                 int MeanBlue = 0;
@@ -190,20 +174,13 @@ public class FCTH implements GlobalFeature {
                         if (j >= (Step_Y / 2)) CurrentPixelY = 2;
                         if (j >= (3 * Step_Y / 4)) CurrentPixelY = 3;
 
-                        Block[CurrentPixelX][CurrentPixelY] += ImageGrid[x + i][y + j];
+                        int pos = (y + j) * width + x + i;
+                        Block[CurrentPixelX][CurrentPixelY] += (int) ImageGrid[pos];
                         BlockCount[CurrentPixelX][CurrentPixelY]++;
 
-                        BlockR[CurrentPixelX][CurrentPixelY] = ImageGridRed[x + i][y + j];
-                        BlockG[CurrentPixelX][CurrentPixelY] = ImageGridGreen[x + i][y + j];
-                        BlockB[CurrentPixelX][CurrentPixelY] = ImageGridBlue[x + i][y + j];
-
-                        CororRed[TempSum] = BlockR[CurrentPixelX][CurrentPixelY];
-                        CororGreen[TempSum] = BlockG[CurrentPixelX][CurrentPixelY];
-                        CororBlue[TempSum] = BlockB[CurrentPixelX][CurrentPixelY];
-
-                        CororRedTemp[TempSum] = BlockR[CurrentPixelX][CurrentPixelY];
-                        CororGreenTemp[TempSum] = BlockG[CurrentPixelX][CurrentPixelY];
-                        CororBlueTemp[TempSum] = BlockB[CurrentPixelX][CurrentPixelY];
+                        CororRed[TempSum] = ImageGridRed[pos];
+                        CororGreen[TempSum] = ImageGridGreen[pos];
+                        CororBlue[TempSum] = ImageGridBlue[pos];
 
 
                         TempSum++;
@@ -364,8 +341,14 @@ public class FCTH implements GlobalFeature {
 
     @Override
     public void extract(BufferedImage bimg) {
-        bimg = ImageUtils.get8BitRGBImage(bimg);
-        histogram = Apply(bimg);
+        try (ImageContext context = new ImageContext(bimg)) {
+            extract(context);
+        }
+    }
+
+    @Override
+    public void extract(ImageContext context) {
+        histogram = Apply(context);
     }
 
     /**
@@ -466,6 +449,52 @@ public class FCTH implements GlobalFeature {
 
     }
 
+    /**
+     * Tanimoto distance to a serialized FCTH descriptor, two bins per byte as written by
+     * {@link #getByteArrayRepresentation()}. Gives the same result as {@link #getDistance(LireFeature)}, but there is
+     * no need to decode the histogram first.
+     */
+    @Override
+    public double getDistance(byte[] featureData, int offset, int length) {
+        int end = offset + Math.min(length, histogram.length >> 1);
+        int value;
+        // local variables only, the method is also called concurrently on the same query instance.
+        double tmp1 = 0, tmp2 = 0, count1 = 0, count2 = 0, count3 = 0, bin1, bin2;
+        for (int i = offset; i < end; i++) {
+            value = featureData[i] + 128;
+            tmp1 += ((double) (value >> 4)) / 2d;
+            tmp1 += ((double) (value & 0x000F)) / 2d;
+        }
+        for (int i = 0; i < histogram.length; i++) {
+            tmp2 += histogram[i];
+        }
+
+        if (tmp1 == 0 && tmp2 == 0) return 0d;
+        if (tmp1 == 0 || tmp2 == 0) return 100d;
+
+        int bin = 0;
+        for (int i = offset; i < end; i++) {
+            value = featureData[i] + 128;
+            bin1 = (((double) (value >> 4)) / 2d) / tmp1;
+            bin2 = histogram[bin++] / tmp2;
+            count1 += bin1 * bin2;
+            count2 += bin2 * bin2;
+            count3 += bin1 * bin1;
+            bin1 = (((double) (value & 0x000F)) / 2d) / tmp1;
+            bin2 = histogram[bin++] / tmp2;
+            count1 += bin1 * bin2;
+            count2 += bin2 * bin2;
+            count3 += bin1 * bin1;
+        }
+        // trailing zeros of the serialized histogram.
+        for (; bin < histogram.length; bin++) {
+            bin2 = histogram[bin] / tmp2;
+            count2 += bin2 * bin2;
+        }
+
+        return (100 - 100 * (count1 / (count2 + count3 - count1)));
+    }
+
 //    public String getStringRepresentation() {
 //        // FCTH is quantized to 3bits / bin ... therefore ints are enough.
 //        StringBuilder sb = new StringBuilder(histogram.length * 2 + 25);
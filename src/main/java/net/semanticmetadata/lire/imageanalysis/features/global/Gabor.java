@@ -44,6 +44,7 @@ import net.semanticmetadata.lire.builders.DocumentBuilder;
 import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
 import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
 import net.semanticmetadata.lire.utils.ImageUtils;
+import net.semanticmetadata.lire.utils.ScratchArena;
 import net.semanticmetadata.lire.utils.SerializationUtils;
 
 import java.awt.color.ColorSpace;
@@ -75,7 +76,6 @@ public class Gabor implements GlobalFeature {
 
     private static final double LOG2 = Math.log(2);
 
-    private double[][][][][] gaborWavelet = null;
     private double[] histogram;
 
     static {
@@ -160,79 +160,74 @@ public class Gabor implements GlobalFeature {
     public double[] getFeature(BufferedImage image) {
         image = ImageUtils.scaleImage(image, MAX_IMG_HEIGHT);
         Raster imageRaster = image.getRaster();
-        int[][] grayLevel = new int[imageRaster.getWidth()][imageRaster.getHeight()];
+        int width = imageRaster.getWidth(), height = imageRaster.getHeight();
+        // the working arrays are flat and taken from the thread's arena, the gray levels are column by column.
+        ScratchArena arena = ScratchArena.get();
+        int[] grayLevel = arena.getIntArray(width * height);
+        double[] gaborWavelet = arena.getDoubleArray(Math.max(1, M * N * (width - S) * (height - T) * 2));
         int[] tmp = new int[3];
-        for (int i = 0; i < imageRaster.getWidth(); i++) {
-            for (int j = 0; j < imageRaster.getHeight(); j++) {
-                grayLevel[i][j] = imageRaster.getPixel(i, j, tmp)[0];
+        for (int i = 0; i < width; i++) {
+            for (int j = 0; j < height; j++) {
+                grayLevel[i * height + j] = imageRaster.getPixel(i, j, tmp)[0];
             }
         }
 
         double[] featureVector = new double[M * N * 2];
-        double[][] magnitudes = computeMagnitudes(grayLevel);
-        int imageSize = image.getWidth() * image.getHeight();
-        double[][] magnitudesForVariance = new double[M][N];
-
-        if (this.gaborWavelet == null) {
-            precomputeGaborWavelet(grayLevel);
-        }
-
-        for (int m = 0; m < M; m++) {
-            for (int n = 0; n < N; n++) {
-                featureVector[m * 2 * N + n * 2] = magnitudes[m][n] / imageSize;
-                for (int i = 0; i < magnitudesForVariance.length; i++) {
-                    for (int j = 0; j < magnitudesForVariance[0].length; j++) {
-                        magnitudesForVariance[i][j] = 0.;
+        try {
+            precomputeGaborWavelet(grayLevel, width, height, gaborWavelet);
+            double[][] magnitudes = computeMagnitudes(gaborWavelet, width, height);
+            int imageSize = image.getWidth() * image.getHeight();
+            int waveletSize = (width - S) * (height - T);
+            double variance, re, im;
+
+            for (int m = 0; m < M; m++) {
+                for (int n = 0; n < N; n++) {
+                    featureVector[m * 2 * N + n * 2] = magnitudes[m][n] / imageSize;
+                    variance = 0.;
+                    for (int i = 0, pos = (m * N + n) * waveletSize * 2; i < waveletSize; i++, pos += 2) {
+                        re = gaborWavelet[pos];
+                        im = gaborWavelet[pos + 1];
+                        variance += Math.pow(Math.sqrt(Math.pow(re, 2) + Math.pow(im, 2)) - featureVector[m * 2 * N + n * 2], 2);
                     }
-                }
-                for (int x = S; x < image.getWidth(); x++) {
-                    for (int y = T; y < image.getHeight(); y++) {
-                        magnitudesForVariance[m][n] += Math.pow(Math.sqrt(Math.pow(this.gaborWavelet[x - S][y - T][m][n][0], 2) + Math.pow(this.gaborWavelet[x - S][y - T][m][n][1], 2)) - featureVector[m * 2 * N + n * 2], 2);
-                    }
-                }
 
-                featureVector[m * 2 * N + n * 2 + 1] = Math.sqrt(magnitudesForVariance[m][n]) / imageSize;
+                    featureVector[m * 2 * N + n * 2 + 1] = Math.sqrt(variance) / imageSize;
+                }
             }
+        } finally {
+            arena.release(grayLevel);
+            arena.release(gaborWavelet);
         }
-        this.gaborWavelet = null;
 
         return featureVector;
     }
 
-    private void precomputeGaborWavelet(int[][] image) {
-        this.gaborWavelet = new double[image.length - S][image[0].length - T][M][N][2];
-        double[] gaborWavelet;
+    /**
+     * Computes the wavelets for all scales and orientations, they are stored scale by scale, orientation by
+     * orientation, column by column, each as real and imaginary part.
+     */
+    private void precomputeGaborWavelet(int[] image, int width, int height, double[] gaborWavelet) {
+        int pos = 0;
         for (int m = 0; m < M; m++) {
             for (int n = 0; n < N; n++) {
-                for (int x = S; x < image.length; x++) {
-                    for (int y = T; y < image[0].length; y++) {
-                        gaborWavelet = gaborWavelet(image, x, y, m, n);
-                        this.gaborWavelet[x - S][y - T][m][n][0] = gaborWavelet[0];
-                        this.gaborWavelet[x - S][y - T][m][n][1] = gaborWavelet[1];
+                for (int x = S; x < width; x++) {
+                    for (int y = T; y < height; y++) {
+                        gaborWavelet(image[x * height + y], m, n, gaborWavelet, pos);
+                        pos += 2;
                     }
                 }
             }
         }
     }
 
-    private double[][] computeMagnitudes(int[][] image) {
+    private double[][] computeMagnitudes(double[] gaborWavelet, int width, int height) {
         double[][] magnitudes = new double[M][N];
-        for (int i = 0; i < magnitudes.length; i++) {
-            for (int j = 0; j < magnitudes[0].length; j++) {
-                magnitudes[i][j] = 0.;
-            }
-        }
-
-        if (this.gaborWavelet == null) {
-            precomputeGaborWavelet(image);
-        }
-
+        int pos = 0;
         for (int m = 0; m < M; m++) {
             for (int n = 0; n < N; n++) {
-                for (int x = S; x < image.length; x++) {
-                    for (int y = T; y < image[0].length; y++) {
-                        magnitudes[m][n] += Math.sqrt(Math.pow(this.gaborWavelet[x - S][y - T][m][n][0], 2) + Math.pow(this.gaborWavelet[x - S][y - T][m][n][1], 2));
-
+                for (int x = S; x < width; x++) {
+                    for (int y = T; y < height; y++) {
+                        magnitudes[m][n] += Math.sqrt(Math.pow(gaborWavelet[pos], 2) + Math.pow(gaborWavelet[pos + 1], 2));
+                        pos += 2;
                     }
                 }
             }
@@ -240,18 +235,18 @@ public class Gabor implements GlobalFeature {
         return magnitudes;
     }
 
-    // returns 2 doubles representing the real ([0]) and imaginary ([1]) part of the mother wavelet
-    private double[] gaborWavelet(int[][] img, int x, int y, int m, int n) {
+    // stores the real and imaginary part of the wavelet of the pixel at result[offset] and result[offset + 1]
+    private void gaborWavelet(int pixel, int m, int n, double[] result, int offset) {
         double re = 0;
         double im = 0;
         for (int s = 0; s < S; s++) {
             for (int t = 0; t < T; t++) {
-                re += img[x][y] * selfSimilarGaborWavelets[s][t][m][n][0];
-                im += img[x][y] * -selfSimilarGaborWavelets[s][t][m][n][1];
+                re += pixel * selfSimilarGaborWavelets[s][t][m][n][0];
+                im += pixel * -selfSimilarGaborWavelets[s][t][m][n][1];
             }
         }
-
-        return new double[]{re, im};
+        result[offset] = re;
+        result[offset + 1] = im;
     }
 
     // returns 2 doubles representing the real ([0]) and imaginary ([1]) part of the mother wavelet
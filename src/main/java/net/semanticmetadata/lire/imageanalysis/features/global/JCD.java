@@ -41,7 +41,9 @@
 package net.semanticmetadata.lire.imageanalysis.features.global;
 
 import net.semanticmetadata.lire.builders.DocumentBuilder;
+import net.semanticmetadata.lire.imageanalysis.features.ByteArrayDistance;
 import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.ImageContext;
 import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
 
 import java.awt.image.BufferedImage;
@@ -52,7 +54,7 @@ import java.util.Arrays;
  *
  * @author: Savvas A. Chatzichristofis, savvash@gmail.com
  */
-public class JCD implements GlobalFeature {
+public class JCD implements GlobalFeature, ByteArrayDistance {
     protected double[] data = new double[168];
     int tmp;
     double result = 0;
@@ -92,6 +94,58 @@ public class JCD implements GlobalFeature {
         return (100d - 100d * (TempCount1 / (TempCount2 + TempCount3 - TempCount1)));
     }
 
+    /**
+     * Tanimoto distance like {@link #getDistance(double[], double[])} with early abandoning. The dot product of the
+     * normalized histograms is accumulated and bound from above by Cauchy-Schwarz on the remaining bins. As soon as
+     * even the upper bound means a distance larger than the threshold, the computation stops.
+     *
+     * @param histogram1
+     * @param histogram2
+     * @param threshold  the distance above which the exact value is not needed.
+     * @return the distance, or a lower bound larger than the threshold.
+     */
+    public static double getDistance(double[] histogram1, double[] histogram2, double threshold) {
+        // the Tanimoto distance is at most 100, there is nothing to prune.
+        if (threshold >= 100d) return getDistance(histogram1, histogram2);
+        double temp1 = 0, temp2 = 0;
+        double squares1 = 0, squares2 = 0;
+
+        double TempCount1 = 0;
+        double TempCount2 = 0;
+        double TempCount3 = 0;
+
+        for (int i = 0; i < histogram1.length; i++) {
+            temp1 += histogram1[i];
+            temp2 += histogram2[i];
+            squares1 += histogram1[i] * histogram1[i];
+            squares2 += histogram2[i] * histogram2[i];
+        }
+
+        if (temp1 == 0 && temp2 == 0) return 0d;
+        if (temp1 == 0 || temp2 == 0) return 100d;
+
+        // squared norms of the normalized histograms, and the dot product needed for a distance of the threshold.
+        double norm1 = squares1 / (temp1 * temp1);
+        double norm2 = squares2 / (temp2 * temp2);
+        double t = 1d - threshold / 100d;
+        double dotBound = t * (norm1 + norm2) / (1d + t) * (1d - 1e-6);
+        double upper;
+
+        for (int i = 0; i < histogram1.length; ) {
+            for (int end = Math.min(i + 16, histogram1.length); i < end; i++) {
+                TempCount1 += (histogram2[i] / temp2) * (histogram1[i] / temp1);
+                TempCount2 += (histogram1[i] / temp1) * (histogram1[i] / temp1);
+                TempCount3 += (histogram2[i] / temp2) * (histogram2[i] / temp2);
+            }
+            upper = TempCount1 + Math.sqrt(Math.max(0d, norm1 - TempCount2) * Math.max(0d, norm2 - TempCount3));
+            if (upper < dotBound) {
+                return Math.max(100d - 100d * (upper / (norm1 + norm2 - upper)), Math.nextUp(threshold));
+            }
+        }
+
+        return (100d - 100d * (TempCount1 / (TempCount2 + TempCount3 - TempCount1)));
+    }
+
 //    public byte[] getByteArrayRepresentation() {
 //        return SerializationUtils.toByteArray(data);
 //    }
@@ -106,11 +160,20 @@ public class JCD implements GlobalFeature {
 
     @Override
     public void extract(BufferedImage bimg) {
-        CEDD c = new CEDD();
-        c.extract(bimg);
-        FCTH f = new FCTH();
-        f.extract(bimg);
-        init(c, f);
+        try (ImageContext context = new ImageContext(bimg)) {
+            extract(context);
+        }
+    }
+
+    /**
+     * JCD is combined from CEDD and FCTH, so if they have been extracted from the same context before, they are
+     * just reused.
+     *
+     * @param context the image and its shared intermediate results.
+     */
+    @Override
+    public void extract(ImageContext context) {
+        init(context.getFeature(CEDD.class), context.getFeature(FCTH.class));
     }
 /*
     public byte[] getByteArrayRepresentation() {
@@ -253,6 +316,62 @@ public class JCD implements GlobalFeature {
         return getDistance(data, ((JCD) vd).data);
     }
 
+    @Override
+    public double getDistance(LireFeature vd, double threshold) {
+        // Check if instance of the right class ...
+        if (!(vd instanceof JCD))
+            throw new UnsupportedOperationException("Wrong descriptor.");
+
+        // check if parameters are fitting ...
+        if ((((JCD) vd).data.length != data.length))
+            throw new UnsupportedOperationException("Histogram lengths or color spaces do not match");
+
+        return getDistance(data, ((JCD) vd).data, threshold);
+    }
+
+    /**
+     * Tanimoto distance to a serialized JCD descriptor, where positive bytes are bins and negative bytes are runs of
+     * empty bins, see {@link #getByteArrayRepresentation()}. Gives the same result as
+     * {@link #getDistance(LireFeature)}, but only the non-empty bins of the serialized descriptor are visited.
+     */
+    @Override
+    public double getDistance(byte[] featureData, int offset, int length) {
+        int end = offset + length;
+        // local variables only, the method is also called concurrently on the same query instance.
+        double sum1 = 0, sum2 = 0, count1 = 0, count2 = 0, count3 = 0, bin1, bin2;
+        for (int i = 0; i < data.length; i++) {
+            sum1 += data[i];
+        }
+        for (int i = offset; i < end; i++) {
+            if (featureData[i] > 0) sum2 += ((double) featureData[i]) / 2d;
+        }
+
+        if (sum1 == 0 && sum2 == 0) return 0d;
+        if (sum1 == 0 || sum2 == 0) return 100d;
+
+        int bin = 0;
+        for (int i = offset; i < end && bin < data.length; i++) {
+            if (featureData[i] > 0) {
+                bin1 = data[bin++] / sum1;
+                bin2 = (((double) featureData[i]) / 2d) / sum2;
+                count1 += bin2 * bin1;
+                count2 += bin1 * bin1;
+                count3 += bin2 * bin2;
+            } else {
+                for (int j = -featureData[i]; j > 0 && bin < data.length; j--) {
+                    bin1 = data[bin++] / sum1;
+                    count2 += bin1 * bin1;
+                }
+            }
+        }
+        for (; bin < data.length; bin++) {
+            bin1 = data[bin] / sum1;
+            count2 += bin1 * bin1;
+        }
+
+        return (100d - 100d * (count1 / (count2 + count3 - count1)));
+    }
+
 //    public String getStringRepresentation() {
 //        throw new UnsupportedOperationException("This is not meant to be used!");
 //    }
@@ -43,6 +43,7 @@ package net.semanticmetadata.lire.imageanalysis.features.global;
 
 import net.semanticmetadata.lire.builders.DocumentBuilder;
 import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.ImageContext;
 import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
 import net.semanticmetadata.lire.utils.ImageUtils;
 import net.semanticmetadata.lire.utils.MetricsUtils;
@@ -87,6 +88,12 @@ public class OpponentHistogram implements GlobalFeature {
 
     byte[] histogram = new byte[64];
 
+    @Override
+    public void extract(ImageContext context) {
+        // the shared 8 bit RGB image is not converted again.
+        extract(context.getRGBImage());
+    }
+
     @Override
     public void extract(BufferedImage bimg) {
         // check if it's (i) RGB and (ii) 8 bits per pixel.
@@ -42,9 +42,12 @@
 package net.semanticmetadata.lire.imageanalysis.features.global;
 
 import net.semanticmetadata.lire.builders.DocumentBuilder;
+import net.semanticmetadata.lire.imageanalysis.features.ByteArrayDistance;
 import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.ImageContext;
 import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
 import net.semanticmetadata.lire.utils.MetricsUtils;
+import net.semanticmetadata.lire.utils.ScratchArena;
 import net.semanticmetadata.lire.utils.SerializationUtils;
 
 import java.awt.color.ColorSpace;
@@ -59,12 +62,8 @@ import java.util.Arrays;
  *
  * @author Mathias Lux, mathias@juggle.at, 05.04.13
  */
-public class PHOG implements GlobalFeature {
+public class PHOG implements GlobalFeature, ByteArrayDistance {
     static ColorConvertOp grayscale = new ColorConvertOp(ColorSpace.getInstance(ColorSpace.CS_GRAY), null);
-    int[] tmp255 = {255};
-    int[] tmp128 = {128};
-    int[] tmp000 = {0};
-    int[] tmpPixel = {0};
     int tmp;
     // double thresholds for Canny edge detector
     double thresholdLow = 60, thresholdHigh = 100;
@@ -80,119 +79,96 @@ public class PHOG implements GlobalFeature {
 
     @Override
     public void extract(BufferedImage bimg) {
-        // All for Canny Edge ...
-        BufferedImage gray;
-        double[][] gx = null, gy = null;
-        double[][] gd, gm;
+        try (ImageContext context = new ImageContext(bimg)) {
+            extract(context);
+        }
+    }
 
-        // doing canny edge detection first:
-        // filter images:
-        gray = grayscale.filter(bimg, new BufferedImage(bimg.getWidth(), bimg.getHeight(), BufferedImage.TYPE_BYTE_GRAY));
+    @Override
+    public void extract(ImageContext context) {
+        // doing canny edge detection first, the edges are marked in a copy of the shared grey scale image.
+        // All working arrays are flat with the pixel (x, y) at y * width + x and taken from the thread's arena.
+        BufferedImage sharedGray = context.getGrayscaleImage();
+        int width = sharedGray.getWidth();
+        int height = sharedGray.getHeight();
+        int size = width * height;
+        ScratchArena arena = ScratchArena.get();
+        byte[] data = arena.getByteArray(size);
+        double[] gd = arena.getDoubleArray(size), gm = arena.getDoubleArray(size);
+        try {
+            System.arraycopy(((DataBufferByte) sharedGray.getRaster().getDataBuffer()).getData(), 0, data, 0, size);
 //        gray = gaussian.filter(gray, null);
-        // TODO: Combine the next few steps to just iterate through the pixels once!
-        gx = new double[gray.getWidth()][gray.getHeight()];
-        gy = new double[gray.getWidth()][gray.getHeight()];
-        sobelFilter(gray, gx, gy);
-//        gx = sobelFilterX(gray);
-//        gy = sobelFilterY(gray);
-        int width = gray.getWidth();
-        int height = gray.getHeight();
-        gd = new double[width][height];
-        gm = new double[width][height];
-        for (int x = 0; x < width; x++) {
+            // setting gradient magnitude and gradient direction
+            sobelFilter(data, width, height, gd, gm);
+            // Non-maximum suppression
+            for (int x = 0; x < width; x++) {
+                data[x] = (byte) 255;
+                data[(height - 1) * width + x] = (byte) 255;
+            }
             for (int y = 0; y < height; y++) {
-                // setting gradient magnitude and gradient direction
-                if (gx[x][y] != 0) {
-                    gd[x][y] = Math.atan(gy[x][y] / gx[x][y]);
-                } else {
-                    gd[x][y] = Math.PI / 2d;
-                }
-                gm[x][y] = Math.sqrt(gy[x][y] * gy[x][y] + gx[x][y] * gx[x][y]);
-//                gm[x][y] = Math.hypot(gy[x][y], gx[x][y]);
+                data[y * width] = (byte) 255;
+                data[y * width + width - 1] = (byte) 255;
             }
-        }
-        // Non-maximum suppression
-        for (int x = 0; x < width; x++) {
-            gray.getRaster().setPixel(x, 0, new int[]{255});
-            gray.getRaster().setPixel(x, height - 1, new int[]{255});
-        }
-        for (int y = 0; y < height; y++) {
-            gray.getRaster().setPixel(0, y, new int[]{255});
-            gray.getRaster().setPixel(width - 1, y, new int[]{255});
-        }
-        for (int x = 1; x < width - 1; x++) {
             for (int y = 1; y < height - 1; y++) {
-                if (gd[x][y] < (Math.PI / 8d) && gd[x][y] >= (-Math.PI / 8d)) {
-                    if (gm[x][y] > gm[x + 1][y] && gm[x][y] > gm[x - 1][y])
-                        setPixel(x, y, gray, gm[x][y]);
-                    else
-                        gray.getRaster().setPixel(x, y, tmp255);
-                } else if (gd[x][y] < (3d * Math.PI / 8d) && gd[x][y] >= (Math.PI / 8d)) {
-                    if (gm[x][y] > gm[x - 1][y - 1] && gm[x][y] > gm[x + 1][y + 1])
-                        setPixel(x, y, gray, gm[x][y]);
-                    else
-                        gray.getRaster().setPixel(x, y, tmp255);
-                } else if (gd[x][y] < (-3d * Math.PI / 8d) || gd[x][y] >= (3d * Math.PI / 8d)) {
-                    if (gm[x][y] > gm[x][y + 1] && gm[x][y] > gm[x][y - 1])
-                        setPixel(x, y, gray, gm[x][y]);
-                    else
-                        gray.getRaster().setPixel(x, y, tmp255);
-                } else if (gd[x][y] < (-Math.PI / 8d) && gd[x][y] >= (-3d * Math.PI / 8d)) {
-                    if (gm[x][y] > gm[x + 1][y - 1] && gm[x][y] > gm[x - 1][y + 1])
-                        setPixel(x, y, gray, gm[x][y]);
-                    else
-                        gray.getRaster().setPixel(x, y, tmp255);
-                } else {
-                    gray.getRaster().setPixel(x, y, tmp255);
+                for (int x = 1, pos = y * width + 1; x < width - 1; x++, pos++) {
+                    double d = gd[pos], m = gm[pos];
+                    if (d < (Math.PI / 8d) && d >= (-Math.PI / 8d)) {
+                        data[pos] = (m > gm[pos + 1] && m > gm[pos - 1]) ? edgeValue(m) : (byte) 255;
+                    } else if (d < (3d * Math.PI / 8d) && d >= (Math.PI / 8d)) {
+                        data[pos] = (m > gm[pos - width - 1] && m > gm[pos + width + 1]) ? edgeValue(m) : (byte) 255;
+                    } else if (d < (-3d * Math.PI / 8d) || d >= (3d * Math.PI / 8d)) {
+                        data[pos] = (m > gm[pos + width] && m > gm[pos - width]) ? edgeValue(m) : (byte) 255;
+                    } else if (d < (-Math.PI / 8d) && d >= (-3d * Math.PI / 8d)) {
+                        data[pos] = (m > gm[pos - width + 1] && m > gm[pos + width - 1]) ? edgeValue(m) : (byte) 255;
+                    } else {
+                        data[pos] = (byte) 255;
+                    }
                 }
             }
-        }
-        // hysteresis ... walk along lines of strong pixels and make the weak ones strong.
-        int[] tmp = {0};
-        byte[] data = ((DataBufferByte) gray.getRaster().getDataBuffer()).getData();
-        for (int x = 1; x < width - 1; x++) {
-            for (int y = 1; y < height - 1; y++) {
-                if (((int) data[(y) * width + (x)] & 0xFF) < 50) {
-                    // It's a strong pixel, lets find the neighbouring weak ones.
-                    trackWeakOnes(x, y, width, data);
+            // hysteresis ... walk along lines of strong pixels and make the weak ones strong.
+            for (int x = 1; x < width - 1; x++) {
+                for (int y = 1; y < height - 1; y++) {
+                    if (((int) data[(y) * width + (x)] & 0xFF) < 50) {
+                        // It's a strong pixel, lets find the neighbouring weak ones.
+                        trackWeakOnes(x, y, width, data);
+                    }
                 }
             }
-        }
-        // removing the single weak pixels.
-        for (int x = 2; x < width - 2; x++) {
-            for (int y = 2; y < height - 2; y++) {
-                if (((int) data[(y) * width + (x)] & 0xFF) > 50) {
-                    data[(y) * width + (x)] = (byte) 255;
-//                        gray.getRaster().setPixel(x, y, tmp255);
+            // removing the single weak pixels.
+            for (int x = 2; x < width - 2; x++) {
+                for (int y = 2; y < height - 2; y++) {
+                    if (((int) data[(y) * width + (x)] & 0xFF) > 50) {
+                        data[(y) * width + (x)] = (byte) 255;
+                    }
                 }
             }
-        }
 
-        // Canny Edge Detection over ... lets go for the PHOG ...
-        tmpHistogram = new double[bins + 4 * bins + 4 * 4 * bins];
-        // for level 3:
+            // Canny Edge Detection over ... lets go for the PHOG ...
+            int length = bins + 4 * bins + 4 * 4 * bins;
+            if (tmpHistogram == null || tmpHistogram.length != length) tmpHistogram = new double[length];
+            // for level 3:
 //        histogram = new double[5 * bins + 4*4*bins + 4*4*4*bins];
-        //level0
-        System.arraycopy(getHistogram(0, 0, width, height, gray, gd), 0, tmpHistogram, 0, bins);
-        //level1
-        System.arraycopy(getHistogram(0, 0, width / 2, height / 2, gray, gd),
-                0, tmpHistogram, bins, bins);
-        System.arraycopy(getHistogram(width / 2, 0, width / 2, height / 2, gray, gd),
-                0, tmpHistogram, 2 * bins, bins);
-        System.arraycopy(getHistogram(0, height / 2, width / 2, height / 2, gray, gd),
-                0, tmpHistogram, 3 * bins, bins);
-        System.arraycopy(getHistogram(width / 2, height / 2, width / 2, height / 2, gray, gd),
-                0, tmpHistogram, 4 * bins, bins);
-        // level 2
-        int wstep = width / 4;
-        int hstep = height / 4;
-        int binPos = 5; // the next free section in the histogram
-        for (int i = 0; i < 4; i++) {
-            for (int j = 0; j < 4; j++) {
-                System.arraycopy(getHistogram(i * wstep, j * hstep, wstep, hstep, gray, gd),
-                        0, tmpHistogram, binPos * bins, bins);
-                binPos++;
+            //level0
+            getHistogram(0, 0, width, height, data, width, gd, 0);
+            //level1
+            getHistogram(0, 0, width / 2, height / 2, data, width, gd, bins);
+            getHistogram(width / 2, 0, width / 2, height / 2, data, width, gd, 2 * bins);
+            getHistogram(0, height / 2, width / 2, height / 2, data, width, gd, 3 * bins);
+            getHistogram(width / 2, height / 2, width / 2, height / 2, data, width, gd, 4 * bins);
+            // level 2
+            int wstep = width / 4;
+            int hstep = height / 4;
+            int binPos = 5; // the next free section in the histogram
+            for (int i = 0; i < 4; i++) {
+                for (int j = 0; j < 4; j++) {
+                    getHistogram(i * wstep, j * hstep, wstep, hstep, data, width, gd, binPos * bins);
+                    binPos++;
+                }
             }
+        } finally {
+            arena.release(data);
+            arena.release(gd);
+            arena.release(gm);
         }
         // finally copy it to the byte[] array to save memory at search time.
         for (int i = 0; i < tmpHistogram.length; i++) {
@@ -211,57 +187,56 @@ public class PHOG implements GlobalFeature {
     }
 
     /**
-     * Create and normalize histogram.
+     * Create and normalize histogram, it's written to tmpHistogram.
      *
      * @param startX
      * @param startY
      * @param width
      * @param height
-     * @param gray
-     * @param gd
-     * @return
+     * @param data       the edge image, 0 is a strong edge.
+     * @param imageWidth the width of the edge image.
+     * @param gd         the gradient directions.
+     * @param offset     the position of the histogram in tmpHistogram.
      */
-    private double[] getHistogram(int startX, int startY, int width, int height, BufferedImage gray, double gd[][]) {
-        int[] tmp = {0};
-        double[] result = new double[bins];
+    private void getHistogram(int startX, int startY, int width, int height, byte[] data, int imageWidth, double[] gd, int offset) {
+        double[] result = tmpHistogram;
         double actual = 0;
         int bin;
         // set initial histogram to 0
-        for (int i = 0; i < result.length; i++) result[i] = 0;
+        Arrays.fill(result, offset, offset + bins, 0d);
         // find and increment the right bin/s
         for (int x = startX; x < startX + width; x++) {
             for (int y = startY; y < startY + height; y++) {
-                if (gray.getRaster().getPixel(x, y, tmp)[0] < 50) {
+                if (((int) data[y * imageWidth + x] & 0xFF) < 50) {
                     // it's an edge pixel, so it counts in.
-                    actual = (gd[x][y] / Math.PI + 0.5) * (bins);
+                    actual = (gd[y * imageWidth + x] / Math.PI + 0.5) * (bins);
                     if (actual == Math.floor(actual)) {  // if it's a discrete thing ...
                         bin = ((int) Math.floor(actual));
                         if (bin == bins) bin = 0;
-                        result[bin] += 1;
+                        result[offset + bin] += 1;
                     } else { // in between: we make it fuzzy ...
                         bin = ((int) Math.floor(actual));
                         if (bin == bins) bin = 0;
-                        result[bin] += actual - Math.floor(actual);
+                        result[offset + bin] += actual - Math.floor(actual);
                         bin = (int) Math.ceil(actual);
                         if (bin == bins) bin = 0;
-                        result[bin] += Math.ceil(actual) - actual;
+                        result[offset + bin] += Math.ceil(actual) - actual;
                     }
                 }
             }
         }
         // normalize histogram to max norm.
         double max = 0d;
-        for (int i = 0; i < result.length; i++) {
+        for (int i = offset; i < offset + bins; i++) {
             max = Math.max(result[i], max);
         }
         if (max > 0d) {
-            for (int i = 0; i < result.length; i++) {
+            for (int i = offset; i < offset + bins; i++) {
                 // quantize single values to xx steps to compress feature a little bit.
                 result[i] = Math.floor(quantizationFactor * result[i] / max);
                 result[i] = Math.min(quantizationFactor, result[i]);
             }
         }
-        return result;
     }
 
     /**
@@ -282,64 +257,69 @@ public class PHOG implements GlobalFeature {
             }
     }
 
-    private void setPixel(int x, int y, BufferedImage gray, double v) {
-        if (v > thresholdLow) gray.getRaster().setPixel(x, y, tmp000);
-        else if (v > thresholdHigh) gray.getRaster().setPixel(x, y, tmp128);
-        else gray.getRaster().setPixel(x, y, tmp255);
+    /**
+     * @param v the gradient magnitude.
+     * @return 0 for a strong edge, 128 for a weak one and 255 otherwise.
+     */
+    private byte edgeValue(double v) {
+        if (v > thresholdLow) return 0;
+        else if (v > thresholdHigh) return (byte) 128;
+        else return (byte) 255;
     }
 
-    private void sobelFilter(BufferedImage gray, double[][] gx, double[][] gy) {
-        int[] tmp = new int[4];
-        int tmpSumX = 0, tmpSumY = 0, pix, width = gray.getWidth();
-        byte[] data = ((DataBufferByte) gray.getRaster().getDataBuffer()).getData();
-        for (int x = 1; x < gray.getWidth() - 1; x++) {
-            for (int y = 1; y < gray.getHeight() - 1; y++) {
+    /**
+     * Applies the Sobel filter to the grey scale pixels and stores gradient direction and magnitude. Border pixels
+     * have no gradient.
+     */
+    private void sobelFilter(byte[] data, int width, int height, double[] gd, double[] gm) {
+        int tmpSumX, tmpSumY, pix;
+        double gx, gy;
+        for (int y = 1; y < height - 1; y++) {
+            for (int x = 1; x < width - 1; x++) {
                 tmpSumX = 0;
                 tmpSumY = 0;
-//                    pix = gray.getRaster().getPixel(x - 1, y - 1, tmp)[0];
                 pix = (int) data[(y - 1) * width + (x - 1)] & 0xFF;
                 tmpSumX += pix;
                 tmpSumY += pix;
-//                    pix = gray.getRaster().getPixel(x - 1, y, tmp)[0];
                 pix = (int) data[(y) * width + (x - 1)] & 0xFF;
                 tmpSumX += 2 * pix;
-//                    pix = gray.getRaster().getPixel(x - 1, y + 1, tmp)[0];
                 pix = (int) data[(y + 1) * width + (x - 1)] & 0xFF;
                 tmpSumX += pix;
                 tmpSumY -= pix;
 
-//                    pix = gray.getRaster().getPixel(x + 1, y - 1, tmp)[0];
                 pix = (int) data[(y - 1) * width + (x + 1)] & 0xFF;
                 tmpSumX -= pix;
                 tmpSumY += pix;
-//                    pix = gray.getRaster().getPixel(x + 1, y, tmp)[0];
                 pix = (int) data[(y) * width + (x + 1)] & 0xFF;
                 tmpSumX -= 2 * pix;
-//                    pix = gray.getRaster().getPixel(x + 1, y + 1, tmp)[0];
                 pix = (int) data[(y + 1) * width + (x + 1)] & 0xFF;
                 tmpSumX -= pix;
                 tmpSumY -= pix;
-                gx[x][y] = tmpSumX;
 
-//                    tmpSumY += 2 * gray.getRaster().getPixel(x    , y - 1, tmp)[0];
                 tmpSumY += 2 * ((int) data[(y - 1) * width + (x)] & 0xFF);
-//                    tmpSumY -= 2 * gray.getRaster().getPixel(x    , y + 1, tmp)[0];
                 tmpSumY -= 2 * ((int) data[(y + 1) * width + (x)] & 0xFF);
-                gy[x][y] = tmpSumY;
 
+                gx = tmpSumX;
+                gy = tmpSumY;
+                if (gx != 0) {
+                    gd[y * width + x] = Math.atan(gy / gx);
+                } else {
+                    gd[y * width + x] = Math.PI / 2d;
+                }
+                gm[y * width + x] = Math.sqrt(gy * gy + gx * gx);
             }
         }
-        for (int x = 0; x < gray.getWidth(); x++) {
-            gx[x][0] = 0;
-            gx[x][gray.getHeight() - 1] = 0;
-            gy[x][0] = 0;
-            gy[x][gray.getHeight() - 1] = 0;
+        for (int x = 0; x < width; x++) {
+            gd[x] = Math.PI / 2d;
+            gm[x] = 0;
+            gd[(height - 1) * width + x] = Math.PI / 2d;
+            gm[(height - 1) * width + x] = 0;
         }
-        for (int y = 0; y < gray.getHeight(); y++) {
-            gx[0][y] = 0;
-            gx[gray.getWidth() - 1][y] = 0;
-            gy[0][y] = 0;
-            gy[gray.getWidth() - 1][y] = 0;
+        for (int y = 0; y < height; y++) {
+            gd[y * width] = Math.PI / 2d;
+            gm[y * width] = 0;
+            gd[y * width + width - 1] = Math.PI / 2d;
+            gm[y * width + width - 1] = 0;
         }
     }
 
@@ -388,6 +368,37 @@ public class PHOG implements GlobalFeature {
         return MetricsUtils.distL1(histogram, ((PHOG) feature).histogram);
     }
 
+    @Override
+    public double getDistance(LireFeature feature, double threshold) {
+        return MetricsUtils.distL1(histogram, ((PHOG) feature).histogram, threshold);
+    }
+
+    @Override
+    public double getDistance(byte[] featureData, int offset, int length) {
+        return getDistance(featureData, offset, length, Double.MAX_VALUE);
+    }
+
+    /**
+     * L1 distance to a serialized PHOG descriptor, two bins per byte as written by
+     * {@link #getByteArrayRepresentation()}, with early abandoning like
+     * {@link MetricsUtils#distL1(byte[], byte[], double)}.
+     */
+    @Override
+    public double getDistance(byte[] featureData, int offset, int length, double threshold) {
+        int end = offset + Math.min(length, histogram.length >> 1);
+        int value;
+        double sum = 0d;
+        for (int i = offset, bin = 0; i < end; ) {
+            for (int blockEnd = Math.min(i + (MetricsUtils.PRUNING_BLOCK_SIZE >> 1), end); i < blockEnd; i++) {
+                value = featureData[i] + 128;
+                sum += Math.abs(histogram[bin++] - (value >> 4));
+                sum += Math.abs(histogram[bin++] - (value & 0x000F));
+            }
+            if (sum > threshold) break;
+        }
+        return sum;
+    }
+
     @Override
     public String toString() {
         return "PHOG{" + Arrays.toString(getFeatureVector()) + "}";
@@ -42,6 +42,7 @@ package net.semanticmetadata.lire.imageanalysis.features.global;
 
 
 import net.semanticmetadata.lire.builders.DocumentBuilder;
+import net.semanticmetadata.lire.imageanalysis.features.ByteArrayDistance;
 import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
 import net.semanticmetadata.lire.imageanalysis.features.global.mpeg7.ScalableColorImpl;
 import net.semanticmetadata.lire.utils.ConversionUtils;
@@ -54,7 +55,7 @@ import net.semanticmetadata.lire.utils.SerializationUtils;
  *
  * @author Mathias Lux, mathias@juggle.at
  */
-public class ScalableColor extends ScalableColorImpl implements GlobalFeature {
+public class ScalableColor extends ScalableColorImpl implements GlobalFeature, ByteArrayDistance {
 
     @Override
     public byte[] getByteArrayRepresentation() {
@@ -101,6 +102,25 @@ public class ScalableColor extends ScalableColorImpl implements GlobalFeature {
         }
     }
 
+    /**
+     * L1 distance to a serialized ScalableColor descriptor like {@link #getSimilarity(ScalableColorImpl)}, reading
+     * the coefficients directly from the int values written by {@link #getByteArrayRepresentation()}.
+     */
+    @Override
+    public double getDistance(byte[] featureData, int offset, int length) {
+        if (SerializationUtils.toInt(featureData, offset) != NumberOfBitplanesDiscarded ||
+                SerializationUtils.toInt(featureData, offset + 4) != NumberOfCoefficients ||
+                haarTransformedHistogram == null) {
+            logger.info("NumberOfBitplanesDiscarded and/or NumberOfCoefficients not matching");
+            return -1;
+        }
+        int diffsum = 0;
+        for (int l = 0, i = offset + 8; l < NumberOfCoefficients; l++, i += 4) {
+            diffsum += Math.abs(SerializationUtils.toInt(featureData, i) - haarTransformedHistogram[l]);
+        }
+        return diffsum;
+    }
+
     @Override
     public double[] getFeatureVector() {
         int[] result = new int[NumberOfCoefficients];
@@ -42,6 +42,7 @@ package net.semanticmetadata.lire.imageanalysis.features.global;
 
 import net.semanticmetadata.lire.builders.DocumentBuilder;
 import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.ImageContext;
 import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
 import net.semanticmetadata.lire.imageanalysis.utils.ColorConversion;
 import net.semanticmetadata.lire.utils.ConversionUtils;
@@ -188,6 +189,12 @@ public class SimpleColorHistogram implements GlobalFeature {
         histogram = new int[DEFAULT_NUMBER_OF_BINS];
     }
 
+    @Override
+    public void extract(ImageContext context) {
+        // the shared 8 bit RGB image is not converted again.
+        extract(context.getRGBImage());
+    }
+
     /**
      * Extracts the color histogram from the given image.
      *
@@ -68,7 +68,7 @@ import java.awt.image.Raster;
  */
 public class Tamura implements GlobalFeature {
     private static final int MAX_IMG_HEIGHT = 64;
-    private int[][] grayScales;
+    private int[] grayScales;
     private int imgWidth, imgHeight;
     private double[] histogram; // stores all three tamura features in one histogram.
     private static final double[][] filterH = {{-1, 0, 1}, {-1, 0, 1}, {-1, 0, 1}};
@@ -107,7 +107,7 @@ public class Tamura implements GlobalFeature {
                 if (y0 < 0) y0 = 0;
                 if (x0 >= imgWidth) x0 = imgWidth - 1;
                 if (y0 >= imgHeight) y0 = imgHeight - 1;
-                result = result + grayScales[x0][y0];
+                result = result + grayScales[x0 * imgHeight + y0];
             }
         }
         result = (1 / Math.pow(2, 2 * k)) * result;
@@ -181,7 +181,7 @@ public class Tamura implements GlobalFeature {
 
         for (int x = 0; x < this.imgWidth; x++) {
             for (int y = 0; y < this.imgHeight; y++) {
-                my4 = my4 + Math.pow(this.grayScales[x][y] - my, 4);
+                my4 = my4 + Math.pow(this.grayScales[x * imgHeight + y] - my, 4);
             }
         }
         alpha4 = my4 / (Math.pow(sigma, 4));
@@ -198,7 +198,7 @@ public class Tamura implements GlobalFeature {
 
         for (int x = 0; x < this.imgWidth; x++) {
             for (int y = 0; y < this.imgHeight; y++) {
-                mean = mean + this.grayScales[x][y];
+                mean = mean + this.grayScales[x * imgHeight + y];
             }
         }
         mean = mean / (this.imgWidth * this.imgHeight);
@@ -213,7 +213,7 @@ public class Tamura implements GlobalFeature {
 
         for (int x = 0; x < this.imgWidth; x++) {
             for (int y = 0; y < this.imgHeight; y++) {
-                result = result + Math.pow(this.grayScales[x][y] - mean, 2);
+                result = result + Math.pow(this.grayScales[x * imgHeight + y] - mean, 2);
             }
         }
         result = result / (this.imgWidth * this.imgHeight);
@@ -245,7 +245,7 @@ public class Tamura implements GlobalFeature {
 
         for (int i = 0; i < 3; i++) {
             for (int j = 0; j < 3; j++) {
-                result = result + this.grayScales[x - 1 + i][y - 1 + j] * filterH[i][j];
+                result = result + this.grayScales[(x - 1 + i) * imgHeight + (y - 1 + j)] * filterH[i][j];
             }
         }
         return result;
@@ -259,7 +259,7 @@ public class Tamura implements GlobalFeature {
 
         for (int i = 0; i < 3; i++) {
             for (int j = 0; j < 3; j++) {
-                result = result + this.grayScales[x - 1 + i][y - 1 + j] * filterV[i][j];
+                result = result + this.grayScales[(x - 1 + i) * imgHeight + (y - 1 + j)] * filterV[i][j];
             }
         }
         return result;
@@ -285,15 +285,17 @@ public class Tamura implements GlobalFeature {
         bimg = ImageUtils.scaleImage(bimg, MAX_IMG_HEIGHT);
         Raster raster = bimg.getRaster();
         int[] tmp = new int[3];
-        this.grayScales = new int[raster.getWidth()][raster.getHeight()];
+        imgWidth = bimg.getWidth();
+        imgHeight = bimg.getHeight();
+        // column by column, the array is reused for images of the same size.
+        if (grayScales == null || grayScales.length != imgWidth * imgHeight)
+            this.grayScales = new int[imgWidth * imgHeight];
         for (int i = 0; i < raster.getWidth(); i++) {
             for (int j = 0; j < raster.getHeight(); j++) {
                 raster.getPixel(i, j, tmp);
-                this.grayScales[i][j] = tmp[0];
+                this.grayScales[i * imgHeight + j] = tmp[0];
             }
         }
-        imgWidth = bimg.getWidth();
-        imgHeight = bimg.getHeight();
         histogram[0] = this.coarseness(bimg.getWidth(), bimg.getHeight());
         histogram[1] = this.contrast();
         directionality = this.directionality();
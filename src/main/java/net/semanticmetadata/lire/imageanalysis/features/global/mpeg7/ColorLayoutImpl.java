@@ -40,6 +40,7 @@
  */
 package net.semanticmetadata.lire.imageanalysis.features.global.mpeg7;
 
+import net.semanticmetadata.lire.imageanalysis.features.ImageContext;
 import net.semanticmetadata.lire.utils.ImageUtils;
 
 import java.awt.image.BufferedImage;
@@ -113,6 +114,8 @@ public class ColorLayoutImpl {
     };
     protected static int[][] weightMatrix = new int[3][64];
     protected BufferedImage colorLayoutImage;
+    // the packed pixels of img while extracting from an ImageContext, null otherwise.
+    private int[] rgbPixels = null;
 
     static {
         weightMatrix[0][0] = 2;
@@ -184,6 +187,23 @@ public class ColorLayoutImpl {
         init();
     }
 
+    /**
+     * Extracts the descriptor from the shared pixels of the context instead of the raster of the image.
+     *
+     * @param context the image and its shared intermediate results.
+     */
+    public void extract(ImageContext context) {
+        this.img = context.getRGBImage();
+        imgYSize = context.getHeight();
+        imgXSize = context.getWidth();
+        rgbPixels = context.getRGBPixels();
+        try {
+            init();
+        } finally {
+            rgbPixels = null;
+        }
+    }
+
     private void createShape() {
         int y_axis, x_axis;
         int i, k, x, y, j;
@@ -207,10 +227,17 @@ public class ColorLayoutImpl {
         int[] pixel = {0, 0, 0};
         for (y = 0; y < imgYSize; y++) {
             for (x = 0; x < imgXSize; x++) {
-                raster.getPixel(x, y, pixel);
-                R = pixel[0];
-                G = pixel[1];
-                B = pixel[2];
+                if (rgbPixels != null) {
+                    int rgb = rgbPixels[y * imgXSize + x];
+                    R = (rgb >> 16) & 0xFF;
+                    G = (rgb >> 8) & 0xFF;
+                    B = rgb & 0xFF;
+                } else {
+                    raster.getPixel(x, y, pixel);
+                    R = pixel[0];
+                    G = pixel[1];
+                    B = pixel[2];
+                }
 
                 y_axis = (int) (y / (imgYSize / 8.0));
                 x_axis = (int) (x / (imgXSize / 8.0));
@@ -434,6 +461,34 @@ public class ColorLayoutImpl {
         return Math.sqrt(sumY) + Math.sqrt(sumCb) + Math.sqrt(sumCr);
     }
 
+    /**
+     * Takes two ColorLayout Coeff sets and calculates the distance like
+     * {@link #getSimilarity(int[], int[], int[], int[], int[], int[])}, but stops after the luminance coefficients
+     * if their part of the distance already exceeds the threshold.
+     *
+     * @param threshold the distance above which the exact value is not needed.
+     * @return the distance, or a lower bound larger than the threshold.
+     */
+    public static double getSimilarity(int[] YCoeff1, int[] CbCoeff1, int[] CrCoeff1, int[] YCoeff2, int[] CbCoeff2, int[] CrCoeff2, double threshold) {
+        int diffCb, diffCr, sumCb = 0, sumCr = 0, sumY = 0;
+
+        for (int j = 0; j < Math.min(YCoeff1.length, YCoeff2.length); j++) {
+            diffCb = (YCoeff1[j] - YCoeff2[j]);
+            sumY += (weightMatrix[0][j] * diffCb * diffCb);
+        }
+        double distY = Math.sqrt(sumY);
+        if (distY > threshold) return distY;
+
+        for (int j = 0; j < Math.min(CbCoeff1.length, CbCoeff2.length); j++) {
+            diffCb = (CbCoeff1[j] - CbCoeff2[j]);
+            sumCb += (weightMatrix[1][j] * diffCb * diffCb);
+            diffCr = (CrCoeff1[j] - CrCoeff2[j]);
+            sumCr += (weightMatrix[2][j] * diffCr * diffCr);
+        }
+
+        return distY + Math.sqrt(sumCb) + Math.sqrt(sumCr);
+    }
+
     private static void setWeightingValues() {
         weightMatrix[0][0] = 2;
         weightMatrix[0][1] = weightMatrix[0][2] = 2;
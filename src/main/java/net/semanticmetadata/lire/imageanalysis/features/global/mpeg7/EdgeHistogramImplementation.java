@@ -42,6 +42,7 @@
 package net.semanticmetadata.lire.imageanalysis.features.global.mpeg7;
 
 import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
+import net.semanticmetadata.lire.imageanalysis.features.ImageContext;
 import net.semanticmetadata.lire.utils.ImageUtils;
 
 import java.awt.image.BufferedImage;
@@ -123,6 +124,8 @@ public class EdgeHistogramImplementation {
     private double[] Local_Edge_Histogram = new double[80];
     private int blockSize = -1;
     private BufferedImage image;
+    // the packed pixels of the image while extracting from an ImageContext, null otherwise.
+    private int[] rgbPixels = null;
 
     /**
      * The actual edge histogram.
@@ -156,6 +159,29 @@ public class EdgeHistogramImplementation {
         edgeHistogram = setEdgeHistogram();
     }
 
+    /**
+     * Extracts the descriptor from the shared pixels of the context instead of reading them from the image.
+     *
+     * @param context the image and its shared intermediate results.
+     */
+    public void extract(ImageContext context) {
+        bins = new int[80];
+        treshold = 11;
+        num_block = 1100;
+        Local_Edge_Histogram = new double[80];
+        blockSize = -1;
+        this.image = context.getRGBImage();
+        width = context.getWidth();
+        height = context.getHeight();
+        rgbPixels = context.getRGBPixels();
+        try {
+            extractFeature();
+        } finally {
+            rgbPixels = null;
+        }
+        edgeHistogram = setEdgeHistogram();
+    }
+
 //    public EdgeHistogramImplementation(String descriptor) {
 //        setStringRepresentation(descriptor);
 //    }
@@ -251,9 +277,10 @@ public class EdgeHistogramImplementation {
 
     public void makeGreyLevel() {
         grey_level = new double[(int) width][(int) height];
+        int w = (int) width;
         for (int x = 0; x < width; x++) {
             for (int y = 0; y < height; y++) {
-                grey_level[x][y] = getYfromRGB(image.getRGB(x, y));
+                grey_level[x][y] = getYfromRGB((rgbPixels != null) ? rgbPixels[y * w + x] : image.getRGB(x, y));
             }
         }
 
@@ -535,6 +562,71 @@ public class EdgeHistogramImplementation {
         return result;
     }
 
+    /**
+     * Calculates the distance like {@link #calculateDistance(int[], int[])}, but stops as soon as the partial sum
+     * exceeds the threshold.
+     *
+     * @param edgeHistogramA defines the first point
+     * @param edgeHistogramB defines the second point
+     * @param threshold      the distance above which the exact value is not needed.
+     * @return the distance, or a lower bound larger than the threshold.
+     */
+    public static double calculateDistance(int[] edgeHistogramA, int[] edgeHistogramB, double threshold) {
+        double result = 0d;
+        for (int i = 0; i < edgeHistogramA.length; ) {
+            for (int end = Math.min(i + 16, edgeHistogramA.length); i < end; i++) {
+                result += Math.abs(QuantTable[i % 5][edgeHistogramA[i]] - QuantTable[i % 5][edgeHistogramB[i]]);
+            }
+            if (result > threshold) return result;
+        }
+        for (int i = 0; i <= 4; i++) {
+            result += 5d * Math.abs(edgeHistogramA[i] - edgeHistogramB[i]);
+        }
+        for (int i = 5; i < 80; ) {
+            for (int end = Math.min(i + 16, 80); i < end; i++) {
+                result += Math.abs(edgeHistogramA[i] - edgeHistogramB[i]);
+            }
+            if (result > threshold) return result;
+        }
+        return result;
+    }
+
+    /**
+     * Calculates the distance like {@link #calculateDistance(int[], int[], double)}, but takes the second histogram
+     * in its serialized form with two bins per byte, as written by
+     * {@link net.semanticmetadata.lire.imageanalysis.features.global.EdgeHistogram#getByteArrayRepresentation()}.
+     *
+     * @param edgeHistogramA defines the first point
+     * @param packedB        the serialized second point
+     * @param offset         the offset of the serialized point in packedB
+     * @param threshold      the distance above which the exact value is not needed.
+     * @return the distance, or a lower bound larger than the threshold.
+     */
+    public static double calculateDistance(int[] edgeHistogramA, byte[] packedB, int offset, double threshold) {
+        double result = 0d;
+        for (int i = 0; i < 80; ) {
+            for (int end = Math.min(i + 16, 80); i < end; i++) {
+                result += Math.abs(QuantTable[i % 5][edgeHistogramA[i]] - QuantTable[i % 5][getPackedBin(packedB, offset, i)]);
+            }
+            if (result > threshold) return result;
+        }
+        for (int i = 0; i <= 4; i++) {
+            result += 5d * Math.abs(edgeHistogramA[i] - getPackedBin(packedB, offset, i));
+        }
+        for (int i = 5; i < 80; ) {
+            for (int end = Math.min(i + 16, 80); i < end; i++) {
+                result += Math.abs(edgeHistogramA[i] - getPackedBin(packedB, offset, i));
+            }
+            if (result > threshold) return result;
+        }
+        return result;
+    }
+
+    private static int getPackedBin(byte[] packed, int offset, int bin) {
+        int value = packed[offset + (bin >> 1)] + 128;
+        return ((bin & 1) == 0) ? value >> 4 : value & 0x000F;
+    }
+
     @SuppressWarnings("unused")
     private static int[] RGB2YCRCB(int[] pixel, int[] result) {
         double yy = (0.299 * pixel[0] + 0.587 * pixel[1] + 0.114 * pixel[2]) / 256.0;
@@ -564,6 +656,19 @@ public class EdgeHistogramImplementation {
         return calculateDistance(e.edgeHistogram, edgeHistogram);
     }
 
+    /**
+     * Compares one descriptor to another and stops early if the distance exceeds the threshold.
+     *
+     * @param descriptor
+     * @param threshold  the distance above which the exact value is not needed.
+     * @return the distance from [0,infinite), a value larger than the threshold, or -1 if descriptor type does not match
+     */
+    public double getDistance(LireFeature descriptor, double threshold) {
+        if (!(descriptor instanceof EdgeHistogramImplementation)) return -1d;
+        EdgeHistogramImplementation e = (EdgeHistogramImplementation) descriptor;
+        return calculateDistance(e.edgeHistogram, edgeHistogram, threshold);
+    }
+
 //    /**
 //     * Creates a String representation from the descriptor.
 //     *
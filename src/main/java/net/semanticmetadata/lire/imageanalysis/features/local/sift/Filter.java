@@ -39,6 +39,9 @@
 package net.semanticmetadata.lire.imageanalysis.features.local.sift;
 
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 public class Filter {
     /**
@@ -187,68 +190,133 @@ public class Filter {
         return gaussian_kernel;
     }
 
+    /**
+     * convolve an image with a gaussian whose sigma increases linearly from
+     * the left to the right border, pixels outside the image are left out
+     * <p/>
+     * The kernel of each column is separable, so the image is filtered with
+     * the 1d kernel of the column horizontally and vertically.
+     *
+     * @param input      the input image
+     * @param stDevStart sigma at the left border
+     * @param stDevEnd   sigma at the right border
+     * @return convolved image
+     */
     public static FloatArray2D computeIncreasingGaussianX(FloatArray2D input, float stDevStart, float stDevEnd) {
-        FloatArray2D output = new FloatArray2D(input.width, input.height);
-
         int width = input.width;
-        float changeFilterSize = (float) (stDevEnd - stDevStart) / (float) width;
-        float sigma;
-        int filterSize;
-
-        float avg;
-
-        for (int x = 0; x < input.width; x++) {
-            sigma = stDevStart + changeFilterSize * (float) x;
-            FloatArray2D kernel = createGaussianKernel2D(sigma, true);
-            filterSize = kernel.width;
+        int height = input.height;
+        FloatArray2D temp = new FloatArray2D(width, height);
+        FloatArray2D output = new FloatArray2D(width, height);
 
-            for (int y = 0; y < input.height; y++) {
-                avg = 0;
-
-                for (int fx = -filterSize / 2; fx <= filterSize / 2; fx++)
-                    for (int fy = -filterSize / 2; fy <= filterSize / 2; fy++) {
-                        try {
-                            avg += input.get(x + fx, y + fy) * kernel.get(fx + filterSize / 2, fy + filterSize / 2);
-                        } catch (Exception e) {
-                        }
-                        ;
+        float changeFilterSize = (float) (stDevEnd - stDevStart) / (float) width;
+        float[][] kernels = new float[width][];
+        for (int x = 0; x < width; x++) {
+            kernels[x] = createGaussianKernel1D(stDevStart + changeFilterSize * (float) x, true);
+        }
 
-                    }
+        // horizontal pass with the kernel of the target column
+        for (int r = 0; r < input.data.length; r += width) {
+            for (int x = 0; x < width; x++) {
+                float[] kernel = kernels[x];
+                int kl = kernel.length / 2;
+                int kmin = Math.max(0, kl - x);
+                int kmax = Math.min(kernel.length, width - x + kl);
+                float avg = 0;
+                for (int k = kmin; k < kmax; k++)
+                    avg += kernel[k] * input.data[r + x + k - kl];
+                temp.data[r + x] = avg;
+            }
+        }
 
-                output.set(avg, x, y);
+        // vertical pass with the same kernel
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                float[] kernel = kernels[x];
+                int kl = kernel.length / 2;
+                int kmin = Math.max(0, kl - y);
+                int kmax = Math.min(kernel.length, height - y + kl);
+                float avg = 0;
+                for (int k = kmin; k < kmax; k++)
+                    avg += kernel[k] * temp.data[(y + k - kl) * width + x];
+                output.data[y * width + x] = avg;
             }
         }
         return output;
     }
 
+    /**
+     * convolve an image with a gaussian, pixels outside the image are left
+     * out and the kernel is normalized over the remaining ones
+     * <p/>
+     * The gaussian is separable, so the image is filtered with the 1d kernel
+     * horizontally and vertically.
+     *
+     * @param input the input image
+     * @param sigma sigma of the gaussian
+     * @return convolved image
+     */
     public static FloatArray2D computeGaussian(FloatArray2D input, float sigma) {
+        float[] kernel = createGaussianKernel1D(sigma, true);
+        FloatArray2D temp = new FloatArray2D(input.width, input.height);
         FloatArray2D output = new FloatArray2D(input.width, input.height);
+        convolveClipped(input, temp, kernel, false);
+        convolveClipped(temp, output, kernel, true);
+        return output;
+    }
 
-        float avg, kernelsum;
-
-        FloatArray2D kernel = createGaussianKernel2D(sigma, true);
-        int filterSize = kernel.width;
-
-        for (int x = 0; x < input.width; x++) {
-            for (int y = 0; y < input.height; y++) {
-                avg = 0;
-                kernelsum = 0;
-
-                for (int fx = -filterSize / 2; fx <= filterSize / 2; fx++)
-                    for (int fy = -filterSize / 2; fy <= filterSize / 2; fy++) {
-                        try {
-                            avg += input.get(x + fx, y + fy) * kernel.get(fx + filterSize / 2, fy + filterSize / 2);
-                            kernelsum += kernel.get(fx + filterSize / 2, fy + filterSize / 2);
-                        } catch (Exception e) {
+    /**
+     * convolve an image with a 1d kernel along the rows or columns, pixels
+     * outside the image are left out and the kernel is normalized over the
+     * remaining ones
+     *
+     * @param input    the input image
+     * @param output   convolved image, same size as input
+     * @param kernel   the kernel
+     * @param vertical convolve along columns instead of rows
+     */
+    static void convolveClipped(
+            final FloatArray2D input,
+            final FloatArray2D output,
+            final float[] kernel,
+            final boolean vertical) {
+        final int width = input.width;
+        final int height = input.height;
+        final int kl = kernel.length / 2;
+        forEachRow(height, width, new RowAction() {
+            public void run(int from, int to) {
+                for (int y = from; y < to; ++y) {
+                    int r = y * width;
+                    if (vertical) {
+                        int kmin = Math.max(0, kl - y);
+                        int kmax = Math.min(kernel.length, height - y + kl);
+                        float kernelsum = 0;
+                        for (int k = kmin; k < kmax; ++k)
+                            kernelsum += kernel[k];
+                        for (int x = 0; x < width; ++x)
+                            output.data[r + x] = 0;
+                        for (int k = kmin; k < kmax; ++k) {
+                            int rk = r + (k - kl) * width;
+                            for (int x = 0; x < width; ++x)
+                                output.data[r + x] += kernel[k] * input.data[rk + x];
+                        }
+                        for (int x = 0; x < width; ++x)
+                            output.data[r + x] /= kernelsum;
+                    } else {
+                        for (int x = 0; x < width; ++x) {
+                            int kmin = Math.max(0, kl - x);
+                            int kmax = Math.min(kernel.length, width - x + kl);
+                            float avg = 0;
+                            float kernelsum = 0;
+                            for (int k = kmin; k < kmax; ++k) {
+                                avg += kernel[k] * input.data[r + x + k - kl];
+                                kernelsum += kernel[k];
+                            }
+                            output.data[r + x] = avg / kernelsum;
                         }
-                        ;
-
                     }
-
-                output.set(avg / kernelsum, x, y);
+                }
             }
-        }
-        return output;
+        });
     }
 
 
@@ -495,7 +563,6 @@ public class Filter {
 
     /**
      * convolve an image with a horizontal and a vertical kernel
-     * simple straightforward, not optimized---replace this with a trusted better version soon
      *
      * @param input the input image
      * @param h     horizontal kernel
@@ -503,101 +570,169 @@ public class Filter {
      * @return convolved image
      */
     public static FloatArray2D convolveSeparable(FloatArray2D input, float[] h, float[] v) {
-        FloatArray2D output = new FloatArray2D(input.width, input.height);
-        FloatArray2D temp = new FloatArray2D(input.width, input.height);
-
-        int hl = h.length / 2;
-        int vl = v.length / 2;
+        return convolveSeparable(input, h, v,
+                new FloatArray2D(input.width, input.height),
+                new FloatArray2D(input.width, input.height));
+    }
 
-        int xl = input.width - h.length + 1;
-        int yl = input.height - v.length + 1;
+    /**
+     * convolve an image with a horizontal and a vertical kernel into given
+     * buffers, borders are mirrored
+     * <p/>
+     * Both passes run over rows, large images are split into bands of rows
+     * filtered in the shared pool.  output and temp must have the size of
+     * input and must not be input.
+     *
+     * @param input  the input image
+     * @param h      horizontal kernel
+     * @param v      vertical kernel
+     * @param output convolved image
+     * @param temp   image for the result of the horizontal pass
+     * @return output
+     */
+    public static FloatArray2D convolveSeparable(
+            final FloatArray2D input,
+            final float[] h,
+            final float[] v,
+            final FloatArray2D output,
+            final FloatArray2D temp) {
+        final int width = input.width;
+        final int hl = h.length / 2;
+        final int vl = v.length / 2;
+
+        final int xl = input.width - h.length + 1;
+        final int yl = input.height - v.length + 1;
 
         // create lookup tables for coordinates outside the image range
-        int[] xb = new int[h.length + hl - 1];
-        int[] xa = new int[h.length + hl - 1];
+        final int[] xb = new int[h.length + hl - 1];
+        final int[] xa = new int[h.length + hl - 1];
         for (int i = 0; i < xb.length; ++i) {
             xb[i] = flipInRange(i - hl, input.width);
             xa[i] = flipInRange(i + xl, input.width);
         }
 
-        int[] yb = new int[v.length + vl - 1];
-        int[] ya = new int[v.length + vl - 1];
+        final int[] yb = new int[v.length + vl - 1];
+        final int[] ya = new int[v.length + vl - 1];
         for (int i = 0; i < yb.length; ++i) {
             yb[i] = input.width * flipInRange(i - vl, input.height);
             ya[i] = input.width * flipInRange(i + yl, input.height);
         }
 
-//		String xa_str = "xa: ";
-//		String xb_str = "xb: ";
-//		String ya_str = "ya: ";
-//		String yb_str = "yb: ";
-//		for ( int i = 0; i < xa.length; ++i )
-//		{
-//			xa_str = xa_str + xa[ i ] + ", ";
-//			xb_str = xb_str + xb[ i ] + ", ";
-//			ya_str = ya_str + ( ya[ i ] / input.width ) + ", ";
-//			yb_str = yb_str + ( yb[ i ] / input.width ) + ", ";
-//		}
-//		
-//		System.out.println( xb_str );
-//		System.out.println( xa_str );
-//		System.out.println( yb_str );
-//		System.out.println( ya_str );
-
-
-        xl += hl;
-        yl += vl;
         // horizontal convolution per row
-        int rl = input.height * input.width;
-        for (int r = 0; r < rl; r += input.width) {
-            for (int x = hl; x < xl; ++x) {
-                int c = x - hl;
-                float val = 0;
-                for (int xk = 0; xk < h.length; ++xk) {
-                    val += h[xk] * input.data[r + c + xk];
+        forEachRow(input.height, width, new RowAction() {
+            public void run(int from, int to) {
+                int xe = xl + hl;
+                for (int r = from * width; r < to * width; r += width) {
+                    for (int x = hl; x < xe; ++x) {
+                        int c = x - hl;
+                        float val = 0;
+                        for (int xk = 0; xk < h.length; ++xk) {
+                            val += h[xk] * input.data[r + c + xk];
+                        }
+                        temp.data[r + x] = val;
+                    }
+                    for (int x = 0; x < hl; ++x) {
+                        float valb = 0;
+                        float vala = 0;
+                        for (int xk = 0; xk < h.length; ++xk) {
+                            valb += h[xk] * input.data[r + xb[x + xk]];
+                            vala += h[xk] * input.data[r + xa[x + xk]];
+                        }
+                        temp.data[r + x] = valb;
+                        temp.data[r + x + xe] = vala;
+                    }
                 }
-                temp.data[r + x] = val;
             }
-            for (int x = 0; x < hl; ++x) {
-                float valb = 0;
-                float vala = 0;
-                for (int xk = 0; xk < h.length; ++xk) {
-                    valb += h[xk] * input.data[r + xb[x + xk]];
-                    vala += h[xk] * input.data[r + xa[x + xk]];
+        });
+
+        // vertical convolution, also per row to walk through memory in order
+        forEachRow(input.height, width, new RowAction() {
+            public void run(int from, int to) {
+                int ye = yl + vl;
+                for (int y = from; y < to; ++y) {
+                    int r = y * width;
+                    for (int x = 0; x < width; ++x) {
+                        output.data[r + x] = 0;
+                    }
+                    for (int yk = 0; yk < v.length; ++yk) {
+                        int rk;
+                        if (y >= ye) rk = ya[y - ye + yk];
+                        else if (y < vl) rk = yb[y + yk];
+                        else rk = r + (yk - vl) * width;
+                        float vk = v[yk];
+                        for (int x = 0; x < width; ++x) {
+                            output.data[r + x] += vk * temp.data[rk + x];
+                        }
+                    }
                 }
-                temp.data[r + x] = valb;
-                temp.data[r + x + xl] = vala;
             }
-        }
+        });
 
-        // vertical convolution per column
-        rl = yl * temp.width;
-        int vlc = vl * temp.width;
-        for (int x = 0; x < temp.width; ++x) {
-            for (int r = vlc; r < rl; r += temp.width) {
-                float val = 0;
-                int c = r - vlc;
-                int rk = 0;
-                for (int yk = 0; yk < v.length; ++yk) {
-                    val += v[yk] * temp.data[c + rk + x];
-                    rk += temp.width;
-                }
-                output.data[r + x] = val;
-            }
-            for (int y = 0; y < vl; ++y) {
-                int r = y * temp.width;
-                float valb = 0;
-                float vala = 0;
-                for (int yk = 0; yk < v.length; ++yk) {
-                    valb += h[yk] * temp.data[yb[y + yk] + x];
-                    vala += h[yk] * temp.data[ya[y + yk] + x];
+        return output;
+    }
+
+    /**
+     * filters a band of rows
+     */
+    interface RowAction {
+        /**
+         * @param from first row
+         * @param to   row after the last one
+         */
+        void run(int from, int to);
+    }
+
+    /**
+     * pool shared by all convolutions and scale octaves, it grows with the
+     * number of cores and runs tasks submitted from its own threads
+     * without blocking them
+     */
+    static final ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    /**
+     * images with less pixels are filtered in the calling thread
+     */
+    static final int MIN_PARALLEL_SIZE = 1 << 16;
+
+    /**
+     * run action over all rows, split into bands in the shared pool for
+     * large images
+     *
+     * @param height number of rows
+     * @param width  number of pixels per row
+     * @param action filter for a band of rows
+     */
+    static void forEachRow(int height, int width, final RowAction action) {
+        int bands = Math.min(height, pool.getParallelism());
+        if (bands < 2 || height * width < MIN_PARALLEL_SIZE) {
+            action.run(0, height);
+            return;
+        }
+        RecursiveAction[] tasks = new RecursiveAction[bands];
+        for (int i = 0; i < bands; ++i) {
+            final int from = height * i / bands;
+            final int to = height * (i + 1) / bands;
+            tasks[i] = new RecursiveAction() {
+                protected void compute() {
+                    action.run(from, to);
                 }
-                output.data[r + x] = valb;
-                output.data[r + rl + x] = vala;
-            }
+            };
         }
+        invokeAll(tasks);
+    }
 
-        return output;
+    /**
+     * run tasks in the shared pool and wait for all of them
+     *
+     * @param tasks tasks to run
+     */
+    static void invokeAll(final ForkJoinTask<?>... tasks) {
+        if (ForkJoinTask.inForkJoinPool()) ForkJoinTask.invokeAll(tasks);
+        else pool.invoke(new RecursiveAction() {
+            protected void compute() {
+                ForkJoinTask.invokeAll(tasks);
+            }
+        });
     }
 
 }
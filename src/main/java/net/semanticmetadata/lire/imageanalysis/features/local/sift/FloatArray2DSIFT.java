@@ -80,8 +80,10 @@ package net.semanticmetadata.lire.imageanalysis.features.local.sift;
  * @version 0.1b
  */
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.RecursiveAction;
 
 public class FloatArray2DSIFT {
 
@@ -129,6 +131,13 @@ public class FloatArray2DSIFT {
         return octaves[i];
     }
 
+    /**
+     * arrays of the scale space, reused for the next image of the same size
+     */
+    private ScaleSpaceBuffers buffers = new ScaleSpaceBuffers();
+    private int srcWidth = 0;
+    private int srcHeight = 0;
+
     /**
      * Difference of Gaussian detector
      */
@@ -178,6 +187,10 @@ public class FloatArray2DSIFT {
      * @param max_size      maximal size of an octave to be taken into account
      *                      Use this to save memory and procesing time, if processing higher
      *                      resolutions is not necessary.
+     *                      <p/>
+     *                      The scale space of an image of the same size as the last one is
+     *                      built in the arrays of the last one, so octaves of earlier calls
+     *                      must not be used any more.
      */
     public void init(
             FloatArray2D src,
@@ -195,6 +208,10 @@ public class FloatArray2DSIFT {
             ++o;
         }
         octaves = new FloatArray2DScaleOctave[o];
+        if (src.width == srcWidth && src.height == srcHeight) buffers.recycle();
+        else buffers.clear();
+        srcWidth = src.width;
+        srcHeight = src.height;
 
         float[] sigma = new float[steps + 3];
         sigma[0] = initial_sigma;
@@ -221,13 +238,18 @@ public class FloatArray2DSIFT {
                     sigma,
                     sigma_diff,
                     kernel_diff);
+            octaves[i].buffers = buffers;
             octaves[i].buildStub();
-            next = new FloatArray2D(
+            next = buffers.get(
                     src.width / 2 + src.width % 2,
                     src.height / 2 + src.height % 2);
             FloatArray2DScaleOctave.downsample(octaves[i].getL(1), next);
-            if (src.width > max_size || src.height > max_size)
+            if (src.width > max_size || src.height > max_size) {
+                // the images of skipped octaves can be used for the following ones
+                buffers.release(octaves[i].getL(1));
+                buffers.release(src);
                 octaves[i].clear();
+            }
             src = next;
         }
     }
@@ -503,6 +525,24 @@ public class FloatArray2DSIFT {
     }
 
 
+    /**
+     * build scale octaves in parallel, each one only depends on its own stub
+     *
+     * @param list octaves to build
+     */
+    private void build(List<FloatArray2DScaleOctave> list) {
+        RecursiveAction[] tasks = new RecursiveAction[list.size()];
+        for (int i = 0; i < tasks.length; ++i) {
+            final FloatArray2DScaleOctave octave = list.get(i);
+            tasks[i] = new RecursiveAction() {
+                protected void compute() {
+                    octave.build();
+                }
+            };
+        }
+        Filter.invokeAll(tasks);
+    }
+
     /**
      * detect features in the specified scale octave
      *
@@ -512,7 +552,7 @@ public class FloatArray2DSIFT {
     public Vector<SiftFeature> runOctave(int o) {
         Vector<SiftFeature> features = new Vector<SiftFeature>();
         FloatArray2DScaleOctave octave = octaves[o];
-        octave.build();
+        if (octave.state != FloatArray2DScaleOctave.State.COMPLETE) octave.build();
         dog.run(octave);
         Vector<float[]> candidates = dog.getCandidates();
         for (float[] c : candidates) {
@@ -530,6 +570,11 @@ public class FloatArray2DSIFT {
      */
     public Vector<SiftFeature> run() {
         Vector<SiftFeature> features = new Vector<SiftFeature>();
+        ArrayList<FloatArray2DScaleOctave> used = new ArrayList<FloatArray2DScaleOctave>();
+        for (FloatArray2DScaleOctave octave : octaves) {
+            if (octave.state != FloatArray2DScaleOctave.State.EMPTY) used.add(octave);
+        }
+        build(used);
         for (int o = 0; o < octaves.length; ++o) {
             if (octaves[o].state == FloatArray2DScaleOctave.State.EMPTY) continue;
             Vector<SiftFeature> more = runOctave(o);
@@ -545,6 +590,11 @@ public class FloatArray2DSIFT {
      */
     public Vector<SiftFeature> run(int max_size) {
         Vector<SiftFeature> features = new Vector<SiftFeature>();
+        ArrayList<FloatArray2DScaleOctave> used = new ArrayList<FloatArray2DScaleOctave>();
+        for (FloatArray2DScaleOctave octave : octaves) {
+            if (octave.width <= max_size && octave.height <= max_size) used.add(octave);
+        }
+        build(used);
         for (int o = 0; o < octaves.length; ++o) {
             if (octaves[o].width <= max_size && octaves[o].height <= max_size) {
                 Vector<SiftFeature> more = runOctave(o);
@@ -39,6 +39,9 @@
 
 package net.semanticmetadata.lire.imageanalysis.features.local.sift;
 
+import java.util.ArrayList;
+import java.util.concurrent.RecursiveAction;
+
 /**
  * single octave of a discrete {@link FloatArray2DScaleSpace}
  * <p/>
@@ -128,6 +131,11 @@ public class FloatArray2DScaleOctave {
      */
     private float[][] KERNEL_DIFF;
 
+    /**
+     * arrays for the images of the octave, null to allocate them
+     */
+    ScaleSpaceBuffers buffers = null;
+
     /**
      * gaussian smoothed images
      */
@@ -265,7 +273,9 @@ public class FloatArray2DScaleOctave {
         FloatArray2D img = l[0];
         l = new FloatArray2D[2];
         l[0] = img;
-        l[1] = Filter.convolveSeparable(l[0], KERNEL_DIFF[STEPS], KERNEL_DIFF[STEPS]);
+        FloatArray2D temp = newImage();
+        l[1] = Filter.convolveSeparable(l[0], KERNEL_DIFF[STEPS], KERNEL_DIFF[STEPS], newImage(), temp);
+        release(temp);
 
         state = State.STUB;
     }
@@ -283,15 +293,30 @@ public class FloatArray2DScaleOctave {
             l[STEPS] = img2;
         } else l = new FloatArray2D[STEPS + 3];
         l[0] = img;
+        // all gaussian images are created from the first one, so they are built in parallel
+        final FloatArray2D[] gaussians = l;
+        final FloatArray2D[] temp = new FloatArray2D[SIGMA_DIFF.length];
+        ArrayList<RecursiveAction> levels = new ArrayList<RecursiveAction>();
         for (int i = 1; i < SIGMA_DIFF.length; ++i) {
             if (state == State.STUB && i == STEPS) continue;
-            // use precomputed kernels
-            l[i] = Filter.convolveSeparable(l[0], KERNEL_DIFF[i], KERNEL_DIFF[i]);
+            final int level = i;
+            gaussians[i] = newImage();
+            temp[i] = newImage();
+            levels.add(new RecursiveAction() {
+                protected void compute() {
+                    // use precomputed kernels
+                    Filter.convolveSeparable(gaussians[0], KERNEL_DIFF[level], KERNEL_DIFF[level], gaussians[level], temp[level]);
+                }
+            });
             //l[ i ] = ImageFilter.computeGaussian( l[ 0 ], SIGMA_DIFF[ i ] );
         }
+        Filter.invokeAll(levels.toArray(new RecursiveAction[levels.size()]));
+        for (FloatArray2D t : temp) {
+            if (t != null) release(t);
+        }
         d = new FloatArray2D[STEPS + 2];
         for (int i = 0; i < d.length; ++i) {
-            d[i] = new FloatArray2D(l[i].width, l[i].height);
+            d[i] = newImage();
             int j = i + 1;
             for (int k = 0; k < l[i].data.length; ++k) {
                 d[i].data[k] = (l[j].data[k] - l[i].data[k]) * K_MIN1_INV;
@@ -307,6 +332,19 @@ public class FloatArray2DScaleOctave {
         return true;
     }
 
+    /**
+     * get an image of the size of the octave, from the buffers of the scale
+     * space if there are any
+     */
+    private FloatArray2D newImage() {
+        if (buffers == null) return new FloatArray2D(width, height);
+        return buffers.get(width, height);
+    }
+
+    private void release(FloatArray2D img) {
+        if (buffers != null) buffers.release(img);
+    }
+
     /**
      * clear the scale octave to save memory
      */
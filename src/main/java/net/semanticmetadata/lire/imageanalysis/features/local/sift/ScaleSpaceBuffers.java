@@ -0,0 +1,93 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+package net.semanticmetadata.lire.imageanalysis.features.local.sift;
+
+import java.util.ArrayList;
+
+/**
+ * Keeps the float arrays of the scale space of the last image, so the scale space of the next image of the same
+ * size is built in the same arrays instead of new ones. Used by several threads when octaves are built in parallel.
+ *
+ * @author Mathias Lux, mathias@juggle.at
+ */
+class ScaleSpaceBuffers {
+    private final ArrayList<float[]> used = new ArrayList<float[]>();
+    private final ArrayList<float[]> free = new ArrayList<float[]>();
+
+    /**
+     * Returns an image of the given size, its content is undefined.
+     */
+    synchronized FloatArray2D get(int width, int height) {
+        float[] data = null;
+        for (int i = free.size() - 1; i >= 0 && data == null; i--) {
+            if (free.get(i).length == width * height) data = free.remove(i);
+        }
+        if (data == null) data = new float[width * height];
+        used.add(data);
+        return new FloatArray2D(data, width, height);
+    }
+
+    /**
+     * Hands an image from {@link #get(int, int)} out again before the next {@link #recycle()}.
+     */
+    synchronized void release(FloatArray2D image) {
+        for (int i = used.size() - 1; i >= 0; i--) {
+            if (used.get(i) == image.data) {
+                free.add(used.remove(i));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Hands all images out again, the ones in use are overwritten by the next image.
+     */
+    synchronized void recycle() {
+        free.addAll(used);
+        used.clear();
+    }
+
+    /**
+     * Drops all arrays.
+     */
+    synchronized void clear() {
+        free.clear();
+        used.clear();
+    }
+}
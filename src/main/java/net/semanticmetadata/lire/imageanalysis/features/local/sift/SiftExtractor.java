@@ -83,6 +83,9 @@ public class SiftExtractor implements LocalFeatureExtractor{
 
     List<SiftFeature> features = null;
 
+    // kept to build the scale space of the next image in the arrays of the last one
+    private FloatArray2DSIFT sift = null;
+
     public SiftExtractor() {
 
     }
@@ -153,7 +156,7 @@ public class SiftExtractor implements LocalFeatureExtractor{
 
     public List<SiftFeature> computeSiftFeatures(BufferedImage img) throws IOException {
         LinkedList<SiftFeature> fs2 = new LinkedList<SiftFeature>();
-        FloatArray2DSIFT sift = new FloatArray2DSIFT(fdsize, fdbins);
+        if (sift == null) sift = new FloatArray2DSIFT(fdsize, fdbins);
 
         FloatArray2D fa = ImageArrayConverter.ImageToFloatArray2D(img);
         Filter.enhance(fa, 1.0f);
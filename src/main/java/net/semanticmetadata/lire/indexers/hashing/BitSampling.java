@@ -69,14 +69,9 @@ public class BitSampling {
     public static int dimensions = 640;
 
     public static final String hashFunctionsFileName = "LshBitSampling.obj";
-    private static double[][][] hashes = null;
-    private static double[] lookUp = new double[32];
-
-    static {
-        for (int i = 0; i < lookUp.length; i++) {
-            lookUp[i] = Math.pow(2, i);
-        }
-    }
+    // the hash functions, one row per bit, the bits of a bundle one after the other.
+    private static ProjectionMatrix projections = null;
+    private static int bundleSize = 0;
 
     /**
      * Generate new hash functions.
@@ -144,24 +139,13 @@ public class BitSampling {
      * @return
      * @throws IOException
      */
-    public static double[][][] readHashFunctions() throws IOException {
-        ObjectInputStream ois = new ObjectInputStream(new GZIPInputStream(BitSampling.class.getResourceAsStream(hashFunctionsFileName)));
-        int bits = ois.readInt();
-        int dimensions = ois.readInt();
-        int numFunctionBundles = ois.readInt();
-
-        double[][][] hashFunctions = new double[numFunctionBundles][bits][dimensions];
-        for (int i = 0; i < hashFunctions.length; i++) {
-            double[][] functionBundle = hashFunctions[i];
-            for (int j = 0; j < functionBundle.length; j++) {
-                double[] bitFunctions = functionBundle[j];
-                for (int k = 0; k < bitFunctions.length; k++) {
-                    bitFunctions[k] = (double) ois.readFloat();
-                }
-            }
+    public static ProjectionMatrix readHashFunctions() throws IOException {
+        InputStream in = BitSampling.class.getResourceAsStream(hashFunctionsFileName);
+        try {
+            return readHashFunctions(in);
+        } finally {
+            in.close();
         }
-        BitSampling.hashes = hashFunctions;
-        return hashFunctions;
     }
 
     /**
@@ -172,24 +156,85 @@ public class BitSampling {
      * @return
      * @throws IOException
      */
-    public static double[][][] readHashFunctions(InputStream inputStream) throws IOException {
-        ObjectInputStream ois = new ObjectInputStream(new GZIPInputStream(inputStream));
+    public static ProjectionMatrix readHashFunctions(InputStream inputStream) throws IOException {
+        ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new GZIPInputStream(inputStream)));
         int bits = ois.readInt();
         int dimensions = ois.readInt();
         int numFunctionBundles = ois.readInt();
+        ProjectionMatrix hashFunctions = ProjectionMatrix.read(ois, numFunctionBundles * bits, dimensions);
+        BitSampling.bundleSize = bits;
+        BitSampling.projections = hashFunctions;
+        return hashFunctions;
+    }
 
-        double[][][] hashFunctions = new double[numFunctionBundles][bits][dimensions];
-        for (int i = 0; i < hashFunctions.length; i++) {
-            double[][] functionBundle = hashFunctions[i];
-            for (int j = 0; j < functionBundle.length; j++) {
-                double[] bitFunctions = functionBundle[j];
-                for (int k = 0; k < bitFunctions.length; k++) {
-                    bitFunctions[k] = ois.readFloat();
-                }
+    /**
+     * Generates the bits of the hashes of {@link #generateHashes(double[])} packed into a binary code, which can be
+     * compared with the Hamming distance, see {@link net.semanticmetadata.lire.utils.MetricsUtils#hammingDistance(long[], long[])}.
+     * Bit j of hash i is bit i * bits + j of the code, where bit 0 is the lowest bit of the first long.
+     *
+     * @param histogram the feature vector.
+     * @return the binary code, see {@link #getBinaryCodeLength()}.
+     */
+    public static long[] generateBinaryCode(double[] histogram) {
+        return toBinaryCode(projections.project(histogram, new double[projections.getRows()]));
+    }
+
+    /**
+     * Generates the binary codes for many feature vectors at once, which is faster than one by one as the hash
+     * functions are read from memory only once.
+     *
+     * @param histograms the feature vectors.
+     * @return the binary codes in the order of the feature vectors.
+     */
+    public static long[][] generateBinaryCodes(double[][] histograms) {
+        double[][] products = project(histograms);
+        long[][] codes = new long[histograms.length][];
+        for (int i = 0; i < products.length; i++) {
+            codes[i] = toBinaryCode(products[i]);
+        }
+        return codes;
+    }
+
+    private static long[] toBinaryCode(double[] products) {
+        long[] code = new long[getBinaryCodeLength()];
+        for (int bit = 0; bit < products.length; bit++) {
+            if (!(products[bit] < 0)) code[bit >>> 6] |= 1L << (bit & 63);
+        }
+        return code;
+    }
+
+    /**
+     * Packs hashes created by {@link #generateHashes(double[])} into a binary code like
+     * {@link #generateBinaryCode(double[])} does.
+     *
+     * @param hashResults the hashes.
+     * @return the binary code.
+     */
+    public static long[] toBinaryCode(int[] hashResults) {
+        int bitsPerHash = bundleSize;
+        long[] code = new long[getBinaryCodeLength()];
+        int bit = 0;
+        for (int hash : hashResults) {
+            for (int j = 0; j < bitsPerHash; j++) {
+                if ((hash >>> j & 1) == 1) code[bit >>> 6] |= 1L << (bit & 63);
+                bit++;
             }
         }
-        BitSampling.hashes = hashFunctions;
-        return hashFunctions;
+        return code;
+    }
+
+    /**
+     * @return the number of bits of a binary code, ie. the number of hash functions times the bits per hash.
+     */
+    public static int getNumberOfBits() {
+        return projections.getRows();
+    }
+
+    /**
+     * @return the number of longs needed for a binary code.
+     */
+    public static int getBinaryCodeLength() {
+        return (getNumberOfBits() + 63) >>> 6;
     }
 
     /**
@@ -199,17 +244,35 @@ public class BitSampling {
      * @return
      */
     public static int[] generateHashes(double[] histogram) {
-        double val;
-        int[] hashResults = new int[hashes.length];
-        for (int i = 0; i < hashes.length; i++) {
-            double[][] hashBundle = hashes[i];
-            for (int j = 0; j < hashBundle.length; j++) {
-                val = 0d;
-                double[] hashBit = hashBundle[j];
-                for (int k = 0; k < histogram.length; k++) {
-                    val += hashBit[k] * histogram[k];
-                }
-                hashResults[i] += lookUp[j] * (val < 0 ? 0 : 1);
+        return toHashes(projections.project(histogram, new double[projections.getRows()]));
+    }
+
+    /**
+     * Generates the hashes for many feature vectors at once, which is faster than one by one as the hash
+     * functions are read from memory only once.
+     *
+     * @param histograms the feature vectors.
+     * @return the hashes in the order of the feature vectors.
+     */
+    public static int[][] generateHashes(double[][] histograms) {
+        double[][] products = project(histograms);
+        int[][] hashes = new int[histograms.length][];
+        for (int i = 0; i < products.length; i++) {
+            hashes[i] = toHashes(products[i]);
+        }
+        return hashes;
+    }
+
+    private static double[][] project(double[][] histograms) {
+        double[][] products = new double[histograms.length][projections.getRows()];
+        return projections.project(histograms, products);
+    }
+
+    private static int[] toHashes(double[] products) {
+        int[] hashResults = new int[products.length / bundleSize];
+        for (int i = 0; i < hashResults.length; i++) {
+            for (int j = 0; j < bundleSize; j++) {
+                if (!(products[i * bundleSize + j] < 0)) hashResults[i] |= 1 << j;
             }
         }
         return hashResults;
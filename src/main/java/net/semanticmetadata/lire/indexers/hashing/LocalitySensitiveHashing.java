@@ -62,7 +62,7 @@ public class LocalitySensitiveHashing {
     public static int numFunctionBundles = 50;     // k
     public static double binLength = 10;           // w
 
-    private static double[][] hashA = null;      // a
+    private static ProjectionMatrix hashA = null; // a
     private static double[] hashB = null;        // b
     private static double dilation = 1d;         // defines how "stretched out" the hash values are.
 
@@ -118,12 +118,17 @@ public class LocalitySensitiveHashing {
      * @throws IOException
      * @see LocalitySensitiveHashing#generateHashFunctions()
      */
-    public static double[][] readHashFunctions() throws IOException {
-        return readHashFunctions(new FileInputStream(name));
+    public static ProjectionMatrix readHashFunctions() throws IOException {
+        InputStream in = new FileInputStream(name);
+        try {
+            return readHashFunctions(in);
+        } finally {
+            in.close();
+        }
     }
 
-    public static double[][] readHashFunctions(InputStream in) throws IOException {
-        ObjectInputStream ois = new ObjectInputStream(new GZIPInputStream(in));
+    public static ProjectionMatrix readHashFunctions(InputStream in) throws IOException {
+        ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new GZIPInputStream(in)));
         dimensions = ois.readInt();
         numFunctionBundles = ois.readInt();
         double[] tmpB = new double[numFunctionBundles];
@@ -131,13 +136,7 @@ public class LocalitySensitiveHashing {
             tmpB[k] = ois.readFloat();
         }
         LocalitySensitiveHashing.hashB = tmpB;
-        double[][] hashFunctions = new double[numFunctionBundles][dimensions];
-        for (int i = 0; i < hashFunctions.length; i++) {
-            double[] functionBundle = hashFunctions[i];
-            for (int j = 0; j < functionBundle.length; j++) {
-                functionBundle[j] = ois.readFloat();
-            }
-        }
+        ProjectionMatrix hashFunctions = ProjectionMatrix.read(ois, numFunctionBundles, dimensions);
         LocalitySensitiveHashing.hashA = hashFunctions;
         return hashFunctions;
     }
@@ -149,18 +148,32 @@ public class LocalitySensitiveHashing {
      * @return
      */
     public static int[] generateHashes(double[] histogram) {
-        double product;
-        int[] result = new int[numFunctionBundles];
-        for (int k = 0; k < numFunctionBundles; k++) {
-            product = 0;
-            for (int i = 0; i < histogram.length; i++) {
-                product += histogram[i] * hashA[k][i];
-            }
-            result[k] = (int) Math.floor((product + hashB[k]) / binLength);
+        return toHashes(hashA.project(histogram, new double[hashA.getRows()]));
+    }
+
+    /**
+     * Generates the hashes for many feature vectors at once, which is faster than one by one as the hash
+     * functions are read from memory only once.
+     *
+     * @param histograms the feature vectors.
+     * @return the hashes in the order of the feature vectors.
+     */
+    public static int[][] generateHashes(double[][] histograms) {
+        double[][] products = hashA.project(histograms, new double[histograms.length][hashA.getRows()]);
+        int[][] result = new int[histograms.length][];
+        for (int i = 0; i < products.length; i++) {
+            result[i] = toHashes(products[i]);
         }
         return result;
     }
 
+    private static int[] toHashes(double[] products) {
+        int[] result = new int[products.length];
+        for (int k = 0; k < products.length; k++) {
+            result[k] = (int) Math.floor((products[k] + hashB[k]) / binLength);
+        }
+        return result;
+    }
 
     /**
      * Returns a random number distributed with standard normal distribution based on the Box-Muller method.
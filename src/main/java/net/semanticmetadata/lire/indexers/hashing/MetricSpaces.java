@@ -27,6 +27,8 @@ public class MetricSpaces {
     // for actual runtime in indexing and search we need per feature index structures:
     static HashMap<String, ArrayList<GlobalFeature>> referencePoints = new HashMap<>();
     static HashMap<String, Parameters> parameters = new HashMap<>();
+    static HashMap<String, ReferencePointIndex> indexes = new HashMap<>();
+    private static int numberOfPivots = 32;
     private static Class<? extends GlobalFeature> featureClass = CEDD.class;
 
     public static void main(String[] args) {
@@ -217,6 +219,7 @@ public class MetricSpaces {
             }
         }
         MetricSpaces.referencePoints.put(feature, ro);
+        MetricSpaces.indexes.put(feature, new ReferencePointIndex(ro, numberOfPivots));
         br.close();
         return p;
     }
@@ -235,6 +238,20 @@ public class MetricSpaces {
         return parameters.get(feature).numberOfReferencePoints;
     }
 
+    public static int getNumberOfPivots() {
+        return numberOfPivots;
+    }
+
+    /**
+     * Sets the number of reference points used as pivots to skip the others when looking for the nearest ones, see
+     * {@link ReferencePointIndex}. It applies to reference points loaded afterwards.
+     *
+     * @param numberOfPivots the number of pivots, 0 to compare each feature with all the reference points.
+     */
+    public static void setNumberOfPivots(int numberOfPivots) {
+        MetricSpaces.numberOfPivots = numberOfPivots;
+    }
+
     /**
      * Convenience method for {@link #generateHashString(GlobalFeature, int)}.
      *
@@ -257,21 +274,52 @@ public class MetricSpaces {
         if (lengthOfPostingList < 1) {
             lengthOfPostingList = parameters.get(feature.getClass().getName()).lengthOfPostingList;
         }
-        TreeSet<Result> results = getResults(feature, queryLength, lengthOfPostingList);
-        StringBuilder sb = new StringBuilder(lengthOfPostingList * 8);
-        int position = 0;
-        for (Iterator<Result> iterator = results.iterator(); iterator.hasNext(); ) {
-            Result result = iterator.next();
-            // sb.append(String.format("%d (%2.2f) ", result.index, result.distance)); // debug.
+        return toHashString(getResults(feature, lengthOfPostingList));
+    }
+
+    /**
+     * Creates the text Strings for {@link #generateHashString(GlobalFeature)} for many features at once, which is
+     * faster than one by one, see {@link ReferencePointIndex#getNearest(GlobalFeature[], int)}.
+     *
+     * @param features the feature instances, all of the same class.
+     * @return the texts for the Lucene index in the order of the features, null if the class is not supported.
+     */
+    public static String[] generateHashStrings(GlobalFeature[] features) {
+        if (features.length == 0) return new String[0];
+        String className = features[0].getClass().getName();
+        ReferencePointIndex index = indexes.get(className);
+        // break if the feature is not indexed ...
+        if (index == null) return null;
+        int[][] results = index.getNearest(features, parameters.get(className).lengthOfPostingList);
+        String[] hashStrings = new String[features.length];
+        for (int i = 0; i < results.length; i++) {
+            hashStrings[i] = toHashString(results[i]);
+        }
+        return hashStrings;
+    }
+
+    private static String toHashString(int[] results) {
+        StringBuilder sb = new StringBuilder(results.length * (results.length + 1) * 4);
+        for (int position = 0; position < results.length; position++) {
             // adding it to the text field, but depending on the position in the results it's added multiple times.
-            for (int i = 0; i < results.size() - position; i++) {
-                sb.append(String.format("R%06d ", result.index));
+            for (int i = 0; i < results.length - position; i++) {
+                appendReference(sb, results[position]).append(' ');
             }
-            position++;
         }
         return sb.toString();
     }
 
+    /**
+     * Appends the term of a reference point, like String.format("R%06d", index) does.
+     */
+    private static StringBuilder appendReference(StringBuilder sb, int index) {
+        sb.append('R');
+        for (int limit = 100000; limit > 1 && index < limit; limit /= 10) {
+            sb.append('0');
+        }
+        return sb.append(index);
+    }
+
     /**
      * Creates a text String to be used for indexing and search based on the reference points.
      *
@@ -285,13 +333,9 @@ public class MetricSpaces {
         if (lengthOfPostingList < 1) {
             lengthOfPostingList = parameters.get(feature.getClass().getName()).lengthOfPostingList;
         }
-        TreeSet<Result> results = getResults(feature, queryLength, lengthOfPostingList);
-        int position = 0;
-        for (Iterator<Result> iterator = results.iterator(); iterator.hasNext(); ) {
-            Result result = iterator.next();
-            // sb.append(String.format("%d (%2.2f) ", result.index, result.distance)); // debug.
-            resultList.add(String.format("R%06d", result.index));
-            position++;
+        int[] results = getResults(feature, lengthOfPostingList);
+        for (int index : results) {
+            resultList.add(appendReference(new StringBuilder(8), index).toString());
         }
         return resultList;
     }
@@ -306,28 +350,11 @@ public class MetricSpaces {
         return generateHashList(feature, parameters.get(feature.getClass().getName()).lengthOfPostingList);
     }
 
-    private static TreeSet<Result> getResults(GlobalFeature feature, int queryLength, int lengthOfPostingList) {
-        ArrayList<GlobalFeature> l = referencePoints.get(feature.getClass().getName());
+    private static int[] getResults(GlobalFeature feature, int lengthOfPostingList) {
+        ReferencePointIndex index = indexes.get(feature.getClass().getName());
         // break if the feature is not indexed ...
-        if (l == null) return null;
-        TreeSet<Result> results = new TreeSet<>();
-        double maxDistance = Double.MAX_VALUE;
-        double distance;
-        for (int i = 0; i < l.size(); i++) {
-            GlobalFeature f = l.get(i);
-            distance = f.getDistance(feature);
-            if (results.size() < lengthOfPostingList) {
-                results.add(new Result(distance, i));
-                maxDistance = l.get(results.last().index).getDistance(feature);
-            } else if (distance < maxDistance) {
-                results.add(new Result(distance, i));
-                maxDistance = distance;
-                if (results.size() > lengthOfPostingList) {
-                    results.pollLast();
-                }
-            }
-        }
-        return results;
+        if (index == null) return null;
+        return index.getNearest(feature, lengthOfPostingList);
     }
 
     /**
@@ -342,15 +369,14 @@ public class MetricSpaces {
         if (lengthOfPostingList < 1) {
             lengthOfPostingList = parameters.get(feature.getClass().getName()).lengthOfPostingList;
         }
-        TreeSet<Result> results = getResults(feature, queryLength, lengthOfPostingList);
-        StringBuilder sb = new StringBuilder(results.size() * 12);
-        double max = results.size();
-        double pos = results.size();
+        int[] results = getResults(feature, lengthOfPostingList);
+        StringBuilder sb = new StringBuilder(results.length * 12);
+        double max = results.length;
+        double pos = results.length;
         Locale currentLocale = Locale.getDefault();
         Locale.setDefault(Locale.ENGLISH);
-        for (Iterator<Result> resultIterator = results.iterator(); resultIterator.hasNext(); ) {
-            Result result = resultIterator.next();
-            sb.append(String.format("R%06d^%1.2f ", result.index, pos / max));
+        for (int index : results) {
+            sb.append(String.format("R%06d^%1.2f ", index, pos / max));
             pos--;
         }
         Locale.setDefault(currentLocale);
@@ -0,0 +1,330 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.indexers.hashing;
+
+import net.semanticmetadata.lire.classifiers.Cluster;
+import net.semanticmetadata.lire.classifiers.KMeans;
+import net.semanticmetadata.lire.classifiers.ParallelKMeans;
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.utils.SerializationUtils;
+
+import java.io.*;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Product quantization of global feature vectors, based on Jegou, Herve, Matthijs Douze, and Cordelia Schmid.
+ * "Product quantization for nearest neighbor search." IEEE Transactions on Pattern Analysis and Machine
+ * Intelligence 33.1 (2011): 117-128.
+ * <p/>
+ * The feature vector is split into a number of sub vectors and each of them is replaced by the index of the nearest
+ * centroid of a codebook trained with k-means for this part of the vector. With at most 256 centroids per codebook a
+ * vector is stored in one byte per sub vector, i.e. a CEDD vector with 144 dimensions in 8 to 16 bytes instead of 144
+ * bytes. To search the codes, the squared Euclidean distances of the query's sub vectors to all centroids are
+ * computed once, then the distance to a code is just a sum of table lookups.
+ * <p/>
+ * Like with {@link MetricSpaces} the codebooks are trained in advance and loaded per feature class. Use
+ * {@link net.semanticmetadata.lire.builders.GlobalDocumentBuilder.HashingMode#ProductQuantization} to store the codes
+ * and {@link net.semanticmetadata.lire.searchers.ProductQuantizationImageSearcher} to search them.
+ *
+ * @author Mathias Lux, mathias@juggle.at
+ */
+public class ProductQuantizer {
+    // for actual runtime in indexing and search we need one quantizer per feature class.
+    static ConcurrentHashMap<String, ProductQuantizer> quantizers = new ConcurrentHashMap<>();
+
+    private final String featureClass;
+    private final int dimensions, numSubVectors, numCentroids;
+    // start of the sub vectors, the last entry is the number of dimensions.
+    private final int[] subVectorStart;
+    // the centroids per sub vector, one after the other.
+    private final double[][] centroids;
+
+    private ProductQuantizer(String featureClass, int dimensions, int numSubVectors, int numCentroids) {
+        if (numCentroids < 1 || numCentroids > 256)
+            throw new IllegalArgumentException("The number of centroids has to be in [1, 256] to fit in a byte: " + numCentroids);
+        if (numSubVectors < 1 || numSubVectors > dimensions)
+            throw new IllegalArgumentException("The number of sub vectors has to be in [1, " + dimensions + "]: " + numSubVectors);
+        this.featureClass = featureClass;
+        this.dimensions = dimensions;
+        this.numSubVectors = numSubVectors;
+        this.numCentroids = numCentroids;
+        subVectorStart = new int[numSubVectors + 1];
+        centroids = new double[numSubVectors][];
+        for (int i = 0; i <= numSubVectors; i++) {
+            subVectorStart[i] = i * dimensions / numSubVectors;
+        }
+        for (int i = 0; i < numSubVectors; i++) {
+            centroids[i] = new double[numCentroids * getSubVectorLength(i)];
+        }
+    }
+
+    /**
+     * Trains the codebooks with k-means on a sample of features, see {@link ParallelKMeans}. The sample should be
+     * drawn from the images to be indexed and have to contain more features than centroids, better a lot more.
+     *
+     * @param samples       the features to train the codebooks with, all of the same class.
+     * @param numSubVectors the number of sub vectors, which is also the number of bytes per code, eg. 16.
+     * @param numCentroids  the number of centroids per sub vector, at most 256.
+     * @param numIterations the maximum number of k-means steps per codebook.
+     * @return the trained quantizer. Note that it is not registered, see {@link #register(ProductQuantizer)}.
+     */
+    public static ProductQuantizer train(List<? extends GlobalFeature> samples, int numSubVectors, int numCentroids, int numIterations) {
+        if (samples.size() <= numCentroids)
+            throw new IllegalArgumentException("There have to be more samples than centroids: " + samples.size() + " <= " + numCentroids);
+        double[][] vectors = new double[samples.size()][];
+        for (int i = 0; i < vectors.length; i++) {
+            vectors[i] = samples.get(i).getFeatureVector();
+        }
+        ProductQuantizer quantizer = new ProductQuantizer(samples.get(0).getClass().getName(), vectors[0].length, numSubVectors, numCentroids);
+        for (int i = 0; i < numSubVectors; i++) {
+            KMeans kMeans = new ParallelKMeans(numCentroids);
+            for (double[] vector : vectors) {
+                kMeans.addFeature(Arrays.copyOfRange(vector, quantizer.subVectorStart[i], quantizer.subVectorStart[i + 1]));
+            }
+            kMeans.init(true);
+            for (int j = 0; j < numIterations; j++) {
+                if (kMeans.clusteringStep() == 0d) break; // the means did not move anymore.
+            }
+            Cluster[] clusters = kMeans.getClusters();
+            int length = quantizer.getSubVectorLength(i);
+            for (int c = 0; c < numCentroids; c++) {
+                System.arraycopy(clusters[c].getMean(), 0, quantizer.centroids[i], c * length, length);
+            }
+        }
+        return quantizer;
+    }
+
+    /**
+     * Encodes a feature vector, i.e. replaces each sub vector with the index of its nearest centroid.
+     *
+     * @param vector the feature vector, see {@link GlobalFeature#getFeatureVector()}.
+     * @return the code with one byte per sub vector.
+     */
+    public byte[] encode(double[] vector) {
+        if (vector.length != dimensions)
+            throw new UnsupportedOperationException("Feature vector length " + vector.length + " does not match the codebook's " + dimensions);
+        byte[] code = new byte[numSubVectors];
+        double distance, minDistance, diff;
+        for (int i = 0; i < numSubVectors; i++) {
+            int start = subVectorStart[i], length = getSubVectorLength(i), best = 0;
+            minDistance = Double.MAX_VALUE;
+            for (int c = 0; c < numCentroids; c++) {
+                distance = 0d;
+                for (int d = 0; d < length; d++) {
+                    diff = vector[start + d] - centroids[i][c * length + d];
+                    distance += diff * diff;
+                }
+                if (distance < minDistance) {
+                    minDistance = distance;
+                    best = c;
+                }
+            }
+            code[i] = (byte) best;
+        }
+        return code;
+    }
+
+    /**
+     * Reconstructs an approximation of the feature vector from a code, i.e. concatenates the centroids.
+     *
+     * @param code the code created by {@link #encode(double[])}.
+     * @return the approximated feature vector.
+     */
+    public double[] decode(byte[] code) {
+        double[] vector = new double[dimensions];
+        for (int i = 0; i < numSubVectors; i++) {
+            int length = getSubVectorLength(i);
+            System.arraycopy(centroids[i], (code[i] & 0xff) * length, vector, subVectorStart[i], length);
+        }
+        return vector;
+    }
+
+    /**
+     * Computes the squared Euclidean distances of the query's sub vectors to all the centroids. The table is used with
+     * {@link #getDistance(double[], byte[], int)} to compare the query to the codes without decoding them.
+     *
+     * @param query the feature vector of the query.
+     * @return the table, numCentroids entries per sub vector.
+     */
+    public double[] getDistanceTable(double[] query) {
+        if (query.length != dimensions)
+            throw new UnsupportedOperationException("Feature vector length " + query.length + " does not match the codebook's " + dimensions);
+        double[] table = new double[numSubVectors * numCentroids];
+        double distance, diff;
+        for (int i = 0; i < numSubVectors; i++) {
+            int start = subVectorStart[i], length = getSubVectorLength(i);
+            for (int c = 0; c < numCentroids; c++) {
+                distance = 0d;
+                for (int d = 0; d < length; d++) {
+                    diff = query[start + d] - centroids[i][c * length + d];
+                    distance += diff * diff;
+                }
+                table[i * numCentroids + c] = distance;
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Asymmetric distance of the query to a code, which is the squared Euclidean distance between the query and the
+     * reconstructed vector of the code.
+     *
+     * @param table  the distance table of the query, see {@link #getDistanceTable(double[])}.
+     * @param codes  the array containing the code.
+     * @param offset the position of the code in the array.
+     * @return the approximated squared distance.
+     */
+    public double getDistance(double[] table, byte[] codes, int offset) {
+        double distance = 0d;
+        for (int i = 0, base = 0; i < numSubVectors; i++, base += numCentroids) {
+            distance += table[base + (codes[offset + i] & 0xff)];
+        }
+        return distance;
+    }
+
+    /**
+     * @return the number of bytes per code, which is the number of sub vectors.
+     */
+    public int getCodeLength() {
+        return numSubVectors;
+    }
+
+    public int getNumCentroids() {
+        return numCentroids;
+    }
+
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    public String getFeatureClass() {
+        return featureClass;
+    }
+
+    private int getSubVectorLength(int subVector) {
+        return subVectorStart[subVector + 1] - subVectorStart[subVector];
+    }
+
+    /**
+     * Writes the codebooks to a text file, which can be read with {@link #loadCodebooks(InputStream)}.
+     *
+     * @param out the stream to write to, it is not closed.
+     * @throws IOException
+     */
+    public void write(OutputStream out) throws IOException {
+        BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(out));
+        bw.write("# Created " + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()) + " by " + ProductQuantizer.class.getName() + " \n");
+        bw.write(featureClass + "\n");
+        bw.write(dimensions + "," + numSubVectors + "," + numCentroids + "\n");
+        for (double[] codebook : centroids) {
+            bw.write(Base64.getEncoder().encodeToString(SerializationUtils.toByteArray(codebook)) + "\n");
+        }
+        bw.flush();
+    }
+
+    /**
+     * Reads codebooks written by {@link #write(OutputStream)} and registers them for their feature class, so they
+     * are used by {@link net.semanticmetadata.lire.builders.GlobalDocumentBuilder} and the searcher. If codebooks for
+     * the class have been loaded before, they are replaced.
+     *
+     * @param in the stream to read from.
+     * @return the quantizer read.
+     * @throws IOException
+     */
+    public static ProductQuantizer loadCodebooks(InputStream in) throws IOException {
+        BufferedReader br = new BufferedReader(new InputStreamReader(in));
+        String feature = br.readLine().trim();
+        while (feature.startsWith("#")) feature = br.readLine().trim();
+        String[] params = br.readLine().trim().split(",");
+        ProductQuantizer quantizer = new ProductQuantizer(feature, Integer.parseInt(params[0]), Integer.parseInt(params[1]), Integer.parseInt(params[2]));
+        String line;
+        int i = 0;
+        while ((line = br.readLine()) != null) {
+            if (!line.startsWith("#") && line.length() > 1) { // check for comments and empty ones.
+                double[] codebook = SerializationUtils.toDoubleArray(Base64.getDecoder().decode(line));
+                if (i >= quantizer.numSubVectors || codebook.length != quantizer.centroids[i].length)
+                    throw new IOException("Codebooks do not match the parameters " + Arrays.toString(params));
+                quantizer.centroids[i++] = codebook;
+            }
+        }
+        if (i != quantizer.numSubVectors)
+            throw new IOException("Found " + i + " codebooks, expected " + quantizer.numSubVectors);
+        register(quantizer);
+        return quantizer;
+    }
+
+    /**
+     * Registers a quantizer for its feature class, replacing the one registered before.
+     *
+     * @param quantizer the quantizer to use for indexing and search.
+     */
+    public static void register(ProductQuantizer quantizer) {
+        quantizers.put(quantizer.featureClass, quantizer);
+    }
+
+    /**
+     * @param featureClass the class of the global feature.
+     * @return the quantizer registered for the class or null if there is none.
+     */
+    public static ProductQuantizer getQuantizer(Class<? extends GlobalFeature> featureClass) {
+        return quantizers.get(featureClass.getName());
+    }
+
+    public static boolean supportsFeature(GlobalFeature feature) {
+        return quantizers.get(feature.getClass().getName()) != null;
+    }
+
+    /**
+     * Encodes the feature with the quantizer registered for its class.
+     *
+     * @param feature the feature to encode.
+     * @return the code or null if there is no quantizer for the class.
+     */
+    public static byte[] generateCodes(GlobalFeature feature) {
+        ProductQuantizer quantizer = quantizers.get(feature.getClass().getName());
+        if (quantizer == null) return null;
+        return quantizer.encode(feature.getFeatureVector());
+    }
+}
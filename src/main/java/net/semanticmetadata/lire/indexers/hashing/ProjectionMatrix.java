@@ -0,0 +1,170 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.indexers.hashing;
+
+import java.io.DataInput;
+import java.io.IOException;
+
+/**
+ * A matrix of random projections as used by the hashing functions, stored row by row in a single float[]. The
+ * products of a vector with all the rows are computed four rows at a time, so each value of the vector is loaded
+ * once per four rows and the four sums are independent of each other. For many vectors the rows are processed in
+ * blocks that fit into the CPU cache, see {@link #project(double[][], double[][])}.
+ * <p/>
+ * The products are summed up in doubles in order of the dimensions, so the results are exactly the same as
+ * with the double[][] arrays used before and hashes of existing indexes do not change.
+ *
+ * @author Mathias Lux, mathias@juggle.at
+ */
+public class ProjectionMatrix {
+    // number of rows processed for all vectors before the next block in the batch methods, 64 rows of 640 floats are 160 KB.
+    private static final int ROW_BLOCK = 64;
+    private final float[] weights;
+    private final int rows, dimensions;
+
+    /**
+     * @param rows       the number of projections.
+     * @param dimensions the maximum dimension of the vectors.
+     */
+    public ProjectionMatrix(int rows, int dimensions) {
+        this.rows = rows;
+        this.dimensions = dimensions;
+        this.weights = new float[rows * dimensions];
+    }
+
+    /**
+     * Reads rows * dimensions floats, row by row.
+     *
+     * @param in the input, eg. an ObjectInputStream.
+     * @return the matrix.
+     * @throws IOException
+     */
+    public static ProjectionMatrix read(DataInput in, int rows, int dimensions) throws IOException {
+        ProjectionMatrix matrix = new ProjectionMatrix(rows, dimensions);
+        for (int i = 0; i < matrix.weights.length; i++) {
+            matrix.weights[i] = in.readFloat();
+        }
+        return matrix;
+    }
+
+    public float get(int row, int dimension) {
+        return weights[row * dimensions + dimension];
+    }
+
+    public void set(int row, int dimension, float value) {
+        weights[row * dimensions + dimension] = value;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    /**
+     * Computes the products of the vector with all rows.
+     *
+     * @param vector the vector, it must not be longer than the dimensions of the matrix.
+     * @param result the products, rows in length.
+     * @return the result array.
+     */
+    public double[] project(double[] vector, double[] result) {
+        checkLength(vector);
+        project(vector, result, 0, rows);
+        return result;
+    }
+
+    /**
+     * Computes the products of many vectors with all rows. The rows are processed in blocks for all the vectors, so
+     * a block stays in the cache instead of the whole matrix being read for each vector.
+     *
+     * @param vectors the vectors, none of them may be longer than the dimensions of the matrix.
+     * @param results the products, one array rows in length per vector.
+     * @return the results array.
+     */
+    public double[][] project(double[][] vectors, double[][] results) {
+        for (double[] vector : vectors) {
+            checkLength(vector);
+        }
+        for (int from = 0; from < rows; from += ROW_BLOCK) {
+            int to = Math.min(rows, from + ROW_BLOCK);
+            for (int i = 0; i < vectors.length; i++) {
+                project(vectors[i], results[i], from, to);
+            }
+        }
+        return results;
+    }
+
+    private void checkLength(double[] vector) {
+        if (vector.length > dimensions)
+            throw new IllegalArgumentException("Vector has " + vector.length + " dimensions, the projections only " + dimensions);
+    }
+
+    private void project(double[] vector, double[] result, int from, int to) {
+        final float[] w = weights;
+        final int length = vector.length;
+        int row = from;
+        for (; row + 3 < to; row += 4) {
+            int o0 = row * dimensions, o1 = o0 + dimensions, o2 = o1 + dimensions, o3 = o2 + dimensions;
+            double s0 = 0d, s1 = 0d, s2 = 0d, s3 = 0d, v;
+            for (int k = 0; k < length; k++) {
+                v = vector[k];
+                s0 += w[o0 + k] * v;
+                s1 += w[o1 + k] * v;
+                s2 += w[o2 + k] * v;
+                s3 += w[o3 + k] * v;
+            }
+            result[row] = s0;
+            result[row + 1] = s1;
+            result[row + 2] = s2;
+            result[row + 3] = s3;
+        }
+        for (; row < to; row++) {
+            int o = row * dimensions;
+            double s = 0d;
+            for (int k = 0; k < length; k++) {
+                s += w[o + k] * vector[k];
+            }
+            result[row] = s;
+        }
+    }
+}
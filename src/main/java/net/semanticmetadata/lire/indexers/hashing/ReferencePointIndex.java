@@ -0,0 +1,211 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.indexers.hashing;
+
+import net.semanticmetadata.lire.imageanalysis.features.ByteArrayDistance;
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.searchers.TopKCollector;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds the reference points nearest to a feature for {@link MetricSpaces}. The reference points are kept
+ * serialized one after the other in a single byte[] and compared with the
+ * {@link net.semanticmetadata.lire.imageanalysis.features.ByteArrayDistance} kernels where the feature class has
+ * them, which also makes the index safe to use from multiple threads, as only the query instance is used for
+ * computing distances.
+ * <p/>
+ * Not all reference points are compared with the query: a few of them are selected as pivots, and the distances
+ * of all reference points to the pivots are computed up front. With the distances of the query to the pivots, the
+ * triangle inequality gives a lower bound for the distance to each reference point, max |d(q,p) - d(p,r)|. The
+ * reference points are visited in order of their bounds, and as soon as a bound is larger than the distance of the
+ * k-th nearest one found so far, the remaining ones are skipped. Like {@link MetricSpaces} itself this assumes that
+ * the distance function is a metric. How many distances are saved depends on the feature, with the reference
+ * points for CEDD and PHOG in the test resources and 32 pivots it's about 17% and 27%.
+ *
+ * @author Mathias Lux, mathias@juggle.at
+ */
+public class ReferencePointIndex {
+    // slack for rounding errors in the lower bounds.
+    private static final double EPSILON = 1e-9;
+
+    private final GlobalFeature[] points;
+    private final byte[] data;
+    private final int[] offsets;
+    private final boolean byteArrayDistance;
+    // indexes of the pivots among the reference points, and the distance of each reference point to the pivots,
+    // numPivots values per reference point.
+    private final int[] pivots;
+    private final boolean[] isPivot;
+    private final double[] pivotDistances;
+
+    /**
+     * @param referencePoints the reference points, all of the same class.
+     * @param numPivots       number of pivots used for pruning, 0 to compare the query with each reference point.
+     */
+    public ReferencePointIndex(List<? extends GlobalFeature> referencePoints, int numPivots) {
+        int size = referencePoints.size();
+        points = referencePoints.toArray(new GlobalFeature[size]);
+        byteArrayDistance = size > 0 && points[0] instanceof ByteArrayDistance;
+        offsets = new int[size + 1];
+        byte[][] serialized = new byte[size][];
+        for (int i = 0; i < size; i++) {
+            serialized[i] = points[i].getByteArrayRepresentation();
+            offsets[i + 1] = offsets[i] + serialized[i].length;
+        }
+        data = new byte[offsets[size]];
+        for (int i = 0; i < size; i++) {
+            System.arraycopy(serialized[i], 0, data, offsets[i], serialized[i].length);
+        }
+        pivots = selectPivots(Math.min(numPivots, size));
+        isPivot = new boolean[size];
+        for (int pivot : pivots) {
+            isPivot[pivot] = true;
+        }
+        pivotDistances = new double[size * pivots.length];
+        for (int j = 0; j < pivots.length; j++) {
+            GlobalFeature pivot = points[pivots[j]];
+            for (int i = 0; i < size; i++) {
+                pivotDistances[i * pivots.length + j] = getDistance(pivot, i, Double.MAX_VALUE);
+            }
+        }
+    }
+
+    /**
+     * Farthest first traversal: starts with the first reference point and takes the one with the largest distance
+     * to the pivots selected so far as the next one.
+     */
+    private int[] selectPivots(int numPivots) {
+        int[] result = new int[numPivots];
+        if (numPivots == 0) return result;
+        double[] minDistance = new double[points.length];
+        Arrays.fill(minDistance, Double.MAX_VALUE);
+        for (int j = 0; j < numPivots; j++) {
+            int next = 0;
+            if (j > 0) {
+                for (int i = 1; i < points.length; i++) {
+                    if (minDistance[i] > minDistance[next]) next = i;
+                }
+            }
+            result[j] = next;
+            for (int i = 0; i < points.length; i++) {
+                minDistance[i] = Math.min(minDistance[i], getDistance(points[next], i, Double.MAX_VALUE));
+            }
+        }
+        return result;
+    }
+
+    public int size() {
+        return points.length;
+    }
+
+    public int getNumberOfPivots() {
+        return pivots.length;
+    }
+
+    /**
+     * @param query the feature, it has to be of the class of the reference points.
+     * @param k     the number of reference points.
+     * @return the indexes of the k nearest reference points, the nearest first. For equal distances the lower
+     * index comes first.
+     */
+    public int[] getNearest(GlobalFeature query, int k) {
+        return getNearest(query, k, new double[points.length], new long[points.length]);
+    }
+
+    /**
+     * Like {@link #getNearest(GlobalFeature, int)} for many queries at once, the temporary arrays are only created
+     * once for all of them.
+     *
+     * @param queries the features, they have to be of the class of the reference points.
+     * @param k       the number of reference points per query.
+     * @return the indexes of the k nearest reference points for each query, in the order of the queries.
+     */
+    public int[][] getNearest(GlobalFeature[] queries, int k) {
+        double[] bounds = new double[points.length];
+        long[] order = new long[points.length];
+        int[][] result = new int[queries.length][];
+        for (int q = 0; q < queries.length; q++) {
+            result[q] = getNearest(queries[q], k, bounds, order);
+        }
+        return result;
+    }
+
+    private int[] getNearest(GlobalFeature query, int k, double[] bounds, long[] order) {
+        TopKCollector nearest = new TopKCollector(Math.max(1, Math.min(k, points.length)));
+        final int numPivots = pivots.length;
+        // the pivots are reference points too, so they are offered to the collector right away.
+        double[] queryDistances = new double[numPivots];
+        for (int j = 0; j < numPivots; j++) {
+            queryDistances[j] = getDistance(query, pivots[j], Double.MAX_VALUE);
+            nearest.insert(queryDistances[j], pivots[j]);
+        }
+        // the lower bounds, sorted along with the indexes in the lower 32 bits. The bounds are not negative, so
+        // the order of their float bits is the order of the values.
+        int count = 0;
+        for (int i = 0; i < points.length; i++) {
+            if (isPivot[i]) continue;
+            int offset = i * numPivots;
+            double bound = 0d;
+            for (int j = 0; j < numPivots; j++) {
+                bound = Math.max(bound, Math.abs(queryDistances[j] - pivotDistances[offset + j]));
+            }
+            bounds[i] = bound;
+            order[count++] = (long) Float.floatToIntBits((float) bound) << 32 | i;
+        }
+        if (numPivots > 0) Arrays.sort(order, 0, count);
+        for (int n = 0; n < count; n++) {
+            int i = (int) order[n];
+            double threshold = nearest.getThreshold();
+            // rounding to float may change the order of bounds close to each other, so the others are just skipped.
+            if (bounds[i] - threshold > EPSILON * (1 + threshold)) continue;
+            nearest.insert(getDistance(query, i, threshold), i);
+        }
+        return nearest.getDocIds();
+    }
+
+    private double getDistance(GlobalFeature feature, int point, double threshold) {
+        if (byteArrayDistance)
+            return ((ByteArrayDistance) feature).getDistance(data, offsets[point], offsets[point + 1] - offsets[point], threshold);
+        else
+            return feature.getDistance(points[point], threshold);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.indexers.parallel;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A pool of byte[] buffers for reading image files, so that not every file needs a new array. Buffers are allocated
+ * with a size of a power of two, so they fit the next files most of the time. If a recycled buffer is too small for
+ * a file it is dropped and a larger one is allocated. At most capacity buffers are kept.
+ *
+ * @author Mathias Lux, mathias@juggle.at
+ */
+public class BufferPool {
+    private static final int MIN_BUFFER_SIZE = 64 * 1024;
+    private final ArrayBlockingQueue<byte[]> buffers;
+
+    /**
+     * @param capacity the maximum number of free buffers kept, eg. the number of buffers in flight.
+     */
+    public BufferPool(int capacity) {
+        buffers = new ArrayBlockingQueue<byte[]>(Math.max(1, capacity));
+    }
+
+    /**
+     * Returns a free buffer with at least the given size, either a recycled or a new one.
+     *
+     * @param size the minimum size of the buffer.
+     * @return the buffer, which is likely larger than size.
+     */
+    public byte[] acquire(int size) {
+        byte[] buffer = buffers.poll();
+        if (buffer == null || buffer.length < size) {
+            int length = MIN_BUFFER_SIZE;
+            while (length < size && length > 0) length <<= 1;
+            buffer = new byte[(length > 0) ? length : size];
+        }
+        return buffer;
+    }
+
+    /**
+     * Hands a buffer back for re-use. If the pool is full, the buffer is left to the garbage collector.
+     *
+     * @param buffer the buffer, it must not be used afterwards.
+     */
+    public void release(byte[] buffer) {
+        if (buffer != null) buffers.offer(buffer);
+    }
+
+    /**
+     * @return the number of free buffers in the pool.
+     */
+    public int size() {
+        return buffers.size();
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.indexers.parallel;
+
+import org.apache.lucene.index.IndexWriter;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The checkpoint journal of the incremental mode of the {@link ParallelIndexer}. For each image in the index it
+ * holds a signature, either size and modification time of the file or a hash of its content, so unchanged images
+ * can be skipped, changed ones updated and removed ones deleted from the index.
+ * <p/>
+ * The journal is a text file with one line per entry, the signature and the path separated by a tab, where the
+ * signature "-" marks a removed image. Entries are only appended at a {@link #checkpoint(IndexWriter)}, right after
+ * the index has been committed, so everything in the journal is in the index. After a crash, the indexer resumes
+ * with the images not in the journal yet.
+ *
+ * @author Mathias Lux, mathias@juggle.at
+ */
+public class IndexingJournal implements Closeable {
+    private static final String REMOVED = "-";
+    private final File file;
+    private final boolean useContentHash;
+    // the committed state, path to signature.
+    private final ConcurrentHashMap<String, String> entries = new ConcurrentHashMap<>();
+    // signatures of the images in the pipeline.
+    private final ConcurrentHashMap<String, String> inFlight = new ConcurrentHashMap<>();
+    private final Set<String> seen = ConcurrentHashMap.newKeySet();
+    private final Object pendingLock = new Object();
+    private ArrayList<String[]> pending = new ArrayList<>();
+    private Writer out;
+    // the number of lines in the journal file, it's compacted if there are a lot more lines than entries.
+    private int lines = 0;
+
+    /**
+     * Opens a journal, it is created if it does not exist.
+     *
+     * @param file           the journal file.
+     * @param useContentHash true to detect changes by a hash of the content instead of size and modification time.
+     * @throws IOException
+     */
+    public IndexingJournal(File file, boolean useContentHash) throws IOException {
+        this.file = file;
+        this.useContentHash = useContentHash;
+        if (file.exists()) {
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    lines++;
+                    int tab = line.indexOf('\t');
+                    // a line might be incomplete after a crash, it's ignored then.
+                    if (tab < 1 || tab == line.length() - 1) continue;
+                    String signature = line.substring(0, tab), path = line.substring(tab + 1);
+                    if (REMOVED.equals(signature)) entries.remove(path);
+                    else entries.put(path, signature);
+                }
+            }
+        }
+        out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+    }
+
+    public boolean isUseContentHash() {
+        return useContentHash;
+    }
+
+    /**
+     * @return the number of images in the journal.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @param file the image file.
+     * @return the signature of the file based on its size and modification time.
+     */
+    public static String getSignature(File file) {
+        return file.length() + ":" + file.lastModified();
+    }
+
+    /**
+     * @param buffer the content of the image file.
+     * @param length the number of bytes used in the buffer.
+     * @return the signature of the file based on the MD5 hash of its content.
+     */
+    public static String getContentHash(byte[] buffer, int length) {
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            md5.update(buffer, 0, length);
+            byte[] digest = md5.digest();
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Marks an image as part of the current collection, images not seen are removed by {@link #getRemoved()}.
+     *
+     * @param path the path of the image.
+     */
+    public void seen(String path) {
+        seen.add(path);
+    }
+
+    /**
+     * Checks an image against the journal, if it has changed or is new, the signature is kept until
+     * {@link #indexed(String)} is called.
+     *
+     * @param path      the path of the image.
+     * @param signature the current signature of the image.
+     * @return true if the image is in the journal with the same signature and can be skipped.
+     */
+    public boolean isUnchanged(String path, String signature) {
+        if (signature.equals(entries.get(path))) return true;
+        inFlight.put(path, signature);
+        return false;
+    }
+
+    /**
+     * Called after the document of an image has been added to the index writer, it's journaled with the next
+     * checkpoint.
+     *
+     * @param path the path of the image.
+     */
+    public void indexed(String path) {
+        String signature = inFlight.remove(path);
+        if (signature == null) return;
+        synchronized (pendingLock) {
+            pending.add(new String[]{signature, path});
+        }
+    }
+
+    /**
+     * Called after the document of a removed image has been deleted with the index writer.
+     *
+     * @param path the path of the image.
+     */
+    public void removed(String path) {
+        synchronized (pendingLock) {
+            pending.add(new String[]{REMOVED, path});
+        }
+    }
+
+    /**
+     * @return the number of entries waiting for the next checkpoint.
+     */
+    public int getNumberOfPending() {
+        synchronized (pendingLock) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * @return the images in the journal that have not been {@link #seen(String) seen} in the current collection.
+     */
+    public List<String> getRemoved() {
+        LinkedList<String> result = new LinkedList<>();
+        for (String path : entries.keySet()) {
+            if (!seen.contains(path)) result.add(path);
+        }
+        return result;
+    }
+
+    /**
+     * Commits the index and appends everything indexed or removed so far to the journal.
+     *
+     * @param writer the writer of the index.
+     * @throws IOException
+     */
+    public synchronized void checkpoint(IndexWriter writer) throws IOException {
+        ArrayList<String[]> done;
+        synchronized (pendingLock) {
+            done = pending;
+            pending = new ArrayList<>();
+        }
+        // all entries taken have been handed to the writer before, so they are part of the commit.
+        writer.commit();
+        for (String[] entry : done) {
+            out.write(entry[0]);
+            out.write('\t');
+            out.write(entry[1]);
+            out.write('\n');
+            lines++;
+            if (REMOVED.equals(entry[0])) entries.remove(entry[1]);
+            else entries.put(entry[1], entry[0]);
+        }
+        out.flush();
+    }
+
+    /**
+     * Rewrites the journal with just the current entries, dropping overwritten and removed ones, if they make up
+     * more than half of the file.
+     *
+     * @throws IOException
+     */
+    public synchronized void compact() throws IOException {
+        if (lines <= 2 * entries.size()) return;
+        out.close();
+        File tmp = new File(file.getPath() + ".tmp");
+        try (Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                w.write(entry.getValue());
+                w.write('\t');
+                w.write(entry.getKey());
+                w.write('\n');
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        lines = entries.size();
+        out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+}
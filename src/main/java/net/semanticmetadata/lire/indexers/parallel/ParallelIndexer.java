@@ -39,6 +39,7 @@ import net.semanticmetadata.lire.aggregators.BOVW;
 import net.semanticmetadata.lire.builders.*;
 import net.semanticmetadata.lire.classifiers.Cluster;
 import net.semanticmetadata.lire.classifiers.KMeans;
+import net.semanticmetadata.lire.classifiers.MiniBatchKMeans;
 import net.semanticmetadata.lire.classifiers.ParallelKMeans;
 import net.semanticmetadata.lire.imageanalysis.features.Extractor;
 import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
@@ -48,28 +49,35 @@ import net.semanticmetadata.lire.imageanalysis.features.global.CEDD;
 import net.semanticmetadata.lire.imageanalysis.features.global.FCTH;
 import net.semanticmetadata.lire.imageanalysis.features.global.JCD;
 import net.semanticmetadata.lire.imageanalysis.features.local.simple.SimpleExtractor;
-import net.semanticmetadata.lire.utils.FileUtils;
 import net.semanticmetadata.lire.utils.ImageUtils;
 import net.semanticmetadata.lire.utils.LuceneUtils;
+import net.semanticmetadata.lire.utils.StatsUtils;
+import net.semanticmetadata.lire.utils.SubsamplingImageDecoder;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
 
 import javax.imageio.ImageIO;
 import javax.swing.*;
 import java.awt.image.BufferedImage;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 
 //import net.semanticmetadata.lire.imageanalysis.features.global.ACCID;
 
@@ -78,6 +86,12 @@ import java.util.logging.Logger;
  * at hand reads files from the disk and acts as producer, while several consumer
  * threads extract the features from the given files.
  * <p/>
+ * Indexing runs in a pipeline of stages, each with its own threads: the list of files is streamed, the files are
+ * read, decoded, the features are extracted and the documents are written to the index. The stages are connected
+ * by bounded queues, so a slow stage blocks the ones before it and the memory used does not depend on the number
+ * of images. Use {@link #setNumOfReadingThreads(int)}, {@link #setNumOfDecodingThreads(int)} and
+ * {@link #setNumOfWritingThreads(int)} to size the IO bound stages independently of the extraction.
+ * <p/>
  * Use the methods {@link ParallelIndexer#addExtractor} to add your own features.
  * Check the source of this class -- the main method -- to get an idea.
  * <p/>
@@ -106,7 +120,8 @@ public class ParallelIndexer implements Runnable {
     private IndexWriter writer;
     private String imageDirectory, indexPath;
     private File imageList = null;
-    private List<String> allImages, sampleImages;
+    private List<String> sampleImages;
+    private Set<Integer> sampleIndices = null;
 
     private int numOfDocsForCodebooks = 300;
     private int[] numOfClusters = new int[]{512};
@@ -131,12 +146,33 @@ public class ParallelIndexer implements Runnable {
     private int queueCapacity = 200;
     private LinkedBlockingQueue<WorkItem> queue = new LinkedBlockingQueue<>(queueCapacity);
 
+    // the stages of the indexing pipeline, see index().
+    private int numOfReadingThreads = 2, numOfDecodingThreads = -1, numOfWritingThreads = 1;
+    private LinkedBlockingQueue<WorkItem> fileQueue, readQueue, imageQueue;
+    private LinkedBlockingQueue<Document> documentQueue;
+    private BufferPool bufferPool;
+    private static final Document END_OF_DOCUMENTS = new Document();
+    private static final List<String> IMAGE_EXTENSIONS = Arrays.asList("jpg", "JPG", "jpeg", "png", "gif", "tif", "tiff");
+
+    // incremental mode, see setIncremental(boolean, boolean).
+    private boolean incremental = false, useContentHash = false;
+    private int checkpointInterval = 10000;
+    private IndexingJournal journal = null;
+    private AtomicInteger skippedCount = new AtomicInteger(0);
+
+    // decoding at reduced resolution, see setSubsampledDecoding(boolean).
+    private SubsamplingImageDecoder subsamplingDecoder = null;
+
+    // streaming the sample into mini-batch k-means, see setStreamingCodebooks(int).
+    private int codebookReservoirSize = 0;
+
 
     public static void main(String[] args) {
         String indexPath = null;
         String imageDirectory = null;
         File imageList = null;
         int numThreads = 10;
+        boolean incremental = false, useContentHash = false, subsampledDecoding = false;
         for (int i = 0; i < args.length; i++) {
             String arg = args[i];
             if (arg.startsWith("-i")) {  // index
@@ -165,6 +201,13 @@ public class ParallelIndexer implements Runnable {
                 if ((i + 1) < args.length) {
                     imageDirectory = args[i + 1];
                 }
+            } else if (arg.startsWith("-u")) { // incremental update
+                incremental = true;
+            } else if (arg.startsWith("-m")) { // incremental update based on content hashes
+                incremental = true;
+                useContentHash = true;
+            } else if (arg.startsWith("-f")) { // fast decoding at reduced resolution
+                subsampledDecoding = true;
             }
         }
 
@@ -185,6 +228,8 @@ public class ParallelIndexer implements Runnable {
         p.addExtractor(CEDD.class);
         p.addExtractor(FCTH.class);
         p.addExtractor(JCD.class);
+        p.setIncremental(incremental, useContentHash);
+        p.setSubsampledDecoding(subsampledDecoding);
         p.run();
     }
 
@@ -194,12 +239,16 @@ public class ParallelIndexer implements Runnable {
     private static void printHelp() {
         System.out.println("Usage:\n" +
                 "\n" +
-                "$> ParallelIndexer -i <index> <-d <image-directory> | -l <image-list>> [-n <number of threads>]\n" +
+                "$> ParallelIndexer -i <index> <-d <image-directory> | -l <image-list>> [-n <number of threads>] [-u | -m] [-f]\n" +
                 "\n" +
                 "index             ... The directory of the index. Will be appended or created if not existing.\n" +
                 "images-directory  ... The directory the images are found in. It's traversed recursively.\n" +
                 "image-list        ... A list of images in a file, one per line. Use instead of images-directory.\n" +
-                "number of threads ... The number of threads used for extracting features, e.g. # of CPU cores.");
+                "number of threads ... The number of threads used for extracting features, e.g. # of CPU cores.\n" +
+                "-u                ... Incremental update, just new and changed images are indexed, removed ones deleted.\n" +
+                "                      Changes are detected by size and modification time of the files.\n" +
+                "-m                ... Incremental update detecting changes by an MD5 hash of the file content.\n" +
+                "-f                ... Fast decoding, large images are decoded at a reduced resolution.");
     }
 
 
@@ -416,7 +465,7 @@ public class ParallelIndexer implements Runnable {
      * @param imageList    the list of images, one path per line.
      * @param hashingMode  the mode used for Hashing, use HashingMode.None if you don't want hashing.
      * @param useDocValues set to true if you want to use DocValues instead of Fields.
-     * @param queueSize    the size of the reading queue to minimize disk usage.
+     * @param queueSize    the size of the queues in between the indexing stages, limits memory usage.
      */
     public ParallelIndexer(int numOfThreads, String indexPath, File imageList, GlobalDocumentBuilder.HashingMode hashingMode, boolean useDocValues, int queueSize) {
         this.numOfThreads = numOfThreads;
@@ -746,20 +795,13 @@ public class ParallelIndexer implements Runnable {
         lockLists = true;
         try {
             long start = System.currentTimeMillis();
-            writer = LuceneUtils.createIndexWriter(indexPath, overWrite, LuceneUtils.AnalyzerType.WhitespaceAnalyzer);
-            if (imageList == null) {
-//                allImages = FileUtils.getAllImages(new File(imageDirectory), true); //TODO: change to readFileLines
-                allImages = FileUtils.readFileLines(new File(imageDirectory), true);
-            } else {
-                allImages = new LinkedList<String>();
-                BufferedReader br = new BufferedReader(new FileReader(imageList));
-                String line;
-                while ((line = br.readLine()) != null) {
-                    if (line.trim().length() > 3) allImages.add(line.trim());
-                }
-            }
+            writer = LuceneUtils.createIndexWriter(indexPath, overWrite && !incremental, LuceneUtils.AnalyzerType.WhitespaceAnalyzer);
+            if (incremental) openJournal();
+            // the list of images is not kept in memory, it is just counted here and streamed later on.
+            int totalImages = forEachImage(null);
+            System.out.println("Found " + totalImages + " images in " + ((imageList == null) ? imageDirectory : imageList.getPath()));
 
-            if (!(allImages.size() > 0)) throw new UnsupportedOperationException("No images were found!!");
+            if (!(totalImages > 0)) throw new UnsupportedOperationException("No images were found!!");
 
             for (int numOfCluster : numOfClusters) {
                 numOfClustersSet.add(numOfCluster);
@@ -774,34 +816,50 @@ public class ParallelIndexer implements Runnable {
             (new File(indexPath + ".config/")).mkdirs();
 
             if (sampling) {
+                if (incremental)
+                    throw new UnsupportedOperationException("Cannot use sampling and incremental indexing at the same time, set the codebooks!!");
                 if (customDocBuilderFlag)
                     throw new UnsupportedOperationException("Cannot use sampling and set custom document builder at the same time!!");
                 System.out.println("Sampling and Creating Codebooks....");
-                numImages = allImages.size();
+                numImages = totalImages;
                 int capacity = Math.min(numOfDocsForCodebooks, numImages);
                 if (capacity < 0) capacity = (numImages / 2);
-                allDocuments = new HashMap<String, Document>(capacity);
-                sampleImages = selectVocabularyDocs(numImages, capacity);
-                numImages = sampleImages.size();
-                conSampleMap = new ConcurrentHashMap<String, List<? extends LocalFeature>>(numImages);
-                sample(LocalExtractorsAndCodebooks);
-                sample(SimpleExtractorsAndCodebooks);
-                conSampleMap.clear();
-                conSampleMap = null;
-                if (GlobalExtractors.size() > 0) fillSampleWithGlobals();
-                flushDocuments();
-                allDocuments.clear();
-                allDocuments = null;
+                if (codebookReservoirSize > 0) {
+                    sampleImages = selectVocabularyDocs(capacity);
+                    // the features of the sample are not kept, so the sample is indexed with the other images.
+                    sampleIndices = null;
+                    numImages = sampleImages.size();
+                    streamCodebooks(LocalExtractorsAndCodebooks);
+                    streamCodebooks(SimpleExtractorsAndCodebooks);
+                } else {
+                    allDocuments = new HashMap<String, Document>(capacity);
+                    sampleImages = selectVocabularyDocs(capacity);
+                    numImages = sampleImages.size();
+                    conSampleMap = new ConcurrentHashMap<String, List<? extends LocalFeature>>(numImages);
+                    sample(LocalExtractorsAndCodebooks);
+                    sample(SimpleExtractorsAndCodebooks);
+                    conSampleMap.clear();
+                    conSampleMap = null;
+                    if (GlobalExtractors.size() > 0) fillSampleWithGlobals();
+                    flushDocuments();
+                    allDocuments.clear();
+                    allDocuments = null;
+                }
                 System.out.println("Indexing rest images....");
             } else System.out.println("No need for sampling and generating codebooks.....");
 
-            numImages = allImages.size();
+            numImages = totalImages - ((sampleIndices != null) ? sampleIndices.size() : 0);
             index();
 
             System.out.printf("Total time of indexing: %s.\n", convertTime(System.currentTimeMillis() - start));
 
-            LuceneUtils.commitWriter(writer);
-            LuceneUtils.optimizeWriter(writer);
+            if (journal != null) {
+                // no forced merge here, merging down to one segment would rewrite the whole index on each incremental update.
+                finishJournal();
+            } else {
+                LuceneUtils.commitWriter(writer);
+                LuceneUtils.optimizeWriter(writer);
+            }
             LuceneUtils.closeWriter(writer);
 
             if (!appending) {
@@ -810,11 +868,43 @@ public class ParallelIndexer implements Runnable {
             }
 
             indexingFinished = true;
-        } catch (IOException e) {
+        } catch (IOException | InterruptedException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Opens the journal of the incremental mode. If there is no index yet, an old journal is discarded.
+     */
+    private void openJournal() throws IOException {
+        File config = new File(indexPath + ".config/");
+        config.mkdirs();
+        File journalFile = new File(config, "journal.txt");
+        if (!DirectoryReader.indexExists(writer.getDirectory()) && journalFile.exists()) {
+            System.out.println("No index found in " + indexPath + ", discarding the old journal.");
+            journalFile.delete();
+        }
+        journal = new IndexingJournal(journalFile, useContentHash);
+        skippedCount.set(0);
+        System.out.printf("Incremental indexing, %d images are in the journal.\n", journal.size());
+    }
+
+    /**
+     * Deletes the documents of removed images, and writes the last checkpoint.
+     */
+    private void finishJournal() throws IOException {
+        List<String> removed = journal.getRemoved();
+        for (String path : removed) {
+            writer.deleteDocuments(new Term(DocumentBuilder.FIELD_NAME_IDENTIFIER, path));
+            journal.removed(path);
+        }
+        journal.checkpoint(writer);
+        journal.compact();
+        journal.close();
+        journal = null;
+        System.out.printf("Skipped %d unchanged images, deleted %d removed images.\n", skippedCount.get(), removed.size());
+    }
+
     private void flushDocuments() {
         System.out.println("Flushing documents....");
         long start = System.currentTimeMillis();
@@ -829,33 +919,129 @@ public class ParallelIndexer implements Runnable {
         System.out.printf("Time of flushing: %s.\n", convertTime(System.currentTimeMillis() - start));
     }
 
+    /**
+     * Runs the indexing pipeline. Each stage has its own threads and hands over to the next one with a bounded queue.
+     * The stages are shut down one after the other: once all threads of a stage are finished, the next one gets an
+     * end marker per thread.
+     */
     private void index() {
         System.out.printf("Indexing %d images\n", numImages);
         long start = System.currentTimeMillis();
+        int numOfDecoders = (numOfDecodingThreads > 0) ? numOfDecodingThreads : Math.max(1, numOfThreads / 2);
+        fileQueue = new LinkedBlockingQueue<>(queueCapacity);
+        readQueue = new LinkedBlockingQueue<>(queueCapacity);
+        // decoded images take a lot of memory, so just a few of them are waiting for the extraction.
+        imageQueue = new LinkedBlockingQueue<>(2 * numOfThreads);
+        documentQueue = new LinkedBlockingQueue<>(queueCapacity);
+        bufferPool = new BufferPool(queueCapacity + numOfReadingThreads + numOfDecoders);
+        overallCount = 0;
         try {
-            Thread p, c, m;
-            p = new Thread(new Producer(allImages), "Producer");
-            p.start();
-            LinkedList<Thread> threads = new LinkedList<Thread>();
+            Thread lister = new Thread(new FileLister(), "FileLister");
+            lister.start();
+            LinkedList<Thread> readers = new LinkedList<Thread>();
+            for (int i = 0; i < numOfReadingThreads; i++) {
+                readers.add(startThread(new FileLoader(), String.format("Reader-%02d", i + 1)));
+            }
+            LinkedList<Thread> decoders = new LinkedList<Thread>();
+            for (int i = 0; i < numOfDecoders; i++) {
+                decoders.add(startThread(new ImageDecoder(), String.format("Decoder-%02d", i + 1)));
+            }
+            LinkedList<Thread> consumers = new LinkedList<Thread>();
             for (int i = 0; i < numOfThreads; i++) {
-                c = new Thread(new Consumer(), String.format("Consumer-%02d", i + 1));
-                c.start();
-                threads.add(c);
+                consumers.add(startThread(new Consumer(), String.format("Consumer-%02d", i + 1)));
+            }
+            LinkedList<Thread> writers = new LinkedList<Thread>();
+            for (int i = 0; i < numOfWritingThreads; i++) {
+                writers.add(startThread(new DocumentWriter(), String.format("Writer-%02d", i + 1)));
             }
             Monitoring monitoring = new Monitoring();
-            m = new Thread(monitoring, "IndexingMonitor");
+            Thread m = new Thread(monitoring, "IndexingMonitor");
+            m.setDaemon(true);
             m.start();
-            for (Thread thread : threads) {
-                thread.join();
+
+            lister.join();
+            endStage(fileQueue, readers.size());
+            joinAll(readers);
+            endStage(readQueue, decoders.size());
+            joinAll(decoders);
+            endStage(imageQueue, consumers.size());
+            joinAll(consumers);
+            for (int i = 0; i < writers.size(); i++) {
+                documentQueue.put(END_OF_DOCUMENTS);
             }
+            joinAll(writers);
+
             monitoring.killMonitoring();
             long end = System.currentTimeMillis() - start;
             System.out.printf("Analyzed %d images in %s ~ %3.2f ms each.\n", overallCount, convertTime(end), ((overallCount > 0) ? ((float) end / (float) overallCount) : -1f));
         } catch (InterruptedException e) {
             e.printStackTrace();
+        } finally {
+            fileQueue = readQueue = imageQueue = null;
+            documentQueue = null;
+            bufferPool = null;
         }
     }
 
+    private Thread startThread(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.start();
+        return thread;
+    }
+
+    private void joinAll(List<Thread> threads) throws InterruptedException {
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private void endStage(LinkedBlockingQueue<WorkItem> queue, int numOfThreads) throws InterruptedException {
+        for (int i = 0; i < numOfThreads; i++) {
+            queue.put(new WorkItem(null, (byte[]) null));
+        }
+    }
+
+    /**
+     * Used to stream the list of images, see {@link #forEachImage(ImageVisitor)}.
+     */
+    interface ImageVisitor {
+        void visit(int index, String path) throws InterruptedException;
+    }
+
+    /**
+     * Streams the images from the image list or the image directory, which is traversed recursively. The images are
+     * visited in the same order each time, so they can be addressed by their index.
+     *
+     * @param visitor called for each image, might be null to just count them.
+     * @return the number of images.
+     */
+    private int forEachImage(ImageVisitor visitor) throws IOException, InterruptedException {
+        int count = 0;
+        if (imageList == null) {
+            try (Stream<Path> paths = Files.walk(Paths.get(imageDirectory))) {
+                for (Iterator<Path> iterator = paths.iterator(); iterator.hasNext(); ) {
+                    Path path = iterator.next();
+                    String fileName = path.getFileName().toString();
+                    if (!IMAGE_EXTENSIONS.contains(fileName.substring(fileName.lastIndexOf('.') + 1)) || !Files.isRegularFile(path))
+                        continue;
+                    if (visitor != null) visitor.visit(count, path.toFile().getCanonicalPath());
+                    count++;
+                }
+            }
+        } else {
+            try (BufferedReader br = new BufferedReader(new FileReader(imageList))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    if (line.trim().length() > 3) {
+                        if (visitor != null) visitor.visit(count, line.trim());
+                        count++;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
     private void fillSampleWithGlobals() {
         System.out.println("Filling GlobalFeatures....");
         System.out.printf("Indexing %d images\n", sampleImages.size());
@@ -985,10 +1171,152 @@ public class ParallelIndexer implements Runnable {
         }
     }
 
+    /**
+     * Creates the missing codebooks by streaming the local features of the sample images into
+     * {@link MiniBatchKMeans}, one per number of clusters. The features are not kept, so the sample images are
+     * indexed along with the others afterwards.
+     */
+    private void streamCodebooks(HashMap<ExtractorItem, LinkedList<Cluster[]>> mapWithClassesAndCodebooks) throws IOException, InterruptedException {
+        for (ExtractorItem extractorItem : mapWithClassesAndCodebooks.keySet()) {
+            String codebookTitle = extractorItem.isSimple() ? ((SimpleExtractor) extractorItem.getExtractorInstance()).getFieldName() : extractorItem.getFeatureInstance().getFieldName();
+            LinkedList<Cluster[]> codebooks = mapWithClassesAndCodebooks.get(extractorItem);
+            HashMap<Integer, KMeans> kMeans = new HashMap<Integer, KMeans>();
+            for (Integer numOfClusters : numOfClustersSet) {
+                boolean found = false;
+                for (Cluster[] codebook : codebooks) {
+                    if (codebook.length == numOfClusters) found = true;
+                }
+                if (found) System.out.println("Codebook of " + numOfClusters + " clusters found, no need to generate!");
+                else kMeans.put(numOfClusters, new MiniBatchKMeans(numOfClusters, Math.max(codebookReservoirSize, numOfClusters + 1), 1000));
+            }
+            if (kMeans.isEmpty()) continue;
+
+            System.out.println("~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~");
+            System.out.println("Feature: " + codebookTitle + ", streaming the sample into the codebooks");
+            Thread p = new Thread(new Producer(sampleImages));
+            p.start();
+            long start = System.currentTimeMillis();
+            LinkedList<Thread> threads = new LinkedList<Thread>();
+            for (int i = 0; i < numOfThreads; i++) {
+                threads.add(startThread(new ExtractorForLocalSample(extractorItem, kMeans.values()), String.format("Sampler-%02d", i + 1)));
+            }
+            Monitoring monitoring = new Monitoring();
+            Thread m = new Thread(monitoring);
+            m.start();
+            joinAll(threads);
+            monitoring.killMonitoring();
+            long end = System.currentTimeMillis() - start;
+            System.out.printf("Analyzed %d images in %s ~ %3.2f ms each.\n", overallCount, convertTime(end), ((overallCount > 0) ? ((float) end / (float) overallCount) : -1f));
+
+            for (Map.Entry<Integer, KMeans> entry : kMeans.entrySet()) {
+                System.out.println("Number of clusters: " + entry.getKey());
+                start = System.currentTimeMillis();
+                Cluster[] codebook = codebookGenerator(entry.getValue(), entry.getKey(), true);
+                Cluster.writeClusters(codebook, indexPath + ".config/" + codebookTitle + entry.getKey());
+                codebooks.add(codebook);
+                System.out.printf("Time of codebook generation: %s.\n", convertTime(System.currentTimeMillis() - start));
+            }
+        }
+    }
+
     public double getPercentageDone() {
         return (double) overallCount / (double) numImages;
     }
 
+    private String getQueueStatus() {
+        LinkedBlockingQueue<WorkItem> files = fileQueue, read = readQueue, images = imageQueue;
+        LinkedBlockingQueue<Document> documents = documentQueue;
+        if (files == null || read == null || images == null || documents == null)
+            return "queue size is " + queue.size();
+        return String.format("queue sizes are %d files, %d read, %d decoded, %d documents", files.size(), read.size(), images.size(), documents.size());
+    }
+
+    /**
+     * Sets the number of threads reading the image files, the default is 2. Use more for network storage.
+     *
+     * @param numOfReadingThreads the number of threads.
+     */
+    public void setNumOfReadingThreads(int numOfReadingThreads) {
+        this.numOfReadingThreads = Math.max(1, numOfReadingThreads);
+    }
+
+    /**
+     * Sets the number of threads decoding the images, the default is half the number of extraction threads.
+     *
+     * @param numOfDecodingThreads the number of threads.
+     */
+    public void setNumOfDecodingThreads(int numOfDecodingThreads) {
+        this.numOfDecodingThreads = Math.max(1, numOfDecodingThreads);
+    }
+
+    /**
+     * Sets the number of threads adding the documents to the index, the default is 1.
+     *
+     * @param numOfWritingThreads the number of threads.
+     */
+    public void setNumOfWritingThreads(int numOfWritingThreads) {
+        this.numOfWritingThreads = Math.max(1, numOfWritingThreads);
+    }
+
+    /**
+     * Switches to incremental indexing: the index is updated instead of overwritten, and a journal of the indexed
+     * images is kept next to the index. Images that did not change since the last run are skipped, changed ones
+     * are updated, and the documents of removed images are deleted. The journal is written at each checkpoint,
+     * so an interrupted run resumes at the last checkpoint.
+     *
+     * @param incremental    true for incremental indexing.
+     * @param useContentHash true to detect changes by a hash of the file content, which means each file is read,
+     *                       instead of by size and modification time.
+     */
+    public void setIncremental(boolean incremental, boolean useContentHash) {
+        this.incremental = incremental;
+        this.useContentHash = useContentHash;
+    }
+
+    /**
+     * Sets the number of documents in between two checkpoints of the incremental mode, the default is 10,000.
+     *
+     * @param checkpointInterval the number of documents.
+     */
+    public void setCheckpointInterval(int checkpointInterval) {
+        this.checkpointInterval = Math.max(1, checkpointInterval);
+    }
+
+    /**
+     * Decodes large images directly at a reduced resolution, so that the longer side is still at least
+     * {@link DocumentBuilder#MAX_IMAGE_DIMENSION}, instead of decoding them fully and scaling them down afterwards.
+     * This is a lot faster for camera photos, but features differ slightly, see {@link SubsamplingImageDecoder}.
+     * Decoding happens before the {@link ImagePreprocessor} is applied. The default is false.
+     *
+     * @param subsampledDecoding true to decode images at reduced resolution.
+     */
+    public void setSubsampledDecoding(boolean subsampledDecoding) {
+        subsamplingDecoder = subsampledDecoding ? new SubsamplingImageDecoder(DocumentBuilder.MAX_IMAGE_DIMENSION) : null;
+    }
+
+    /**
+     * Trains missing codebooks with {@link MiniBatchKMeans} on the features of the sample images, which are streamed
+     * into a reservoir of the given size instead of being kept. Thus the sample, see numOfDocsForCodebooks, can be
+     * a lot larger, but the sample images are extracted twice, once for the codebooks and once for indexing.
+     * The default is 0, which means that all features of the sample are kept and clustered.
+     *
+     * @param reservoirSize the maximum number of features kept per codebook, 0 to keep all of them.
+     */
+    public void setStreamingCodebooks(int reservoirSize) {
+        this.codebookReservoirSize = Math.max(0, reservoirSize);
+    }
+
+    /**
+     * Decodes the image data of a work item, either fully or at reduced resolution.
+     *
+     * @return the image or null if there is no reader for its format.
+     */
+    private BufferedImage decode(WorkItem item) throws IOException {
+        if (subsamplingDecoder != null)
+            return subsamplingDecoder.decode(item.getBuffer(), 0, item.getLength());
+        return ImageIO.read(new ByteArrayInputStream(item.getBuffer(), 0, item.getLength()));
+    }
+
     public ImagePreprocessor getImagePreprocessor() {
         return imagePreprocessor;
     }
@@ -1080,6 +1408,7 @@ public class ParallelIndexer implements Runnable {
     class ExtractorForLocalSample implements Runnable {
         private AbstractLocalDocumentBuilder documentBuilder;
         private ExtractorItem extractorItem;
+        private Collection<KMeans> codebookStream = null;
         private boolean locallyEnded;
 
         public ExtractorForLocalSample(ExtractorItem extractorItem) {
@@ -1090,21 +1419,36 @@ public class ParallelIndexer implements Runnable {
             this.locallyEnded = false;
         }
 
+        /**
+         * Adds the features to the given k-means instead of keeping them.
+         */
+        public ExtractorForLocalSample(ExtractorItem extractorItem, Collection<KMeans> codebookStream) {
+            this(extractorItem);
+            this.codebookStream = codebookStream;
+        }
+
         public void run() {
             WorkItem tmp;
-            ByteArrayInputStream b;
             while (!locallyEnded) {
                 try {
                     tmp = queue.take();
                     if (tmp.getFileName() == null) locallyEnded = true;
                     else overallCount++;
                     if (!locallyEnded) {   //&& tmp != null
-                        b = new ByteArrayInputStream(tmp.getBuffer());
-                        BufferedImage image = ImageIO.read(b);
+                        BufferedImage image = decode(tmp);
                         if(imagePreprocessor != null){
                             image = imagePreprocessor.process(image);
                         }
-                        conSampleMap.put(tmp.getFileName(), (documentBuilder.extractLocalFeatures(image, ((LocalFeatureExtractor) extractorItem.getExtractorInstance())).getFeatures()));
+                        List<? extends LocalFeature> features = documentBuilder.extractLocalFeatures(image, ((LocalFeatureExtractor) extractorItem.getExtractorInstance())).getFeatures();
+                        if (codebookStream == null) {
+                            conSampleMap.put(tmp.getFileName(), features);
+                        } else {
+                            for (KMeans kMeans : codebookStream) {
+                                for (LocalFeature feature : features) {
+                                    kMeans.addFeature(feature.getFeatureVector());
+                                }
+                            }
+                        }
                     }
                 } catch (InterruptedException | IOException e) {
                     log.severe(e.getMessage());
@@ -1182,7 +1526,7 @@ public class ParallelIndexer implements Runnable {
                     if (tmp.getFileName() == null) locallyEnded = true;
                     else overallCount++;
                     if (!locallyEnded) {   //&& tmp != null
-                        BufferedImage image = ImageIO.read(new ByteArrayInputStream(tmp.getBuffer()));
+                        BufferedImage image = decode(tmp);
                         if(imagePreprocessor != null){
                             image = imagePreprocessor.process(image);
                         }
@@ -1206,7 +1550,6 @@ public class ParallelIndexer implements Runnable {
         private SimpleDocumentBuilder simpleDocumentBuilder;
         private GlobalDocumentBuilder globalDocumentBuilder;
         private DocumentBuilder localCustomDocumentBuilder;
-        private boolean locallyEnded;
 
         public Consumer() {
             this.localDocumentBuilder = new LocalDocumentBuilder(aggregator);
@@ -1230,30 +1573,19 @@ public class ParallelIndexer implements Runnable {
             } catch (InstantiationException | IllegalAccessException e) {
                 e.printStackTrace();
             }
-
-            this.locallyEnded = false;
         }
 
         public void run() {
-            WorkItem tmp = null;
+            WorkItem tmp;
             Document doc;
             Field[] fields;
             BufferedImage image;
-            while (!locallyEnded) {
-                try {
-                    if (queue.peek()==null) {
-//                        while (queue.remainingCapacity() > 2*queueCapacity/3) Thread.sleep(1000);
-                        Thread.sleep((long) ((Math.random()/2+0.5) * 10000)); // sleep for a second if queue is empty.
-                    }
-                    tmp = queue.take();
-                    if (tmp.getFileName() == null) locallyEnded = true;
-                    else overallCount++;
-                    if (!locallyEnded) {    //&& tmp != null
-                        image = ImageIO.read(new ByteArrayInputStream(tmp.getBuffer()));
-//                        image = ImageUtils.createWorkingCopy(ImageIO.read(new ByteArrayInputStream(tmp.getBuffer())));
-                        if(imagePreprocessor != null){
-                            image = imagePreprocessor.process(image);
-                        }
+            try {
+                while ((tmp = imageQueue.take()).getFileName() != null) {
+                    overallCount++;
+                    image = tmp.getImage();
+                    doc = null;
+                    try {
                         doc = localCustomDocumentBuilder.createDocument(image, tmp.getFileName());
                         fields = globalDocumentBuilder.createDescriptorFields(image);
                         for (Field field : fields) {
@@ -1267,13 +1599,138 @@ public class ParallelIndexer implements Runnable {
                         for (Field field : fields) {
                             doc.add(field);
                         }
-                        writer.addDocument(doc);
+                    } catch (Exception e) {
+                        log.severe(e.getMessage() + ": " + tmp.getFileName());
+                        doc = null;
                     }
-                } catch (InterruptedException | IOException e) {
-                    log.severe(e.getMessage() + ": " + tmp!=null?tmp.getFileName():"");
-                } catch (Exception e) {
-                    log.severe(e.getMessage() + ": " + tmp!=null?tmp.getFileName():"");
+                    if (doc != null) documentQueue.put(doc);
                 }
+            } catch (InterruptedException e) {
+                log.severe(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * First stage of the indexing pipeline, streams the paths of the images to be indexed.
+     */
+    class FileLister implements Runnable {
+        public void run() {
+            try {
+                forEachImage(new ImageVisitor() {
+                    @Override
+                    public void visit(int index, String path) throws InterruptedException {
+                        if (journal != null) {
+                            File file = new File(path);
+                            // images not seen are deleted from the index.
+                            if (!file.exists()) return;
+                            journal.seen(path);
+                            if (!journal.isUseContentHash() && journal.isUnchanged(path, IndexingJournal.getSignature(file))) {
+                                skippedCount.incrementAndGet();
+                                return;
+                            }
+                        }
+                        // images of the sample have been indexed already.
+                        if (sampleIndices == null || !sampleIndices.contains(index))
+                            fileQueue.put(new WorkItem(path, (byte[]) null));
+                    }
+                });
+            } catch (IOException | InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Reads the files into buffers from the pool.
+     */
+    class FileLoader implements Runnable {
+        public void run() {
+            WorkItem tmp;
+            try {
+                while ((tmp = fileQueue.take()).getFileName() != null) {
+                    String path = tmp.getFileName();
+                    try (FileInputStream fis = new FileInputStream(path)) {
+                        FileChannel channel = fis.getChannel();
+                        int fileSize = (int) channel.size();
+                        byte[] buffer = bufferPool.acquire(fileSize);
+                        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, fileSize);
+                        int read;
+                        do {
+                            read = channel.read(byteBuffer);
+                        } while (read >= 0 && byteBuffer.hasRemaining());
+                        if (journal != null && journal.isUseContentHash()
+                                && journal.isUnchanged(path, IndexingJournal.getContentHash(buffer, byteBuffer.position()))) {
+                            bufferPool.release(buffer);
+                            skippedCount.incrementAndGet();
+                            continue;
+                        }
+                        readQueue.put(new WorkItem(path, buffer, byteBuffer.position()));
+                    } catch (IOException e) {
+                        System.err.println("Could not open " + path + ". " + e.getMessage());
+                    }
+                }
+            } catch (InterruptedException e) {
+                log.severe(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Decodes and pre-processes the images and hands the buffers back to the pool.
+     */
+    class ImageDecoder implements Runnable {
+        public void run() {
+            WorkItem tmp;
+            BufferedImage image;
+            try {
+                while ((tmp = readQueue.take()).getFileName() != null) {
+                    image = null;
+                    try {
+                        image = decode(tmp);
+                        if (image == null) throw new IOException("No image reader found");
+                        if (imagePreprocessor != null) {
+                            image = imagePreprocessor.process(image);
+                        }
+                    } catch (Exception e) {
+                        log.severe("Could not decode " + tmp.getFileName() + ". " + e.getMessage());
+                        image = null;
+                    } finally {
+                        bufferPool.release(tmp.getBuffer());
+                    }
+                    if (image != null) imageQueue.put(new WorkItem(tmp.getFileName(), image));
+                }
+            } catch (InterruptedException e) {
+                log.severe(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Last stage of the indexing pipeline, adds the documents to the index.
+     */
+    class DocumentWriter implements Runnable {
+        public void run() {
+            Document doc;
+            try {
+                while ((doc = documentQueue.take()) != END_OF_DOCUMENTS) {
+                    try {
+                        if (journal != null) {
+                            // the image might be in the index already, because it has changed or because the last
+                            // run was interrupted after a commit, but before its checkpoint.
+                            String path = doc.get(DocumentBuilder.FIELD_NAME_IDENTIFIER);
+                            writer.updateDocument(new Term(DocumentBuilder.FIELD_NAME_IDENTIFIER, path), doc);
+                            journal.indexed(path);
+                            if (journal.getNumberOfPending() >= checkpointInterval) journal.checkpoint(writer);
+                        } else {
+                            writer.addDocument(doc);
+                        }
+                    } catch (IOException e) {
+                        log.severe(e.getMessage() + ": " + doc.get(DocumentBuilder.FIELD_NAME_IDENTIFIER));
+                    }
+                }
+            } catch (InterruptedException e) {
+                log.severe(e.getMessage());
             }
         }
     }
@@ -1297,7 +1754,7 @@ public class ParallelIndexer implements Runnable {
                 try {
                     // print the current status:
                     end = System.currentTimeMillis() - start;
-                    System.out.printf("Analyzed %d images in %s ~ %3.2f ms each. (queue size is %d)\n", overallCount, convertTime(end), ((overallCount > 0) ? ((float) end / (float) overallCount) : -1f), queue.size());
+                    System.out.printf("Analyzed %d images in %s ~ %3.2f ms each. (%s)\n", overallCount, convertTime(end), ((overallCount > 0) ? ((float) end / (float) overallCount) : -1f), getQueueStatus());
                     Thread.sleep(gap); // wait xx seconds
                 } catch (InterruptedException e) {
                     e.printStackTrace();
@@ -1310,32 +1767,26 @@ public class ParallelIndexer implements Runnable {
         }
     }
 
-    private LinkedList<String> selectVocabularyDocs(int maxDocs, int capacity) {
-        // need to make sure that this is not running forever ......
-        LinkedList<String> tmpImages = new LinkedList<String>();
-        Document doc;
-        String tmpStr;
-        if (numOfDocsForCodebooks >= maxDocs) {
-            for (int i = 0; i < maxDocs; i++) {
-                tmpStr = allImages.get(i);
-                doc = new Document();
-                doc.add(new StringField(DocumentBuilder.FIELD_NAME_IDENTIFIER, tmpStr, Field.Store.YES));
-                allDocuments.put(tmpStr, doc);
-                tmpImages.add(tmpStr);
-            }
-            allImages.clear();
-        } else {
-            int tmpIndex;
-            for (int i = 0; i < capacity; i++) {
-                tmpIndex = (int) Math.floor(Math.random() * (double) allImages.size());
-                tmpStr = allImages.get(tmpIndex);
-                doc = new Document();
-                doc.add(new StringField(DocumentBuilder.FIELD_NAME_IDENTIFIER, tmpStr, Field.Store.YES));
-                allDocuments.put(tmpStr, doc);
-                tmpImages.add(tmpStr);
-                allImages.remove(tmpIndex);
+    /**
+     * Draws a random sample of the images and creates their documents, if there is a map for them. The sample is
+     * skipped in {@link #index()}.
+     */
+    private LinkedList<String> selectVocabularyDocs(int capacity) throws IOException, InterruptedException {
+        final LinkedList<String> tmpImages = new LinkedList<String>();
+        sampleIndices = StatsUtils.drawSample(capacity, numImages);
+        forEachImage(new ImageVisitor() {
+            @Override
+            public void visit(int index, String path) {
+                if (sampleIndices.contains(index)) {
+                    if (allDocuments != null) {
+                        Document doc = new Document();
+                        doc.add(new StringField(DocumentBuilder.FIELD_NAME_IDENTIFIER, path, Field.Store.YES));
+                        allDocuments.put(path, doc);
+                    }
+                    tmpImages.add(path);
+                }
             }
-        }
+        });
         return tmpImages;
     }
 
@@ -1351,6 +1802,14 @@ public class ParallelIndexer implements Runnable {
                 k.addFeature(aTempList.getFeatureVector());
             }
         }
+        return codebookGenerator(k, numClusters, false);
+    }
+
+    /**
+     * Clusters the features added to the k-means until the stress does not change a lot anymore. Package private
+     * for testing.
+     */
+    Cluster[] codebookGenerator(KMeans k, int numClusters, boolean kmeansPlusPlus) {
         if (pm != null) { // set to 5 of 100 before clustering starts.
             pm.setProgress(5);
             pm.setNote("Starting clustering");
@@ -1362,7 +1821,7 @@ public class ParallelIndexer implements Runnable {
         // do the clustering:
         System.out.println("Number of local features: " + df.format(k.getFeatureCount()));
         System.out.println("Starting clustering ...");
-        k.init();
+        k.init(kmeansPlusPlus);
         System.out.println("Step.");
         long start = System.currentTimeMillis();
         double lastStress = k.clusteringStep();
@@ -1382,7 +1841,9 @@ public class ParallelIndexer implements Runnable {
         }
 
         // critical part: Give the difference in between steps as a constraint for accuracy vs. runtime trade off.
-        double threshold = Math.max(20d, (double) k.getFeatureCount() / 1000d);
+        // mini-batch k-means only clusters its reservoir, the stress does not grow with the length of the stream.
+        int clusteredFeatures = (k instanceof MiniBatchKMeans) ? ((MiniBatchKMeans) k).getReservoirCount() : k.getFeatureCount();
+        double threshold = Math.max(20d, (double) clusteredFeatures / 1000d);
         System.out.println("Threshold = " + df.format(threshold));
         int cStep = 3;
 
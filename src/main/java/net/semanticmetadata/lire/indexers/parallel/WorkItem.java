@@ -43,6 +43,7 @@ package net.semanticmetadata.lire.indexers.parallel;
 
 import net.semanticmetadata.lire.imageanalysis.features.LocalFeature;
 
+import java.awt.image.BufferedImage;
 import java.util.List;
 
 /**
@@ -55,8 +56,10 @@ import java.util.List;
 
 public class WorkItem {
     private byte[] buffer;
+    private int length;
     private String fileName;
     private List<? extends LocalFeature> listOfFeatures;
+    private BufferedImage image;
 
     /**
      * Creates a new WorkItem based on the actual byte[] data of the image, not decoded
@@ -66,6 +69,29 @@ public class WorkItem {
     public WorkItem(String path, byte[] buffer) {
         this.fileName = path;
         this.buffer = buffer;
+        this.length = (buffer != null) ? buffer.length : 0;
+    }
+
+    /**
+     * Creates a new WorkItem based on a buffer that might be larger than the actual data, eg. a recycled one.
+     * @param path the location of the image / stream.
+     * @param buffer the buffer containing the image data, starting at 0.
+     * @param length the number of bytes of image data in the buffer.
+     */
+    public WorkItem(String path, byte[] buffer, int length) {
+        this.fileName = path;
+        this.buffer = buffer;
+        this.length = length;
+    }
+
+    /**
+     * Creates a new WorkItem based on the decoded image.
+     * @param path the location of the image / stream.
+     * @param image the decoded image.
+     */
+    public WorkItem(String path, BufferedImage image) {
+        this.fileName = path;
+        this.image = image;
     }
 
     public WorkItem(String path, List<? extends LocalFeature> listOfFeatures) {
@@ -87,6 +113,18 @@ public class WorkItem {
 
     public void setBuffer(byte[] buffer) {
         this.buffer = buffer;
+        this.length = (buffer != null) ? buffer.length : 0;
+    }
+
+    /**
+     * @return the number of bytes of image data in the buffer, which might be smaller than the buffer.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    public BufferedImage getImage() {
+        return image;
     }
 
     public String getFileName() {
@@ -0,0 +1,213 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.indexers.tools.binary;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the data files written by the {@link Extractor} record by record. The file is memory mapped in windows,
+ * by default of {@link #WINDOW_SIZE} bytes, so files larger than 2 GB can be read too, and each record is copied in one go
+ * to a buffer that is reused for the next record. File name and features are then just offsets into this buffer.
+ * <p/>
+ * Use one instance per thread.
+ *
+ * @author Mathias Lux, mathias@juggle.at
+ */
+public class DataFileReader implements Closeable {
+    /**
+     * Maximum number of bytes mapped at once.
+     */
+    public static final int WINDOW_SIZE = 1 << 30;
+    private static final int MAX_FEATURES = 256;
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final long size;
+    private final int windowSize;
+    private MappedByteBuffer window = null;
+    private long windowStart = 0, position = 0;
+
+    // the current record and the positions of its parts.
+    private byte[] record = new byte[100 * 1024];
+    private int fileNameLength, numFeatures;
+    private int[] featureIndexes = new int[MAX_FEATURES], featureOffsets = new int[MAX_FEATURES], featureLengths = new int[MAX_FEATURES];
+
+    public DataFileReader(File file) throws IOException {
+        this(file, WINDOW_SIZE);
+    }
+
+    /**
+     * @param file       the data file.
+     * @param windowSize the number of bytes mapped at once, it grows if a record does not fit.
+     */
+    public DataFileReader(File file, int windowSize) throws IOException {
+        this.file = file;
+        this.windowSize = windowSize;
+        randomAccessFile = new RandomAccessFile(file, "r");
+        channel = randomAccessFile.getChannel();
+        size = channel.size();
+    }
+
+    /**
+     * Moves on to the next record.
+     *
+     * @return false if the end of the file has been reached.
+     * @throws IOException if the file is truncated or not a data file.
+     */
+    public boolean next() throws IOException {
+        if (position + 4 > size) return false;
+        // the record's length is only known after parsing it, so the window should hold a record as large as the
+        // largest one so far, if it does not, a larger window is mapped while parsing.
+        if (window == null || position + Math.min(record.length, windowSize) > windowStart + window.capacity() && windowStart + window.capacity() < size)
+            map(position, 0);
+        int offset = (int) (position - windowStart);
+        int available = (int) Math.min(window.capacity() - offset, size - position);
+        // file name: length and bytes.
+        fileNameLength = window.getInt(offset);
+        if (fileNameLength < 0) throw new IOException("Corrupt record in " + file.getPath() + " at byte " + position);
+        int length = 4 + fileNameLength;
+        numFeatures = 0;
+        // features: index, length and bytes, until the separator.
+        while (true) {
+            if (length >= available) {
+                if (grow(position, length + 1)) return next();
+                throw new IOException("Unexpected end of record in " + file.getPath() + " at byte " + position);
+            }
+            byte featureIndex = window.get(offset + length);
+            length++;
+            if (featureIndex == -1) break;
+            if (length + 4 > available) {
+                if (grow(position, length + 4)) return next();
+                throw new IOException("Unexpected end of record in " + file.getPath() + " at byte " + position);
+            }
+            int featureLength = window.getInt(offset + length);
+            length += 4;
+            if (numFeatures == featureIndexes.length || featureLength < 0)
+                throw new IOException("Corrupt record in " + file.getPath() + " at byte " + position);
+            featureIndexes[numFeatures] = featureIndex & 0xff;
+            featureOffsets[numFeatures] = length;
+            featureLengths[numFeatures] = featureLength;
+            numFeatures++;
+            length += featureLength;
+        }
+        if (length > record.length) record = new byte[Math.max(length, record.length * 2)];
+        // the one and only copy of the record.
+        window.position(offset);
+        window.get(record, 0, length);
+        position += length;
+        return true;
+    }
+
+    /**
+     * Maps a bigger window at the start of a record that did not fit into the current one.
+     *
+     * @return true if there is more data to map.
+     */
+    private boolean grow(long start, int needed) throws IOException {
+        if (start + needed > size) return false;
+        if (needed > record.length) record = new byte[Math.max(needed, record.length * 2)];
+        map(start, windowStart == start ? (int) Math.max(needed, Math.min(Integer.MAX_VALUE, 2L * window.capacity())) : needed);
+        return true;
+    }
+
+    private void map(long start, int minLength) throws IOException {
+        windowStart = start;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(Math.max(windowSize, minLength), size - start));
+    }
+
+    /**
+     * @return the file name of the current record, as written by the extractor.
+     */
+    public String getFileName() {
+        return new String(record, 4, fileNameLength);
+    }
+
+    public int getNumberOfFeatures() {
+        return numFeatures;
+    }
+
+    /**
+     * @param i the position of the feature in the record.
+     * @return the index of the feature class in {@link Extractor#features}.
+     */
+    public int getFeatureIndex(int i) {
+        return featureIndexes[i];
+    }
+
+    /**
+     * @return the buffer holding the current record, it's overwritten by {@link #next()}.
+     */
+    public byte[] getRecord() {
+        return record;
+    }
+
+    public int getFeatureOffset(int i) {
+        return featureOffsets[i];
+    }
+
+    public int getFeatureLength(int i) {
+        return featureLengths[i];
+    }
+
+    /**
+     * Sets the data of a feature of the current record to a feature instance.
+     *
+     * @param i       the position of the feature in the record.
+     * @param feature an instance of the class given by {@link #getFeatureIndex(int)}.
+     */
+    public void getFeature(int i, GlobalFeature feature) {
+        feature.setByteArrayRepresentation(record, featureOffsets[i], featureLengths[i]);
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+        randomAccessFile.close();
+    }
+}
@@ -99,6 +99,11 @@ public class HashingIndexor extends Indexor {
             } else if (arg.startsWith("-s")) {
                 // silent ...
                 verbose = false;
+            } else if (arg.startsWith("-n")) {
+                // number of threads
+                if ((i + 1) < args.length)
+                    indexor.setNumberOfThreads(Integer.parseInt(args[i + 1]));
+                else printHelp();
             } else if (arg.startsWith("-c")) {
                 // list of input files within a file.
                 if ((i + 1) < args.length) {
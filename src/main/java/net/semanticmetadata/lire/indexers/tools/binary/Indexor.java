@@ -54,11 +54,17 @@ import org.apache.lucene.index.IndexWriter;
 import java.io.*;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The Indexor (yes, I know the hashFunctionsFileName sounds weird, but it should match the Extractor class, and not
  * the Lucene Indexing classes) reads data files created by the {@link Extractor}. They are added to
  * a given index. Note that the index is not overwritten, but the documents are appended.
+ * <p/>
+ * The input files are read with a {@link DataFileReader} by a number of threads, one file per thread at a time, and
+ * all of them add their documents to the same IndexWriter. So the order of the documents in the index is not the
+ * order of the input files.
  *
  * @author Mathias Lux, mathias@juggle.at
  *         Date: 08.03.13
@@ -69,7 +75,8 @@ public class Indexor {
     protected String indexPath = null;
     //    private boolean overwriteIndex = true;
     protected static boolean verbose = true;
-    protected int count;
+    protected AtomicInteger count = new AtomicInteger(0);
+    protected int numberOfThreads = DocumentBuilder.NUM_OF_THREADS;
 
     public static void main(String[] args) throws IOException, IllegalAccessException, InstantiationException {
         Indexor indexor = new Indexor();
@@ -91,6 +98,11 @@ public class Indexor {
             } else if (arg.startsWith("-s")) {
                 // silent ...
                 verbose = false;
+            } else if (arg.startsWith("-n")) {
+                // number of threads
+                if ((i + 1) < args.length)
+                    indexor.setNumberOfThreads(Integer.parseInt(args[i + 1]));
+                else printHelp();
             } else if (arg.startsWith("-c")) {
                 // list of input files within a file.
                 if ((i + 1) < args.length) {
@@ -143,35 +155,49 @@ public class Indexor {
                 "\n" +
                 "or \n" +
                 "\n" +
-                "$> Indexor -c <file-list> -l <index-directory>\n" +
+                "$> Indexor -c <file-list> -l <index-directory> [-n <threads>]\n" +
                 "\n" +
                 "with \n" +
                 "\n" +
                 "<input-file> ... \t\ta single output file of Extractor.\n" +
                 "<index-directory> ...\tthe index to write the data to (it's appended).\n" +
-                "<file-list> ...\t\t\ta file containing data files one per line.\n");
+                "<file-list> ...\t\t\ta file containing data files one per line.\n" +
+                "<threads> ...\t\t\tnumber of files read in parallel, default is " + DocumentBuilder.NUM_OF_THREADS + ".\n");
     }
 
 
     public void run() {
         // do it ...
         try {
-            IndexWriter indexWriter = LuceneUtils.createIndexWriter(indexPath, false, LuceneUtils.AnalyzerType.WhitespaceAnalyzer);
-//            IndexWriterConfig config = new IndexWriterConfig(LuceneUtils.LUCENE_VERSION, new WhitespaceAnalyzer(LuceneUtils.LUCENE_VERSION));
-//            config.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
-//            config.setCodec(new LireCustomCodec());
-//            IndexWriter indexWriter = new IndexWriter(FSDirectory.open(new File(indexPath)), config);
-            for (Iterator<File> iterator = inputFiles.iterator(); iterator.hasNext(); ) {
-                File inputFile = iterator.next();
-                if (verbose) System.out.println("Processing " + inputFile.getPath() + ".");
-                readFile(indexWriter, inputFile);
-                if (verbose) System.out.println("Indexing finished.");
+            final IndexWriter indexWriter = LuceneUtils.createIndexWriter(indexPath, false, LuceneUtils.AnalyzerType.WhitespaceAnalyzer);
+            final ConcurrentLinkedQueue<File> files = new ConcurrentLinkedQueue<File>(inputFiles);
+            count.set(0);
+            Thread[] threads = new Thread[Math.max(1, Math.min(numberOfThreads, inputFiles.size()))];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        File inputFile;
+                        while ((inputFile = files.poll()) != null) {
+                            if (verbose) System.out.println("Processing " + inputFile.getPath() + ".");
+                            try {
+                                readFile(indexWriter, inputFile);
+                            } catch (Exception e) {
+                                System.err.println("Error reading " + inputFile.getPath() + ": " + e.getMessage());
+                                e.printStackTrace();
+                            }
+                        }
+                    }
+                }, "Indexor-" + i);
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
             }
+            if (verbose) System.out.println(" " + count.get() + "\nIndexing finished.");
             LuceneUtils.commitWriter(indexWriter);
 //            LuceneUtils.optimizeWriter(indexWriter);
             LuceneUtils.closeWriter(indexWriter);
-//            indexWriter.commit();
-//            indexWriter.close();
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -188,52 +214,32 @@ public class Indexor {
      * @throws ClassNotFoundException
      */
     private void readFile(IndexWriter indexWriter, File inputFile) throws IOException, InstantiationException, IllegalAccessException, ClassNotFoundException {
-        InputStream in = new FileInputStream(inputFile);
-        byte[] tempInt = new byte[4];
-        int tmp, tmpFeature;
-        count = 0;
-        byte[] temp = new byte[100 * 1024];
-        // read file hashFunctionsFileName length:
-        while ((tmp = in.read(tempInt, 0, 4)) > 0) {
-            Document d = new Document();
-            tmp = SerializationUtils.toInt(tempInt);
-            // read file hashFunctionsFileName:
-            in.read(temp, 0, tmp);
-            String filename = new String(temp, 0, tmp);
-            // normalize Filename to full path.
-//            filename = inputFile.getCanonicalPath().substring(0, inputFile.getCanonicalPath().lastIndexOf(inputFile.getName())) + filename;
-            d.add(new StringField(DocumentBuilder.FIELD_NAME_IDENTIFIER, filename, Field.Store.YES));
-//            System.out.print(filename);
-            while (in.read(tempInt, 0, 1) > 0) {
-                if (tempInt[0] == -1) break;
-                tmpFeature = tempInt[0];
-//                System.out.println("tmpFeature=" + tmpFeature);
-                GlobalFeature f = (GlobalFeature) Class.forName(Extractor.features[tmpFeature]).newInstance();
-                // byte[] length ...
-                in.read(tempInt, 0, 4);
-                tmp = SerializationUtils.toInt(tempInt);
-                // read feature byte[]
-//                System.out.println(tmp);
-                in.read(temp, 0, tmp);
-                f.setByteArrayRepresentation(temp, 0, tmp);
-                addToDocument(f, d, Extractor.featureFieldNames[tmpFeature]);
-//                d.add(new StoredField(Extractor.featureFieldNames[tmpFeature], f.getByteArrayRepresentation()));
-            }
-//            System.out.println(tmpFeature);
-            indexWriter.addDocument(d);
-            count++;
-//            if (count >= 20000) break;
-            if (verbose) {
-                if (count % 100 == 0) System.out.print('.');
-                if (count % 1000 == 0) System.out.println(" " + count);
+        DataFileReader in = new DataFileReader(inputFile);
+        try {
+            while (in.next()) {
+                Document d = new Document();
+                d.add(new StringField(DocumentBuilder.FIELD_NAME_IDENTIFIER, in.getFileName(), Field.Store.YES));
+                for (int i = 0; i < in.getNumberOfFeatures(); i++) {
+                    int featureIndex = in.getFeatureIndex(i);
+                    GlobalFeature f = (GlobalFeature) Class.forName(Extractor.features[featureIndex]).newInstance();
+                    in.getFeature(i, f);
+                    addToDocument(f, d, Extractor.featureFieldNames[featureIndex]);
+                }
+                indexWriter.addDocument(d);
+                int current = count.incrementAndGet();
+                if (verbose) {
+                    if (current % 100 == 0) System.out.print('.');
+                    if (current % 1000 == 0) System.out.println(" " + current);
+                }
             }
+        } finally {
+            in.close();
         }
-        if (verbose) System.out.println(" " + count);
-        in.close();
     }
 
     /**
-     * Overwrite this method if you want to filter the input, apply hashing, etc.
+     * Overwrite this method if you want to filter the input, apply hashing, etc. Note that it's called by multiple
+     * threads at the same time.
      *
      * @param feature          the current feature.
      * @param document         the current document.
@@ -250,4 +256,11 @@ public class Indexor {
     public void setIndexPath(String indexPath) {
         this.indexPath = indexPath;
     }
+
+    /**
+     * @param numberOfThreads the number of input files read at the same time.
+     */
+    public void setNumberOfThreads(int numberOfThreads) {
+        this.numberOfThreads = numberOfThreads;
+    }
 }
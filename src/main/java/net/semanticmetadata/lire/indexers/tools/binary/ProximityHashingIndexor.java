@@ -44,14 +44,15 @@ package net.semanticmetadata.lire.indexers.tools.binary;
 import net.semanticmetadata.lire.builders.DocumentBuilder;
 import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
 import net.semanticmetadata.lire.imageanalysis.features.global.CEDD;
-import net.semanticmetadata.lire.searchers.SimpleResult;
+import net.semanticmetadata.lire.indexers.hashing.MetricSpaces;
+import net.semanticmetadata.lire.indexers.hashing.ReferencePointIndex;
 import net.semanticmetadata.lire.utils.LuceneUtils;
-import net.semanticmetadata.lire.utils.SerializationUtils;
 import org.apache.lucene.document.*;
 import org.apache.lucene.index.IndexWriter;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * The Indexor (yes, I know the hashFunctionsFileName sounds weird, but it should match the Extractor class, and not
@@ -61,6 +62,10 @@ import java.util.*;
  * This one implements the proximity approach "metric spaces" based on the work of Giuseppe Amato.
  * See Gennaro, Claudio, et al. "An approach to content-based image retrieval based on the Lucene search engine
  * library." Research and Advanced Technology for Digital Libraries. Springer Berlin Heidelberg, 2010. 55-66.
+ * <p/>
+ * Each input file gets its own representatives and is read three times: for counting, for getting the
+ * representatives and for indexing. Multiple input files are processed in parallel, one per thread, and all of
+ * them are added to the same index.
  *
  * @author Mathias Lux, mathias@juggle.at
  *         Date: 08.03.13
@@ -71,18 +76,11 @@ public class ProximityHashingIndexor {
     protected String indexPath = null;
     private boolean overwriteIndex = true;
     protected static boolean verbose = true;
-    int run = 0;
-    int docCount = 0;
-    HashSet<Integer> representativesID;
-    ArrayList<GlobalFeature> representatives;
+    protected int numberOfThreads = DocumentBuilder.NUM_OF_THREADS;
 
     // determines which feature is going to be hashed.
     protected Class featureClass = CEDD.class;
-    private TreeSet<SimpleResult> hashingResultScoreDocs =  new TreeSet<SimpleResult>();
-    private double maxDistance;
-    private double tmpScore;
     int maximumHits = 50; // decides when the list of representatives / stars is cut off. 50 is good enough for large data sets.
-    private int[] result = new int[maximumHits];
 
     public static void main(String[] args) throws IOException, IllegalAccessException, InstantiationException {
         ProximityHashingIndexor indexor = new ProximityHashingIndexor();
@@ -104,6 +102,11 @@ public class ProximityHashingIndexor {
             } else if (arg.startsWith("-s")) {
                 // silent ...
                 verbose = false;
+            } else if (arg.startsWith("-n")) {
+                // number of threads
+                if ((i + 1) < args.length)
+                    indexor.setNumberOfThreads(Integer.parseInt(args[i + 1]));
+                else printHelp();
             } else if (arg.startsWith("-c")) {
                 // list of input files within a file.
                 if ((i + 1) < args.length) {
@@ -156,13 +159,14 @@ public class ProximityHashingIndexor {
                 "\n" +
                 "or \n" +
                 "\n" +
-                "$> Indexor -c <file-list> -l <index-directory>\n" +
+                "$> Indexor -c <file-list> -l <index-directory> [-n <threads>]\n" +
                 "\n" +
                 "with \n" +
                 "\n" +
                 "<input-file> ... \t\ta single output file of Extractor.\n" +
                 "<index-directory> ...\tthe index to write the data to (it's appended).\n" +
-                "<file-list> ...\t\t\ta file containing data files one per line.\n");
+                "<file-list> ...\t\t\ta file containing data files one per line.\n" +
+                "<threads> ...\t\t\tnumber of files read in parallel, default is " + DocumentBuilder.NUM_OF_THREADS + ".\n");
     }
 
 
@@ -170,36 +174,35 @@ public class ProximityHashingIndexor {
         this.featureClass = featureClass;
     }
 
+    public void setNumberOfThreads(int numberOfThreads) {
+        this.numberOfThreads = numberOfThreads;
+    }
+
     public void run() {
         // do it ...
         try {
-            IndexWriter indexWriter = LuceneUtils.createIndexWriter(indexPath, overwriteIndex, LuceneUtils.AnalyzerType.WhitespaceAnalyzer);
-            for (Iterator<File> iterator = inputFiles.iterator(); iterator.hasNext(); ) {
-                File inputFile = iterator.next();
-                if (verbose) System.out.println("Processing " + inputFile.getPath() + ".");
-                if (verbose) System.out.println("Counting images.");
-                run = 0;
-                readFile(indexWriter, inputFile);
-                if (verbose) System.out.printf("%d images found in the data file.\n", docCount);
-                int numberOfRepresentatives = 1000;  // TODO: clever selection.
-                // select a number of representative "fixed stars" randomly from file
-                if (numberOfRepresentatives > Math.sqrt(docCount)) numberOfRepresentatives = (int) Math.sqrt(docCount);
-                if (verbose)
-                    System.out.printf("Selecting %d representative images for hashing.\n", numberOfRepresentatives);
-                representativesID = new HashSet<Integer>(numberOfRepresentatives);
-                while (representativesID.size() < numberOfRepresentatives) {
-                    representativesID.add((int) Math.floor(Math.random() * (docCount - 1)));
-                }
-                representatives = new ArrayList<GlobalFeature>(numberOfRepresentatives);
-                docCount = 0;
-                run = 1;
-                if (verbose) System.out.println("Now getting representatives from the data file.");
-                readFile(indexWriter, inputFile);
-                docCount = 0;
-                run = 2;
-                if (verbose) System.out.println("Finally we start the indexing process, please wait ...");
-                readFile(indexWriter, inputFile);
-                if (verbose) System.out.println("Indexing finished.");
+            final IndexWriter indexWriter = LuceneUtils.createIndexWriter(indexPath, overwriteIndex, LuceneUtils.AnalyzerType.WhitespaceAnalyzer);
+            final ConcurrentLinkedQueue<File> files = new ConcurrentLinkedQueue<File>(inputFiles);
+            Thread[] threads = new Thread[Math.max(1, Math.min(numberOfThreads, inputFiles.size()))];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        File inputFile;
+                        while ((inputFile = files.poll()) != null) {
+                            try {
+                                indexFile(indexWriter, inputFile);
+                            } catch (Exception e) {
+                                System.err.println("Error reading " + inputFile.getPath() + ": " + e.getMessage());
+                                e.printStackTrace();
+                            }
+                        }
+                    }
+                }, "ProximityHashingIndexor-" + i);
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
             }
             LuceneUtils.commitWriter(indexWriter);
 //            LuceneUtils.optimizeWriter(indexWriter);
@@ -212,74 +215,85 @@ public class ProximityHashingIndexor {
     }
 
     /**
-     * Reads data from a file and writes it to an index.
+     * Selects the representatives from an input file and adds its documents with the hashes to the index.
      *
      * @param indexWriter the index to write to.
      * @param inputFile   the input data for the process.
-     * @throws IOException
-     * @throws InstantiationException
-     * @throws IllegalAccessException
-     * @throws ClassNotFoundException
      */
-    private void readFile(IndexWriter indexWriter, File inputFile) throws IOException, InstantiationException, IllegalAccessException, ClassNotFoundException {
-        BufferedInputStream in = new BufferedInputStream(new FileInputStream(inputFile));
-        byte[] tempInt = new byte[4];
-        int tmp, tmpFeature, count = 0;
-        byte[] temp = new byte[100 * 1024];
-        // read file hashFunctionsFileName length:
-        while (in.read(tempInt, 0, 4) > 0) {
-            Document d = new Document();
-            tmp = SerializationUtils.toInt(tempInt);
-            // read file hashFunctionsFileName:
-            in.read(temp, 0, tmp);
-            String filename = new String(temp, 0, tmp);
-            // normalize Filename to full path.
-            filename = inputFile.getCanonicalPath().substring(0, inputFile.getCanonicalPath().lastIndexOf(inputFile.getName())) + filename;
-            d.add(new StringField(DocumentBuilder.FIELD_NAME_IDENTIFIER, filename, Field.Store.YES));
-//            System.out.print(filename);
-            while ((tmpFeature = in.read()) < 255) {
-//                System.out.print(", " + tmpFeature);
-                GlobalFeature f = (GlobalFeature) Class.forName(Extractor.features[tmpFeature]).newInstance();
-                // byte[] length ...
-                in.read(tempInt, 0, 4);
-                tmp = SerializationUtils.toInt(tempInt);
-                // read feature byte[]
-                in.read(temp, 0, tmp);
-                f.setByteArrayRepresentation(temp, 0, tmp);
-                addToDocument(f, d, Extractor.featureFieldNames[tmpFeature]);
-//                d.add(new StoredField(Extractor.featureFieldNames[tmpFeature], f.getByteArrayRepresentation()));
+    private void indexFile(IndexWriter indexWriter, File inputFile) throws IOException, InstantiationException, IllegalAccessException, ClassNotFoundException {
+        if (verbose) System.out.println("Processing " + inputFile.getPath() + ".");
+        int docCount = 0;
+        DataFileReader in = new DataFileReader(inputFile);
+        try {
+            while (in.next()) docCount++;
+        } finally {
+            in.close();
+        }
+        if (verbose) System.out.printf("%d images found in the data file %s.\n", docCount, inputFile.getPath());
+        int numberOfRepresentatives = 1000;  // TODO: clever selection.
+        // select a number of representative "fixed stars" randomly from file
+        if (numberOfRepresentatives > Math.sqrt(docCount)) numberOfRepresentatives = (int) Math.sqrt(docCount);
+        if (verbose)
+            System.out.printf("Selecting %d representative images for hashing.\n", numberOfRepresentatives);
+        HashSet<Integer> representativesID = new HashSet<Integer>(numberOfRepresentatives);
+        while (representativesID.size() < numberOfRepresentatives) {
+            representativesID.add((int) Math.floor(Math.random() * (docCount - 1)));
+        }
+        ArrayList<GlobalFeature> representatives = new ArrayList<GlobalFeature>(numberOfRepresentatives);
+        in = new DataFileReader(inputFile);
+        try {
+            for (int doc = 0; in.next(); doc++) {
+                if (!representativesID.contains(doc)) continue;
+                for (int i = 0; i < in.getNumberOfFeatures(); i++) {
+                    if (Extractor.features[in.getFeatureIndex(i)].equals(featureClass.getName())) { // it's a representative.
+                        GlobalFeature f = (GlobalFeature) featureClass.newInstance();
+                        in.getFeature(i, f);
+                        representatives.add(f);
+                    }
+                }
             }
-            if (run == 2) indexWriter.addDocument(d);
-            docCount++;
-//            if (count%1000==0) System.out.print('.');
-//            if (count%10000==0) System.out.println(" " + count);
+        } finally {
+            in.close();
         }
-        in.close();
+        if (verbose) System.out.println("Finally we start the indexing process, please wait ...");
+        ReferencePointIndex index = new ReferencePointIndex(representatives, MetricSpaces.getNumberOfPivots());
+        String path = inputFile.getCanonicalPath().substring(0, inputFile.getCanonicalPath().lastIndexOf(inputFile.getName()));
+        in = new DataFileReader(inputFile);
+        try {
+            while (in.next()) {
+                Document d = new Document();
+                // normalize Filename to full path.
+                d.add(new StringField(DocumentBuilder.FIELD_NAME_IDENTIFIER, path + in.getFileName(), Field.Store.YES));
+                for (int i = 0; i < in.getNumberOfFeatures(); i++) {
+                    GlobalFeature f = (GlobalFeature) Class.forName(Extractor.features[in.getFeatureIndex(i)]).newInstance();
+                    in.getFeature(i, f);
+                    addToDocument(f, d, Extractor.featureFieldNames[in.getFeatureIndex(i)], index);
+                }
+                indexWriter.addDocument(d);
+            }
+        } finally {
+            in.close();
+        }
+        if (verbose) System.out.println("Indexing of " + inputFile.getPath() + " finished.");
     }
 
     /**
-     * Overwrite this method if you want to filter the input, apply hashing, etc.
+     * Overwrite this method if you want to filter the input, apply hashing, etc. Note that it's called by multiple
+     * threads at the same time.
      *
      * @param feature          the current feature.
      * @param document         the current document.
      * @param featureFieldName the field hashFunctionsFileName of the feature.
+     * @param representatives  the representatives of the input file the document is from.
      */
-    protected void addToDocument(GlobalFeature feature, Document document, String featureFieldName) {
-        if (run == 0) {
-        } // just count documents
-        else if (run == 1) { // Select the representatives ...
-            if (representativesID.contains(docCount) && feature.getClass().getCanonicalName().equals(featureClass.getCanonicalName())) { // it's a representative.
-                // put it into a temporary data structure ...
-                representatives.add(feature);
-            }
-        } else if (run == 2) { // actual hashing: find the nearest representatives and put those as a hash into a document.
-            if (feature.getClass().getCanonicalName().equals(featureClass.getCanonicalName())) { // it's a feature to be hashed
-                int[] hashes = getHashes(feature);
-                document.add(new TextField(featureFieldName + "_hash", createDocumentString(hashes, hashes.length), Field.Store.YES));
-                document.add(new TextField(featureFieldName + "_hash_q", createDocumentString(hashes, 10), Field.Store.YES));
-            }
-            document.add(new StoredField(featureFieldName, feature.getByteArrayRepresentation()));
+    protected void addToDocument(GlobalFeature feature, Document document, String featureFieldName, ReferencePointIndex representatives) {
+        // actual hashing: find the nearest representatives and put those as a hash into a document.
+        if (feature.getClass().getCanonicalName().equals(featureClass.getCanonicalName()) && representatives.size() > 0) { // it's a feature to be hashed
+            int[] hashes = representatives.getNearest(feature, maximumHits);
+            document.add(new TextField(featureFieldName + "_hash", createDocumentString(hashes, hashes.length), Field.Store.YES));
+            document.add(new TextField(featureFieldName + "_hash_q", createDocumentString(hashes, Math.min(10, hashes.length)), Field.Store.YES));
         }
+        document.add(new StoredField(featureFieldName, feature.getByteArrayRepresentation()));
     }
 
     /**
@@ -300,37 +314,6 @@ public class ProximityHashingIndexor {
         return sb.toString().trim();
     }
 
-    private int[] getHashes(GlobalFeature feature) {
-        //result = new int[maximumHits];
-        hashingResultScoreDocs.clear();
-        maxDistance = 0d;
-        tmpScore = 0d;
-        int rep = 0;
-        GlobalFeature tmpFeature;
-        for (Iterator<GlobalFeature> iterator = representatives.iterator(); iterator.hasNext(); ) {
-            tmpFeature = iterator.next();
-            tmpScore = tmpFeature.getDistance(feature);
-            if (hashingResultScoreDocs.size() < maximumHits) {
-                hashingResultScoreDocs.add(new SimpleResult(tmpScore, rep));
-                maxDistance = Math.max(maxDistance, tmpScore);
-            } else if (tmpScore < maxDistance) {
-                hashingResultScoreDocs.add(new SimpleResult(tmpScore, rep));
-            }
-            while (hashingResultScoreDocs.size() > maximumHits) {
-                hashingResultScoreDocs.remove(hashingResultScoreDocs.last());
-                maxDistance = hashingResultScoreDocs.last().getDistance();
-            }
-            rep++;
-        }
-        rep = 0;
-        for (Iterator<SimpleResult> iterator = hashingResultScoreDocs.iterator(); iterator.hasNext(); ) {
-            SimpleResult next = iterator.next();
-            result[rep] = next.getIndexNumber();
-            rep++;
-        }
-        return result;
-    }
-
     public void addInputFile(File inputFile) {
         this.inputFiles.add(inputFile);
     }
@@ -55,54 +55,61 @@ public abstract class AbstractDocumentWriter implements Runnable{
      */
     protected abstract void write(String fileName, ArrayList<GlobalFeature> listOfFeatures);
 
+    /**
+     * Called for each record of a binary feature container. The default implementation sets the data to the
+     * given features and calls {@link #write(String, ArrayList)}, override it to take the data without copying.
+     *
+     * @param record         the record read from the container.
+     * @param listOfFeatures instances of the features named in the header of the container.
+     */
+    protected void write(FeatureContainerReader.Record record, ArrayList<GlobalFeature> listOfFeatures) {
+        for (int i = 0; i < listOfFeatures.size(); i++) {
+            if (record.hasFeature(i)) record.getFeature(i, listOfFeatures.get(i));
+        }
+        write(record.getFileName(), listOfFeatures);
+    }
+
     @Override
     public void run() {
         StopWatch sw = new StopWatch();
         sw.start();
         double count = 0;
         try {
-            LineIterator lineIt = IOUtils.lineIterator(new FileReader(infile));
-            // read the first line to determine the fields.
-            String[] fields = lineIt.next().split(";");
-            ArrayList<GlobalFeature> listOfFeatures = new ArrayList<>(fields.length - 1);
-            for (int i = 1; i < fields.length; i++) {
-                String f = fields[i];
-                if (f.trim().length() > 2)
-                    listOfFeatures.add(((GlobalFeature) Class.forName(f).newInstance()));
-            }
-            String tmpOut = Arrays.toString(fields).replaceAll(", ", "\n");
-            System.out.println("Indexing fields " + tmpOut.substring(1, tmpOut.length()-1));
-            // init hashing ...
-            if (doHashingBitSampling) {
-                BitSampling.readHashFunctions();
-            }
-            else if (doMetricSpaceIndexing && loadMdsFilesAutomatically) {
-                // init metric spaces indexing by reading all files with ending .msd from the current directory.
-                Iterator<File> fileIterator = FileUtils.iterateFiles(new File("."), new String[]{"msd"}, false);
-                while (fileIterator.hasNext()) {
-                    File f = fileIterator.next();
-                    System.out.println("Loading reference points from file " + f.getPath());
-                    MetricSpaces.loadReferencePoints(new FileInputStream(f));
-                }
-            }
-            // reading the rest of the file ...
-            System.out.print("Working now ...\n");
-            startWriting();
-            while (lineIt.hasNext()) {
-                String[] d = lineIt.next().split(";");
-                String fileName = d[0];
-                for (int i = 1; i < d.length; i++) {
-                    String s = d[i];
-                    if (s.trim().length() > 2) // only if it's not empty.
-                        listOfFeatures.get(i-1).setByteArrayRepresentation(org.apache.commons.codec.binary.Base64.decodeBase64(s));
+            if (FeatureContainerReader.isFeatureContainer(infile)) {
+                FeatureContainerReader reader = new FeatureContainerReader(infile);
+                ArrayList<GlobalFeature> listOfFeatures = createFeatures(reader.getFeatureClassNames());
+                init();
+                FeatureContainerReader.RecordIterator records = reader.iterator(DocumentBuilder.NUM_OF_THREADS);
+                try {
+                    while (records.hasNext()) {
+                        write(records.next(), listOfFeatures);
+                        count++;
+                        if (count%1000==0) printProgress(count, sw);
+                    }
+                } finally {
+                    records.close();
+                    reader.close();
                 }
-                // write to index ...
-                write(fileName, listOfFeatures);
-                count++;
-                if (count%1000==0) {
-                    System.out.printf("Processed %d images took %s minutes, ~%.2f ms per image.\n", (int) count, StatsUtils.convertTime(sw.getTimeSinceStart()), (double) sw.getTimeSinceStart()/count);
+            } else {
+                LineIterator lineIt = IOUtils.lineIterator(new FileReader(infile));
+                // read the first line to determine the fields.
+                String[] fields = lineIt.next().split(";");
+                ArrayList<GlobalFeature> listOfFeatures = createFeatures(Arrays.copyOfRange(fields, 1, fields.length));
+                init();
+                while (lineIt.hasNext()) {
+                    String[] d = lineIt.next().split(";");
+                    String fileName = d[0];
+                    for (int i = 1; i < d.length; i++) {
+                        String s = d[i];
+                        if (s.trim().length() > 2) // only if it's not empty.
+                            listOfFeatures.get(i-1).setByteArrayRepresentation(org.apache.commons.codec.binary.Base64.decodeBase64(s));
+                    }
+                    // write to index ...
+                    write(fileName, listOfFeatures);
+                    count++;
+                    if (count%1000==0) printProgress(count, sw);
+                    // if (count > 10000) break; // for debugging, just index the first 10000
                 }
-                // if (count > 10000) break; // for debugging, just index the first 10000
             }
             finishWriting();
             sw.stop();
@@ -118,4 +125,40 @@ public abstract class AbstractDocumentWriter implements Runnable{
             e.printStackTrace();
         }
     }
+
+    private ArrayList<GlobalFeature> createFeatures(String[] classNames) throws ClassNotFoundException, IllegalAccessException, InstantiationException {
+        ArrayList<GlobalFeature> listOfFeatures = new ArrayList<>(classNames.length);
+        for (String f : classNames) {
+            if (f.trim().length() > 2)
+                listOfFeatures.add(((GlobalFeature) Class.forName(f).newInstance()));
+        }
+        String tmpOut = Arrays.toString(classNames).replaceAll(", ", "\n");
+        System.out.println("Indexing fields " + tmpOut.substring(1, tmpOut.length()-1));
+        return listOfFeatures;
+    }
+
+    /**
+     * Initializes hashing and starts writing.
+     */
+    private void init() throws IOException, ClassNotFoundException, IllegalAccessException, InstantiationException {
+        if (doHashingBitSampling) {
+            BitSampling.readHashFunctions();
+        }
+        else if (doMetricSpaceIndexing && loadMdsFilesAutomatically) {
+            // init metric spaces indexing by reading all files with ending .msd from the current directory.
+            Iterator<File> fileIterator = FileUtils.iterateFiles(new File("."), new String[]{"msd"}, false);
+            while (fileIterator.hasNext()) {
+                File f = fileIterator.next();
+                System.out.println("Loading reference points from file " + f.getPath());
+                MetricSpaces.loadReferencePoints(new FileInputStream(f));
+            }
+        }
+        // reading the rest of the file ...
+        System.out.print("Working now ...\n");
+        startWriting();
+    }
+
+    private void printProgress(double count, StopWatch sw) {
+        System.out.printf("Processed %d images took %s minutes, ~%.2f ms per image.\n", (int) count, StatsUtils.convertTime(sw.getTimeSinceStart()), (double) sw.getTimeSinceStart()/count);
+    }
 }
@@ -0,0 +1,294 @@
+package net.semanticmetadata.lire.indexers.tools.text;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import java.util.concurrent.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the binary feature containers written by {@link FeatureContainerWriter}. Blocks are read with positional
+ * reads, so {@link #readBlock(int)} can be called from many threads at once, and {@link #iterator(int)} decodes
+ * the blocks ahead of the consumer in parallel, while still returning the records in the order they were written.
+ *
+ * @author Mathias Lux, mathias@juggle.at
+ */
+public class FeatureContainerReader implements Closeable {
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final boolean compressed;
+    private final String[] featureClassNames;
+    private final long[] blockOffsets;
+    private final int[] blockRecords;
+    private final int numberOfRecords;
+
+    public FeatureContainerReader(File file) throws IOException {
+        this.file = file;
+        randomAccessFile = new RandomAccessFile(file, "r");
+        channel = randomAccessFile.getChannel();
+        long size = channel.size();
+        // header
+        if (size < 29 || randomAccessFile.readInt() != FeatureContainerWriter.MAGIC)
+            throw new IOException(file.getPath() + " is not a feature container.");
+        int version = randomAccessFile.readInt();
+        if (version != FeatureContainerWriter.VERSION)
+            throw new IOException("Unsupported version " + version + " of " + file.getPath());
+        compressed = randomAccessFile.readBoolean();
+        featureClassNames = new String[randomAccessFile.readInt()];
+        for (int i = 0; i < featureClassNames.length; i++) {
+            featureClassNames[i] = randomAccessFile.readUTF();
+        }
+        // trailer and block index
+        randomAccessFile.seek(size - 16);
+        int numberOfBlocks = randomAccessFile.readInt();
+        long indexOffset = randomAccessFile.readLong();
+        if (randomAccessFile.readInt() != FeatureContainerWriter.MAGIC || numberOfBlocks < 0
+                || indexOffset + 12L * numberOfBlocks + 16 != size)
+            throw new IOException(file.getPath() + " is truncated, the block index is missing.");
+        ByteBuffer index = ByteBuffer.allocate(12 * numberOfBlocks);
+        readFully(index, indexOffset);
+        blockOffsets = new long[numberOfBlocks];
+        blockRecords = new int[numberOfBlocks];
+        int records = 0;
+        for (int i = 0; i < numberOfBlocks; i++) {
+            blockOffsets[i] = index.getLong();
+            blockRecords[i] = index.getInt();
+            records += blockRecords[i];
+        }
+        numberOfRecords = records;
+    }
+
+    /**
+     * Checks the magic number at the start of a file.
+     *
+     * @param file the file to check.
+     * @return true if the file has been written by a {@link FeatureContainerWriter}.
+     */
+    public static boolean isFeatureContainer(File file) {
+        if (file.length() < 4) return false;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readInt() == FeatureContainerWriter.MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the class names of the features, in the order they are stored in each record.
+     */
+    public String[] getFeatureClassNames() {
+        return featureClassNames;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    public int getNumberOfBlocks() {
+        return blockOffsets.length;
+    }
+
+    public int getNumberOfRecords() {
+        return numberOfRecords;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) throw new EOFException("Unexpected end of " + file.getPath());
+            position += read;
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Reads and decodes a block. Thread safe.
+     *
+     * @param block the number of the block.
+     * @return the records of the block, in the order they were written.
+     * @throws IOException
+     */
+    public Record[] readBlock(int block) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(12);
+        readFully(header, blockOffsets[block]);
+        int records = header.getInt(), rawLength = header.getInt(), storedLength = header.getInt();
+        if (records != blockRecords[block] || rawLength < 0 || storedLength < 0)
+            throw new IOException("Corrupt block " + block + " in " + file.getPath());
+        ByteBuffer stored = ByteBuffer.allocate(storedLength);
+        readFully(stored, blockOffsets[block] + 12);
+        byte[] data = stored.array();
+        if (compressed) {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(data);
+                data = new byte[rawLength];
+                int length = 0;
+                while (length < rawLength && !inflater.finished()) {
+                    int inflated = inflater.inflate(data, length, rawLength - length);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                    length += inflated;
+                }
+                if (length != rawLength) throw new IOException("Corrupt block " + block + " in " + file.getPath());
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt block " + block + " in " + file.getPath(), e);
+            } finally {
+                inflater.end();
+            }
+        }
+        // parse the records, the feature data stays in the block's buffer.
+        Record[] result = new Record[records];
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        int position = 0;
+        for (int i = 0; i < records; i++) {
+            int nameLength = ((data[position] & 0xff) << 8) | (data[position + 1] & 0xff);
+            String fileName = in.readUTF();
+            position += 2 + nameLength;
+            Record record = new Record(fileName, data, featureClassNames.length);
+            for (int j = 0; j < featureClassNames.length; j++) {
+                int length = in.readInt();
+                position += 4;
+                if (length < 0 || position + length > data.length)
+                    throw new IOException("Corrupt block " + block + " in " + file.getPath());
+                record.offsets[j] = position;
+                record.lengths[j] = length;
+                position += length;
+                in.skipBytes(length);
+            }
+            result[i] = record;
+        }
+        return result;
+    }
+
+    /**
+     * Iterates all records in the order they were written, blocks are read and decoded ahead in parallel.
+     * Close the iterator if it is not read to the end.
+     *
+     * @param numberOfThreads the number of threads decoding blocks.
+     * @return an iterator over all records.
+     */
+    public RecordIterator iterator(int numberOfThreads) {
+        return new RecordIterator(numberOfThreads);
+    }
+
+    @Override
+    public void close() throws IOException {
+        randomAccessFile.close();
+    }
+
+    /**
+     * A record of the container: the file name and the byte[] representations of the features.
+     */
+    public static class Record {
+        private final String fileName;
+        private final byte[] data;
+        private final int[] offsets, lengths;
+
+        Record(String fileName, byte[] data, int numberOfFeatures) {
+            this.fileName = fileName;
+            this.data = data;
+            offsets = new int[numberOfFeatures];
+            lengths = new int[numberOfFeatures];
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        /**
+         * @param i the position of the feature in the header.
+         * @return false if the feature was not extracted for this image.
+         */
+        public boolean hasFeature(int i) {
+            return lengths[i] > 0;
+        }
+
+        /**
+         * Sets the data of a feature to a feature instance without copying it first.
+         *
+         * @param i       the position of the feature in the header.
+         * @param feature an instance of the feature class at position i.
+         */
+        public void getFeature(int i, GlobalFeature feature) {
+            feature.setByteArrayRepresentation(data, offsets[i], lengths[i]);
+        }
+
+        /**
+         * @param i the position of the feature in the header.
+         * @return a copy of the feature's byte[] representation, null if it was not extracted.
+         */
+        public byte[] getFeatureData(int i) {
+            if (lengths[i] == 0) return null;
+            byte[] result = new byte[lengths[i]];
+            System.arraycopy(data, offsets[i], result, 0, lengths[i]);
+            return result;
+        }
+    }
+
+    /**
+     * Returns the records in order while the next blocks are decoded by a thread pool.
+     */
+    public class RecordIterator implements Iterator<Record>, Closeable {
+        private final ExecutorService pool;
+        private final LinkedList<Future<Record[]>> pending = new LinkedList<>();
+        private final int readAhead;
+        private int nextBlock = 0;
+        private Record[] current = new Record[0];
+        private int position = 0;
+
+        RecordIterator(int numberOfThreads) {
+            pool = Executors.newFixedThreadPool(Math.max(1, numberOfThreads));
+            readAhead = Math.max(1, numberOfThreads) * 2;
+            fill();
+        }
+
+        private void fill() {
+            while (pending.size() < readAhead && nextBlock < blockOffsets.length) {
+                final int block = nextBlock++;
+                pending.add(pool.submit(new Callable<Record[]>() {
+                    @Override
+                    public Record[] call() throws Exception {
+                        return readBlock(block);
+                    }
+                }));
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (position >= current.length) {
+                if (pending.isEmpty()) {
+                    pool.shutdown();
+                    return false;
+                }
+                try {
+                    current = pending.removeFirst().get();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } catch (ExecutionException e) {
+                    throw new RuntimeException("Could not read " + file.getPath(), e.getCause());
+                }
+                position = 0;
+                fill();
+            }
+            return true;
+        }
+
+        @Override
+        public Record next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            return current[position++];
+        }
+
+        @Override
+        public void close() {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package net.semanticmetadata.lire.indexers.tools.text;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+
+import java.io.*;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Writes extracted global features to a compact binary container, the binary alternative to the Base64 encoded
+ * text file of {@link ParallelExtraction}. The layout is:
+ * <ul>
+ * <li>header: magic number, version, compression flag, number of features and the class names of the features,</li>
+ * <li>blocks: number of records, raw length and stored length followed by the (optionally deflated) records,
+ * where each record is the file name followed by the length prefixed byte[] representations of the features,</li>
+ * <li>block index: offset and number of records of each block, the number of blocks, the offset of the index
+ * and the magic number again.</li>
+ * </ul>
+ * Blocks can be read and decoded independently, see {@link FeatureContainerReader}. The writer is thread safe.
+ *
+ * @author Mathias Lux, mathias@juggle.at
+ */
+public class FeatureContainerWriter implements Closeable {
+    public static final int MAGIC = 0x4c495245; // "LIRE"
+    public static final int VERSION = 1;
+    /**
+     * Default number of records per block.
+     */
+    public static final int BLOCK_SIZE = 1024;
+
+    private final DataOutputStream out;
+    private final boolean compress;
+    private final int blockSize;
+    private final ByteArrayOutputStream block = new ByteArrayOutputStream(1024 * 1024);
+    private final DataOutputStream blockOut = new DataOutputStream(block);
+    private final int numberOfFeatures;
+    private int recordsInBlock = 0;
+    private long position = 0;
+    private long[] blockOffsets = new long[64];
+    private int[] blockRecords = new int[64];
+    private int numberOfBlocks = 0;
+    private Deflater deflater;
+    private byte[] deflated = new byte[0];
+
+    public FeatureContainerWriter(File file, List<GlobalFeature> features, boolean compress) throws IOException {
+        this(file, features, compress, BLOCK_SIZE);
+    }
+
+    /**
+     * Creates a new container and writes its header.
+     *
+     * @param file      the file to write to, it is overwritten.
+     * @param features  the features of each record, in order. Only their classes are used.
+     * @param compress  true if the blocks are to be deflated.
+     * @param blockSize the number of records per block.
+     * @throws IOException
+     */
+    public FeatureContainerWriter(File file, List<GlobalFeature> features, boolean compress, int blockSize) throws IOException {
+        this.compress = compress;
+        this.blockSize = blockSize;
+        this.numberOfFeatures = features.size();
+        if (compress) deflater = new Deflater(Deflater.BEST_SPEED);
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, false), 1024 * 1024));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeBoolean(compress);
+        out.writeInt(numberOfFeatures);
+        for (GlobalFeature feature : features) {
+            out.writeUTF(feature.getClass().getName());
+        }
+        position = out.size();
+    }
+
+    /**
+     * Adds a record to the container.
+     *
+     * @param fileName the identifier of the image.
+     * @param features the byte[] representations of the features in the order given in the header,
+     *                 null for a feature that could not be extracted.
+     * @throws IOException
+     */
+    public synchronized void add(String fileName, byte[][] features) throws IOException {
+        if (features.length != numberOfFeatures)
+            throw new IllegalArgumentException("Expected " + numberOfFeatures + " features, got " + features.length + ".");
+        blockOut.writeUTF(fileName);
+        for (byte[] feature : features) {
+            if (feature == null) {
+                blockOut.writeInt(0);
+            } else {
+                blockOut.writeInt(feature.length);
+                blockOut.write(feature);
+            }
+        }
+        if (++recordsInBlock >= blockSize) flushBlock();
+    }
+
+    private void flushBlock() throws IOException {
+        if (recordsInBlock == 0) return;
+        if (numberOfBlocks == blockOffsets.length) {
+            long[] offsets = new long[numberOfBlocks * 2];
+            System.arraycopy(blockOffsets, 0, offsets, 0, numberOfBlocks);
+            blockOffsets = offsets;
+            int[] records = new int[numberOfBlocks * 2];
+            System.arraycopy(blockRecords, 0, records, 0, numberOfBlocks);
+            blockRecords = records;
+        }
+        blockOffsets[numberOfBlocks] = position;
+        blockRecords[numberOfBlocks] = recordsInBlock;
+        numberOfBlocks++;
+        byte[] raw = block.toByteArray();
+        byte[] data = raw;
+        int length = raw.length;
+        if (compress) {
+            deflater.reset();
+            deflater.setInput(raw);
+            deflater.finish();
+            if (deflated.length < raw.length + 64) deflated = new byte[raw.length + raw.length / 8 + 64];
+            length = 0;
+            while (!deflater.finished()) {
+                if (length == deflated.length) {
+                    byte[] tmp = new byte[deflated.length * 2];
+                    System.arraycopy(deflated, 0, tmp, 0, length);
+                    deflated = tmp;
+                }
+                length += deflater.deflate(deflated, length, deflated.length - length);
+            }
+            data = deflated;
+        }
+        out.writeInt(recordsInBlock);
+        out.writeInt(raw.length);
+        out.writeInt(length);
+        out.write(data, 0, length);
+        position += 12 + length;
+        block.reset();
+        recordsInBlock = 0;
+    }
+
+    /**
+     * Writes the last block and the block index and closes the file.
+     *
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        flushBlock();
+        for (int i = 0; i < numberOfBlocks; i++) {
+            out.writeLong(blockOffsets[i]);
+            out.writeInt(blockRecords[i]);
+        }
+        out.writeInt(numberOfBlocks);
+        out.writeLong(position);
+        out.writeInt(MAGIC);
+        out.close();
+        if (deflater != null) deflater.end();
+    }
+}
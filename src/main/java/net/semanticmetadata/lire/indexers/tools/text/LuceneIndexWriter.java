@@ -19,7 +19,8 @@ import java.util.*;
 import java.util.concurrent.LinkedBlockingQueue;
 
 /**
- * Reading a file from {@link ParallelExtraction} and writing it to a lucene index.
+ * Reading a file from {@link ParallelExtraction} and writing it to a lucene index. Both the text files and the
+ * binary {@link FeatureContainerWriter feature containers} are supported.
  */
 public class LuceneIndexWriter extends AbstractDocumentWriter {
     // -------------< static >------------------------
@@ -28,7 +29,7 @@ public class LuceneIndexWriter extends AbstractDocumentWriter {
             "\n" +
             "$> java LuceneIndexWriter -i <file> -o <index-directory> [-hb] [-hm]\n" +
             "\n" +
-            "-i  ... path to the input file\n" +
+            "-i  ... path to the input file, a text file or a binary feature container\n" +
             "-o  ... path to the Lucene index for output\n" +
             "-d  ... use DocValues\n" +
             "-hb ... employ BitSampling Hashing (overrules MetricSpaces, loads all *.mds files from current directory)\n" +
@@ -126,6 +127,33 @@ public class LuceneIndexWriter extends AbstractDocumentWriter {
         }
     }
 
+    /**
+     * Called for each record of a binary feature container, the features are instantiated directly from
+     * the container's buffer.
+     *
+     * @param record         the record read from the container.
+     * @param listOfFeatures instances of the features named in the header of the container.
+     */
+    @Override
+    protected void write(FeatureContainerReader.Record record, ArrayList<GlobalFeature> listOfFeatures) {
+        ArrayList<GlobalFeature> tmp = new ArrayList<>(listOfFeatures.size());
+        try {
+            for (int i = 0; i < listOfFeatures.size(); i++) {
+                if (!record.hasFeature(i)) continue;
+                GlobalFeature n = (GlobalFeature) listOfFeatures.get(i).getClass().newInstance();
+                record.getFeature(i, n);
+                tmp.add(n);
+            }
+            queue.put(new QueueItem(record.getFileName(), tmp));
+        } catch (InstantiationException e) {
+            e.printStackTrace();
+        } catch (IllegalAccessException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
     class QueueItem {
         String id;
         List<GlobalFeature> features;
@@ -198,9 +226,8 @@ public class LuceneIndexWriter extends AbstractDocumentWriter {
                 }
             }
             try {
-                synchronized (iw) {
-                    iw.addDocument(fields);
-                }
+                // IndexWriter is thread safe, and Lucene asserts that its monitor is not held by the caller.
+                iw.addDocument(fields);
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -214,7 +241,7 @@ Usage of LuceneIndexWriter
 
 $> java LuceneIndexWriter -i <file> -o <index-directory> [-hb] [-hm]
 
--i  ... path to the input file
+-i  ... path to the input file, a text file or a binary feature container
 -o  ... path to the Lucene index for output
 -d  ... use DocValues
 -hb ... employ BitSampling Hashing (overrules MetricSpaces, loads all *.mds files from current directory)
@@ -19,7 +19,9 @@ import java.util.concurrent.LinkedBlockingQueue;
  * @autor Mathias Lux
  */
 public class ParallelExtraction implements Runnable {
-    private static String helpMessage = "Use with -i <infile> -o <outfile> -c CEDD,FCTH,PHOG";
+    private static String helpMessage = "Use with -i <infile> -o <outfile> -c CEDD,FCTH,PHOG [-b] [-z]\n" +
+            "-b ... write a binary feature container instead of a Base64 encoded text file\n" +
+            "-z ... compress the blocks of the binary feature container";
     private File imageList;
     private File outFile;
     private ArrayList<GlobalFeature> listOfFeatures = new ArrayList<>();
@@ -29,12 +31,16 @@ public class ParallelExtraction implements Runnable {
     private LinkedBlockingQueue<WorkItem> queue = new LinkedBlockingQueue<>(5000);
     private long monitoringInterval = 10;
     private OutputStream dos;
+    private boolean binaryOutput = false;
+    private boolean compressBinaryOutput = false;
+    private FeatureContainerWriter container = null;
 
     public static void main(String[] args) {
         Properties cmd = CommandLineUtils.getProperties(args, helpMessage, new String[]{"-i", "-o", "-c"});
         ParallelExtraction e = new ParallelExtraction();
         e.setImageList(new File(cmd.getProperty("-i")));
         e.setOutFile(new File(cmd.getProperty("-o")));
+        e.setBinaryOutput(cmd.containsKey("-b") || cmd.containsKey("-z"), cmd.containsKey("-z"));
 
         String[] split = cmd.getProperty("-c").split(",");
         for (int j = 0; j < split.length; j++) {
@@ -75,6 +81,17 @@ public class ParallelExtraction implements Runnable {
         this.outFile = outFile;
     }
 
+    /**
+     * Writes a {@link FeatureContainerWriter binary feature container} instead of the Base64 encoded text file.
+     *
+     * @param binaryOutput true for binary output.
+     * @param compress     true if the blocks of the container are to be compressed.
+     */
+    public void setBinaryOutput(boolean binaryOutput, boolean compress) {
+        this.binaryOutput = binaryOutput;
+        this.compressBinaryOutput = compress;
+    }
+
     public void addFeature(GlobalFeature feature) {
         listOfFeatures.add(feature);
     }
@@ -86,14 +103,18 @@ public class ParallelExtraction implements Runnable {
         listOfFeatures.forEach(globalFeature -> System.out.println(" - " + globalFeature.getFeatureName()));
         System.out.println("------------------------------------------------------------");
         try {
-            dos = new BufferedOutputStream(new FileOutputStream(outFile, false), 1024 * 1024 * 100);
-            StringBuilder sb = new StringBuilder("file;");
-            for (Iterator<GlobalFeature> iterator = listOfFeatures.iterator(); iterator.hasNext(); ) {
-                sb.append(iterator.next().getClass().getName() + ";");
+            if (binaryOutput) {
+                container = new FeatureContainerWriter(outFile, listOfFeatures, compressBinaryOutput);
+            } else {
+                dos = new BufferedOutputStream(new FileOutputStream(outFile, false), 1024 * 1024 * 100);
+                StringBuilder sb = new StringBuilder("file;");
+                for (Iterator<GlobalFeature> iterator = listOfFeatures.iterator(); iterator.hasNext(); ) {
+                    sb.append(iterator.next().getClass().getName() + ";");
+                }
+                sb.append("\n");
+                dos.write(sb.toString().getBytes());
+                dos.flush();
             }
-            sb.append("\n");
-            dos.write(sb.toString().getBytes());
-            dos.flush();
             Producer p = new Producer(IOUtils.lineIterator(new FileReader(imageList)));
             Thread pThread = new Thread(p);
             pThread.start();
@@ -114,8 +135,12 @@ public class ParallelExtraction implements Runnable {
             }
             System.out.printf("Analyzed %d files\n", overallCount);
             m.stopMonitoring();
-            dos.flush();
-            dos.close();
+            if (container != null) {
+                container.close();
+            } else {
+                dos.flush();
+                dos.close();
+            }
         } catch (FileNotFoundException e) {
             e.printStackTrace();
         } catch (IOException e) {
@@ -221,8 +246,22 @@ public class ParallelExtraction implements Runnable {
                         locallyEnded = true;
                     } else {
                         try {
-                            StringBuilder sb = new StringBuilder(256);
                             BufferedImage img = ImageIO.read(new ByteArrayInputStream(tmp.getBuffer()));
+                            if (container != null) {
+                                byte[][] data = new byte[features.size()][];
+                                int i = 0;
+                                for (Iterator<GlobalFeature> iterator = features.iterator(); iterator.hasNext(); ) {
+                                    GlobalFeature next = iterator.next();
+                                    next.extract(img);
+                                    data[i++] = next.getByteArrayRepresentation();
+                                }
+                                synchronized (container) {
+                                    container.add(tmp.getFileName(), data);
+                                    overallCount++;
+                                }
+                                continue;
+                            }
+                            StringBuilder sb = new StringBuilder(256);
                             sb.append(tmp.getFileName() + ";");
                             for (Iterator<GlobalFeature> iterator = features.iterator(); iterator.hasNext(); ) {
                                 GlobalFeature next = iterator.next();
@@ -0,0 +1,136 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+package net.semanticmetadata.lire.searchers;
+
+import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
+
+import java.util.List;
+
+/**
+ * Scores a whole list of queries in one pass over the indexed features. Documents are decoded into a small block
+ * of feature instances and the block is then compared to every query, so each document is decoded only once and
+ * stays in the CPU cache while the queries are streamed past it. Used by the batch search methods of the linear
+ * searchers. Not thread safe, use one per thread and merge them with {@link #addAll(BatchScorer)}.
+ *
+ * @author Mathias Lux, mathias@juggle.at
+ */
+class BatchScorer {
+    static final int BLOCK_SIZE = 64;
+    private final LireFeature[] queries;
+    private final LireFeature[] block;
+    private final int[] blockDocIds;
+    private final TopKCollector[] collectors;
+    private int blockLength = 0;
+
+    /**
+     * @param queries      the query features, they are copied so the scorer can be used in parallel.
+     * @param featureClass the class of the indexed features.
+     * @param k            the number of results per query.
+     */
+    BatchScorer(List<? extends LireFeature> queries, Class<? extends LireFeature> featureClass, int k) {
+        this.queries = new LireFeature[queries.size()];
+        this.collectors = new TopKCollector[queries.size()];
+        this.block = new LireFeature[BLOCK_SIZE];
+        this.blockDocIds = new int[BLOCK_SIZE];
+        try {
+            for (int i = 0; i < this.queries.length; i++) {
+                LireFeature query = queries.get(i);
+                this.queries[i] = query.getClass().newInstance();
+                this.queries[i].setByteArrayRepresentation(query.getByteArrayRepresentation());
+                collectors[i] = new TopKCollector(k);
+            }
+            for (int i = 0; i < block.length; i++) {
+                block[i] = featureClass.newInstance();
+            }
+        } catch (InstantiationException | IllegalAccessException e) {
+            throw new RuntimeException("Error instantiating class for batch search: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Adds a document, it is scored as soon as the block is full.
+     *
+     * @param data   the serialized feature.
+     * @param offset the offset of the feature in data.
+     * @param length the length of the feature.
+     * @param docId  the document id.
+     */
+    void add(byte[] data, int offset, int length, int docId) {
+        block[blockLength].setByteArrayRepresentation(data, offset, length);
+        blockDocIds[blockLength++] = docId;
+        if (blockLength == BLOCK_SIZE) scoreBlock();
+    }
+
+    private void scoreBlock() {
+        double tmpDistance;
+        for (int q = 0; q < queries.length; q++) {
+            LireFeature query = queries[q];
+            TopKCollector collector = collectors[q];
+            for (int j = 0; j < blockLength; j++) {
+                tmpDistance = query.getDistance(block[j], collector.getThreshold());
+                assert (tmpDistance >= 0);
+                collector.insert(tmpDistance, blockDocIds[j]);
+            }
+        }
+        blockLength = 0;
+    }
+
+    /**
+     * Merges the results of another scorer into this one.
+     *
+     * @param other the scorer to take the results from.
+     */
+    void addAll(BatchScorer other) {
+        other.finish();
+        finish();
+        for (int q = 0; q < collectors.length; q++) {
+            collectors[q].addAll(other.collectors[q]);
+        }
+    }
+
+    /**
+     * Scores the remaining documents of the last block.
+     *
+     * @return one collector per query, in the order of the queries.
+     */
+    TopKCollector[] finish() {
+        if (blockLength > 0) scoreBlock();
+        return collectors;
+    }
+}
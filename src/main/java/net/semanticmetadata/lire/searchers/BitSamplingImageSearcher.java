@@ -54,7 +54,6 @@ import org.apache.lucene.search.similarities.ClassicSimilarity;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.TreeSet;
 
 /**
  * This class allows for searching based on {@link net.semanticmetadata.lire.indexers.hashing.BitSampling}
@@ -246,30 +245,9 @@ public class BitSamplingImageSearcher extends AbstractImageSearcher {
         TopDocs docs = searcher.search(query, maxResultsHashBased);
 //        System.out.println(docs.totalHits);
         // then re-rank
-        TreeSet<SimpleResult> resultScoreDocs = new TreeSet<SimpleResult>();
-        double maxDistance = -1d;
-        double tmpScore;
-        for (int i = 0; i < docs.scoreDocs.length; i++) {
-            feature.setByteArrayRepresentation(reader.document(docs.scoreDocs[i].doc).getBinaryValue(featureFieldName).bytes,
-                    reader.document(docs.scoreDocs[i].doc).getBinaryValue(featureFieldName).offset,
-                    reader.document(docs.scoreDocs[i].doc).getBinaryValue(featureFieldName).length);
-            tmpScore = queryFeature.getDistance(feature);
-            assert (tmpScore >= 0);
-            if (resultScoreDocs.size() < maximumHits) {
-                resultScoreDocs.add(new SimpleResult(tmpScore, docs.scoreDocs[i].doc));
-                maxDistance = Math.max(maxDistance, tmpScore);
-            } else if (tmpScore < maxDistance) {
-                // if it is nearer to the sample than at least one of the current set:
-                // remove the last one ...
-                resultScoreDocs.remove(resultScoreDocs.last());
-                // add the new one ...
-                resultScoreDocs.add(new SimpleResult(tmpScore, docs.scoreDocs[i].doc));
-                // and set our new distance border ...
-                maxDistance = resultScoreDocs.last().getDistance();
-            }
-        }
+        TopKCollector resultScoreDocs = new ReRanker(reader, featureFieldName, feature.getClass()).reRank(queryFeature, docs.scoreDocs, maximumHits);
         assert (resultScoreDocs.size() <= maximumHits);
-        return new SimpleImageSearchHits(resultScoreDocs, maxDistance);
+        return new SimpleImageSearchHits(resultScoreDocs, resultScoreDocs.getMaxDistance());
     }
 
     public ImageDuplicates findDuplicates(IndexReader reader) throws IOException {
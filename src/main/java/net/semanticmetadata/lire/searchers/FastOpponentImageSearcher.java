@@ -52,7 +52,6 @@ import org.apache.lucene.util.Bits;
 
 import java.awt.image.BufferedImage;
 import java.io.IOException;
-import java.util.TreeSet;
 import java.util.logging.Logger;
 
 /**
@@ -67,14 +66,14 @@ public class FastOpponentImageSearcher extends AbstractImageSearcher {
     private OpponentHistogram cachedInstance = null;
 
     private int maxHits = 10;
-    protected TreeSet<SimpleResult> docs;
+    protected TopKCollector docs;
     private byte[] tempBinaryValue;
     private double maxDistance;
     private float overallMaxDistance;
 
     public FastOpponentImageSearcher(int maxHits) {
         this.maxHits = maxHits;
-        docs = new TreeSet<SimpleResult>();
+        docs = new TopKCollector(maxHits);
         this.cachedInstance = new OpponentHistogram();
     }
 
@@ -118,28 +117,9 @@ public class FastOpponentImageSearcher extends AbstractImageSearcher {
             d = reader.document(i);
             tmpDistance = getDistance(d, histogram);
             assert (tmpDistance >= 0);
-            // calculate the overall max distance to normalize score afterwards
-//            if (overallMaxDistance < tmpDistance) {
-//                overallMaxDistance = tmpDistance;
-//            }
-            // if it is the first document:
-            if (maxDistance < 0) {
-                maxDistance = tmpDistance;
-            }
-            // if the array is not full yet:
-            if (this.docs.size() < maxHits) {
-                this.docs.add(new SimpleResult( tmpDistance, i));
-                if (tmpDistance > maxDistance) maxDistance = tmpDistance;
-            } else if (tmpDistance < maxDistance) {
-                // if it is nearer to the sample than at least on of the current set:
-                // remove the last one ...
-                this.docs.remove(this.docs.last());
-                // add the new one ...
-                this.docs.add(new SimpleResult(tmpDistance, i));
-                // and set our new distance border ...
-                maxDistance = this.docs.last().getDistance();
-            }
+            this.docs.insert(tmpDistance, i);
         }
+        maxDistance = this.docs.getMaxDistance();
         return maxDistance;
     }
 
@@ -42,6 +42,7 @@ package net.semanticmetadata.lire.searchers;
 
 import net.semanticmetadata.lire.builders.DocumentBuilder;
 import net.semanticmetadata.lire.builders.GlobalDocumentBuilder;
+import net.semanticmetadata.lire.imageanalysis.features.ByteArrayDistance;
 import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
 import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
 import net.semanticmetadata.lire.indexers.parallel.ExtractorItem;
@@ -55,12 +56,20 @@ import org.apache.lucene.util.BytesRef;
 
 import java.awt.image.BufferedImage;
 import java.io.IOException;
-import java.util.TreeSet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 /**
  * A generic image searcher for global features that uses DocValues instead of Lucene text fields. Please make sure you
  * created the index using th useDocValues option in
+ * <p>
+ * The DocValues are read per segment, so the index does not need to be force merged. Each segment is split into
+ * ranges of documents, which are scanned in parallel, each with its own iterator and result list. The result lists
+ * are merged in the end.
  *
  * @author Mathias Lux, mathias@juggle.at
  */
@@ -73,11 +82,10 @@ public class GenericDocValuesImageSearcher extends AbstractImageSearcher {
     protected IndexReader reader = null;
 
     protected int maxHits = 50;
-    protected TreeSet<SimpleResult> docs = new TreeSet<SimpleResult>();
+    protected TopKCollector docs = null;
     protected double maxDistance;
     protected boolean useSimilarityScore = false;
-
-    private BinaryDocValues docValues = null;
+    protected int numThreads = DocumentBuilder.NUM_OF_THREADS;
 
 
     public GenericDocValuesImageSearcher(int maxHits, Class<? extends GlobalFeature> globalFeature, IndexReader reader) {
@@ -92,85 +100,92 @@ public class GenericDocValuesImageSearcher extends AbstractImageSearcher {
             e.printStackTrace();
         }
         this.reader = reader;
-        init();
-    }
-
-    protected void init() {
-        // put all respective features into an in-memory cache ...
-        if (reader != null) {
-            try {
-                docValues = MultiDocValues.getBinaryValues(reader, cachedInstance.getFieldName());
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-
-        }
     }
 
-
     /**
      * @param lireFeature
      * @return the maximum distance found for normalizing.
      * @throws IOException
      */
     protected double findSimilar(LireFeature lireFeature) throws IOException {
-        // reset the iterator ... needed since Lucene 7.0
-        docValues = MultiDocValues.getBinaryValues(reader, cachedInstance.getFieldName());
         maxDistance = -1d;
 
         // clear result set ...
-        docs.clear();
-        // Needed for check whether the document is deleted.
-        Bits liveDocs = MultiBits.getLiveDocs(reader);
-        Document d;
-        double tmpDistance;
-        boolean docValueIsThere = true;
-        BytesRef bytesRef = null;
-        int docs = reader.numDocs();
-        // we read each and every document from the index and then we compare it to the query.
-        for (int i = 0; i < docs; i++) {
-            if (reader.hasDeletions() && !liveDocs.get(i)) continue; // if it is deleted, just ignore it.
-            // advance to the current document
-            docValueIsThere = docValues.advanceExact(i);
-            if (docValueIsThere) {
-                bytesRef = docValues.binaryValue();
-                cachedInstance.setByteArrayRepresentation(bytesRef.bytes, bytesRef.offset, bytesRef.length);
-
-                tmpDistance = cachedInstance.getDistance(lireFeature);
-                assert (tmpDistance >= 0);
-                // if the array is not full yet:
-                if (this.docs.size() < maxHits) {
-                    this.docs.add(new SimpleResult(tmpDistance, i));
-                    if (tmpDistance > maxDistance) maxDistance = tmpDistance;
-                } else if (tmpDistance < maxDistance) {
-                    // if it is nearer to the sample than at least on of the current set:
-                    // remove the last one ...
-                    this.docs.remove(this.docs.last());
-                    // add the new one ...
-                    this.docs.add(new SimpleResult(tmpDistance, i));
-                    // and set our new distance border ...
-                    maxDistance = this.docs.last().getDistance();
-                }
+        if (docs == null || docs.getK() != maxHits) docs = new TopKCollector(maxHits);
+        else docs.clear();
+        List<ScanTask> tasks = new ArrayList<ScanTask>();
+        int chunkSize = getChunkSize(numThreads * 4);
+        for (LeafReaderContext context : reader.leaves()) {
+            for (int from = 0; from < context.reader().maxDoc(); from += chunkSize) {
+                tasks.add(new ScanTask(lireFeature, context, from, Math.min(from + chunkSize, context.reader().maxDoc())));
             }
         }
+        for (TopKCollector localDocs : invokeAll(tasks)) {
+            this.docs.addAll(localDocs);
+        }
+        maxDistance = this.docs.getMaxDistance();
         return maxDistance;
     }
 
 
+    /**
+     * Searches for many queries at once. The DocValues are read only once for all the queries, which is a lot faster
+     * than calling search for each of them if there are many queries.
+     *
+     * @param queries the query features, they have to be of the same class as the one of the searcher.
+     * @param k       the number of results per query.
+     * @return one result list per query, in the order of the queries.
+     * @throws IOException in case the index cannot be read.
+     */
+    public List<ImageSearchHits> searchBatch(List<? extends GlobalFeature> queries, int k) throws IOException {
+        List<BatchScanTask> tasks = new ArrayList<BatchScanTask>();
+        int chunkSize = getChunkSize(numThreads);
+        for (LeafReaderContext context : reader.leaves()) {
+            for (int from = 0; from < context.reader().maxDoc(); from += chunkSize) {
+                tasks.add(new BatchScanTask(queries, k, context, from, Math.min(from + chunkSize, context.reader().maxDoc())));
+            }
+        }
+        List<BatchScorer> scorers = invokeAll(tasks);
+        BatchScorer scorer = scorers.isEmpty() ? new BatchScorer(queries, cachedInstance.getClass(), k) : scorers.get(0);
+        for (int i = 1; i < scorers.size(); i++) {
+            scorer.addAll(scorers.get(i));
+        }
+        TopKCollector[] collectors = scorer.finish();
+        ArrayList<ImageSearchHits> results = new ArrayList<ImageSearchHits>(collectors.length);
+        for (TopKCollector collector : collectors) {
+            results.add(new SimpleImageSearchHits(collector, collector.getMaxDistance(), useSimilarityScore));
+        }
+        return results;
+    }
+
+    /**
+     * Reads the feature of a single document. It is read from the DocValues of the segment containing the
+     * document with a fresh iterator, so documents can be looked up in any order.
+     *
+     * @param doc the document id.
+     * @return the feature, or null if the document has no value for the field of the searcher.
+     * @throws IOException in case the index cannot be read.
+     */
+    public LireFeature getFeature(int doc) throws IOException {
+        List<LeafReaderContext> leaves = reader.leaves();
+        LeafReaderContext context = leaves.get(ReaderUtil.subIndex(doc, leaves));
+        BinaryDocValues docValues = context.reader().getBinaryDocValues(fieldName);
+        if (docValues == null || !docValues.advanceExact(doc - context.docBase)) return null;
+        LireFeature lireFeature = newInstance(cachedInstance);
+        BytesRef bytesRef = docValues.binaryValue();
+        lireFeature.setByteArrayRepresentation(bytesRef.bytes, bytesRef.offset, bytesRef.length);
+        return lireFeature;
+    }
+
     // This is an approach based on DocValues. It's extremely fast, even without caching, but I don't know if it's in
     // RAM or not, ie. if I can fill up RAM with all documents at once.
     public ImageSearchHits search(int doc) throws IOException {
         SimpleImageSearchHits searchHits = null;
-        LireFeature lireFeature = extractorItem.getFeatureInstance();
-//        BinaryDocValues binaryValues = MultiDocValues.getBinaryValues(reader, lireFeature.getFieldName());
-        docValues = MultiDocValues.getBinaryValues(reader, cachedInstance.getFieldName());
-        if (!docValues.advanceExact(doc)) {
-            // Lucene expects the doc id's to be accessed in the right order, if this is not done, we've got a problem here.
-            // LireSolr has an elegant solution on this by resetting the state on-the-fly, but worst case the DocValues are too often.
-            // see RandomAccessBinaryDocValues in LireSolr.
-            System.err.println("Could not advance to document, meaning document id is not in the index or the documents are not accessed in the right order.");
+        LireFeature lireFeature = getFeature(doc);
+        if (lireFeature == null) {
+            logger.warning("No feature stored for document " + doc + " (" + extractorItem.getExtractorClass().getName() + ")");
+            return null;
         }
-        lireFeature.setByteArrayRepresentation(docValues.binaryValue().bytes, docValues.binaryValue().offset, docValues.binaryValue().length);
         double maxDistance = findSimilar(lireFeature);
 
         if (!useSimilarityScore) {
@@ -181,7 +196,6 @@ public class GenericDocValuesImageSearcher extends AbstractImageSearcher {
         return searchHits;
     }
 
-
     public ImageSearchHits search(Document doc, IndexReader reader) throws IOException {
         IndexSearcher is = new IndexSearcher(reader);
         TermQuery tq = new TermQuery(new Term(DocumentBuilder.FIELD_NAME_IDENTIFIER, doc.getValues(DocumentBuilder.FIELD_NAME_IDENTIFIER)[0]));
@@ -218,4 +232,124 @@ public class GenericDocValuesImageSearcher extends AbstractImageSearcher {
         return "GenericDocValuesImageSearcher using " + extractorItem.getExtractorClass().getName();
     }
 
+    /**
+     * Number of documents scanned by one task, so that there are about the given number of tasks for the whole
+     * index, but not too small ones.
+     */
+    private int getChunkSize(int numTasks) {
+        return Math.max(GenericFastImageSearcher.MIN_CHUNK_SIZE, reader.maxDoc() / Math.max(1, numTasks) + 1);
+    }
+
+    /**
+     * Runs the tasks on the shared search pool, or right away if there is only one.
+     */
+    private <T> List<T> invokeAll(List<? extends Callable<T>> tasks) throws IOException {
+        List<T> results = new ArrayList<T>(tasks.size());
+        try {
+            if (tasks.size() == 1) {
+                results.add(tasks.get(0).call());
+            } else {
+                for (Future<T> future : GenericFastImageSearcher.getSearchPool().invokeAll(tasks)) {
+                    results.add(future.get());
+                }
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+        return results;
+    }
+
+    private static LireFeature newInstance(LireFeature lireFeature) {
+        try {
+            return lireFeature.getClass().newInstance();
+        } catch (InstantiationException | IllegalAccessException e) {
+            throw new RuntimeException("Error instantiating class for generic image searcher: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Scans the documents from (inclusive) to (exclusive) of one segment. It uses its own DocValues iterator, copy
+     * of the query and result list.
+     */
+    private class ScanTask implements Callable<TopKCollector> {
+        private final LireFeature lireFeature;
+        private final LeafReaderContext context;
+        private final int from, to;
+
+        private ScanTask(LireFeature lireFeature, LeafReaderContext context, int from, int to) {
+            this.lireFeature = lireFeature;
+            this.context = context;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public TopKCollector call() throws IOException {
+            TopKCollector localDocs = new TopKCollector(maxHits);
+            BinaryDocValues docValues = context.reader().getBinaryDocValues(fieldName);
+            if (docValues == null) return localDocs;
+            // Needed for check whether the document is deleted.
+            Bits liveDocs = context.reader().getLiveDocs();
+            LireFeature localCachedInstance = newInstance(cachedInstance);
+            LireFeature localLireFeature = newInstance(lireFeature);
+            localLireFeature.setByteArrayRepresentation(lireFeature.getByteArrayRepresentation());
+            // if possible the query is compared to the serialized features directly, without decoding them first.
+            ByteArrayDistance byteArrayDistance = null;
+            if (localLireFeature instanceof ByteArrayDistance && localLireFeature.getClass() == cachedInstance.getClass())
+                byteArrayDistance = (ByteArrayDistance) localLireFeature;
+            BytesRef bytesRef;
+            double tmpDistance;
+            for (int doc = docValues.advance(from); doc < to; doc = docValues.nextDoc()) {
+                if (liveDocs != null && !liveDocs.get(doc)) continue; // if it is deleted, just ignore it.
+                bytesRef = docValues.binaryValue();
+                if (byteArrayDistance != null) {
+                    tmpDistance = byteArrayDistance.getDistance(bytesRef.bytes, bytesRef.offset, bytesRef.length, localDocs.getThreshold());
+                } else {
+                    localCachedInstance.setByteArrayRepresentation(bytesRef.bytes, bytesRef.offset, bytesRef.length);
+                    tmpDistance = localCachedInstance.getDistance(localLireFeature, localDocs.getThreshold());
+                }
+                assert (tmpDistance >= 0);
+                localDocs.insert(tmpDistance, context.docBase + doc);
+            }
+            return localDocs;
+        }
+    }
+
+    /**
+     * Like {@link ScanTask}, but scores the documents against all the queries of a batch.
+     */
+    private class BatchScanTask implements Callable<BatchScorer> {
+        private final List<? extends GlobalFeature> queries;
+        private final LeafReaderContext context;
+        private final int k, from, to;
+
+        private BatchScanTask(List<? extends GlobalFeature> queries, int k, LeafReaderContext context, int from, int to) {
+            this.queries = queries;
+            this.k = k;
+            this.context = context;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public BatchScorer call() throws IOException {
+            BatchScorer scorer = new BatchScorer(queries, cachedInstance.getClass(), k);
+            BinaryDocValues docValues = context.reader().getBinaryDocValues(fieldName);
+            if (docValues == null) return scorer;
+            Bits liveDocs = context.reader().getLiveDocs();
+            BytesRef bytesRef;
+            for (int doc = docValues.advance(from); doc < to; doc = docValues.nextDoc()) {
+                if (liveDocs != null && !liveDocs.get(doc)) continue; // if it is deleted, just ignore it.
+                bytesRef = docValues.binaryValue();
+                scorer.add(bytesRef.bytes, bytesRef.offset, bytesRef.length, context.docBase + doc);
+            }
+            return scorer;
+        }
+    }
+
 }
@@ -46,6 +46,7 @@ import net.semanticmetadata.lire.builders.GlobalDocumentBuilder;
 import net.semanticmetadata.lire.builders.LocalDocumentBuilder;
 import net.semanticmetadata.lire.builders.SimpleDocumentBuilder;
 import net.semanticmetadata.lire.classifiers.Cluster;
+import net.semanticmetadata.lire.imageanalysis.features.ByteArrayDistance;
 import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
 import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
 import net.semanticmetadata.lire.imageanalysis.features.LocalFeatureExtractor;
@@ -56,12 +57,14 @@ import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.MultiBits;
 import org.apache.lucene.index.MultiFields;
 import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
 
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.logging.Logger;
 
 /**
@@ -78,19 +81,27 @@ public class GenericFastImageSearcher extends AbstractImageSearcher {
     protected boolean isCaching = false;
 
     protected LinkedHashMap<Integer, byte[]> featureCache = null;
+    protected boolean useOffHeapCache = false;
+    protected OffHeapFeatureCache offHeapCache = null;
     protected IndexReader reader = null;
 
     protected int maxHits = 50;
-    protected TreeSet<SimpleResult> docs = new TreeSet<SimpleResult>();
+    protected TopKCollector docs = null;
     protected double maxDistance;
     protected boolean useSimilarityScore = false;
 
     Aggregator aggregator;
     private String codebooksDir;
 
-    protected LinkedBlockingQueue<Map.Entry<Integer, byte[]>> queue = new LinkedBlockingQueue<Map.Entry<Integer, byte[]>>(100);
     protected int numThreads = DocumentBuilder.NUM_OF_THREADS;
 
+    // the smallest range of cached features scanned by one task.
+    protected static final int MIN_CHUNK_SIZE = 1024;
+    private static volatile ForkJoinPool searchPool = null;
+    // index addressable view on featureCache for the parallel scan.
+    private int[] cachedDocIds = null;
+    private byte[][] cachedFeatures = null;
+
 
     public GenericFastImageSearcher(int maxHits, Class<? extends GlobalFeature> globalFeature) {
         this.maxHits = maxHits;
@@ -209,6 +220,34 @@ public class GenericFastImageSearcher extends AbstractImageSearcher {
         init();
     }
 
+    /**
+     * Creates a caching searcher for global features. If useOffHeapCache is true, the features are packed into an
+     * {@link OffHeapFeatureCache} instead of a map of byte[] on the heap, which keeps the heap small for large indexes.
+     *
+     * @param maxHits            the number of results.
+     * @param globalFeature      the class of the global feature to search for.
+     * @param reader             the IndexReader to cache the features from.
+     * @param useSimilarityScore set to true for similarity scores instead of distances.
+     * @param useOffHeapCache    set to true to cache the features off-heap.
+     */
+    public GenericFastImageSearcher(int maxHits, Class<? extends GlobalFeature> globalFeature, IndexReader reader, boolean useSimilarityScore, boolean useOffHeapCache) {
+        this.maxHits = maxHits;
+        this.extractorItem = new ExtractorItem(globalFeature);
+        this.fieldName = extractorItem.getFieldName();
+        try {
+            this.cachedInstance = (GlobalFeature)extractorItem.getExtractorInstance().getClass().newInstance();
+        } catch (InstantiationException e) {
+            e.printStackTrace();
+        } catch (IllegalAccessException e) {
+            e.printStackTrace();
+        }
+        this.useSimilarityScore = useSimilarityScore;
+        this.useOffHeapCache = useOffHeapCache;
+        this.isCaching = true;
+        this.reader = reader;
+        init();
+    }
+
     public GenericFastImageSearcher(int maxHits, Class<? extends LocalFeatureExtractor> localFeatureExtractor, Aggregator aggregator, int codebookSize, boolean isCaching, IndexReader reader, boolean useSimilarityScore, String codebooksDir) {
         this.maxHits = maxHits;
         this.codebooksDir = codebooksDir;
@@ -252,9 +291,15 @@ public class GenericFastImageSearcher extends AbstractImageSearcher {
 
     protected void init() {
         // put all respective features into an in-memory cache ...
-        if (isCaching && reader != null) {
+        if (isCaching && reader != null && useOffHeapCache) {
+            try {
+                offHeapCache = new OffHeapFeatureCache(reader, fieldName);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        } else if (isCaching && reader != null) {
             Bits liveDocs = MultiBits.getLiveDocs(reader);
-            int docs = reader.numDocs();
+            int docs = reader.maxDoc();
             featureCache = new LinkedHashMap<Integer, byte[]>(docs);
             try {
                 Document d;
@@ -286,158 +331,215 @@ public class GenericFastImageSearcher extends AbstractImageSearcher {
         maxDistance = -1d;
 
         // clear result set ...
-        docs.clear();
+        if (docs == null || docs.getK() != maxHits) docs = new TopKCollector(maxHits);
+        else docs.clear();
         // Needed for check whether the document is deleted.
         Bits liveDocs = MultiBits.getLiveDocs(reader);
         Document d;
         double tmpDistance;
-        int docs = reader.numDocs();
+        int docs = reader.maxDoc();
         if (!isCaching) {
             // we read each and every document from the index and then we compare it to the query.
             for (int i = 0; i < docs; i++) {
                 if (reader.hasDeletions() && !liveDocs.get(i)) continue; // if it is deleted, just ignore it.
 
                 d = reader.document(i);
-                tmpDistance = getDistance(d, lireFeature);
+                tmpDistance = getDistance(d, lireFeature, this.docs.getThreshold());
                 assert (tmpDistance >= 0);
-                // if the array is not full yet:
-                if (this.docs.size() < maxHits) {
-                    this.docs.add(new SimpleResult(tmpDistance, i));
-                    if (tmpDistance > maxDistance) maxDistance = tmpDistance;
-                } else if (tmpDistance < maxDistance) {
-                    // if it is nearer to the sample than at least on of the current set:
-                    // remove the last one ...
-                    this.docs.remove(this.docs.last());
-                    // add the new one ...
-                    this.docs.add(new SimpleResult(tmpDistance, i));
-                    // and set our new distance border ...
-                    maxDistance = this.docs.last().getDistance();
-                }
+                this.docs.insert(tmpDistance, i);
             }
         } else {
-            LinkedList<Consumer> tasks = new LinkedList<Consumer>();
-            LinkedList<Thread> threads = new LinkedList<Thread>();
-            Consumer consumer;
-            Thread thread;
-            Thread p = new Thread(new Producer());
-            p.start();
-            for (int i = 0; i < numThreads; i++) {
-                consumer = new Consumer(lireFeature);
-                thread = new Thread(consumer);
-                thread.start();
-                tasks.add(consumer);
-                threads.add(thread);
-            }
-            for (Thread next : threads) {
-                try {
-                    next.join();
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-            TreeSet<SimpleResult> tmpDocs;
-            boolean flag;
-            SimpleResult simpleResult;
-            for (Consumer task : tasks) {
-                tmpDocs = task.getResult();
-                flag = true;
-                while (flag && (tmpDocs.size() > 0)){
-                    simpleResult = tmpDocs.pollFirst();
-                    if (this.docs.size() < maxHits) {
-                        this.docs.add(simpleResult);
-                        if (simpleResult.getDistance() > maxDistance) maxDistance = simpleResult.getDistance();
-                    } else if (simpleResult.getDistance() < maxDistance) {
-//                        this.docs.remove(this.docs.last());
-                        this.docs.pollLast();
-                        this.docs.add(simpleResult);
-                        maxDistance = this.docs.last().getDistance();
-                    } else flag = false;
-                }
-            }
+            // split the cached features into contiguous ranges and scan them in parallel.
+            if (offHeapCache == null && cachedFeatures == null) initCachedFeatures();
+            int size = (offHeapCache != null) ? offHeapCache.size() : cachedFeatures.length;
+            int chunkSize = Math.max(MIN_CHUNK_SIZE, size / (numThreads * 4) + 1);
+            this.docs.addAll(getSearchPool().invoke(new ScanTask(lireFeature, 0, size, chunkSize)));
         }
+        maxDistance = this.docs.getMaxDistance();
         return maxDistance;
     }
 
-    class Producer implements Runnable {
+    /**
+     * Searches for many queries at once. The features in the index (or the cache) are read only once for all the
+     * queries, which is a lot faster than calling search for each of them if there are many queries. Note that
+     * in caching mode each thread keeps k results per query. Uses the IndexReader given in the constructor.
+     *
+     * @param queries the query features, they have to be of the same class as the one of the searcher.
+     * @param k       the number of results per query.
+     * @return one result list per query, in the order of the queries.
+     * @throws IOException in case the index cannot be read.
+     */
+    public List<ImageSearchHits> searchBatch(List<? extends GlobalFeature> queries, int k) throws IOException {
+        return searchBatch(queries, k, reader);
+    }
 
-        private Producer() {
-            queue.clear();
+    /**
+     * Searches for many queries at once, see {@link #searchBatch(List, int)}.
+     *
+     * @param queries the query features, they have to be of the same class as the one of the searcher.
+     * @param k       the number of results per query.
+     * @param reader  the IndexReader to search in, ignored in caching mode.
+     * @return one result list per query, in the order of the queries.
+     * @throws IOException in case the index cannot be read.
+     */
+    public List<ImageSearchHits> searchBatch(List<? extends GlobalFeature> queries, int k, IndexReader reader) throws IOException {
+        TopKCollector[] collectors;
+        if (!isCaching) {
+            BatchScorer scorer = new BatchScorer(queries, cachedInstance.getClass(), k);
+            Bits liveDocs = MultiBits.getLiveDocs(reader);
+            Set<String> fieldsToLoad = Collections.singleton(fieldName);
+            BytesRef bytesRef;
+            for (int i = 0; i < reader.maxDoc(); i++) {
+                if (reader.hasDeletions() && !liveDocs.get(i)) continue; // if it is deleted, just ignore it.
+                bytesRef = reader.document(i, fieldsToLoad).getBinaryValue(fieldName);
+                if (bytesRef != null && bytesRef.length > 0)
+                    scorer.add(bytesRef.bytes, bytesRef.offset, bytesRef.length, i);
+            }
+            collectors = scorer.finish();
+        } else {
+            if (offHeapCache == null && cachedFeatures == null) initCachedFeatures();
+            int size = (offHeapCache != null) ? offHeapCache.size() : cachedFeatures.length;
+            // one chunk per thread, as every chunk keeps k results for each query.
+            int chunkSize = Math.max(MIN_CHUNK_SIZE, size / numThreads + 1);
+            collectors = getSearchPool().invoke(new BatchScanTask(queries, k, 0, size, chunkSize)).finish();
+        }
+        ArrayList<ImageSearchHits> results = new ArrayList<ImageSearchHits>(collectors.length);
+        for (TopKCollector collector : collectors) {
+            results.add(new SimpleImageSearchHits(collector, collector.getMaxDistance(), useSimilarityScore));
         }
+        return results;
+    }
 
-        public void run() {
-            for (Map.Entry<Integer, byte[]> documentEntry : featureCache.entrySet()) {
-                try {
-                    queue.put(documentEntry);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-            LinkedHashMap<Integer, byte[]> tmpMap = new LinkedHashMap<Integer, byte[]>(numThreads * 3);
-            for (int i = 1; i < numThreads * 3; i++)  {
-                tmpMap.put(-i, null);
+    /**
+     * Scans a range of cached features for a batch of queries, see {@link #searchBatch(List, int)}.
+     */
+    private class BatchScanTask extends RecursiveTask<BatchScorer> {
+        private static final long serialVersionUID = 1L;
+        private final List<? extends GlobalFeature> queries;
+        private final int k, from, to, chunkSize;
+
+        private BatchScanTask(List<? extends GlobalFeature> queries, int k, int from, int to, int chunkSize) {
+            this.queries = queries;
+            this.k = k;
+            this.from = from;
+            this.to = to;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        protected BatchScorer compute() {
+            if (to - from > chunkSize) {
+                int middle = (from + to) >>> 1;
+                BatchScanTask left = new BatchScanTask(queries, k, from, middle, chunkSize);
+                left.fork();
+                BatchScorer result = new BatchScanTask(queries, k, middle, to, chunkSize).compute();
+                result.addAll(left.join());
+                return result;
             }
-            for (Map.Entry<Integer, byte[]> documentEntry : tmpMap.entrySet()) {
-                try {
-                    queue.put(documentEntry);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+            BatchScorer scorer = new BatchScorer(queries, cachedInstance.getClass(), k);
+            OffHeapFeatureCache.Cursor cursor = (offHeapCache != null) ? offHeapCache.cursor() : null;
+            for (int slot = from; slot < to; slot++) {
+                if (cursor != null) {
+                    scorer.add(cursor.getBuffer(), 0, cursor.load(slot), offHeapCache.getDocId(slot));
+                } else {
+                    scorer.add(cachedFeatures[slot], 0, cachedFeatures[slot].length, cachedDocIds[slot]);
                 }
             }
+            return scorer;
         }
     }
 
-    private class Consumer implements Runnable {
-        private boolean locallyEnded = false;
-        private TreeSet<SimpleResult> localDocs  = new TreeSet<SimpleResult>();
-        private LireFeature localCachedInstance;
-        private LireFeature localLireFeature;
-
-        private Consumer(LireFeature lireFeature) {
-            try {
-                this.localCachedInstance = cachedInstance.getClass().newInstance();
-                this.localLireFeature = lireFeature.getClass().newInstance();
-                this.localLireFeature.setByteArrayRepresentation(lireFeature.getByteArrayRepresentation());
-            } catch (InstantiationException e) {
-                e.printStackTrace();
-            } catch (IllegalAccessException e) {
-                e.printStackTrace();
+    /**
+     * Returns the pool shared by all searchers for the parallel scan of cached features. It is created on first use.
+     *
+     * @return the shared ForkJoinPool.
+     */
+    protected static ForkJoinPool getSearchPool() {
+        if (searchPool == null) {
+            synchronized (GenericFastImageSearcher.class) {
+                if (searchPool == null) searchPool = new ForkJoinPool(DocumentBuilder.NUM_OF_THREADS);
             }
         }
+        return searchPool;
+    }
 
-        public void run() {
-            Map.Entry<Integer, byte[]> tmp;
+    /**
+     * Creates the index addressable view on the heap cache. The byte[] arrays are shared with the map.
+     */
+    private synchronized void initCachedFeatures() {
+        if (cachedFeatures != null) return;
+        int[] ids = new int[featureCache.size()];
+        byte[][] features = new byte[featureCache.size()][];
+        int slot = 0;
+        for (Map.Entry<Integer, byte[]> documentEntry : featureCache.entrySet()) {
+            ids[slot] = documentEntry.getKey();
+            features[slot++] = documentEntry.getValue();
+        }
+        cachedDocIds = ids;
+        cachedFeatures = features;
+    }
+
+    /**
+     * Scans a contiguous range of cached features, splitting it in halves as long as it is larger than the chunk
+     * size. Each leaf keeps its own {@link TopKCollector}, they are merged when joining.
+     */
+    private class ScanTask extends RecursiveTask<TopKCollector> {
+        private static final long serialVersionUID = 1L;
+        private final LireFeature lireFeature;
+        private final int from, to, chunkSize;
+
+        private ScanTask(LireFeature lireFeature, int from, int to, int chunkSize) {
+            this.lireFeature = lireFeature;
+            this.from = from;
+            this.to = to;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        protected TopKCollector compute() {
+            if (to - from > chunkSize) {
+                int middle = (from + to) >>> 1;
+                ScanTask left = new ScanTask(lireFeature, from, middle, chunkSize);
+                left.fork();
+                TopKCollector result = new ScanTask(lireFeature, middle, to, chunkSize).compute();
+                result.addAll(left.join());
+                return result;
+            }
+            TopKCollector localDocs = new TopKCollector(maxHits);
+            LireFeature localCachedInstance, localLireFeature;
+            try {
+                localCachedInstance = cachedInstance.getClass().newInstance();
+                localLireFeature = lireFeature.getClass().newInstance();
+                localLireFeature.setByteArrayRepresentation(lireFeature.getByteArrayRepresentation());
+            } catch (InstantiationException | IllegalAccessException e) {
+                throw new RuntimeException("Error instantiating class for generic image searcher: " + e.getMessage(), e);
+            }
+            OffHeapFeatureCache.Cursor cursor = (offHeapCache != null) ? offHeapCache.cursor() : null;
+            ByteArrayDistance byteArrayDistance = getByteArrayDistance(localLireFeature);
             double tmpDistance;
-            double localMaxDistance = -1d;
-            while (!locallyEnded) {
-                try {
-                    tmp = queue.take();
-                    if (tmp.getKey() < 0 ) locallyEnded = true;
-                    if (!locallyEnded) {    // && tmp != -1
-                        localCachedInstance.setByteArrayRepresentation(tmp.getValue());
-                        tmpDistance = localLireFeature.getDistance(localCachedInstance);
-                        assert (tmpDistance >= 0);
-                        // if the array is not full yet:
-                        if (localDocs.size() < maxHits) {
-                            localDocs.add(new SimpleResult(tmpDistance, tmp.getKey()));
-                            if (tmpDistance > localMaxDistance) localMaxDistance = tmpDistance;
-                        } else if (tmpDistance < localMaxDistance) {
-                            // if it is nearer to the sample than at least on of the current set:
-                            // remove the last one ...
-//                            localDocs.remove(localDocs.last());
-                            localDocs.pollLast();
-                            // add the new one ...
-                            localDocs.add(new SimpleResult(tmpDistance, tmp.getKey()));
-                            // and set our new distance border ...
-                            localMaxDistance = localDocs.last().getDistance();
-                        }
+            int docId, length;
+            for (int slot = from; slot < to; slot++) {
+                if (cursor != null) {
+                    length = cursor.load(slot);
+                    docId = offHeapCache.getDocId(slot);
+                    if (byteArrayDistance != null) {
+                        tmpDistance = byteArrayDistance.getDistance(cursor.getBuffer(), 0, length, localDocs.getThreshold());
+                    } else {
+                        localCachedInstance.setByteArrayRepresentation(cursor.getBuffer(), 0, length);
+                        tmpDistance = localLireFeature.getDistance(localCachedInstance, localDocs.getThreshold());
+                    }
+                } else {
+                    docId = cachedDocIds[slot];
+                    if (byteArrayDistance != null) {
+                        tmpDistance = byteArrayDistance.getDistance(cachedFeatures[slot], 0, cachedFeatures[slot].length, localDocs.getThreshold());
+                    } else {
+                        localCachedInstance.setByteArrayRepresentation(cachedFeatures[slot]);
+                        tmpDistance = localLireFeature.getDistance(localCachedInstance, localDocs.getThreshold());
                     }
-                } catch (InterruptedException e) {
-                    e.getMessage();
                 }
+                assert (tmpDistance >= 0);
+                localDocs.insert(tmpDistance, docId);
             }
-        }
-
-        public TreeSet<SimpleResult> getResult() {
             return localDocs;
         }
     }
@@ -451,7 +553,10 @@ public class GenericFastImageSearcher extends AbstractImageSearcher {
      */
     protected double getDistance(Document document, LireFeature lireFeature) {
         if (document.getField(fieldName).binaryValue() != null && document.getField(fieldName).binaryValue().length > 0) {
-            cachedInstance.setByteArrayRepresentation(document.getField(fieldName).binaryValue().bytes, document.getField(fieldName).binaryValue().offset, document.getField(fieldName).binaryValue().length);
+            BytesRef bytesRef = document.getField(fieldName).binaryValue();
+            if (getByteArrayDistance(lireFeature) != null)
+                return ((ByteArrayDistance) lireFeature).getDistance(bytesRef.bytes, bytesRef.offset, bytesRef.length);
+            cachedInstance.setByteArrayRepresentation(bytesRef.bytes, bytesRef.offset, bytesRef.length);
             return lireFeature.getDistance(cachedInstance);
         } else {
             logger.warning("No feature stored in this document! (" + extractorItem.getExtractorClass().getName() + ")");
@@ -459,6 +564,41 @@ public class GenericFastImageSearcher extends AbstractImageSearcher {
         return 0d;
     }
 
+    /**
+     * Like {@link #getDistance(Document, LireFeature)}, but passes the threshold on to
+     * {@link LireFeature#getDistance(LireFeature, double)}, so the computation can stop early.
+     *
+     * @param document
+     * @param lireFeature
+     * @param threshold the distance of the worst result so far.
+     * @return the distance, or a value larger than the threshold.
+     */
+    protected double getDistance(Document document, LireFeature lireFeature, double threshold) {
+        if (document.getField(fieldName).binaryValue() != null && document.getField(fieldName).binaryValue().length > 0) {
+            BytesRef bytesRef = document.getField(fieldName).binaryValue();
+            if (getByteArrayDistance(lireFeature) != null)
+                return ((ByteArrayDistance) lireFeature).getDistance(bytesRef.bytes, bytesRef.offset, bytesRef.length, threshold);
+            cachedInstance.setByteArrayRepresentation(bytesRef.bytes, bytesRef.offset, bytesRef.length);
+            return lireFeature.getDistance(cachedInstance, threshold);
+        } else {
+            logger.warning("No feature stored in this document! (" + extractorItem.getExtractorClass().getName() + ")");
+        }
+        return 0d;
+    }
+
+    /**
+     * Checks if the query can be compared to the serialized features directly, i.e. without decoding them with
+     * {@link LireFeature#setByteArrayRepresentation(byte[], int, int)} first.
+     *
+     * @param lireFeature the query feature.
+     * @return the query as {@link ByteArrayDistance} or null if the features have to be decoded.
+     */
+    protected ByteArrayDistance getByteArrayDistance(LireFeature lireFeature) {
+        if (lireFeature instanceof ByteArrayDistance && lireFeature.getClass() == cachedInstance.getClass())
+            return (ByteArrayDistance) lireFeature;
+        return null;
+    }
+
     /*
     // This is an approach based on DocValues. It's extremely fast, even without caching, but I don't know if it's in
     // RAM or not, ie. if I can fill up RAM with all documents at once.
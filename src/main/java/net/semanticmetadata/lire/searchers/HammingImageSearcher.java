@@ -0,0 +1,439 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.searchers;
+
+import net.semanticmetadata.lire.builders.DocumentBuilder;
+import net.semanticmetadata.lire.builders.GlobalDocumentBuilder;
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
+import net.semanticmetadata.lire.indexers.hashing.BitSampling;
+import net.semanticmetadata.lire.indexers.parallel.ExtractorItem;
+import net.semanticmetadata.lire.utils.MetricsUtils;
+import net.semanticmetadata.lire.utils.SerializationUtils;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.RecursiveTask;
+import java.util.logging.Logger;
+
+/**
+ * Searches the binary codes stored with
+ * {@link net.semanticmetadata.lire.builders.GlobalDocumentBuilder.HashingMode#BinaryBitSampling} in two steps.
+ * First the codes are compared to the code of the query with the Hamming distance, which gives a short list of
+ * candidates. Then the actual features of the candidates are read and the candidates are re-ranked with the exact
+ * distance function of the feature. The codes of all documents are read once in the constructor and kept in a
+ * single long[].
+ * <p/>
+ * The candidates are either found by a parallel scan of all codes or with multi-index hashing: each code is split
+ * into substrings of {@link #SUBSTRING_BITS} bits and every substring position gets its own table. If two codes
+ * differ in less than m * (r + 1) bits, with m tables, then at least one of their substrings differs in r bits or
+ * less, so probing the tables with all substrings within a small radius r of the query's substrings finds them.
+ * The tables take some memory (a 256 KB offset array per table plus one int per document and table), so they are
+ * only built if asked for in the constructor.
+ *
+ * @author Mathias Lux, mathias@juggle.at
+ */
+public class HammingImageSearcher extends AbstractImageSearcher {
+    /**
+     * Number of bits of the substrings used as keys in multi-index hashing.
+     */
+    public static final int SUBSTRING_BITS = 16;
+    /**
+     * Maximum Hamming distance of the substrings probed with multi-index hashing, if the candidates are not found
+     * within this radius, the codes are scanned.
+     */
+    public static final int MAX_SUBSTRING_RADIUS = 3;
+
+    protected Logger logger = Logger.getLogger(getClass().getName());
+    protected String fieldName, codesFieldName;
+    protected LireFeature cachedInstance = null;
+    protected ExtractorItem extractorItem;
+
+    protected IndexReader reader = null;
+
+    protected int maxHits = 50;
+    protected int numCandidates = 500;
+    protected boolean useSimilarityScore = false;
+
+    // the codes of all documents, codeLength longs per document, and the matching document ids.
+    private long[] codes;
+    private int[] docIds;
+    private int codeLength;
+
+    // multi-index hashing: per substring position the slots of the codes, sorted by substring value.
+    private boolean useMultiIndexHashing = false;
+    private int numTables;
+    private int[][] tableOffsets, tableSlots;
+    // all 16 bit masks with up to MAX_SUBSTRING_RADIUS bits set, grouped by the number of bits set.
+    private static final int[][] substringMasks = createMasks();
+
+    /**
+     * Scans all codes to find the candidates.
+     *
+     * @param maxHits       the number of results.
+     * @param globalFeature the feature class the codes have been created for.
+     * @param reader        the index.
+     * @param numCandidates the number of candidates re-ranked with the actual features, eg. ten times maxHits.
+     */
+    public HammingImageSearcher(int maxHits, Class<? extends GlobalFeature> globalFeature, IndexReader reader, int numCandidates) {
+        this(maxHits, globalFeature, reader, numCandidates, false);
+    }
+
+    /**
+     * @param maxHits              the number of results.
+     * @param globalFeature        the feature class the codes have been created for.
+     * @param reader               the index.
+     * @param numCandidates        the number of candidates re-ranked with the actual features, eg. ten times maxHits.
+     * @param useMultiIndexHashing set to true to build the multi-index hashing tables instead of scanning all codes.
+     * @throws UncheckedIOException if the codes cannot be read, e.g. if their length does not match the hash functions.
+     */
+    public HammingImageSearcher(int maxHits, Class<? extends GlobalFeature> globalFeature, IndexReader reader, int numCandidates, boolean useMultiIndexHashing) {
+        try {
+            BitSampling.readHashFunctions();
+        } catch (IOException e) {
+            System.err.println("Error reading hash functions from default location.");
+            e.printStackTrace();
+        }
+        this.maxHits = maxHits;
+        this.numCandidates = Math.max(maxHits, numCandidates);
+        this.extractorItem = new ExtractorItem(globalFeature);
+        this.fieldName = extractorItem.getFieldName();
+        this.codesFieldName = fieldName + DocumentBuilder.BINARY_HASH_FIELD_SUFFIX;
+        this.codeLength = BitSampling.getBinaryCodeLength();
+        try {
+            this.cachedInstance = (GlobalFeature) extractorItem.getExtractorInstance().getClass().newInstance();
+        } catch (InstantiationException e) {
+            e.printStackTrace();
+        } catch (IllegalAccessException e) {
+            e.printStackTrace();
+        }
+        this.reader = reader;
+        try {
+            readCodes();
+        } catch (IOException e) {
+            // without the codes the searcher cannot work at all, so there is no point in going on.
+            throw new UncheckedIOException("Error reading the binary codes from field " + codesFieldName + ": " + e.getMessage(), e);
+        }
+        if (useMultiIndexHashing) {
+            this.useMultiIndexHashing = true;
+            buildTables();
+        }
+    }
+
+    /**
+     * Reads the codes of all documents that are not deleted from the DocValues.
+     */
+    private void readCodes() throws IOException {
+        codes = new long[reader.numDocs() * codeLength];
+        docIds = new int[reader.numDocs()];
+        int count = 0;
+        for (LeafReaderContext context : reader.leaves()) {
+            LeafReader leafReader = context.reader();
+            Bits liveDocs = leafReader.getLiveDocs();
+            BinaryDocValues docValues = leafReader.getBinaryDocValues(codesFieldName);
+            if (docValues == null) continue;
+            BytesRef bytesRef;
+            for (int doc = 0; doc < leafReader.maxDoc(); doc++) {
+                if (liveDocs != null && !liveDocs.get(doc)) continue; // if it is deleted, just ignore it.
+                if (!docValues.advanceExact(doc)) continue;
+                bytesRef = docValues.binaryValue();
+                if (bytesRef.length != codeLength * 8)
+                    throw new IOException("Code length " + bytesRef.length + " of document " + (context.docBase + doc) + " does not match the hash functions, " + codeLength * 8);
+                for (int i = 0; i < codeLength; i++) {
+                    codes[count * codeLength + i] = SerializationUtils.toLong(bytesRef.bytes, bytesRef.offset + (i << 3));
+                }
+                docIds[count++] = context.docBase + doc;
+            }
+        }
+        if (count < docIds.length) {
+            docIds = Arrays.copyOf(docIds, count);
+            codes = Arrays.copyOf(codes, count * codeLength);
+        }
+        if (count == 0) logger.warning("No codes found in field " + codesFieldName);
+    }
+
+    /**
+     * Sorts the slots of the codes by substring value for each substring position, a counting sort as there are
+     * only 2^16 values.
+     */
+    private void buildTables() {
+        numTables = (BitSampling.getNumberOfBits() + SUBSTRING_BITS - 1) / SUBSTRING_BITS;
+        tableOffsets = new int[numTables][];
+        tableSlots = new int[numTables][];
+        for (int t = 0; t < numTables; t++) {
+            int[] offsets = new int[(1 << SUBSTRING_BITS) + 1];
+            for (int slot = 0; slot < docIds.length; slot++) {
+                offsets[getSubstring(codes, slot * codeLength, t) + 1]++;
+            }
+            for (int i = 1; i < offsets.length; i++) {
+                offsets[i] += offsets[i - 1];
+            }
+            int[] slots = new int[docIds.length];
+            int[] next = Arrays.copyOf(offsets, offsets.length - 1);
+            for (int slot = 0; slot < docIds.length; slot++) {
+                slots[next[getSubstring(codes, slot * codeLength, t)]++] = slot;
+            }
+            tableOffsets[t] = offsets;
+            tableSlots[t] = slots;
+        }
+    }
+
+    private static int[][] createMasks() {
+        int[] count = new int[MAX_SUBSTRING_RADIUS + 1];
+        for (int mask = 0; mask < 1 << SUBSTRING_BITS; mask++) {
+            if (Integer.bitCount(mask) <= MAX_SUBSTRING_RADIUS) count[Integer.bitCount(mask)]++;
+        }
+        int[][] masks = new int[MAX_SUBSTRING_RADIUS + 1][];
+        for (int r = 0; r < masks.length; r++) {
+            masks[r] = new int[count[r]];
+            count[r] = 0;
+        }
+        for (int mask = 0; mask < 1 << SUBSTRING_BITS; mask++) {
+            int r = Integer.bitCount(mask);
+            if (r <= MAX_SUBSTRING_RADIUS) masks[r][count[r]++] = mask;
+        }
+        return masks;
+    }
+
+    /**
+     * As SUBSTRING_BITS divides 64, a substring never spans two longs.
+     */
+    private static int getSubstring(long[] code, int offset, int substring) {
+        int bit = substring * SUBSTRING_BITS;
+        return (int) (code[offset + (bit >>> 6)] >>> (bit & 63)) & ((1 << SUBSTRING_BITS) - 1);
+    }
+
+    /**
+     * Finds the numCandidates codes nearest to the query code.
+     */
+    protected TopKCollector findCandidates(long[] queryCode) {
+        if (useMultiIndexHashing) {
+            TopKCollector candidates = new TopKCollector(numCandidates);
+            long[] seen = new long[(docIds.length + 63) >>> 6];
+            for (int radius = 0; radius <= MAX_SUBSTRING_RADIUS; radius++) {
+                probe(queryCode, radius, Integer.MAX_VALUE, candidates, seen);
+                // all codes closer than numTables * (radius + 1) have been found now.
+                if (candidates.isFull() && candidates.getThreshold() < numTables * (radius + 1))
+                    return candidates;
+            }
+            // good enough for re-ranking, the nearest codes are not guaranteed though.
+            if (candidates.isFull()) return candidates;
+        }
+        return scan(queryCode, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Looks up all codes with a substring at exactly the given radius of the query's substring at the same position
+     * and adds those within maxDistance to the candidates.
+     */
+    private void probe(long[] queryCode, int radius, int maxDistance, TopKCollector candidates, long[] seen) {
+        int[] masks = substringMasks[radius];
+        for (int t = 0; t < numTables; t++) {
+            int key = getSubstring(queryCode, 0, t);
+            int[] offsets = tableOffsets[t], slots = tableSlots[t];
+            for (int mask : masks) {
+                int bucket = key ^ mask;
+                for (int i = offsets[bucket]; i < offsets[bucket + 1]; i++) {
+                    int slot = slots[i];
+                    if ((seen[slot >>> 6] & 1L << (slot & 63)) != 0) continue;
+                    seen[slot >>> 6] |= 1L << (slot & 63);
+                    int distance = MetricsUtils.hammingDistance(queryCode, codes, slot * codeLength);
+                    if (distance <= maxDistance) candidates.insert(distance, docIds[slot]);
+                }
+            }
+        }
+    }
+
+    private TopKCollector scan(long[] queryCode, int maxDistance) {
+        int chunkSize = Math.max(GenericFastImageSearcher.MIN_CHUNK_SIZE, docIds.length / (DocumentBuilder.NUM_OF_THREADS * 4) + 1);
+        return GenericFastImageSearcher.getSearchPool().invoke(new ScanTask(queryCode, maxDistance, 0, docIds.length, chunkSize));
+    }
+
+    /**
+     * Reads the features of the candidates in order of the document ids and ranks them by the exact distance.
+     */
+    protected TopKCollector reRank(LireFeature lireFeature, TopKCollector candidates) throws IOException {
+        return new ReRanker(reader, fieldName, cachedInstance.getClass()).reRank(lireFeature, candidates, maxHits);
+    }
+
+    public ImageSearchHits search(BufferedImage image, IndexReader reader) throws IOException {
+        logger.finer("Starting extraction.");
+        GlobalDocumentBuilder globalDocumentBuilder = new GlobalDocumentBuilder();
+        GlobalFeature globalFeature = globalDocumentBuilder.extractGlobalFeature(image, (GlobalFeature) extractorItem.getExtractorInstance());
+        return search(globalFeature);
+    }
+
+    public ImageSearchHits search(Document doc, IndexReader reader) throws IOException {
+        BytesRef bytesRef = doc.getBinaryValue(fieldName);
+        if (bytesRef == null) {
+            logger.warning("No feature stored in this document! (" + extractorItem.getExtractorClass().getName() + ")");
+            return null;
+        }
+        LireFeature lireFeature;
+        try {
+            lireFeature = cachedInstance.getClass().newInstance();
+        } catch (InstantiationException | IllegalAccessException e) {
+            throw new RuntimeException("Error instantiating class for hamming image searcher: " + e.getMessage(), e);
+        }
+        lireFeature.setByteArrayRepresentation(bytesRef.bytes, bytesRef.offset, bytesRef.length);
+        return search(lireFeature);
+    }
+
+    /**
+     * @param lireFeature the query.
+     * @return the hits, ranked by the exact distance.
+     * @throws IOException
+     */
+    public ImageSearchHits search(LireFeature lireFeature) throws IOException {
+        TopKCollector candidates = findCandidates(BitSampling.generateBinaryCode(lireFeature.getFeatureVector()));
+        TopKCollector docs = reRank(lireFeature, candidates);
+        return new SimpleImageSearchHits(docs, docs.getMaxDistance(), useSimilarityScore);
+    }
+
+    /**
+     * Only takes documents into account whose code differs from the query's code in maxHammingDistance bits or
+     * less. With multi-index hashing only the substrings within maxHammingDistance / m of the query's substrings
+     * have to be probed, so small radii are fast.
+     *
+     * @param lireFeature        the query.
+     * @param maxHammingDistance the maximum number of bits a candidate's code may differ from the query's code.
+     * @return the hits, ranked by the exact distance.
+     * @throws IOException
+     */
+    public ImageSearchHits searchWithinRadius(LireFeature lireFeature, int maxHammingDistance) throws IOException {
+        long[] queryCode = BitSampling.generateBinaryCode(lireFeature.getFeatureVector());
+        TopKCollector candidates;
+        if (useMultiIndexHashing && maxHammingDistance / numTables <= MAX_SUBSTRING_RADIUS) {
+            candidates = new TopKCollector(numCandidates);
+            long[] seen = new long[(docIds.length + 63) >>> 6];
+            for (int radius = 0; radius <= maxHammingDistance / numTables; radius++) {
+                probe(queryCode, radius, maxHammingDistance, candidates, seen);
+            }
+        } else {
+            candidates = scan(queryCode, maxHammingDistance);
+        }
+        TopKCollector docs = reRank(lireFeature, candidates);
+        return new SimpleImageSearchHits(docs, docs.getMaxDistance(), useSimilarityScore);
+    }
+
+    /**
+     * Groups the documents by their codes, i.e. it finds all codes within Hamming distance 0 of each other. As the
+     * codes are much shorter than the features, these are near duplicates rather than identical images.
+     *
+     * @param reader the index, it has to be the one the searcher has been created with.
+     * @return the groups of documents with identical codes, or null if there are none.
+     * @throws IOException
+     */
+    public ImageDuplicates findDuplicates(IndexReader reader) throws IOException {
+        HashMap<LongBuffer, List<String>> duplicates = new HashMap<LongBuffer, List<String>>();
+        Set<String> fields = Collections.singleton(DocumentBuilder.FIELD_NAME_IDENTIFIER);
+        int numDuplicates = 0;
+        for (int slot = 0; slot < docIds.length; slot++) {
+            // equals and hashCode of the buffer only take the codeLength longs of this slot into account.
+            LongBuffer code = LongBuffer.wrap(codes, slot * codeLength, codeLength);
+            List<String> identifiers = duplicates.get(code);
+            if (identifiers == null) {
+                identifiers = new LinkedList<String>();
+                duplicates.put(code, identifiers);
+            } else {
+                numDuplicates++;
+            }
+            identifiers.add(reader.document(docIds[slot], fields).get(DocumentBuilder.FIELD_NAME_IDENTIFIER));
+        }
+        if (numDuplicates == 0) return null;
+        LinkedList<List<String>> results = new LinkedList<List<String>>();
+        for (List<String> identifiers : duplicates.values()) {
+            if (identifiers.size() > 1) results.add(identifiers);
+        }
+        return new SimpleImageDuplicates(results);
+    }
+
+    public String toString() {
+        return "HammingImageSearcher using " + extractorItem.getExtractorClass().getName() + (useMultiIndexHashing ? " and multi-index hashing" : "");
+    }
+
+    /**
+     * Scans the codes from (inclusive) to (exclusive) and keeps the numCandidates ones nearest to the query.
+     */
+    private class ScanTask extends RecursiveTask<TopKCollector> {
+        private static final long serialVersionUID = 1L;
+        private final long[] queryCode;
+        private final int maxDistance, from, to, chunkSize;
+
+        private ScanTask(long[] queryCode, int maxDistance, int from, int to, int chunkSize) {
+            this.queryCode = queryCode;
+            this.maxDistance = maxDistance;
+            this.from = from;
+            this.to = to;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        protected TopKCollector compute() {
+            if (to - from > chunkSize) {
+                int middle = (from + to) >>> 1;
+                ScanTask left = new ScanTask(queryCode, maxDistance, from, middle, chunkSize);
+                left.fork();
+                TopKCollector result = new ScanTask(queryCode, maxDistance, middle, to, chunkSize).compute();
+                result.addAll(left.join());
+                return result;
+            }
+            TopKCollector localDocs = new TopKCollector(numCandidates);
+            int distance;
+            for (int slot = from; slot < to; slot++) {
+                distance = MetricsUtils.hammingDistance(queryCode, codes, slot * codeLength);
+                if (distance <= maxDistance) localDocs.insert(distance, docIds[slot]);
+            }
+            return localDocs;
+        }
+    }
+}
@@ -15,7 +15,7 @@ import java.io.IOException;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.Map;
-import java.util.TreeSet;
+import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * Created by Nektarios on 9/10/2014.
@@ -26,6 +26,8 @@ public class ImageSearcherUsingWSs extends GenericFastImageSearcher {
     private boolean inverseDocFrequency = false;
     private boolean normalizeHistogram = false;
     private String ws = "nnn";
+    // hands the cached features to the consumer threads, GenericFastImageSearcher scans them with fork/join tasks.
+    private LinkedBlockingQueue<Map.Entry<Integer, byte[]>> queue = new LinkedBlockingQueue<Map.Entry<Integer, byte[]>>(100);
 
     public ImageSearcherUsingWSs(int maxHits, Class<? extends LocalFeatureExtractor> localFeatureExtractor, Aggregator aggregator, int codebookSize, IndexReader reader, String codebooksDir, boolean tf, boolean idf, boolean n) {
         super(maxHits, localFeatureExtractor, aggregator, codebookSize, true, reader, codebooksDir);
@@ -209,7 +211,8 @@ public class ImageSearcherUsingWSs extends GenericFastImageSearcher {
         maxDistance = -1d;
 //        overallMaxDistance = -1f;
         // clear result set ...
-        docs.clear();
+        if (docs == null || docs.getK() != maxHits) docs = new TopKCollector(maxHits);
+        else docs.clear();
         // Needed for check whether the document is deleted.
 //        Bits liveDocs = MultiFields.getLiveDocs(reader);
 //        Document d;
@@ -238,25 +241,10 @@ public class ImageSearcherUsingWSs extends GenericFastImageSearcher {
                     e.printStackTrace();
                 }
             }
-            TreeSet<SimpleResult> tmpDocs;
-            boolean flag;
-            SimpleResult simpleResult;
             for (Consumer task : tasks) {
-                tmpDocs = task.getResult();
-                flag = true;
-                while (flag && (tmpDocs.size() > 0)){
-                    simpleResult = tmpDocs.pollFirst();
-                    if (this.docs.size() < maxHits) {
-                        this.docs.add(simpleResult);
-                        if (simpleResult.getDistance() > maxDistance) maxDistance = simpleResult.getDistance();
-                    } else if (simpleResult.getDistance() < maxDistance) {
-//                        this.docs.remove(this.docs.last());
-                        this.docs.pollLast();
-                        this.docs.add(simpleResult);
-                        maxDistance = this.docs.last().getDistance();
-                    } else flag = false;
-                }
+                this.docs.addAll(task.getResult());
             }
+            maxDistance = this.docs.getMaxDistance();
         }
         return maxDistance;
     }
@@ -291,7 +279,7 @@ public class ImageSearcherUsingWSs extends GenericFastImageSearcher {
 
     private class Consumer implements Runnable {
         private boolean locallyEnded = false;
-        private TreeSet<SimpleResult> localDocs  = new TreeSet<SimpleResult>();
+        private TopKCollector localDocs = new TopKCollector(maxHits);
         private LireFeature localCachedInstance;
         private LireFeature localLireFeature;
 
@@ -311,7 +299,6 @@ public class ImageSearcherUsingWSs extends GenericFastImageSearcher {
         public void run() {
             Map.Entry<Integer, byte[]> tmp;
             double tmpDistance;
-            double localMaxDistance = -1;
             while (!locallyEnded) {
                 try {
                     tmp = queue.take();
@@ -320,20 +307,7 @@ public class ImageSearcherUsingWSs extends GenericFastImageSearcher {
                         localCachedInstance.setByteArrayRepresentation(tmp.getValue());
                         tmpDistance = localLireFeature.getDistance(localCachedInstance);
                         assert (tmpDistance >= 0);
-                        // if the array is not full yet:
-                        if (localDocs.size() < maxHits) {
-                            localDocs.add(new SimpleResult(tmpDistance, tmp.getKey()));
-                            if (tmpDistance > localMaxDistance) localMaxDistance = tmpDistance;
-                        } else if (tmpDistance < localMaxDistance) {
-                            // if it is nearer to the sample than at least on of the current set:
-                            // remove the last one ...
-//                            localDocs.remove(localDocs.last());
-                            localDocs.pollLast();
-                            // add the new one ...
-                            localDocs.add(new SimpleResult(tmpDistance, tmp.getKey()));
-                            // and set our new distance border ...
-                            localMaxDistance = localDocs.last().getDistance();
-                        }
+                        localDocs.insert(tmpDistance, tmp.getKey());
                     }
                 } catch (InterruptedException e) {
                     e.getMessage();
@@ -341,7 +315,7 @@ public class ImageSearcherUsingWSs extends GenericFastImageSearcher {
             }
         }
 
-        public TreeSet<SimpleResult> getResult() {
+        public TopKCollector getResult() {
             return localDocs;
         }
     }
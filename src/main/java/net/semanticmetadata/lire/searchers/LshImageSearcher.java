@@ -54,7 +54,6 @@ import org.apache.lucene.search.similarities.ClassicSimilarity;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.TreeSet;
 
 /**
  * This class allows for searching based on {@link net.semanticmetadata.lire.indexers.hashing.BitSampling}
@@ -189,27 +188,8 @@ public class LshImageSearcher extends AbstractImageSearcher {
         }
         TopDocs docs = searcher.search(queryBuilder.build(), maxResultsHashBased);
         // then re-rank
-        TreeSet<SimpleResult> resultScoreDocs = new TreeSet<SimpleResult>();
-        double maxDistance = 0d;
-        double tmpScore = 0d;
-        for (int i = 0; i < docs.scoreDocs.length; i++) {
-            feature.setByteArrayRepresentation(reader.document(docs.scoreDocs[i].doc).getBinaryValue(featureFieldName).bytes,
-                    reader.document(docs.scoreDocs[i].doc).getBinaryValue(featureFieldName).offset,
-                    reader.document(docs.scoreDocs[i].doc).getBinaryValue(featureFieldName).length);
-            tmpScore = queryFeature.getDistance(feature);
-            if (resultScoreDocs.size() < maximumHits) {
-                resultScoreDocs.add(new SimpleResult(tmpScore, docs.scoreDocs[i].doc));
-                maxDistance = Math.max(maxDistance, tmpScore);
-            } else if (tmpScore < maxDistance) {
-                resultScoreDocs.add(new SimpleResult(tmpScore, docs.scoreDocs[i].doc));
-            }
-            while (resultScoreDocs.size() > maximumHits) {
-                resultScoreDocs.remove(resultScoreDocs.last());
-                maxDistance = resultScoreDocs.last().getDistance();
-            }
-//            resultScoreDocs.add(new SimpleResult(tmpScore, reader.document(docs.scoreDocs[i].doc), docs.scoreDocs[i].doc));
-        }
-        return new SimpleImageSearchHits(resultScoreDocs, maxDistance);
+        TopKCollector resultScoreDocs = new ReRanker(reader, featureFieldName, feature.getClass()).reRank(queryFeature, docs.scoreDocs, maximumHits);
+        return new SimpleImageSearchHits(resultScoreDocs, Math.max(0d, resultScoreDocs.getMaxDistance()));
     }
 
     public ImageDuplicates findDuplicates(IndexReader reader) throws IOException {
@@ -61,7 +61,6 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.TreeSet;
 
 /**
  * This class allows for searching based on {@link MetricSpaces}
@@ -81,9 +80,8 @@ public class MetricSpacesImageSearcher extends AbstractImageSearcher {
     private String hashesFieldName = null;
     private int numHashesUsedForQuery = 25;
 
-    // for DocValues based storage, currently not implemented:
+    // for DocValues based storage, the query document's feature is read from the DocValues:
     private boolean useDocValues = false;
-    private BinaryDocValues docValues = null;
     private IndexSearcher searcher = null;
 
     /**
@@ -209,7 +207,7 @@ public class MetricSpacesImageSearcher extends AbstractImageSearcher {
             return null;
         }
         if (useDocValues) {
-            docValues = MultiDocValues.getBinaryValues(reader, featureFieldName);
+            BinaryDocValues docValues = MultiDocValues.getBinaryValues(reader, featureFieldName);
             // find the id of the document in the reader, then do search ... TODO: find another way instead of calling the searcher every time.
             TopDocs topDocs = searcher.search(new TermQuery(new Term(DocumentBuilder.FIELD_NAME_IDENTIFIER, doc.get(DocumentBuilder.FIELD_NAME_IDENTIFIER))), 1);
             if (topDocs.totalHits.value > 0) {
@@ -228,14 +226,6 @@ public class MetricSpacesImageSearcher extends AbstractImageSearcher {
     }
 
     private ImageSearchHits search(String hashes, GlobalFeature queryFeature, IndexReader reader) throws IOException {
-        if (useDocValues)
-            return searchWithDocValues(hashes, queryFeature, reader);
-        else
-            return searchWithField(hashes, queryFeature, reader);
-    }
-
-
-    private ImageSearchHits searchWithField(String hashes, GlobalFeature queryFeature, IndexReader reader) throws IOException {
         // first search by text:
         IndexSearcher searcher = new IndexSearcher(reader);
         searcher.setSimilarity(new BaseSimilarity());
@@ -249,74 +239,10 @@ public class MetricSpacesImageSearcher extends AbstractImageSearcher {
         if (query == null) return null;
         TopDocs docs = searcher.search(query, maxResultsHashBased);
 //        System.out.println(docs.totalHits);
-        // then re-rank
-        TreeSet<SimpleResult> resultScoreDocs = new TreeSet<SimpleResult>();
-        double maxDistance = -1d;
-        double tmpScore;
-        for (int i = 0; i < docs.scoreDocs.length; i++) {
-            feature.setByteArrayRepresentation(reader.document(docs.scoreDocs[i].doc).getBinaryValue(featureFieldName).bytes,
-                    reader.document(docs.scoreDocs[i].doc).getBinaryValue(featureFieldName).offset,
-                    reader.document(docs.scoreDocs[i].doc).getBinaryValue(featureFieldName).length);
-            tmpScore = queryFeature.getDistance(feature);
-            assert (tmpScore >= 0);
-            if (resultScoreDocs.size() < maximumHits) {
-                resultScoreDocs.add(new SimpleResult(tmpScore, docs.scoreDocs[i].doc));
-                maxDistance = Math.max(maxDistance, tmpScore);
-            } else if (tmpScore < maxDistance) {
-                // if it is nearer to the sample than at least one of the current set:
-                // remove the last one ...
-                resultScoreDocs.remove(resultScoreDocs.last());
-                // add the new one ...
-                resultScoreDocs.add(new SimpleResult(tmpScore, docs.scoreDocs[i].doc));
-                // and set our new distance border ...
-                maxDistance = resultScoreDocs.last().getDistance();
-            }
-        }
-        assert (resultScoreDocs.size() <= maximumHits);
-        return new SimpleImageSearchHits(resultScoreDocs, maxDistance);
-    }
-
-    private ImageSearchHits searchWithDocValues(String hashes, GlobalFeature queryFeature, IndexReader reader) throws IOException {
-        // first search by text:
-        IndexSearcher searcher = new IndexSearcher(reader);
-        searcher.setSimilarity(new BaseSimilarity());
-        QueryParser qp = new QueryParser(hashesFieldName, new WhitespaceAnalyzer());
-        Query query = null;
-        try {
-            query = qp.parse(hashes);
-        } catch (ParseException e) {
-            e.printStackTrace();
-        }
-        if (query == null) return null;
-        TopDocs docs = searcher.search(query, maxResultsHashBased);
-//        System.out.println(docs.totalHits);
-        // then re-rank
-        TreeSet<SimpleResult> resultScoreDocs = new TreeSet<SimpleResult>();
-        double maxDistance = -1d;
-        double tmpScore;
-        // reset the iterator by getting the DocValueIterator again.
-        docValues = MultiDocValues.getBinaryValues(reader, featureFieldName);
-        for (int i = 0; i < docs.scoreDocs.length; i++) {
-            // WARNING: if the documents are not ordered by id, this might just not work
-            docValues.advanceExact(i);
-            feature.setByteArrayRepresentation(docValues.binaryValue().bytes, docValues.binaryValue().offset, docValues.binaryValue().length);
-            tmpScore = queryFeature.getDistance(feature);
-            assert (tmpScore >= 0);
-            if (resultScoreDocs.size() < maximumHits) {
-                resultScoreDocs.add(new SimpleResult(tmpScore, docs.scoreDocs[i].doc));
-                maxDistance = Math.max(maxDistance, tmpScore);
-            } else if (tmpScore < maxDistance) {
-                // if it is nearer to the sample than at least one of the current set:
-                // remove the last one ...
-                resultScoreDocs.remove(resultScoreDocs.last());
-                // add the new one ...
-                resultScoreDocs.add(new SimpleResult(tmpScore, docs.scoreDocs[i].doc));
-                // and set our new distance border ...
-                maxDistance = resultScoreDocs.last().getDistance();
-            }
-        }
+        // then re-rank, the re-ranker reads the DocValues where the segments have them and the stored field otherwise.
+        TopKCollector resultScoreDocs = new ReRanker(reader, featureFieldName, feature.getClass()).reRank(queryFeature, docs.scoreDocs, maximumHits);
         assert (resultScoreDocs.size() <= maximumHits);
-        return new SimpleImageSearchHits(resultScoreDocs, maxDistance);
+        return new SimpleImageSearchHits(resultScoreDocs, resultScoreDocs.getMaxDistance());
     }
 
     public ImageDuplicates findDuplicates(IndexReader reader) throws IOException {
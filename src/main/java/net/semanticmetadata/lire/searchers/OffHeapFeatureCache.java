@@ -0,0 +1,306 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+package net.semanticmetadata.lire.searchers;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.MultiBits;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * A columnar, off-heap cache for the serialized features of one field. All the byte[] representations are packed
+ * one after another into a few large direct (or memory mapped) {@link ByteBuffer} pages, while the heap only holds
+ * three int[] tables: the Lucene document id, the start offset within the page and the end offset of each entry.
+ * Compared to a LinkedHashMap&lt;Integer, byte[]&gt; this saves the Integer, the map entry and the array header per
+ * document, and a linear scan walks memory sequentially.
+ * <p>
+ * The cache is built once from an {@link IndexReader} and is read-only afterwards. Use {@link #cursor()} to get a
+ * per-thread view that copies entries into a reusable buffer, so scanning does not allocate per document.
+ *
+ * @author Mathias Lux, mathias@juggle.at
+ */
+public class OffHeapFeatureCache implements Closeable {
+    /**
+     * Default size of one page, entries never span two pages.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 1 << 26;
+
+    private final String fieldName;
+    private final File backingFile;
+    private ArrayList<ByteBuffer> pages = new ArrayList<ByteBuffer>();
+    // first slot of each page, with one additional entry marking the end.
+    private int[] pageFirstSlot;
+    private int[] docIds;
+    private int[] starts;
+    private int[] ends;
+    private int size = 0;
+    private int maxLength = 0;
+
+    /**
+     * Creates an off-heap cache in direct memory.
+     *
+     * @param reader    the IndexReader to read the features from.
+     * @param fieldName the name of the stored field holding the byte[] representation of the feature.
+     * @throws IOException in case the index cannot be read.
+     */
+    public OffHeapFeatureCache(IndexReader reader, String fieldName) throws IOException {
+        this(reader, fieldName, null, DEFAULT_PAGE_SIZE);
+    }
+
+    /**
+     * Creates an off-heap cache. If a backing file is given the pages are written to the file and memory mapped,
+     * so the operating system can page them in and out, otherwise direct memory is used.
+     *
+     * @param reader      the IndexReader to read the features from.
+     * @param fieldName   the name of the stored field holding the byte[] representation of the feature.
+     * @param backingFile the file used for memory mapping, null to use direct memory. It is deleted on {@link #close()}.
+     * @param pageSize    the maximum size of a page in bytes.
+     * @throws IOException in case the index cannot be read or the backing file cannot be written.
+     */
+    public OffHeapFeatureCache(IndexReader reader, String fieldName, File backingFile, int pageSize) throws IOException {
+        this.fieldName = fieldName;
+        this.backingFile = backingFile;
+        build(reader, pageSize);
+    }
+
+    private void build(IndexReader reader, int pageSize) throws IOException {
+        int maxDoc = reader.maxDoc();
+        Bits liveDocs = MultiBits.getLiveDocs(reader);
+        Set<String> fieldsToLoad = Collections.singleton(fieldName);
+        docIds = new int[maxDoc];
+        starts = new int[maxDoc];
+        ends = new int[maxDoc];
+        int[] firstSlots = new int[16];
+        int numPages = 0;
+        // the current page is collected on the heap and moved off-heap when it is full.
+        byte[] page = new byte[Math.min(pageSize, 1 << 20)];
+        int position = 0;
+        RandomAccessFile raf = null;
+        FileChannel channel = null;
+        long fileOffset = 0;
+        if (backingFile != null) {
+            raf = new RandomAccessFile(backingFile, "rw");
+            raf.setLength(0);
+            channel = raf.getChannel();
+        }
+        try {
+            for (int i = 0; i < maxDoc; i++) {
+                if (liveDocs != null && !liveDocs.get(i)) continue; // if it is deleted, just ignore it.
+                Document d = reader.document(i, fieldsToLoad);
+                IndexableField field = d.getField(fieldName);
+                if (field == null) continue;
+                BytesRef bytesRef = field.binaryValue();
+                if (bytesRef == null || bytesRef.length == 0) continue;
+                if (bytesRef.length > pageSize)
+                    throw new IOException("Feature of document " + i + " does not fit into a page of " + pageSize + " bytes.");
+                if (position + bytesRef.length > pageSize || numPages == 0) {
+                    // flush the current page and start a new one.
+                    if (numPages > 0) fileOffset = flushPage(page, position, channel, fileOffset);
+                    if (numPages + 1 >= firstSlots.length)
+                        firstSlots = Arrays.copyOf(firstSlots, firstSlots.length * 2);
+                    firstSlots[numPages++] = size;
+                    position = 0;
+                }
+                if (position + bytesRef.length > page.length) {
+                    page = Arrays.copyOf(page, Math.min(pageSize, Math.max(page.length * 2, position + bytesRef.length)));
+                }
+                System.arraycopy(bytesRef.bytes, bytesRef.offset, page, position, bytesRef.length);
+                docIds[size] = i;
+                starts[size] = position;
+                position += bytesRef.length;
+                ends[size] = position;
+                maxLength = Math.max(maxLength, bytesRef.length);
+                size++;
+            }
+            if (numPages > 0) flushPage(page, position, channel, fileOffset);
+        } finally {
+            if (raf != null) raf.close();
+        }
+        firstSlots[numPages] = size;
+        pageFirstSlot = Arrays.copyOf(firstSlots, numPages + 1);
+        if (size < maxDoc) {
+            docIds = Arrays.copyOf(docIds, size);
+            starts = Arrays.copyOf(starts, size);
+            ends = Arrays.copyOf(ends, size);
+        }
+    }
+
+    private long flushPage(byte[] page, int length, FileChannel channel, long fileOffset) throws IOException {
+        ByteBuffer buffer;
+        if (channel == null) {
+            buffer = ByteBuffer.allocateDirect(length);
+            buffer.put(page, 0, length);
+            buffer.flip();
+        } else {
+            channel.write(ByteBuffer.wrap(page, 0, length), fileOffset);
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, fileOffset, length);
+        }
+        pages.add(buffer);
+        return fileOffset + length;
+    }
+
+    /**
+     * @return the number of features in the cache.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param slot the running number of the entry within the cache, 0 &lt;= slot &lt; {@link #size()}
+     * @return the Lucene document id of the entry.
+     */
+    public int getDocId(int slot) {
+        return docIds[slot];
+    }
+
+    /**
+     * Finds the entry of a document, entries are sorted by document id.
+     *
+     * @param docId    the Lucene document id.
+     * @param fromSlot the first slot to search, e.g. the result for a lower document id.
+     * @return the slot of the document, or (-(insertion point) - 1) if it is not in the cache.
+     */
+    public int findSlot(int docId, int fromSlot) {
+        return Arrays.binarySearch(docIds, fromSlot, size, docId);
+    }
+
+    /**
+     * @param slot the running number of the entry within the cache.
+     * @return the length of the byte[] representation of the entry.
+     */
+    public int getLength(int slot) {
+        return ends[slot] - starts[slot];
+    }
+
+    /**
+     * @return the length of the longest entry, i.e. the size of a buffer able to hold any of them.
+     */
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    public String getFieldName() {
+        return fieldName;
+    }
+
+    /**
+     * Creates a new cursor for reading. Cursors are cheap, but not thread safe, so use one per thread.
+     *
+     * @return a new cursor positioned before the first entry.
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Releases the pages and deletes the backing file, if there is one. Direct and mapped memory is freed when
+     * the buffers are garbage collected.
+     */
+    public void close() {
+        pages.clear();
+        size = 0;
+        if (backingFile != null && backingFile.exists()) backingFile.delete();
+    }
+
+    /**
+     * A read-only view on the cache, copying entries into a buffer that is reused for all entries.
+     */
+    public class Cursor {
+        private final ByteBuffer[] views;
+        private final byte[] buffer;
+        private int length = 0;
+        private int page = 0;
+
+        private Cursor() {
+            views = new ByteBuffer[pages.size()];
+            for (int i = 0; i < views.length; i++) {
+                views[i] = pages.get(i).duplicate();
+            }
+            buffer = new byte[maxLength];
+        }
+
+        /**
+         * Copies the entry at the given slot to the buffer. Slots are fastest read in ascending order.
+         *
+         * @param slot the running number of the entry within the cache.
+         * @return the length of the entry, the data starts at offset 0 of {@link #getBuffer()}.
+         */
+        public int load(int slot) {
+            if (slot < pageFirstSlot[page] || slot >= pageFirstSlot[page + 1]) {
+                page = Arrays.binarySearch(pageFirstSlot, slot);
+                if (page < 0) page = -page - 2;
+                // skip empty pages, i.e. multiple entries with the same first slot.
+                while (slot >= pageFirstSlot[page + 1]) page++;
+            }
+            ByteBuffer view = views[page];
+            length = ends[slot] - starts[slot];
+            view.position(starts[slot]);
+            view.get(buffer, 0, length);
+            return length;
+        }
+
+        /**
+         * @return the buffer holding the data of the last loaded entry, starting at offset 0.
+         */
+        public byte[] getBuffer() {
+            return buffer;
+        }
+
+        /**
+         * @return the length of the last loaded entry.
+         */
+        public int getLength() {
+            return length;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.searchers;
+
+import net.semanticmetadata.lire.builders.DocumentBuilder;
+import net.semanticmetadata.lire.builders.GlobalDocumentBuilder;
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
+import net.semanticmetadata.lire.indexers.hashing.ProductQuantizer;
+import net.semanticmetadata.lire.indexers.parallel.ExtractorItem;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.RecursiveTask;
+import java.util.logging.Logger;
+
+/**
+ * Searches the product quantization codes stored with
+ * {@link net.semanticmetadata.lire.builders.GlobalDocumentBuilder.HashingMode#ProductQuantization} in two steps.
+ * First all codes are scanned in parallel with the distance table of the query, which gives a short list of
+ * candidates. Then the actual features of the candidates are read and the candidates are re-ranked with the exact
+ * distance function of the feature. The codes of all documents are read once in the constructor and kept in a
+ * single byte[], which is a lot smaller than the features themselves.
+ * <p/>
+ * The codebooks have to be loaded before, see {@link ProductQuantizer#loadCodebooks(java.io.InputStream)}.
+ *
+ * @author Mathias Lux, mathias@juggle.at
+ */
+public class ProductQuantizationImageSearcher extends AbstractImageSearcher {
+    protected Logger logger = Logger.getLogger(getClass().getName());
+    protected String fieldName, codesFieldName;
+    protected LireFeature cachedInstance = null;
+    protected ExtractorItem extractorItem;
+    protected ProductQuantizer quantizer;
+
+    protected IndexReader reader = null;
+
+    protected int maxHits = 50;
+    protected int numCandidates = 500;
+    protected boolean useSimilarityScore = false;
+
+    // the codes of all documents, codeLength bytes per document, and the matching document ids.
+    private byte[] codes;
+    private int[] docIds;
+    private int codeLength;
+
+    /**
+     * Uses the quantizer registered for the feature class, see {@link ProductQuantizer#loadCodebooks(java.io.InputStream)}.
+     *
+     * @param maxHits       the number of results.
+     * @param globalFeature the feature class the codes have been created for.
+     * @param reader        the index.
+     * @param numCandidates the number of candidates re-ranked with the actual features, eg. ten times maxHits.
+     */
+    public ProductQuantizationImageSearcher(int maxHits, Class<? extends GlobalFeature> globalFeature, IndexReader reader, int numCandidates) {
+        this(maxHits, globalFeature, reader, numCandidates, ProductQuantizer.getQuantizer(globalFeature));
+    }
+
+    public ProductQuantizationImageSearcher(int maxHits, Class<? extends GlobalFeature> globalFeature, IndexReader reader, int numCandidates, ProductQuantizer quantizer) {
+        if (quantizer == null)
+            throw new UnsupportedOperationException("No codebooks loaded for " + globalFeature.getName() + ", see ProductQuantizer.loadCodebooks(...)");
+        this.maxHits = maxHits;
+        this.numCandidates = Math.max(maxHits, numCandidates);
+        this.extractorItem = new ExtractorItem(globalFeature);
+        this.fieldName = extractorItem.getFieldName();
+        this.codesFieldName = fieldName + DocumentBuilder.PQ_FIELD_SUFFIX;
+        this.quantizer = quantizer;
+        this.codeLength = quantizer.getCodeLength();
+        try {
+            this.cachedInstance = (GlobalFeature) extractorItem.getExtractorInstance().getClass().newInstance();
+        } catch (InstantiationException e) {
+            e.printStackTrace();
+        } catch (IllegalAccessException e) {
+            e.printStackTrace();
+        }
+        this.reader = reader;
+        try {
+            readCodes();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Reads the codes of all documents that are not deleted, from the DocValues if there are any, from the stored
+     * fields otherwise.
+     */
+    private void readCodes() throws IOException {
+        codes = new byte[reader.numDocs() * codeLength];
+        docIds = new int[reader.numDocs()];
+        Set<String> fields = Collections.singleton(codesFieldName);
+        int count = 0;
+        for (LeafReaderContext context : reader.leaves()) {
+            LeafReader leafReader = context.reader();
+            Bits liveDocs = leafReader.getLiveDocs();
+            BinaryDocValues docValues = leafReader.getBinaryDocValues(codesFieldName);
+            BytesRef bytesRef;
+            for (int doc = 0; doc < leafReader.maxDoc(); doc++) {
+                if (liveDocs != null && !liveDocs.get(doc)) continue; // if it is deleted, just ignore it.
+                if (docValues != null) {
+                    if (!docValues.advanceExact(doc)) continue;
+                    bytesRef = docValues.binaryValue();
+                } else {
+                    bytesRef = leafReader.document(doc, fields).getBinaryValue(codesFieldName);
+                    if (bytesRef == null) continue;
+                }
+                if (bytesRef.length != codeLength)
+                    throw new IOException("Code length " + bytesRef.length + " of document " + (context.docBase + doc) + " does not match the codebooks, " + codeLength);
+                System.arraycopy(bytesRef.bytes, bytesRef.offset, codes, count * codeLength, codeLength);
+                docIds[count++] = context.docBase + doc;
+            }
+        }
+        if (count < docIds.length) {
+            docIds = Arrays.copyOf(docIds, count);
+            codes = Arrays.copyOf(codes, count * codeLength);
+        }
+        if (count == 0) logger.warning("No codes found in field " + codesFieldName);
+    }
+
+    /**
+     * @param lireFeature the query.
+     * @return the hits, ranked by the exact distance.
+     * @throws IOException
+     */
+    protected TopKCollector findSimilar(LireFeature lireFeature) throws IOException {
+        // first pass: approximated distances to all codes.
+        double[] table = quantizer.getDistanceTable(lireFeature.getFeatureVector());
+        int chunkSize = Math.max(GenericFastImageSearcher.MIN_CHUNK_SIZE, docIds.length / (DocumentBuilder.NUM_OF_THREADS * 4) + 1);
+        TopKCollector candidates = GenericFastImageSearcher.getSearchPool().invoke(new ScanTask(table, 0, docIds.length, chunkSize));
+
+        // second pass: exact distances for the candidates, read in order of the document ids.
+        return new ReRanker(reader, fieldName, cachedInstance.getClass()).reRank(lireFeature, candidates, maxHits);
+    }
+
+    public ImageSearchHits search(BufferedImage image, IndexReader reader) throws IOException {
+        logger.finer("Starting extraction.");
+        GlobalDocumentBuilder globalDocumentBuilder = new GlobalDocumentBuilder();
+        GlobalFeature globalFeature = globalDocumentBuilder.extractGlobalFeature(image, (GlobalFeature) extractorItem.getExtractorInstance());
+        return search(globalFeature);
+    }
+
+    public ImageSearchHits search(Document doc, IndexReader reader) throws IOException {
+        BytesRef bytesRef = doc.getBinaryValue(fieldName);
+        if (bytesRef == null) {
+            logger.warning("No feature stored in this document! (" + extractorItem.getExtractorClass().getName() + ")");
+            return null;
+        }
+        LireFeature lireFeature;
+        try {
+            lireFeature = cachedInstance.getClass().newInstance();
+        } catch (InstantiationException | IllegalAccessException e) {
+            throw new RuntimeException("Error instantiating class for product quantization image searcher: " + e.getMessage(), e);
+        }
+        lireFeature.setByteArrayRepresentation(bytesRef.bytes, bytesRef.offset, bytesRef.length);
+        return search(lireFeature);
+    }
+
+    /**
+     * @param lireFeature the query, it has to be of the class the codebooks have been trained for.
+     * @return the hits, ranked by the exact distance.
+     * @throws IOException
+     */
+    public synchronized ImageSearchHits search(LireFeature lireFeature) throws IOException {
+        TopKCollector docs = findSimilar(lireFeature);
+        return new SimpleImageSearchHits(docs, docs.getMaxDistance(), useSimilarityScore);
+    }
+
+    /**
+     * Documents with identical codes are candidates for duplicates, so only the features of the candidates are read
+     * and compared.
+     *
+     * @param reader the index, it has to be the one the searcher has been created with.
+     * @return the groups of documents with identical features, or null if there are none.
+     * @throws IOException
+     */
+    public ImageDuplicates findDuplicates(IndexReader reader) throws IOException {
+        HashMap<BytesRef, List<Integer>> candidates = new HashMap<BytesRef, List<Integer>>();
+        for (int slot = 0; slot < docIds.length; slot++) {
+            BytesRef code = new BytesRef(codes, slot * codeLength, codeLength);
+            List<Integer> docs = candidates.get(code);
+            if (docs == null) {
+                docs = new LinkedList<Integer>();
+                candidates.put(code, docs);
+            }
+            docs.add(docIds[slot]);
+        }
+        LinkedList<List<String>> results = new LinkedList<List<String>>();
+        List<LeafReaderContext> leaves = reader.leaves();
+        Set<String> fields = new HashSet<String>(Arrays.asList(fieldName, DocumentBuilder.FIELD_NAME_IDENTIFIER));
+        for (List<Integer> docs : candidates.values()) {
+            if (docs.size() < 2) continue;
+            HashMap<BytesRef, List<String>> duplicates = new HashMap<BytesRef, List<String>>();
+            for (int docId : docs) {
+                LeafReaderContext context = leaves.get(ReaderUtil.subIndex(docId, leaves));
+                Document d = context.reader().document(docId - context.docBase, fields);
+                BytesRef feature = d.getBinaryValue(fieldName);
+                if (feature == null) {
+                    BinaryDocValues docValues = context.reader().getBinaryDocValues(fieldName);
+                    if (docValues == null || !docValues.advanceExact(docId - context.docBase)) continue;
+                    feature = BytesRef.deepCopyOf(docValues.binaryValue());
+                }
+                List<String> identifiers = duplicates.get(feature);
+                if (identifiers == null) {
+                    identifiers = new LinkedList<String>();
+                    duplicates.put(feature, identifiers);
+                }
+                identifiers.add(d.get(DocumentBuilder.FIELD_NAME_IDENTIFIER));
+            }
+            for (List<String> identifiers : duplicates.values()) {
+                if (identifiers.size() > 1) results.add(identifiers);
+            }
+        }
+        if (results.isEmpty()) return null;
+        return new SimpleImageDuplicates(results);
+    }
+
+    public String toString() {
+        return "ProductQuantizationImageSearcher using " + extractorItem.getExtractorClass().getName();
+    }
+
+    /**
+     * Scans the codes from (inclusive) to (exclusive) and keeps the numCandidates ones nearest to the query.
+     */
+    private class ScanTask extends RecursiveTask<TopKCollector> {
+        private static final long serialVersionUID = 1L;
+        private final double[] table;
+        private final int from, to, chunkSize;
+
+        private ScanTask(double[] table, int from, int to, int chunkSize) {
+            this.table = table;
+            this.from = from;
+            this.to = to;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        protected TopKCollector compute() {
+            if (to - from > chunkSize) {
+                int middle = (from + to) >>> 1;
+                ScanTask left = new ScanTask(table, from, middle, chunkSize);
+                left.fork();
+                TopKCollector result = new ScanTask(table, middle, to, chunkSize).compute();
+                result.addAll(left.join());
+                return result;
+            }
+            TopKCollector localDocs = new TopKCollector(numCandidates);
+            for (int slot = from; slot < to; slot++) {
+                localDocs.insert(quantizer.getDistance(table, codes, slot * codeLength), docIds[slot]);
+            }
+            return localDocs;
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+package net.semanticmetadata.lire.searchers;
+
+import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Ranks a list of candidates, e.g. the result of a hash based query, by the exact distance of their features to
+ * the query. Only the feature field is read: from the DocValues if the segment has them, otherwise from the stored
+ * fields with a visitor that stops as soon as the field has been found, or from an {@link OffHeapFeatureCache}.
+ * The candidates are sorted by document id, so the index is read in order, and larger lists are split into chunks
+ * scored in parallel in the pool of {@link GenericFastImageSearcher#getSearchPool()}.
+ * <p>
+ * Instances are thread safe, each chunk works with its own feature instance and readers.
+ *
+ * @author Mathias Lux, mathias@juggle.at
+ */
+public class ReRanker {
+    /**
+     * Minimum number of candidates scored by one task.
+     */
+    public static final int MIN_CHUNK_SIZE = 256;
+
+    private final IndexReader reader;
+    private final String fieldName;
+    private final Class<? extends LireFeature> featureClass;
+    private final OffHeapFeatureCache cache;
+
+    /**
+     * Reads the features from the index.
+     *
+     * @param reader       the index the candidates' document ids refer to.
+     * @param fieldName    the name of the feature field, either a stored field or binary DocValues.
+     * @param featureClass the class of the indexed features.
+     */
+    public ReRanker(IndexReader reader, String fieldName, Class<? extends LireFeature> featureClass) {
+        this.reader = reader;
+        this.fieldName = fieldName;
+        this.featureClass = featureClass;
+        this.cache = null;
+    }
+
+    /**
+     * Reads the features from a cache, candidates not in the cache are ignored.
+     *
+     * @param cache        the cache holding the features of the index the candidates' document ids refer to.
+     * @param featureClass the class of the cached features.
+     */
+    public ReRanker(OffHeapFeatureCache cache, Class<? extends LireFeature> featureClass) {
+        this.reader = null;
+        this.fieldName = cache.getFieldName();
+        this.featureClass = featureClass;
+        this.cache = cache;
+    }
+
+    /**
+     * @param query      the query feature.
+     * @param candidates the candidates, e.g. from {@link org.apache.lucene.search.TopDocs#scoreDocs}.
+     * @param k          the number of results.
+     * @return the k candidates nearest to the query.
+     * @throws IOException in case the index cannot be read.
+     */
+    public TopKCollector reRank(LireFeature query, ScoreDoc[] candidates, int k) throws IOException {
+        int[] docIds = new int[candidates.length];
+        for (int i = 0; i < docIds.length; i++) {
+            docIds[i] = candidates[i].doc;
+        }
+        return rank(query, docIds, k);
+    }
+
+    /**
+     * @param query      the query feature.
+     * @param candidates the candidates, e.g. found with approximate distances.
+     * @param k          the number of results.
+     * @return the k candidates nearest to the query.
+     * @throws IOException in case the index cannot be read.
+     */
+    public TopKCollector reRank(LireFeature query, TopKCollector candidates, int k) throws IOException {
+        return rank(query, candidates.getDocIds(), k);
+    }
+
+    /**
+     * @param query  the query feature.
+     * @param docIds the document ids of the candidates, the array is not changed.
+     * @param k      the number of results.
+     * @return the k candidates nearest to the query.
+     * @throws IOException in case the index cannot be read.
+     */
+    public TopKCollector reRank(LireFeature query, int[] docIds, int k) throws IOException {
+        return rank(query, docIds.clone(), k);
+    }
+
+    private TopKCollector rank(LireFeature query, int[] docIds, int k) throws IOException {
+        Arrays.sort(docIds);
+        RankTask task = new RankTask(query, docIds, k, 0, docIds.length);
+        try {
+            if (docIds.length < 2 * MIN_CHUNK_SIZE) return task.compute();
+            return GenericFastImageSearcher.getSearchPool().invoke(task);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private LireFeature newFeature() {
+        try {
+            return featureClass.newInstance();
+        } catch (Exception e) {
+            throw new RuntimeException("Error instantiating class for re-ranking: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Scores the candidates docIds[from, to) and splits larger ranges in halves.
+     */
+    private class RankTask extends RecursiveTask<TopKCollector> {
+        private static final long serialVersionUID = 1L;
+        private final LireFeature query;
+        private final int[] docIds;
+        private final int k, from, to;
+
+        RankTask(LireFeature query, int[] docIds, int k, int from, int to) {
+            this.query = query;
+            this.docIds = docIds;
+            this.k = k;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected TopKCollector compute() {
+            if (to - from >= 2 * MIN_CHUNK_SIZE) {
+                int middle = (from + to) >>> 1;
+                RankTask right = new RankTask(query, docIds, k, middle, to);
+                right.fork();
+                TopKCollector result = new RankTask(query, docIds, k, from, middle).compute();
+                result.addAll(right.join());
+                return result;
+            }
+            TopKCollector docs = new TopKCollector(k);
+            LireFeature feature = newFeature();
+            try {
+                if (cache != null) rankCached(feature, docs);
+                else rankIndexed(feature, docs);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return docs;
+        }
+
+        private void rankCached(LireFeature feature, TopKCollector docs) {
+            OffHeapFeatureCache.Cursor cursor = cache.cursor();
+            int slot = 0;
+            for (int i = from; i < to; i++) {
+                // the cache is sorted by document id as well, so the search continues at the last slot.
+                slot = cache.findSlot(docIds[i], slot);
+                if (slot < 0) {
+                    slot = -slot - 1;
+                    continue;
+                }
+                feature.setByteArrayRepresentation(cursor.getBuffer(), 0, cursor.load(slot));
+                docs.insert(feature.getDistance(query, docs.getThreshold()), docIds[i]);
+            }
+        }
+
+        private void rankIndexed(LireFeature feature, TopKCollector docs) throws IOException {
+            List<LeafReaderContext> leaves = reader.leaves();
+            FieldVisitor visitor = new FieldVisitor(fieldName);
+            LeafReaderContext context = null;
+            BinaryDocValues docValues = null;
+            BytesRef bytesRef;
+            for (int i = from; i < to; i++) {
+                int docId = docIds[i];
+                if (context == null || docId >= context.docBase + context.reader().maxDoc()) {
+                    context = leaves.get(ReaderUtil.subIndex(docId, leaves));
+                    docValues = context.reader().getBinaryDocValues(fieldName);
+                }
+                if (docValues != null && docValues.advanceExact(docId - context.docBase)) {
+                    bytesRef = docValues.binaryValue();
+                } else {
+                    visitor.value = null;
+                    context.reader().document(docId - context.docBase, visitor);
+                    bytesRef = visitor.value;
+                    if (bytesRef == null) continue;
+                }
+                feature.setByteArrayRepresentation(bytesRef.bytes, bytesRef.offset, bytesRef.length);
+                docs.insert(feature.getDistance(query, docs.getThreshold()), docId);
+            }
+        }
+    }
+
+    /**
+     * Loads only the binary value of one stored field and stops reading the document once it has been found.
+     */
+    private static class FieldVisitor extends StoredFieldVisitor {
+        private final String fieldName;
+        private BytesRef value = null;
+
+        FieldVisitor(String fieldName) {
+            this.fieldName = fieldName;
+        }
+
+        @Override
+        public Status needsField(FieldInfo fieldInfo) {
+            if (value != null) return Status.STOP;
+            return fieldInfo.name.equals(fieldName) ? Status.YES : Status.NO;
+        }
+
+        @Override
+        public void binaryField(FieldInfo fieldInfo, byte[] value) {
+            this.value = new BytesRef(value);
+        }
+    }
+}
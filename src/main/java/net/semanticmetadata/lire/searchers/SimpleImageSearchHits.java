@@ -84,6 +84,27 @@ public class SimpleImageSearchHits implements ImageSearchHits {
         }
     }
 
+    /**
+     * Creates the results from a {@link TopKCollector}, this is where the result objects are created.
+     *
+     * @param results     the collected results.
+     * @param maxDistance the maximum distance, used for normalization.
+     */
+    public SimpleImageSearchHits(TopKCollector results, double maxDistance) {
+        this(results.getResults(), maxDistance);
+    }
+
+    /**
+     * Creates the results from a {@link TopKCollector}, this is where the result objects are created.
+     *
+     * @param results            the collected results.
+     * @param maxDistance        the maximum distance, used for normalization.
+     * @param useSimilarityScore set to true is you want similarity scores, otherwise distances will be used.
+     */
+    public SimpleImageSearchHits(TopKCollector results, double maxDistance, boolean useSimilarityScore) {
+        this(results.getResults(), maxDistance, useSimilarityScore);
+    }
+
     /**
      * Returns the size of the result list.
      *
@@ -0,0 +1,205 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+package net.semanticmetadata.lire.searchers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the k results with the smallest distances. It is a max-heap over two primitive arrays, so inserting a
+ * candidate does not allocate anything, and {@link SimpleResult} objects are only created in
+ * {@link #getResults()} when the hits are materialized. Ties are broken like in {@link SimpleResult#compareTo(SimpleResult)},
+ * i.e. the lower document id wins, so the outcome does not depend on the order of insertion.
+ * <p>
+ * Instances can be reused with {@link #clear()}. They are not thread safe, use one per thread and merge them with
+ * {@link #addAll(TopKCollector)}.
+ *
+ * @author Mathias Lux, mathias@juggle.at
+ */
+public class TopKCollector {
+    private final int k;
+    private final double[] distances;
+    private final int[] docIds;
+    private int size = 0;
+
+    /**
+     * @param k the maximum number of results kept.
+     */
+    public TopKCollector(int k) {
+        if (k < 1) throw new IllegalArgumentException("k has to be at least 1, but was " + k);
+        this.k = k;
+        distances = new double[k];
+        docIds = new int[k];
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    public boolean isFull() {
+        return size == k;
+    }
+
+    /**
+     * @return the largest distance among the kept results, -1 if there are none.
+     */
+    public double getMaxDistance() {
+        return size > 0 ? distances[0] : -1d;
+    }
+
+    /**
+     * The distance a candidate needs to beat to get in, to be used for pruning.
+     *
+     * @return the largest kept distance if the collector is full, Double.MAX_VALUE otherwise.
+     */
+    public double getThreshold() {
+        return size == k ? distances[0] : Double.MAX_VALUE;
+    }
+
+    /**
+     * Offers a candidate.
+     *
+     * @param distance the distance to the query.
+     * @param docId    the document id of the candidate.
+     * @return true if the candidate is now among the kept results.
+     */
+    public boolean insert(double distance, int docId) {
+        if (size < k) {
+            // sift up
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!isWorse(distance, docId, distances[parent], docIds[parent])) break;
+                distances[i] = distances[parent];
+                docIds[i] = docIds[parent];
+                i = parent;
+            }
+            distances[i] = distance;
+            docIds[i] = docId;
+            return true;
+        } else if (isWorse(distances[0], docIds[0], distance, docId)) {
+            siftDown(distances, docIds, size, distance, docId);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Offers all results of another collector, for instance to merge the results of several threads.
+     *
+     * @param other the collector to take the results from, it is not changed.
+     */
+    public void addAll(TopKCollector other) {
+        for (int i = 0; i < other.size; i++) {
+            insert(other.distances[i], other.docIds[i]);
+        }
+    }
+
+    /**
+     * Creates the result objects, sorted by ascending distance.
+     *
+     * @return a new list of results, the best one first.
+     */
+    public List<SimpleResult> getResults() {
+        double[] d = new double[size];
+        int[] ids = new int[size];
+        sort(d, ids);
+        ArrayList<SimpleResult> results = new ArrayList<SimpleResult>(size);
+        for (int i = 0; i < size; i++) {
+            results.add(new SimpleResult(d[i], ids[i]));
+        }
+        return results;
+    }
+
+    /**
+     * The document ids of the results without creating result objects.
+     *
+     * @return a new array of document ids, sorted by ascending distance.
+     */
+    public int[] getDocIds() {
+        int[] ids = new int[size];
+        sort(new double[size], ids);
+        return ids;
+    }
+
+    /**
+     * Copies the heap to the given arrays, size in length, and sorts them by ascending distance.
+     */
+    private void sort(double[] d, int[] ids) {
+        System.arraycopy(distances, 0, d, 0, size);
+        System.arraycopy(docIds, 0, ids, 0, size);
+        // heap sort: move the worst to the end until the heap is empty.
+        for (int end = size - 1; end > 0; end--) {
+            double tmpDistance = d[end];
+            int tmpId = ids[end];
+            d[end] = d[0];
+            ids[end] = ids[0];
+            siftDown(d, ids, end, tmpDistance, tmpId);
+        }
+    }
+
+    /**
+     * Puts the given entry at the root and sifts it down to its position.
+     */
+    private static void siftDown(double[] d, int[] ids, int length, double distance, int docId) {
+        int i = 0;
+        int child;
+        while ((child = 2 * i + 1) < length) {
+            if (child + 1 < length && isWorse(d[child + 1], ids[child + 1], d[child], ids[child])) child++;
+            if (!isWorse(d[child], ids[child], distance, docId)) break;
+            d[i] = d[child];
+            ids[i] = ids[child];
+            i = child;
+        }
+        d[i] = distance;
+        ids[i] = docId;
+    }
+
+    private static boolean isWorse(double d1, int id1, double d2, int id2) {
+        return d1 > d2 || (d1 == d2 && id1 > id2);
+    }
+}
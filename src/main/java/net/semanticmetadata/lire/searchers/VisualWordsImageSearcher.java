@@ -39,23 +39,19 @@
 
 package net.semanticmetadata.lire.searchers;
 
-import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.index.FieldInvertState;
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.queryparser.classic.ParseException;
-import org.apache.lucene.queryparser.classic.QueryParser;
-import org.apache.lucene.search.BooleanQuery;
-import org.apache.lucene.search.IndexSearcher;
-import org.apache.lucene.search.Query;
-import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.*;
 import org.apache.lucene.search.similarities.ClassicSimilarity;
 import org.apache.lucene.search.similarities.Similarity;
 import org.apache.lucene.util.BytesRef;
 
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.Map;
 
 /**
  * Provides a general searcher for visual words implementation. Can be used for SIFT, SURF and MSER.
@@ -69,21 +65,18 @@ public class VisualWordsImageSearcher extends AbstractImageSearcher {
     private Similarity similarity = new ClassicSimilarity();
     //    private Similarity similarity = new MySimilarity();
 //    private Similarity similarity = new BM25Similarity();
-    QueryParser qp;
 
 
     public VisualWordsImageSearcher(int numMaxHits, Similarity similarity, String fieldName) {
         this.similarity = similarity;
         this.numMaxHits = numMaxHits;
         this.fieldName = fieldName;
-        qp = new QueryParser(fieldName, new WhitespaceAnalyzer());
         BooleanQuery.setMaxClauseCount(10000);
     }
 
     public VisualWordsImageSearcher(int numMaxHits, String fieldName) {
         this.numMaxHits = numMaxHits;
         this.fieldName = fieldName;
-        qp = new QueryParser(fieldName, new WhitespaceAnalyzer());
         BooleanQuery.setMaxClauseCount(10000);
     }
 
@@ -92,28 +85,80 @@ public class VisualWordsImageSearcher extends AbstractImageSearcher {
     }
 
     public ImageSearchHits search(Document doc, IndexReader reader) throws IOException {
-        SimpleImageSearchHits sh = null;
+        String[] values = doc.getValues(fieldName);
+        if (values.length == 0) return null;
+        return search(createQuery(fieldName, values[0]), reader);
+    }
+
+    /**
+     * Searches for images with the visual words of the given histogram, e.g. from
+     * {@link net.semanticmetadata.lire.aggregators.BOVW#getVectorRepresentation()}.
+     * @param histogram the number of occurrences for each visual word.
+     * @param reader the index to search in.
+     * @return the hits, with 1/score as distance.
+     * @throws IOException
+     */
+    public ImageSearchHits search(double[] histogram, IndexReader reader) throws IOException {
+        return search(createQuery(fieldName, histogram), reader);
+    }
+
+    private ImageSearchHits search(Query query, IndexReader reader) throws IOException {
         IndexSearcher isearcher = new IndexSearcher(reader);
         isearcher.setSimilarity(similarity);
-        String queryString = doc.getValues(fieldName)[0];
-        Query tq = null;
-        try {
-            tq = qp.parse(queryString);
-            TopDocs docs = isearcher.search(tq, numMaxHits);
-            LinkedList<SimpleResult> res = new LinkedList<SimpleResult>();
-            double maxDistance = 0d;
-            for (int i = 0; i < docs.scoreDocs.length; i++) {
-                double d = 1d / docs.scoreDocs[i].score;
-                maxDistance = Math.max(d, maxDistance);
-                SimpleResult sr = new SimpleResult(d, docs.scoreDocs[i].doc);
-                res.add(sr);
+        TopDocs docs = isearcher.search(query, numMaxHits);
+        LinkedList<SimpleResult> res = new LinkedList<SimpleResult>();
+        double maxDistance = 0d;
+        for (int i = 0; i < docs.scoreDocs.length; i++) {
+            double d = 1d / docs.scoreDocs[i].score;
+            maxDistance = Math.max(d, maxDistance);
+            SimpleResult sr = new SimpleResult(d, docs.scoreDocs[i].doc);
+            res.add(sr);
+        }
+        return new SimpleImageSearchHits(res, maxDistance);
+    }
+
+    /**
+     * Creates a query with one clause per visual word of the histogram, boosted by the number of occurrences.
+     * This scores like a query with the visual word repeated for each occurrence, without the need to create
+     * and parse the query string.
+     * @param fieldName the field the visual words have been indexed in.
+     * @param histogram the number of occurrences for each visual word.
+     * @return the query.
+     */
+    public static Query createQuery(String fieldName, double[] histogram) {
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        for (int i = 0; i < histogram.length; i++) {
+            if ((int) histogram[i] > 0)
+                builder.add(createClause(fieldName, Integer.toHexString(i), (int) histogram[i]), BooleanClause.Occur.SHOULD);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Creates the query from a stored string of visual words, separated by white space and repeated for each
+     * occurrence, see {@link net.semanticmetadata.lire.aggregators.BOVW#getStringVectorRepresentation()}.
+     * @param fieldName the field the visual words have been indexed in.
+     * @param visualWords the visual words string.
+     * @return the query.
+     */
+    public static Query createQuery(String fieldName, String visualWords) {
+        LinkedHashMap<String, Integer> counts = new LinkedHashMap<String, Integer>();
+        for (String word : visualWords.trim().split("\\s+")) {
+            if (word.length() > 0) {
+                Integer count = counts.get(word);
+                counts.put(word, count == null ? 1 : count + 1);
             }
-            sh = new SimpleImageSearchHits(res, maxDistance);
-        } catch (ParseException e) {
-            System.err.println(queryString);
-            e.printStackTrace();
         }
-        return sh;
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            builder.add(createClause(fieldName, entry.getKey(), entry.getValue()), BooleanClause.Occur.SHOULD);
+        }
+        return builder.build();
+    }
+
+    private static Query createClause(String fieldName, String word, int count) {
+        Query query = new TermQuery(new Term(fieldName, word));
+        return count > 1 ? new BoostQuery(query, count) : query;
     }
 
     public ImageDuplicates findDuplicates(IndexReader reader) throws IOException {
@@ -47,6 +47,11 @@ package net.semanticmetadata.lire.utils;
  * Time: 14:32:49
  */
 public class MetricsUtils {
+    /**
+     * Number of dimensions summed up between two checks of the threshold in the early abandoning distance functions.
+     */
+    public static final int PRUNING_BLOCK_SIZE = 16;
+
     /**
      * Manhattan distance
      *
@@ -363,6 +368,157 @@ public class MetricsUtils {
         return sum;
     }
 
+    /**
+     * Hamming distance of two binary codes, ie. the number of different bits.
+     *
+     * @param h1
+     * @param h2
+     * @return the number of bits set in only one of the codes.
+     */
+    public static int hammingDistance(long[] h1, long[] h2) {
+        assert (h1.length == h2.length);
+        return hammingDistance(h1, h2, 0);
+    }
+
+    /**
+     * Hamming distance of a binary code to one stored in a larger array, eg. many codes one after the other.
+     *
+     * @param h1     the code, its length is the length of the codes in the array.
+     * @param codes  the array the other code is stored in.
+     * @param offset the position of the other code in the array.
+     * @return the number of bits set in only one of the codes.
+     */
+    public static int hammingDistance(long[] h1, long[] codes, int offset) {
+        int sum = 0;
+        for (int i = 0; i < h1.length; i++) {
+            sum += Long.bitCount(h1[i] ^ codes[offset + i]);
+        }
+        return sum;
+    }
+
+    /**
+     * Manhattan distance with early abandoning. The distance is accumulated in blocks of
+     * {@link #PRUNING_BLOCK_SIZE} dimensions and the computation stops as soon as it exceeds the threshold.
+     * Results below or equal to the threshold are exact, otherwise a value larger than the threshold is returned.
+     *
+     * @param h1
+     * @param h2
+     * @param threshold the distance above which the exact value is not of interest, e.g. the worst result so far.
+     * @return the distance, or a lower bound larger than the threshold.
+     */
+    public static double distL1(int[] h1, int[] h2, double threshold) {
+        assert (h1.length == h2.length);
+        double bound = threshold * h1.length;
+        double sum = 0d;
+        for (int i = 0; i < h1.length; ) {
+            for (int end = Math.min(i + PRUNING_BLOCK_SIZE, h1.length); i < end; i++) {
+                sum += Math.abs(h1[i] - h2[i]);
+            }
+            // abandoned early, make sure the result is larger than the threshold despite rounding.
+            if (sum > bound && i < h1.length) return Math.max(sum / h1.length, Math.nextUp(threshold));
+        }
+        return sum / h1.length;
+    }
+
+    public static double distL1(short[] h1, short[] h2, double threshold) {
+        assert (h1.length == h2.length);
+        double bound = threshold * h1.length;
+        double sum = 0d;
+        for (int i = 0; i < h1.length; ) {
+            for (int end = Math.min(i + PRUNING_BLOCK_SIZE, h1.length); i < end; i++) {
+                sum += Math.abs(h1[i] - h2[i]);
+            }
+            if (sum > bound && i < h1.length) return Math.max(sum / h1.length, Math.nextUp(threshold));
+        }
+        return sum / h1.length;
+    }
+
+    public static double distL1(double[] h1, double[] h2, double threshold) {
+        assert (h1.length == h2.length);
+        double bound = threshold * h1.length;
+        double sum = 0d;
+        for (int i = 0; i < h1.length; ) {
+            for (int end = Math.min(i + PRUNING_BLOCK_SIZE, h1.length); i < end; i++) {
+                sum += Math.abs(h1[i] - h2[i]);
+            }
+            if (sum > bound && i < h1.length) return Math.max(sum / h1.length, Math.nextUp(threshold));
+        }
+        return sum / h1.length;
+    }
+
+    public static double distL1(float[] h1, float[] h2, double threshold) {
+        assert (h1.length == h2.length);
+        double bound = threshold;
+        double sum = 0d;
+        for (int i = 0; i < h1.length; ) {
+            for (int end = Math.min(i + PRUNING_BLOCK_SIZE, h1.length); i < end; i++) {
+                sum += Math.abs(h1[i] - h2[i]);
+            }
+            if (sum > bound && i < h1.length) return Math.max(sum, Math.nextUp(threshold));
+        }
+        return sum;
+    }
+
+    public static double distL1(byte[] h1, byte[] h2, double threshold) {
+        assert (h1.length == h2.length);
+        double bound = threshold;
+        double sum = 0d;
+        for (int i = 0; i < h1.length; ) {
+            for (int end = Math.min(i + PRUNING_BLOCK_SIZE, h1.length); i < end; i++) {
+                sum += Math.abs(h1[i] - h2[i]);
+            }
+            if (sum > bound && i < h1.length) return Math.max(sum, Math.nextUp(threshold));
+        }
+        return sum;
+    }
+
+    /**
+     * Euclidean distance with early abandoning, see {@link #distL1(double[], double[], double)}.
+     *
+     * @param h1
+     * @param h2
+     * @param threshold the distance above which the exact value is not of interest, e.g. the worst result so far.
+     * @return the distance, or a lower bound larger than the threshold.
+     */
+    public static double distL2(int[] h1, int[] h2, double threshold) {
+        assert (h1.length == h2.length);
+        double bound = threshold * threshold;
+        double sum = 0d;
+        for (int i = 0; i < h1.length; ) {
+            for (int end = Math.min(i + PRUNING_BLOCK_SIZE, h1.length); i < end; i++) {
+                sum += (h1[i] - h2[i]) * (h1[i] - h2[i]);
+            }
+            if (sum > bound && i < h1.length) return Math.max(Math.sqrt(sum), Math.nextUp(threshold));
+        }
+        return Math.sqrt(sum);
+    }
+
+    public static double distL2(double[] h1, double[] h2, double threshold) {
+        assert (h1.length == h2.length);
+        double bound = threshold * threshold;
+        double sum = 0d;
+        for (int i = 0; i < h1.length; ) {
+            for (int end = Math.min(i + PRUNING_BLOCK_SIZE, h1.length); i < end; i++) {
+                sum += (h1[i] - h2[i]) * (h1[i] - h2[i]);
+            }
+            if (sum > bound && i < h1.length) return Math.max(Math.sqrt(sum), Math.nextUp(threshold));
+        }
+        return Math.sqrt(sum);
+    }
+
+    public static double distL2(float[] h1, float[] h2, double threshold) {
+        assert (h1.length == h2.length);
+        double bound = threshold * threshold;
+        double sum = 0d;
+        for (int i = 0; i < h1.length; ) {
+            for (int end = Math.min(i + PRUNING_BLOCK_SIZE, h1.length); i < end; i++) {
+                sum += (h1[i] - h2[i]) * (h1[i] - h2[i]);
+            }
+            if (sum > bound && i < h1.length) return Math.max(Math.sqrt(sum), Math.nextUp(threshold));
+        }
+        return Math.sqrt(sum);
+    }
+
     /**
      * Max normalization of a double[] histogram.
      *
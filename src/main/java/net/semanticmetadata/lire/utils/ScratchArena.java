@@ -0,0 +1,153 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.utils;
+
+/**
+ * A per thread pool of primitive working arrays, so extractors do not allocate new arrays for every image. Arrays
+ * are created with a length rounded up to the next power of two and handed out again for any request rounding up
+ * to the same power, so with images of similar size, like the ones scaled by the document builders, an indexing
+ * thread works with the same few arrays all the time.
+ * <p/>
+ * Arrays taken from the arena might be longer than requested and contain data from previous use. They should be
+ * released when they are not needed anymore, which is optional, but they must not be used after that.
+ *
+ * @author Mathias Lux, mathias@juggle.at
+ */
+public class ScratchArena {
+    /**
+     * Arrays with more elements are not kept in the arena.
+     */
+    public static final int MAX_ARRAY_LENGTH = 1 << 22;
+    private static final int ARRAYS_PER_BUCKET = 4;
+
+    private static final ThreadLocal<ScratchArena> arenas = new ThreadLocal<ScratchArena>() {
+        @Override
+        protected ScratchArena initialValue() {
+            return new ScratchArena();
+        }
+    };
+
+    private final Pool ints = new Pool(), doubles = new Pool(), bytes = new Pool();
+
+    /**
+     * @return the arena of the current thread.
+     */
+    public static ScratchArena get() {
+        return arenas.get();
+    }
+
+    /**
+     * @param length the minimum length of the array.
+     * @return an array with at least length elements, its content is undefined.
+     */
+    public int[] getIntArray(int length) {
+        int[] array = (int[]) ints.take(length);
+        return (array != null) ? array : new int[Pool.capacity(length)];
+    }
+
+    /**
+     * @param length the minimum length of the array.
+     * @return an array with at least length elements, its content is undefined.
+     */
+    public double[] getDoubleArray(int length) {
+        double[] array = (double[]) doubles.take(length);
+        return (array != null) ? array : new double[Pool.capacity(length)];
+    }
+
+    /**
+     * @param length the minimum length of the array.
+     * @return an array with at least length elements, its content is undefined.
+     */
+    public byte[] getByteArray(int length) {
+        byte[] array = (byte[]) bytes.take(length);
+        return (array != null) ? array : new byte[Pool.capacity(length)];
+    }
+
+    public void release(int[] array) {
+        if (array != null) ints.put(array, array.length);
+    }
+
+    public void release(double[] array) {
+        if (array != null) doubles.put(array, array.length);
+    }
+
+    public void release(byte[] array) {
+        if (array != null) bytes.put(array, array.length);
+    }
+
+    /**
+     * The free arrays of one type, bucket b holds arrays with at least 2^b elements and serves requests for lengths
+     * in (2^(b-1), 2^b]. Arrays are created with the full capacity of their bucket, so they serve any request of it.
+     */
+    private static class Pool {
+        private final Object[][] arrays = new Object[bucket(MAX_ARRAY_LENGTH) + 1][ARRAYS_PER_BUCKET];
+        private final int[] size = new int[arrays.length];
+
+        private static int bucket(int length) {
+            return 32 - Integer.numberOfLeadingZeros(length - 1);
+        }
+
+        /**
+         * @return the length of a new array for the request, the capacity of its bucket unless it is not pooled.
+         */
+        static int capacity(int length) {
+            if (length < 1 || length > MAX_ARRAY_LENGTH) return length;
+            return 1 << bucket(length);
+        }
+
+        Object take(int length) {
+            if (length < 1 || length > MAX_ARRAY_LENGTH) return null;
+            int b = bucket(length);
+            if (size[b] == 0) return null;
+            Object result = arrays[b][--size[b]];
+            arrays[b][size[b]] = null;
+            return result;
+        }
+
+        void put(Object array, int length) {
+            if (length < 1 || length > MAX_ARRAY_LENGTH) return;
+            // the largest bucket whose requests all fit, for arrays that have not been created by the arena.
+            int b = 31 - Integer.numberOfLeadingZeros(length);
+            if (size[b] < ARRAYS_PER_BUCKET) {
+                arrays[b][size[b]++] = array;
+            }
+        }
+    }
+}
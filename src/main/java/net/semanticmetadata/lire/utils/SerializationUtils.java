@@ -71,6 +71,21 @@ public class SerializationUtils {
         );
     }
 
+    /**
+     * Reads an int written by {@link #toBytes(int)} from the given position in a byte array, without copying it to
+     * a temporary array first.
+     *
+     * @param data   the input byte array
+     * @param offset the position of the first of the four bytes
+     * @return the resulting int
+     */
+    public static int toInt(byte[] data, int offset) {
+        return (0xff & data[offset]) << 24 |
+                (0xff & data[offset + 1]) << 16 |
+                (0xff & data[offset + 2]) << 8 |
+                (0xff & data[offset + 3]);
+    }
+
     /**
      * Converts an int to a byte array with 4 elements. Used to put ints into a byte[] payload in a convenient
      * and fast way by shifting without using streams (which is kind of slow). <br/>
@@ -134,6 +149,17 @@ public class SerializationUtils {
         );
     }
 
+    /**
+     * Reads a short written by {@link #toBytes(short)} from the given position in a byte array.
+     *
+     * @param data   the input byte array
+     * @param offset the position of the first of the two bytes
+     * @return the resulting short
+     */
+    public static short toShort(byte[] data, int offset) {
+        return (short) ((0xff & data[offset]) << 8 | (0xff & data[offset + 1]));
+    }
+
     public static short[] toShortArray(byte[] in, int offset, int length) {
         short[] result = new short[(length >> 1)];
         byte[] tmp = new byte[2];
@@ -170,6 +196,54 @@ public class SerializationUtils {
         );
     }
 
+    /**
+     * Reads a long written by {@link #toBytes(long)} from the given position in a byte array.
+     *
+     * @param data   the input byte array
+     * @param offset the position of the first of the eight bytes
+     * @return the resulting long
+     */
+    public static long toLong(byte[] data, int offset) {
+        return (long) (0xff & data[offset]) << 56 |
+                (long) (0xff & data[offset + 1]) << 48 |
+                (long) (0xff & data[offset + 2]) << 40 |
+                (long) (0xff & data[offset + 3]) << 32 |
+                (long) (0xff & data[offset + 4]) << 24 |
+                (long) (0xff & data[offset + 5]) << 16 |
+                (long) (0xff & data[offset + 6]) << 8 |
+                (long) (0xff & data[offset + 7]);
+    }
+
+    /**
+     * Convenience method to transform a long[] array to a byte array for serialization.
+     *
+     * @param data the long[] to convert
+     * @return the resulting byte[] 8 times in size (8 bytes per long)
+     */
+    public static byte[] toByteArray(long[] data) {
+        byte[] result = new byte[data.length * 8];
+        for (int i = 0; i < data.length; i++) {
+            System.arraycopy(toBytes(data[i]), 0, result, i * 8, 8);
+        }
+        return result;
+    }
+
+    /**
+     * Decodes a long[] array written by {@link #toByteArray(long[])}.
+     *
+     * @param in     the byte[] array to decode
+     * @param offset the position of the first byte
+     * @param length the number of bytes, 8 per long
+     * @return the decoded long[]
+     */
+    public static long[] toLongArray(byte[] in, int offset, int length) {
+        long[] result = new long[length >> 3];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = toLong(in, offset + (i << 3));
+        }
+        return result;
+    }
+
     /**
      * Convenience method to transform an int[] array to a byte array for serialization.
      *
@@ -329,6 +403,18 @@ public class SerializationUtils {
         return Double.longBitsToDouble(toLong(data));
     }
 
+    /**
+     * Reads a double written by {@link #toBytes(double)} from the given position in a byte array, without copying it
+     * to a temporary array first.
+     *
+     * @param data   the input byte array
+     * @param offset the position of the first of the eight bytes
+     * @return the resulting double
+     */
+    public static double toDouble(byte[] data, int offset) {
+        return Double.longBitsToDouble((long) toInt(data, offset) << 32 | (0xffffffffL & toInt(data, offset + 4)));
+    }
+
     /**
      * Convenience method for creating a byte array from a double array.
      *
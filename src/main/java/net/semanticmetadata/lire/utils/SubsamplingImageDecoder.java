@@ -0,0 +1,142 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.utils;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decodes images directly at a reduced resolution for feature extraction. Large photos are scaled down to
+ * {@link net.semanticmetadata.lire.builders.DocumentBuilder#MAX_IMAGE_DIMENSION} anyway, so instead of decoding
+ * all the pixels first, the decoder reads every n-th pixel of every n-th row with source subsampling, where n is
+ * chosen so the longer side of the result is still at least the minimum size. For JPEG, this saves the color
+ * conversion and the memory of the skipped pixels.
+ * <p/>
+ * Image readers are looked up once per thread and format and reused, stream caching in temporary files is avoided.
+ * Images smaller than twice the minimum size are decoded just like with {@link ImageIO#read(java.io.InputStream)}.
+ * Note that subsampling picks pixels instead of interpolating them, so features differ slightly from the ones
+ * extracted from fully decoded images.
+ *
+ * @author Mathias Lux, mathias@juggle.at
+ */
+public class SubsamplingImageDecoder {
+    private static final ThreadLocal<LinkedHashMap<ImageReaderSpi, ImageReader>> readers = new ThreadLocal<LinkedHashMap<ImageReaderSpi, ImageReader>>() {
+        @Override
+        protected LinkedHashMap<ImageReaderSpi, ImageReader> initialValue() {
+            return new LinkedHashMap<>();
+        }
+    };
+
+    private final int minimumSize;
+
+    /**
+     * @param minimumSize the minimum length of the longer side of the decoded images.
+     */
+    public SubsamplingImageDecoder(int minimumSize) {
+        if (minimumSize < 1) throw new IllegalArgumentException("The minimum size has to be positive.");
+        this.minimumSize = minimumSize;
+    }
+
+    public int getMinimumSize() {
+        return minimumSize;
+    }
+
+    /**
+     * @param width  the width of the image.
+     * @param height the height of the image.
+     * @return the subsampling factor for both directions, 1 for no subsampling.
+     */
+    public int getSubsampling(int width, int height) {
+        return Math.max(1, Math.max(width, height) / minimumSize);
+    }
+
+    /**
+     * Decodes an image from a buffer.
+     *
+     * @param buffer the encoded image.
+     * @param offset the position of the image data in the buffer.
+     * @param length the number of bytes of image data.
+     * @return the decoded image or null if there is no reader for its format, like {@link ImageIO#read(java.io.InputStream)}.
+     * @throws IOException if the image cannot be decoded.
+     */
+    public BufferedImage decode(byte[] buffer, int offset, int length) throws IOException {
+        ImageInputStream in = new MemoryCacheImageInputStream(new ByteArrayInputStream(buffer, offset, length));
+        try {
+            ImageReader reader = getReader(in);
+            if (reader == null) return null;
+            try {
+                reader.setInput(in, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                int subsampling = getSubsampling(reader.getWidth(0), reader.getHeight(0));
+                if (subsampling > 1) param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.setInput(null);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return a reader of the current thread able to decode the input, null if there is none.
+     */
+    private static ImageReader getReader(ImageInputStream in) throws IOException {
+        LinkedHashMap<ImageReaderSpi, ImageReader> cache = readers.get();
+        for (Map.Entry<ImageReaderSpi, ImageReader> entry : cache.entrySet()) {
+            if (entry.getKey().canDecodeInput(in)) return entry.getValue();
+        }
+        Iterator<ImageReader> iterator = ImageIO.getImageReaders(in);
+        if (!iterator.hasNext()) return null;
+        ImageReader reader = iterator.next();
+        if (reader.getOriginatingProvider() != null) cache.put(reader.getOriginatingProvider(), reader);
+        return reader;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * This file is part of the LIRE project: http://lire-project.net
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.utils;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.TermFrequencyAttribute;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.index.IndexOptions;
+
+import java.io.IOException;
+
+/**
+ * Indexes a visual word histogram directly: each visual word that occurs in the image is emitted once, with its
+ * hex index as term and its count as term frequency. This gives the same postings and norms as the white space
+ * separated list of repeated visual words, but without positions and without building and tokenizing the string.
+ * The field type only indexes documents and frequencies, as Lucene does not allow custom term frequencies
+ * together with positions.
+ *
+ * @author Mathias Lux, mathias@juggle.at
+ */
+public final class VisualWordsTokenStream extends TokenStream {
+    /**
+     * Field type for visual words fields, indexed with frequencies but without positions and not stored.
+     */
+    public static final FieldType TYPE = new FieldType();
+
+    static {
+        TYPE.setIndexOptions(IndexOptions.DOCS_AND_FREQS);
+        TYPE.setTokenized(true);
+        TYPE.setStored(false);
+        TYPE.freeze();
+    }
+
+    private final CharTermAttribute termAttribute = addAttribute(CharTermAttribute.class);
+    private final TermFrequencyAttribute frequencyAttribute = addAttribute(TermFrequencyAttribute.class);
+    private final double[] histogram;
+    private int position = 0;
+
+    /**
+     * @param histogram the number of occurrences for each visual word, fractions are cut off.
+     */
+    public VisualWordsTokenStream(double[] histogram) {
+        this.histogram = histogram;
+    }
+
+    /**
+     * Creates a field indexing the visual words of the histogram.
+     *
+     * @param name      the name of the field.
+     * @param histogram the number of occurrences for each visual word.
+     * @return the field, to be added to the document in addition to any stored representation.
+     */
+    public static Field createField(String name, double[] histogram) {
+        return new Field(name, new VisualWordsTokenStream(histogram), TYPE);
+    }
+
+    @Override
+    public boolean incrementToken() {
+        while (position < histogram.length && (int) histogram[position] <= 0) position++;
+        if (position >= histogram.length) return false;
+        clearAttributes();
+        termAttribute.append(Integer.toHexString(position));
+        frequencyAttribute.setTermFrequency((int) histogram[position]);
+        position++;
+        return true;
+    }
+
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        position = 0;
+    }
+}
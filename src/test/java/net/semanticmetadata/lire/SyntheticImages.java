@@ -0,0 +1,29 @@
+package net.semanticmetadata.lire;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * Creates small synthetic images for tests that need many documents, i.e. more than there are in
+ * src/test/resources/images. Each image has a random base color and every n-th pixel on average is random noise,
+ * so images are similar enough to produce meaningful rankings but hardly ever identical.
+ */
+public class SyntheticImages {
+    private SyntheticImages() {
+    }
+
+    /**
+     * @param r     the source of randomness, use a seeded one to get the same images in every run.
+     * @param size  width and height of the image.
+     * @param noise on average one in noise pixels is random, 1 means all pixels are random.
+     * @return a new RGB image.
+     */
+    public static BufferedImage create(Random r, int size, int noise) {
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        int base = r.nextInt(0xffffff);
+        for (int x = 0; x < size; x++)
+            for (int y = 0; y < size; y++)
+                image.setRGB(x, y, r.nextInt(noise) == 0 ? r.nextInt(0xffffff) : base);
+        return image;
+    }
+}
@@ -0,0 +1,101 @@
+package net.semanticmetadata.lire.aggregators;
+
+import junit.framework.TestCase;
+import net.semanticmetadata.lire.classifiers.Cluster;
+import net.semanticmetadata.lire.imageanalysis.features.LocalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.global.CEDD;
+import net.semanticmetadata.lire.imageanalysis.features.local.simple.SimpleFeature;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the cluster assignment of the {@link CodebookIndex} to a linear search over the codebook.
+ */
+public class CodebookIndexTest extends TestCase {
+    private Random random = new Random(7);
+
+    private Cluster[] createCodebook(int size, int length) {
+        Cluster[] codebook = new Cluster[size];
+        for (int i = 0; i < size; i++) {
+            double[] mean = new double[length];
+            for (int j = 0; j < length; j++) mean[j] = random.nextDouble() * 100;
+            codebook[i] = new Cluster(mean);
+        }
+        return codebook;
+    }
+
+    private double[] nearby(Cluster cluster, double noise) {
+        double[] f = cluster.getMean().clone();
+        for (int j = 0; j < f.length; j++) f[j] += random.nextGaussian() * noise;
+        return f;
+    }
+
+    private int linearSearch(double[] f, Cluster[] codebook) {
+        double distance, min = codebook[0].getDistance(f);
+        int result = 0;
+        for (int i = 1; i < codebook.length; i++) {
+            distance = codebook[i].getDistance(f);
+            if (distance < min) {
+                min = distance;
+                result = i;
+            }
+        }
+        return result;
+    }
+
+    public void testExact() {
+        Cluster[] codebook = createCodebook(500, 64);
+        CodebookIndex index = CodebookIndex.get(codebook);
+        assertSame(index, CodebookIndex.get(codebook));
+        for (int i = 0; i < 1000; i++) {
+            double[] f = nearby(codebook[random.nextInt(codebook.length)], 50);
+            assertEquals(linearSearch(f, codebook), index.nearest(f));
+            assertEquals(linearSearch(f, codebook), index.nearest(f, codebook.length));
+        }
+        // a replaced mean gives a new index.
+        codebook[3].setByteRepresentation(codebook[4].getByteRepresentation());
+        assertNotSame(index, CodebookIndex.get(codebook));
+    }
+
+    public void testApproximate() {
+        Cluster[] codebook = createCodebook(4000, 32);
+        CodebookIndex index = CodebookIndex.get(codebook);
+        int hits = 0, queries = 1000;
+        for (int i = 0; i < queries; i++) {
+            double[] f = nearby(codebook[random.nextInt(codebook.length)], 5);
+            if (index.nearest(f, 128) == linearSearch(f, codebook)) hits++;
+        }
+        assertTrue("hits: " + hits, hits > queries * 9 / 10);
+    }
+
+    public void testAggregators() {
+        Cluster[] codebook = createCodebook(300, 16);
+        List<LocalFeature> features = new ArrayList<>();
+        double[] expected = new double[codebook.length];
+        for (int i = 0; i < 2000; i++) {
+            double[] f = nearby(codebook[random.nextInt(codebook.length)], 20);
+            features.add(new SimpleFeature(f, 0, 0, 0, "test", "test", CEDD.class));
+            expected[linearSearch(f, codebook)]++;
+        }
+        BOVW bovw = new BOVW();
+        bovw.createVectorRepresentation(features, codebook);
+        assertTrue(Arrays.equals(expected, bovw.getVectorRepresentation()));
+        try {
+            AbstractAggregator.setAssignmentChecks(60);
+            bovw.createVectorRepresentation(features, codebook);
+            double[] approximate = bovw.getVectorRepresentation();
+            double sum = 0, diff = 0;
+            for (int i = 0; i < expected.length; i++) {
+                sum += approximate[i];
+                diff += Math.abs(approximate[i] - expected[i]);
+            }
+            assertEquals((double) features.size(), sum);
+            assertTrue("diff: " + diff, diff < features.size() / 5);
+        } finally {
+            AbstractAggregator.setAssignmentChecks(0);
+        }
+    }
+}
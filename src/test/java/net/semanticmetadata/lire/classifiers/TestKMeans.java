@@ -101,4 +101,70 @@ public class TestKMeans extends TestCase {
             err1 = kMeans.clusteringStep();
         }
     }
+
+    public void testParallelKMeansConvergence() throws Exception {
+        // 20 well separated blobs of 500 features each.
+        int dimensionality = 64, numBlobs = 20;
+        Random rand = new Random(7);
+        double[][] centers = new double[numBlobs][dimensionality];
+        for (double[] center : centers)
+            for (int j = 0; j < dimensionality; j++) center[j] = rand.nextDouble() * 1000;
+        for (boolean kmeansPlusPlus : new boolean[]{false, true}) {
+            ParallelKMeans kMeans = new ParallelKMeans(numBlobs);
+            for (int i = 0; i < numBlobs * 500; i++) {
+                double[] point = new double[dimensionality];
+                for (int j = 0; j < dimensionality; j++) point[j] = centers[i % numBlobs][j] + rand.nextGaussian() * 0.5;
+                kMeans.addFeature(point);
+            }
+            kMeans.init(kmeansPlusPlus);
+            double lastError = Double.MAX_VALUE;
+            int steps = 0;
+            while (kMeans.clusteringStep() > 0d && steps++ < 100) {
+                // the squared error never grows, empty clusters are moved to random features though.
+                if (kMeans.getEmptyClusters() == 0) assertTrue(kMeans.getSquaredError() <= lastError * 1.0001);
+                lastError = kMeans.getSquaredError();
+            }
+            assertEquals(0, kMeans.getReassigned());
+            int size = 0;
+            for (Cluster cluster : kMeans.getClusters()) size += cluster.getSize();
+            assertEquals(numBlobs * 500, size);
+            if (kmeansPlusPlus) {
+                // k-means++ finds all blobs.
+                for (Cluster cluster : kMeans.getClusters()) {
+                    assertEquals(500, cluster.getSize());
+                }
+            }
+        }
+    }
+
+    public void testMiniBatchKMeans() throws Exception {
+        int dimensionality = 32, numBlobs = 10;
+        Random rand = new Random(11);
+        double[][] centers = new double[numBlobs][dimensionality];
+        for (double[] center : centers)
+            for (int j = 0; j < dimensionality; j++) center[j] = rand.nextDouble() * 1000;
+        // far more features are streamed in than kept.
+        MiniBatchKMeans kMeans = new MiniBatchKMeans(numBlobs, 2000, 100);
+        for (int i = 0; i < 50000; i++) {
+            double[] point = new double[dimensionality];
+            for (int j = 0; j < dimensionality; j++) point[j] = centers[i % numBlobs][j] + rand.nextGaussian();
+            kMeans.addFeature(point);
+        }
+        assertEquals(50000, kMeans.getFeatureCount());
+        assertEquals(2000, kMeans.getReservoirCount());
+        kMeans.init(true);
+        // the means move less and less as the learning rates decrease.
+        double firstStress = kMeans.clusteringStep(), stress = firstStress;
+        for (int i = 0; i < 5; i++) stress = kMeans.clusteringStep();
+        assertTrue(stress < firstStress / 10);
+        assertEquals(0, kMeans.getEmptyClusters());
+        // each mean is close to one of the blob centers.
+        for (Cluster cluster : kMeans.getClusters()) {
+            double minDistance = Double.MAX_VALUE;
+            for (double[] center : centers) {
+                minDistance = Math.min(minDistance, net.semanticmetadata.lire.utils.MetricsUtils.distL2(center, cluster.getMean()));
+            }
+            assertTrue(minDistance < 1);
+        }
+    }
 }
@@ -52,4 +52,52 @@ public class TestGenericFeatures extends TestCase {
             assertEquals(0d, f.getDistance(g), 0.00001d);
         }
     }
+
+    public void testByteArrayDistance() {
+        for (int k = 0; k < 100; k++) {
+            GenericByteLireFeature b1 = new GenericByteLireFeature(), b2 = new GenericByteLireFeature();
+            GenericShortLireFeature s1 = new GenericShortLireFeature(), s2 = new GenericShortLireFeature();
+            GenericIntLireFeature i1 = new GenericIntLireFeature(), i2 = new GenericIntLireFeature();
+            GenericDoubleLireFeature d1 = new GenericDoubleLireFeature(), d2 = new GenericDoubleLireFeature();
+            byte[][] bytes = new byte[2][128];
+            short[][] shorts = new short[2][128];
+            int[][] ints = new int[2][128];
+            double[][] doubles = new double[2][128];
+            for (int j = 0; j < 2; j++) {
+                for (int i = 0; i < 128; i++) {
+                    bytes[j][i] = (byte) (Math.random() * 256);
+                    shorts[j][i] = (short) (Math.random() * 65536);
+                    ints[j][i] = (int) (Math.random() * 1000000);
+                    doubles[j][i] = Math.random();
+                }
+            }
+            b1.setData(bytes[0]);
+            b2.setData(bytes[1]);
+            s1.setData(shorts[0]);
+            s2.setData(shorts[1]);
+            i1.setData(ints[0]);
+            i2.setData(ints[1]);
+            d1.setData(doubles[0]);
+            d2.setData(doubles[1]);
+            checkByteArrayDistance(b1, b2);
+            checkByteArrayDistance(s1, s2);
+            checkByteArrayDistance(i1, i2);
+            checkByteArrayDistance(d1, d2);
+        }
+    }
+
+    /**
+     * Checks that the distance on the serialized feature, at an offset in a larger array, is the same as the one on
+     * the decoded feature.
+     */
+    private void checkByteArrayDistance(LireFeature query, LireFeature document) {
+        byte[] data = document.getByteArrayRepresentation();
+        byte[] padded = new byte[data.length + 7];
+        System.arraycopy(data, 0, padded, 3, data.length);
+        double distance = query.getDistance(document);
+        assertEquals(distance, ((ByteArrayDistance) query).getDistance(padded, 3, data.length), 0d);
+        double pruned = ((ByteArrayDistance) query).getDistance(padded, 3, data.length, distance / 2);
+        assertTrue(pruned > distance / 2);
+        assertEquals(distance, ((ByteArrayDistance) query).getDistance(padded, 3, data.length, distance), 0d);
+    }
 }
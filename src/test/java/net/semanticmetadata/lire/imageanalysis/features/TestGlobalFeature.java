@@ -1,8 +1,9 @@
 package net.semanticmetadata.lire.imageanalysis.features;
 
 import junit.framework.TestCase;
-import net.semanticmetadata.lire.imageanalysis.features.global.COMO;
+import net.semanticmetadata.lire.imageanalysis.features.global.*;
 import net.semanticmetadata.lire.utils.FileUtils;
+import net.semanticmetadata.lire.utils.ImageUtils;
 
 import javax.imageio.ImageIO;
 import java.io.File;
@@ -54,4 +55,57 @@ public class TestGlobalFeature extends TestCase {
         }
     }
 
+    public void testDistanceWithThreshold() throws IOException, IllegalAccessException, InstantiationException {
+        ArrayList<File> imageFiles = FileUtils.getAllImageFiles(new File("src/test/resources/images"), true);
+        Class[] classes = new Class[]{ColorLayout.class, EdgeHistogram.class, PHOG.class, JCD.class, CEDD.class};
+        for (Class c : classes) {
+            LinkedList<GlobalFeature> features = new LinkedList<>();
+            for (Iterator<File> iterator = imageFiles.iterator(); iterator.hasNext(); ) {
+                GlobalFeature f = (GlobalFeature) c.newInstance();
+                f.extract(ImageUtils.scaleImage(ImageIO.read(iterator.next()), 256));
+                features.add(f);
+            }
+            for (GlobalFeature f1 : features) {
+                for (GlobalFeature f2 : features) {
+                    double distance = f1.getDistance(f2);
+                    for (double factor : new double[]{0d, 0.25, 0.5, 0.9, 1d, 1.1, 2d}) {
+                        double threshold = distance * factor;
+                        double pruned = f1.getDistance(f2, threshold);
+                        if (distance <= threshold) assertEquals(c.getName(), distance, pruned, 0d);
+                        else assertTrue(c.getName(), pruned > threshold);
+                    }
+                    assertEquals(distance, f1.getDistance(f2, Double.MAX_VALUE), 0d);
+                }
+            }
+        }
+    }
+
+    public void testByteArrayDistance() throws IOException, IllegalAccessException, InstantiationException {
+        ArrayList<File> imageFiles = FileUtils.getAllImageFiles(new File("src/test/resources/images"), true);
+        Class[] classes = new Class[]{CEDD.class, FCTH.class, JCD.class, ColorLayout.class, EdgeHistogram.class, ScalableColor.class, PHOG.class};
+        for (Class c : classes) {
+            LinkedList<GlobalFeature> features = new LinkedList<>();
+            for (Iterator<File> iterator = imageFiles.iterator(); iterator.hasNext(); ) {
+                GlobalFeature f = (GlobalFeature) c.newInstance();
+                f.extract(ImageUtils.scaleImage(ImageIO.read(iterator.next()), 256));
+                features.add(f);
+            }
+            for (GlobalFeature f1 : features) {
+                for (GlobalFeature f2 : features) {
+                    // the searchers compare the query to features decoded from the index.
+                    byte[] data = f2.getByteArrayRepresentation();
+                    GlobalFeature decoded = (GlobalFeature) c.newInstance();
+                    decoded.setByteArrayRepresentation(data, 0, data.length);
+                    double distance = f1.getDistance(decoded);
+                    assertEquals(c.getName(), distance, ((ByteArrayDistance) f1).getDistance(data, 0, data.length), 0d);
+                    for (double factor : new double[]{0d, 0.5, 1d, 2d}) {
+                        double threshold = distance * factor;
+                        double pruned = ((ByteArrayDistance) f1).getDistance(data, 0, data.length, threshold);
+                        if (distance <= threshold) assertEquals(c.getName(), distance, pruned, 0d);
+                        else assertTrue(c.getName(), pruned > threshold);
+                    }
+                }
+            }
+        }
+    }
 }
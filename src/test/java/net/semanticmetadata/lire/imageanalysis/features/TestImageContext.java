@@ -0,0 +1,87 @@
+package net.semanticmetadata.lire.imageanalysis.features;
+
+import junit.framework.TestCase;
+import net.semanticmetadata.lire.builders.GlobalDocumentBuilder;
+import net.semanticmetadata.lire.imageanalysis.features.global.*;
+import net.semanticmetadata.lire.utils.ImageUtils;
+import org.apache.lucene.document.Document;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Checks that extracting global features from a shared {@link ImageContext} and from the image directly gives the
+ * same results as the extractors did before they worked on an ImageContext. The reference values are the MD5
+ * digests of the byte representations computed with the old extractors.
+ */
+public class TestImageContext extends TestCase {
+    private Class[] classes = {CEDD.class, FCTH.class, JCD.class, COMO.class, PHOG.class, ColorLayout.class,
+            EdgeHistogram.class, SimpleColorHistogram.class, OpponentHistogram.class};
+    // per test image (scaled color, gray, sub image) the digests in the order of the classes above.
+    private String[][] digests = {
+            {"44d01425456672e1854d3ab99c9e161d", "c52903b10f9d9e9f42813a62177fa2b4", "f5316f460ec9bbf649467089d86d0940",
+                    "8897b492158fb51a427340efada1a406", "6fd33e9b0b3230400e0fe5b7c18a4996", "81d2f4abea281e571acdf473f1670975",
+                    "69f02e4e58ce2dbfc821f0cec05a203e", "f1e2d5f90839ecde22d1c5a6c9da2041", "f4e689850517206e2a44ec0918134b70"},
+            {"52f43d5850be4887fa2c1ad028fc236f", "f1d3d74bf6d1c794fbed9364b44a83cf", "85f4b31794a03f9a89cdc1904e74c6d7",
+                    "699a05ce279e10b53411262b1df82845", "ac5e1dce7d2b0cd05b9650eb4cda0498", "0642fa8f842f325fd5fe50d84953ca3e",
+                    "d26dc527e31e71fc39ab91ad3d09060e", "08be98423b0bd383271a800894541c0f", "7cb9b1d40054149cfdf709b89a0f9d45"},
+            {"711b78f60e61d1de1d4e82f80037c360", "5f4b30e27e7e5edc9b9e9db3127e633a", "85d2943ca1bf09393e92ea9ee32a55e7",
+                    "8b900df4d636fa5024f2e4eb8f27d06b", "f4fc0f64b0f05f6d1a4735d0e7509972", "ef165a4e4f58cef3ab199b61394aa269",
+                    "aab6b8f5178c1beda0417698d792b75b", "118ce39fce8d5e8a913fe8428f899850", "ff46607b74652724832102e93eb52805"}};
+
+    private BufferedImage[] getImages() throws IOException {
+        BufferedImage image = ImageUtils.scaleImage(ImageIO.read(new File("src/test/resources/images/14474347006_99aa0fd981_k.jpg")), 320);
+        BufferedImage gray = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
+        gray.getGraphics().drawImage(image, 0, 0, null);
+        return new BufferedImage[]{image, gray, image.getSubimage(3, 5, 200, 150)};
+    }
+
+    private static String digest(byte[] data) throws NoSuchAlgorithmException {
+        StringBuilder sb = new StringBuilder(32);
+        for (byte b : MessageDigest.getInstance("MD5").digest(data)) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    public void testExtraction() throws Exception {
+        BufferedImage[] images = getImages();
+        for (int i = 0; i < images.length; i++) {
+            ImageContext context = new ImageContext(images[i]);
+            for (int j = 0; j < classes.length; j++) {
+                GlobalFeature plain = (GlobalFeature) classes[j].newInstance();
+                GlobalFeature shared = (GlobalFeature) classes[j].newInstance();
+                plain.extract(images[i]);
+                shared.extract(context);
+                String name = classes[j].getSimpleName() + " on image " + i;
+                assertEquals(name, digests[i][j], digest(plain.getByteArrayRepresentation()));
+                assertEquals(name, digests[i][j], digest(shared.getByteArrayRepresentation()));
+            }
+        }
+    }
+
+    public void testFeatureCache() throws Exception {
+        BufferedImage image = getImages()[0];
+        ImageContext context = new ImageContext(image);
+        CEDD cedd = context.getFeature(CEDD.class);
+        assertSame(cedd, context.getFeature(CEDD.class));
+        assertEquals(digests[0][0], digest(cedd.getByteArrayRepresentation()));
+        JCD jcd = new JCD();
+        jcd.extract(context);
+        assertEquals(digests[0][2], digest(jcd.getByteArrayRepresentation()));
+        // the builder shares one context among its extractors.
+        GlobalDocumentBuilder builder = new GlobalDocumentBuilder(false);
+        builder.addExtractor(CEDD.class);
+        builder.addExtractor(FCTH.class);
+        builder.addExtractor(JCD.class);
+        Document document = builder.createDocument(image, "test");
+        for (int j = 0; j < 3; j++) {
+            String fieldName = ((GlobalFeature) classes[j].newInstance()).getFieldName();
+            assertEquals(classes[j].getSimpleName(), digests[0][j], digest(document.getBinaryValue(fieldName).bytes));
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package net.semanticmetadata.lire.imageanalysis.features.local.sift;
+
+import junit.framework.TestCase;
+import net.semanticmetadata.lire.utils.ImageUtils;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the separable gaussian filters of the SIFT scale space with plain 2d convolutions.
+ */
+public class FilterTest extends TestCase {
+    private FloatArray2D randomImage(int width, int height) {
+        Random random = new Random(42);
+        FloatArray2D image = new FloatArray2D(width, height);
+        for (int i = 0; i < image.data.length; i++) image.data[i] = random.nextFloat();
+        return image;
+    }
+
+    public void testConvolveSeparable() {
+        FloatArray2D input = randomImage(97, 61);
+        float[] kernel = Filter.createGaussianKernel1D(2.5f, true);
+        int kl = kernel.length / 2;
+        FloatArray2D output = Filter.convolveSeparable(input, kernel, kernel);
+        for (int y = 0; y < input.height; y++) {
+            for (int x = 0; x < input.width; x++) {
+                float expected = 0;
+                for (int ky = 0; ky < kernel.length; ky++) {
+                    for (int kx = 0; kx < kernel.length; kx++) {
+                        expected += kernel[kx] * kernel[ky] * input.get(
+                                Filter.flipInRange(x + kx - kl, input.width),
+                                Filter.flipInRange(y + ky - kl, input.height));
+                    }
+                }
+                assertEquals(expected, output.get(x, y), 1e-5f);
+            }
+        }
+        // given buffers are filled with the same result.
+        FloatArray2D buffer = new FloatArray2D(input.width, input.height);
+        Arrays.fill(buffer.data, Float.NaN);
+        Filter.convolveSeparable(input, kernel, kernel, buffer, new FloatArray2D(input.width, input.height));
+        assertTrue(Arrays.equals(output.data, buffer.data));
+    }
+
+    public void testComputeGaussian() {
+        FloatArray2D input = randomImage(53, 40);
+        float sigma = 1.7f;
+        FloatArray2D kernel = Filter.createGaussianKernel2D(sigma, true);
+        int kl = kernel.width / 2;
+        FloatArray2D output = Filter.computeGaussian(input, sigma);
+        for (int y = 0; y < input.height; y++) {
+            for (int x = 0; x < input.width; x++) {
+                float sum = 0, kernelSum = 0;
+                for (int ky = 0; ky < kernel.height; ky++) {
+                    for (int kx = 0; kx < kernel.width; kx++) {
+                        int ix = x + kx - kl, iy = y + ky - kl;
+                        if (ix < 0 || iy < 0 || ix >= input.width || iy >= input.height) continue;
+                        sum += kernel.get(kx, ky) * input.get(ix, iy);
+                        kernelSum += kernel.get(kx, ky);
+                    }
+                }
+                assertEquals(sum / kernelSum, output.get(x, y), 1e-5f);
+            }
+        }
+    }
+
+    public void testComputeIncreasingGaussianX() {
+        FloatArray2D input = randomImage(40, 30);
+        FloatArray2D output = Filter.computeIncreasingGaussianX(input, 0.5f, 3f);
+        for (int x = 0; x < input.width; x++) {
+            FloatArray2D kernel = Filter.createGaussianKernel2D(0.5f + 2.5f / input.width * x, true);
+            int kl = kernel.width / 2;
+            for (int y = 0; y < input.height; y++) {
+                float sum = 0;
+                for (int ky = 0; ky < kernel.height; ky++) {
+                    for (int kx = 0; kx < kernel.width; kx++) {
+                        int ix = x + kx - kl, iy = y + ky - kl;
+                        if (ix < 0 || iy < 0 || ix >= input.width || iy >= input.height) continue;
+                        sum += kernel.get(kx, ky) * input.get(ix, iy);
+                    }
+                }
+                assertEquals(sum, output.get(x, y), 1e-5f);
+            }
+        }
+    }
+
+    public void testReusedScaleSpace() throws IOException {
+        BufferedImage image = ImageUtils.scaleImage(ImageIO.read(new File("src/test/resources/images/14474347006_99aa0fd981_k.jpg")), 400);
+        BufferedImage other = ImageUtils.scaleImage(ImageIO.read(new File("src/test/resources/images/16903390174_1d670a5849_h.jpg")), 400);
+        List<SiftFeature> expected = new SiftExtractor().computeSiftFeatures(image);
+        assertFalse(expected.isEmpty());
+        // the second and third image are built in the arrays of the ones before.
+        SiftExtractor extractor = new SiftExtractor();
+        extractor.computeSiftFeatures(other);
+        extractor.computeSiftFeatures(image);
+        List<SiftFeature> actual = extractor.computeSiftFeatures(image);
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertTrue(Arrays.equals(expected.get(i).getFeatureVector(), actual.get(i).getFeatureVector()));
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package net.semanticmetadata.lire.indexers.hashing;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Checks the hashes against a plain implementation and that the binary codes hold the same bits as the hashes.
+ */
+public class BitSamplingTest extends TestCase {
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        BitSampling.readHashFunctions();
+    }
+
+    public void testHashes() throws IOException {
+        ProjectionMatrix projections = BitSampling.readHashFunctions();
+        int bitsPerHash = BitSampling.getBits();
+        Random r = new Random(5);
+        double[][] histograms = new double[37][];
+        for (int n = 0; n < histograms.length; n++) {
+            histograms[n] = new double[60 + r.nextInt(500)];
+            for (int i = 0; i < histograms[n].length; i++) {
+                histograms[n][i] = r.nextDouble() * 10 - 5;
+            }
+        }
+        int[][] batch = BitSampling.generateHashes(histograms);
+        long[][] codes = BitSampling.generateBinaryCodes(histograms);
+        for (int n = 0; n < histograms.length; n++) {
+            int[] expected = new int[projections.getRows() / bitsPerHash];
+            for (int i = 0; i < expected.length; i++) {
+                for (int j = 0; j < bitsPerHash; j++) {
+                    double val = 0d;
+                    for (int k = 0; k < histograms[n].length; k++) {
+                        val += projections.get(i * bitsPerHash + j, k) * histograms[n][k];
+                    }
+                    expected[i] += Math.pow(2, j) * (val < 0 ? 0 : 1);
+                }
+            }
+            assertTrue(java.util.Arrays.equals(expected, BitSampling.generateHashes(histograms[n])));
+            assertTrue(java.util.Arrays.equals(expected, batch[n]));
+            assertTrue(java.util.Arrays.equals(BitSampling.toBinaryCode(expected), codes[n]));
+        }
+    }
+
+    public void testBinaryCode() throws IOException {
+        Random r = new Random(3);
+        double[] histogram = new double[144];
+        int bitsPerHash = BitSampling.getNumberOfBits() / BitSampling.generateHashes(histogram).length;
+        for (int n = 0; n < 50; n++) {
+            for (int i = 0; i < histogram.length; i++) {
+                histogram[i] = r.nextInt(8);
+            }
+            int[] hashes = BitSampling.generateHashes(histogram);
+            long[] code = BitSampling.generateBinaryCode(histogram);
+            assertEquals(BitSampling.getBinaryCodeLength(), code.length);
+            assertEquals(BitSampling.getNumberOfBits(), hashes.length * bitsPerHash);
+            for (int i = 0; i < hashes.length; i++) {
+                for (int j = 0; j < bitsPerHash; j++) {
+                    int bit = i * bitsPerHash + j;
+                    assertEquals(hashes[i] >>> j & 1, (int) (code[bit >>> 6] >>> (bit & 63)) & 1);
+                }
+            }
+            assertTrue(java.util.Arrays.equals(code, BitSampling.toBinaryCode(hashes)));
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package net.semanticmetadata.lire.indexers.hashing;
+
+import junit.framework.TestCase;
+import net.semanticmetadata.lire.SyntheticImages;
+import net.semanticmetadata.lire.imageanalysis.features.global.CEDD;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks training, encoding and persistence of the product quantization codebooks.
+ */
+public class ProductQuantizerTest extends TestCase {
+
+    static List<CEDD> createFeatures(int count, long seed) {
+        Random r = new Random(seed);
+        List<CEDD> features = new ArrayList<CEDD>(count);
+        for (int i = 0; i < count; i++) {
+            CEDD cedd = new CEDD();
+            cedd.extract(SyntheticImages.create(r, 32, 8));
+            features.add(cedd);
+        }
+        return features;
+    }
+
+    public void testEncoding() {
+        List<CEDD> features = createFeatures(300, 3);
+        ProductQuantizer quantizer = ProductQuantizer.train(features, 12, 16, 10);
+        assertEquals(12, quantizer.getCodeLength());
+        assertEquals(144, quantizer.getDimensions());
+        for (CEDD feature : features.subList(0, 50)) {
+            double[] vector = feature.getFeatureVector();
+            byte[] code = quantizer.encode(vector);
+            double[] decoded = quantizer.decode(code);
+            // the asymmetric distance is the squared distance to the reconstructed vector.
+            double expected = 0d;
+            for (int i = 0; i < vector.length; i++) {
+                expected += (vector[i] - decoded[i]) * (vector[i] - decoded[i]);
+            }
+            assertEquals(expected, quantizer.getDistance(quantizer.getDistanceTable(vector), code, 0), 0.000001);
+            // the reconstruction is its own nearest centroid.
+            assertTrue(Arrays.equals(code, quantizer.encode(decoded)));
+        }
+    }
+
+    public void testTrainingErrors() {
+        List<CEDD> features = createFeatures(20, 5);
+        try {
+            ProductQuantizer.train(features, 8, 20, 5);
+            fail("There are not more samples than centroids.");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            ProductQuantizer.train(features, 8, 300, 5);
+            fail("The codes do not fit in a byte.");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testPersistence() throws IOException {
+        List<CEDD> features = createFeatures(100, 11);
+        ProductQuantizer quantizer = ProductQuantizer.train(features, 7, 8, 5);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        quantizer.write(out);
+        ProductQuantizer read = ProductQuantizer.loadCodebooks(new ByteArrayInputStream(out.toByteArray()));
+        assertSame(read, ProductQuantizer.getQuantizer(CEDD.class));
+        assertTrue(ProductQuantizer.supportsFeature(features.get(0)));
+        for (CEDD feature : features) {
+            double[] vector = feature.getFeatureVector();
+            assertTrue(Arrays.equals(quantizer.encode(vector), ProductQuantizer.generateCodes(feature)));
+            assertTrue(Arrays.equals(quantizer.getDistanceTable(vector), read.getDistanceTable(vector)));
+        }
+        ProductQuantizer.quantizers.remove(CEDD.class.getName());
+    }
+}
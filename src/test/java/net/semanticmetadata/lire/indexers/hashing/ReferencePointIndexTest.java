@@ -0,0 +1,70 @@
+package net.semanticmetadata.lire.indexers.hashing;
+
+import junit.framework.TestCase;
+import net.semanticmetadata.lire.SyntheticImages;
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.global.CEDD;
+import net.semanticmetadata.lire.imageanalysis.features.global.PHOG;
+import net.semanticmetadata.lire.searchers.SimpleResult;
+
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Checks the pivot based pruning against comparing each reference point with the query.
+ */
+public class ReferencePointIndexTest extends TestCase {
+
+    public void testCEDD() throws Exception {
+        checkNearest("src/test/resources/metricspaces/refPoints_CEDD.dat.gz", CEDD.class);
+    }
+
+    public void testPHOG() throws Exception {
+        checkNearest("src/test/resources/metricspaces/refPoints_PHOG.dat.gz", PHOG.class);
+    }
+
+    private void checkNearest(String file, Class<? extends GlobalFeature> featureClass) throws Exception {
+        MetricSpaces.loadReferencePoints(new GZIPInputStream(new FileInputStream(file)));
+        ArrayList<GlobalFeature> points = MetricSpaces.referencePoints.get(featureClass.getName());
+        ReferencePointIndex pruning = new ReferencePointIndex(points, 16);
+        ReferencePointIndex plain = new ReferencePointIndex(points, 0);
+        assertEquals(16, pruning.getNumberOfPivots());
+        List<GlobalFeature> queries = createFeatures(featureClass, 20);
+        // reference points are queries too, they have to come first.
+        queries.add(points.get(7));
+        GlobalFeature[] batch = queries.toArray(new GlobalFeature[queries.size()]);
+        int[][] batchResults = pruning.getNearest(batch, 50);
+        for (int q = 0; q < batch.length; q++) {
+            TreeSet<SimpleResult> expected = new TreeSet<SimpleResult>();
+            for (int i = 0; i < points.size(); i++) {
+                expected.add(new SimpleResult(batch[q].getDistance(points.get(i)), i));
+                if (expected.size() > 50) expected.pollLast();
+            }
+            int[] expectedIds = new int[expected.size()];
+            int i = 0;
+            for (SimpleResult result : expected) {
+                expectedIds[i++] = result.getIndexNumber();
+            }
+            assertTrue(Arrays.equals(expectedIds, plain.getNearest(batch[q], 50)));
+            assertTrue(Arrays.equals(expectedIds, pruning.getNearest(batch[q], 50)));
+            assertTrue(Arrays.equals(expectedIds, batchResults[q]));
+        }
+        assertEquals(7, pruning.getNearest(points.get(7), 1)[0]);
+    }
+
+    static List<GlobalFeature> createFeatures(Class<? extends GlobalFeature> featureClass, int count) throws Exception {
+        Random r = new Random(19);
+        List<GlobalFeature> features = new ArrayList<GlobalFeature>(count);
+        for (int i = 0; i < count; i++) {
+            GlobalFeature feature = featureClass.newInstance();
+            feature.extract(SyntheticImages.create(r, 64, 2));
+            features.add(feature);
+        }
+        return features;
+    }
+}
@@ -0,0 +1,206 @@
+package net.semanticmetadata.lire.indexers.parallel;
+
+import junit.framework.TestCase;
+import net.semanticmetadata.lire.builders.DocumentBuilder;
+import net.semanticmetadata.lire.builders.GlobalDocumentBuilder;
+import net.semanticmetadata.lire.classifiers.Cluster;
+import net.semanticmetadata.lire.classifiers.MiniBatchKMeans;
+import net.semanticmetadata.lire.imageanalysis.features.global.CEDD;
+import net.semanticmetadata.lire.imageanalysis.features.local.sift.SiftExtractor;
+import net.semanticmetadata.lire.imageanalysis.features.local.sift.SiftFeature;
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiBits;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Checks the indexing pipeline of the ParallelIndexer with small queues and a missing file, and the incremental mode.
+ */
+public class ParallelIndexerTest extends TestCase {
+    private File tmpDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        tmpDirectory = Files.createTempDirectory("lire-parallel-indexer").toFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        org.apache.commons.io.FileUtils.deleteDirectory(tmpDirectory);
+        super.tearDown();
+    }
+
+    public void testPipeline() throws IOException {
+        Set<String> expected = new HashSet<String>();
+        File imageList = new File(tmpDirectory, "images.lst");
+        try (PrintWriter pw = new PrintWriter(imageList)) {
+            for (File file : new File("src/test/resources/images").listFiles()) {
+                if (file.getName().endsWith(".jpg")) {
+                    expected.add(file.getPath());
+                    pw.println(file.getPath());
+                }
+            }
+            pw.println(new File(tmpDirectory, "does-not-exist.jpg").getPath());
+        }
+        String indexPath = new File(tmpDirectory, "index").getPath();
+        ParallelIndexer indexer = new ParallelIndexer(3, indexPath, imageList, GlobalDocumentBuilder.HashingMode.None, false, 2);
+        indexer.setNumOfReadingThreads(2);
+        indexer.setNumOfDecodingThreads(2);
+        indexer.setNumOfWritingThreads(2);
+        indexer.addExtractor(CEDD.class);
+        indexer.run();
+        assertTrue(indexer.hasEnded());
+
+        IndexReader reader = DirectoryReader.open(FSDirectory.open(Paths.get(indexPath)));
+        Set<String> indexed = new HashSet<String>();
+        for (int i = 0; i < reader.maxDoc(); i++) {
+            indexed.add(reader.document(i).get(DocumentBuilder.FIELD_NAME_IDENTIFIER));
+            assertNotNull(reader.document(i).getBinaryValue(new CEDD().getFieldName()));
+        }
+        reader.close();
+        assertEquals(expected, indexed);
+    }
+
+    public void testImageDirectory() throws IOException {
+        String indexPath = new File(tmpDirectory, "index").getPath();
+        ParallelIndexer indexer = new ParallelIndexer(2, indexPath, "src/test/resources/images");
+        indexer.addExtractor(CEDD.class);
+        indexer.run();
+        IndexReader reader = DirectoryReader.open(FSDirectory.open(Paths.get(indexPath)));
+        assertEquals(10, reader.numDocs());
+        reader.close();
+    }
+
+    public void testSubsampledDecoding() throws IOException {
+        String indexPath = new File(tmpDirectory, "index").getPath();
+        ParallelIndexer indexer = new ParallelIndexer(2, indexPath, "src/test/resources/images");
+        indexer.setSubsampledDecoding(true);
+        indexer.addExtractor(CEDD.class);
+        indexer.run();
+        IndexReader reader = DirectoryReader.open(FSDirectory.open(Paths.get(indexPath)));
+        assertEquals(10, reader.numDocs());
+        for (int i = 0; i < reader.maxDoc(); i++) {
+            assertNotNull(reader.document(i).getBinaryValue(new CEDD().getFieldName()));
+        }
+        reader.close();
+    }
+
+    public void testStreamingCodebooks() throws IOException {
+        String indexPath = new File(tmpDirectory, "index").getPath();
+        ParallelIndexer indexer = new ParallelIndexer(2, indexPath, "src/test/resources/images", 32, 5);
+        indexer.setStreamingCodebooks(2000);
+        indexer.addExtractor(SiftExtractor.class);
+        indexer.run();
+        Cluster[] codebook = Cluster.readClusters(indexPath + ".config/" + new SiftFeature().getFieldName() + 32);
+        assertEquals(32, codebook.length);
+        // the sample images are indexed along with the others.
+        IndexReader reader = DirectoryReader.open(FSDirectory.open(Paths.get(indexPath)));
+        assertEquals(10, reader.numDocs());
+        reader.close();
+    }
+
+    public void testStreamingCodebooksLargeStream() {
+        final int[] steps = new int[1];
+        MiniBatchKMeans kMeans = new MiniBatchKMeans(32, 2000, 500) {
+            @Override
+            public double clusteringStep() {
+                steps[0]++;
+                return super.clusteringStep();
+            }
+        };
+        // a stream of features a lot longer than the reservoir, drawn around a few centers.
+        Random r = new Random(11);
+        double[][] centers = new double[64][16];
+        for (double[] center : centers) {
+            for (int i = 0; i < center.length; i++) center[i] = r.nextDouble() * 2;
+        }
+        for (int f = 0; f < 5000000; f++) {
+            double[] center = centers[r.nextInt(centers.length)], feature = new double[center.length];
+            for (int i = 0; i < feature.length; i++) feature[i] = center[i] + r.nextGaussian() * 0.125;
+            kMeans.addFeature(feature);
+        }
+        ParallelIndexer indexer = new ParallelIndexer(2, tmpDirectory.getPath(), "src/test/resources/images");
+        Cluster[] codebook = indexer.codebookGenerator(kMeans, 32, true);
+        assertEquals(32, codebook.length);
+        // the stop threshold depends on the reservoir, not on the length of the stream.
+        assertTrue("Only " + steps[0] + " steps.", steps[0] > 2);
+    }
+
+    public void testIncremental() throws IOException {
+        File[] images = new File("src/test/resources/images").listFiles();
+        Arrays.sort(images);
+        File directory = new File(tmpDirectory, "images");
+        for (int i = 0; i < 4; i++) {
+            FileUtils.copyFile(images[i], new File(directory, "image" + i + ".jpg"));
+        }
+        String indexPath = new File(tmpDirectory, "index").getPath();
+        Map<String, byte[]> documents = indexIncremental(indexPath, directory.getPath(), false);
+        assertEquals(4, documents.size());
+        File journal = new File(indexPath + ".config/journal.txt");
+        assertEquals(4, journalSize(journal));
+
+        // one image changed, one removed and one added.
+        File changed = new File(directory, "image1.jpg");
+        FileUtils.copyFile(images[5], changed);
+        changed.setLastModified(changed.lastModified() - 60000);
+        assertTrue(new File(directory, "image2.jpg").delete());
+        FileUtils.copyFile(images[6], new File(directory, "image4.jpg"));
+        documents = indexIncremental(indexPath, directory.getPath(), false);
+        assertEquals(4, documents.size());
+        assertFalse(documents.containsKey(new File(directory, "image2.jpg").getCanonicalPath()));
+        CEDD cedd = new CEDD();
+        cedd.extract(javax.imageio.ImageIO.read(images[5]));
+        assertTrue(Arrays.equals(cedd.getByteArrayRepresentation(), documents.get(changed.getCanonicalPath())));
+        assertEquals(4, journalSize(journal));
+
+        // the last run was interrupted before its checkpoint, documents are updated and not added twice.
+        List<String> lines = FileUtils.readLines(journal, "UTF-8");
+        FileUtils.writeLines(journal, "UTF-8", lines.subList(0, 1), "\n");
+        documents = indexIncremental(indexPath, directory.getPath(), true);
+        assertEquals(4, documents.size());
+        assertEquals(4, journalSize(journal));
+    }
+
+    private int journalSize(File file) throws IOException {
+        IndexingJournal journal = new IndexingJournal(file, false);
+        journal.close();
+        return journal.size();
+    }
+
+    private Map<String, byte[]> indexIncremental(String indexPath, String imageDirectory, boolean useContentHash) throws IOException {
+        ParallelIndexer indexer = new ParallelIndexer(2, indexPath, imageDirectory);
+        indexer.setIncremental(true, useContentHash);
+        indexer.setCheckpointInterval(2);
+        indexer.addExtractor(CEDD.class);
+        indexer.run();
+        assertTrue(indexer.hasEnded());
+        IndexReader reader = DirectoryReader.open(FSDirectory.open(Paths.get(indexPath)));
+        Map<String, byte[]> documents = new HashMap<String, byte[]>();
+        Bits liveDocs = MultiBits.getLiveDocs(reader);
+        for (int i = 0; i < reader.maxDoc(); i++) {
+            if (liveDocs != null && !liveDocs.get(i)) continue;
+            byte[] previous = documents.put(reader.document(i).get(DocumentBuilder.FIELD_NAME_IDENTIFIER),
+                    reader.document(i).getBinaryValue(new CEDD().getFieldName()).bytes);
+            assertNull(previous);
+        }
+        assertEquals(reader.numDocs(), documents.size());
+        reader.close();
+        return documents;
+    }
+}
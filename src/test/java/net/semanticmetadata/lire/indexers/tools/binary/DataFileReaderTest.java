@@ -0,0 +1,121 @@
+package net.semanticmetadata.lire.indexers.tools.binary;
+
+import junit.framework.TestCase;
+import net.semanticmetadata.lire.SyntheticImages;
+import net.semanticmetadata.lire.builders.DocumentBuilder;
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.global.CEDD;
+import net.semanticmetadata.lire.imageanalysis.features.global.PHOG;
+import net.semanticmetadata.lire.utils.SerializationUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.store.FSDirectory;
+
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Reads data files in the format of the {@link Extractor} with small windows, and indexes them in parallel.
+ */
+public class DataFileReaderTest extends TestCase {
+    private File directory;
+    private GlobalFeature[][] features;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        directory = Files.createTempDirectory("lire-data").toFile();
+        Random r = new Random(29);
+        features = new GlobalFeature[60][];
+        for (int i = 0; i < features.length; i++) {
+            BufferedImage image = SyntheticImages.create(r, 64, 1);
+            features[i] = new GlobalFeature[]{new CEDD(), new PHOG()};
+            for (GlobalFeature feature : features[i]) {
+                feature.extract(image);
+            }
+        }
+        // three files with 20 records each.
+        for (int f = 0; f < 3; f++) {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(new File(directory, "part" + f + ".data")));
+            for (int i = f * 20; i < f * 20 + 20; i++) {
+                byte[] name = ("image" + i + ".jpg").getBytes();
+                out.write(SerializationUtils.toBytes(name.length));
+                out.write(name);
+                for (GlobalFeature feature : features[i]) {
+                    out.write(Extractor.feature2index.get(feature.getClass().getName()));
+                    byte[] data = feature.getByteArrayRepresentation();
+                    out.write(SerializationUtils.toBytes(data.length));
+                    out.write(data);
+                }
+                out.write(-1);
+            }
+            out.close();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(directory);
+        super.tearDown();
+    }
+
+    public void testRead() throws IOException {
+        for (int windowSize : new int[]{64, 300, DataFileReader.WINDOW_SIZE}) {
+            DataFileReader in = new DataFileReader(new File(directory, "part1.data"), windowSize);
+            int count = 20;
+            while (in.next()) {
+                assertEquals("image" + count + ".jpg", in.getFileName());
+                assertEquals(2, in.getNumberOfFeatures());
+                for (int i = 0; i < in.getNumberOfFeatures(); i++) {
+                    GlobalFeature expected = features[count][i];
+                    assertEquals(expected.getClass().getName(), Extractor.features[in.getFeatureIndex(i)]);
+                    assertTrue(Arrays.equals(expected.getByteArrayRepresentation(),
+                            Arrays.copyOfRange(in.getRecord(), in.getFeatureOffset(i), in.getFeatureOffset(i) + in.getFeatureLength(i))));
+                }
+                count++;
+            }
+            in.close();
+            assertEquals(40, count);
+        }
+        // a record cut off at the end of the file.
+        File truncated = new File(directory, "truncated.data");
+        byte[] data = Files.readAllBytes(new File(directory, "part0.data").toPath());
+        Files.write(truncated.toPath(), Arrays.copyOf(data, data.length - 10));
+        DataFileReader in = new DataFileReader(truncated, 64);
+        int count = 0;
+        try {
+            while (in.next()) count++;
+            fail("The last record is incomplete.");
+        } catch (IOException e) {
+            assertEquals(19, count);
+        }
+        in.close();
+    }
+
+    public void testIndexor() throws IOException {
+        File index = new File(directory, "index");
+        Indexor indexor = new Indexor();
+        for (int f = 0; f < 3; f++) {
+            indexor.addInputFile(new File(directory, "part" + f + ".data"));
+        }
+        indexor.setIndexPath(index.getPath());
+        indexor.setNumberOfThreads(3);
+        indexor.run();
+        IndexReader reader = DirectoryReader.open(FSDirectory.open(index.toPath()));
+        assertEquals(60, reader.numDocs());
+        HashSet<String> names = new HashSet<String>();
+        for (int i = 0; i < reader.maxDoc(); i++) {
+            String name = reader.document(i).getValues(DocumentBuilder.FIELD_NAME_IDENTIFIER)[0];
+            names.add(name);
+            int doc = Integer.parseInt(name.substring(5, name.length() - 4));
+            assertTrue(Arrays.equals(features[doc][0].getByteArrayRepresentation(), reader.document(i).getBinaryValue(DocumentBuilder.FIELD_NAME_CEDD).bytes));
+        }
+        assertEquals(60, names.size());
+        reader.close();
+    }
+}
@@ -0,0 +1,126 @@
+package net.semanticmetadata.lire.indexers.tools.text;
+
+import junit.framework.TestCase;
+import net.semanticmetadata.lire.SyntheticImages;
+import net.semanticmetadata.lire.builders.DocumentBuilder;
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.global.CEDD;
+import net.semanticmetadata.lire.imageanalysis.features.global.PHOG;
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.store.FSDirectory;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Writes binary feature containers with and without compression and reads them back, in order and block wise.
+ */
+public class FeatureContainerTest extends TestCase {
+    private File directory;
+    private ArrayList<GlobalFeature> prototypes;
+    private byte[][][] data;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        directory = Files.createTempDirectory("lire-container").toFile();
+        prototypes = new ArrayList<>();
+        prototypes.add(new CEDD());
+        prototypes.add(new PHOG());
+        Random r = new Random(17);
+        data = new byte[50][2][];
+        for (int i = 0; i < data.length; i++) {
+            BufferedImage image = SyntheticImages.create(r, 48, 1);
+            GlobalFeature cedd = new CEDD(), phog = new PHOG();
+            cedd.extract(image);
+            phog.extract(image);
+            data[i][0] = cedd.getByteArrayRepresentation();
+            // every tenth image has no PHOG.
+            data[i][1] = (i % 10 == 3) ? null : phog.getByteArrayRepresentation();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(directory);
+        super.tearDown();
+    }
+
+    private File write(boolean compress) throws IOException {
+        File file = new File(directory, compress ? "features.z.bin" : "features.bin");
+        FeatureContainerWriter writer = new FeatureContainerWriter(file, prototypes, compress, 7);
+        for (int i = 0; i < data.length; i++) {
+            writer.add("image" + i + ".jpg", data[i]);
+        }
+        writer.close();
+        return file;
+    }
+
+    public void testIterator() throws IOException {
+        for (boolean compress : new boolean[]{false, true}) {
+            File file = write(compress);
+            assertTrue(FeatureContainerReader.isFeatureContainer(file));
+            FeatureContainerReader reader = new FeatureContainerReader(file);
+            assertEquals(compress, reader.isCompressed());
+            assertEquals(8, reader.getNumberOfBlocks());
+            assertEquals(data.length, reader.getNumberOfRecords());
+            assertTrue(Arrays.equals(new String[]{CEDD.class.getName(), PHOG.class.getName()}, reader.getFeatureClassNames()));
+            FeatureContainerReader.RecordIterator iterator = reader.iterator(3);
+            int count = 0;
+            CEDD cedd = new CEDD();
+            while (iterator.hasNext()) {
+                FeatureContainerReader.Record record = iterator.next();
+                assertEquals("image" + count + ".jpg", record.getFileName());
+                assertTrue(Arrays.equals(data[count][0], record.getFeatureData(0)));
+                assertTrue(Arrays.equals(data[count][1], record.getFeatureData(1)));
+                assertEquals(data[count][1] != null, record.hasFeature(1));
+                record.getFeature(0, cedd);
+                assertTrue(Arrays.equals(data[count][0], cedd.getByteArrayRepresentation()));
+                count++;
+            }
+            iterator.close();
+            assertEquals(data.length, count);
+            // the last block holds the remaining records.
+            assertEquals(1, reader.readBlock(7).length);
+            assertEquals("image49.jpg", reader.readBlock(7)[0].getFileName());
+            reader.close();
+        }
+    }
+
+    public void testTruncated() throws IOException {
+        File file = write(true);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 20);
+        raf.close();
+        try {
+            new FeatureContainerReader(file);
+            fail("Truncated container has been read.");
+        } catch (IOException e) {
+            // expected
+        }
+        assertFalse(FeatureContainerReader.isFeatureContainer(new File("src/test/resources/images/14474347006_99aa0fd981_k.jpg")));
+    }
+
+    public void testLuceneIndexWriter() throws IOException {
+        File index = new File(directory, "index");
+        new LuceneIndexWriter(write(true), index, false, false, false).run();
+        IndexReader reader = DirectoryReader.open(FSDirectory.open(index.toPath()));
+        assertEquals(data.length, reader.numDocs());
+        int withPhog = 0;
+        for (int i = 0; i < reader.maxDoc(); i++) {
+            int id = Integer.parseInt(reader.document(i).get(DocumentBuilder.FIELD_NAME_IDENTIFIER).replaceAll("\\D", ""));
+            assertTrue(Arrays.equals(data[id][0], reader.document(i).getBinaryValue(new CEDD().getFieldName()).bytes));
+            if (reader.document(i).getBinaryValue(new PHOG().getFieldName()) != null) withPhog++;
+        }
+        assertEquals(45, withPhog);
+        reader.close();
+    }
+}
@@ -0,0 +1,99 @@
+package net.semanticmetadata.lire.searchers;
+
+import junit.framework.TestCase;
+import net.semanticmetadata.lire.SyntheticImages;
+import net.semanticmetadata.lire.builders.DocumentBuilder;
+import net.semanticmetadata.lire.builders.GlobalDocumentBuilder;
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
+import net.semanticmetadata.lire.imageanalysis.features.global.CEDD;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that the segment parallel DocValues search returns the same results as the linear search on stored fields
+ * for an index with several segments and deleted documents.
+ */
+public class GenericDocValuesImageSearcherTest extends TestCase {
+    private int numDocs = 2500;
+    private String fieldName = new CEDD().getFieldName();
+
+    private IndexReader createIndex() throws IOException {
+        Directory directory = new ByteBuffersDirectory();
+        IndexWriterConfig config = new IndexWriterConfig(new WhitespaceAnalyzer());
+        // keep the segments, the index should not be merged.
+        config.setMergePolicy(NoMergePolicy.INSTANCE);
+        IndexWriter iw = new IndexWriter(directory, config);
+        GlobalDocumentBuilder builder = new GlobalDocumentBuilder(CEDD.class);
+        Random r = new Random(7);
+        for (int i = 0; i < numDocs; i++) {
+            BufferedImage image = SyntheticImages.create(r, 32, 8);
+            Document document = builder.createDocument(image, "img" + i);
+            document.add(new BinaryDocValuesField(fieldName, document.getBinaryValue(fieldName)));
+            iw.addDocument(document);
+            if (i % 700 == 699) iw.commit();
+        }
+        iw.deleteDocuments(new Term(DocumentBuilder.FIELD_NAME_IDENTIFIER, "img3"));
+        iw.deleteDocuments(new Term(DocumentBuilder.FIELD_NAME_IDENTIFIER, "img1500"));
+        iw.commit();
+        iw.close();
+        return DirectoryReader.open(directory);
+    }
+
+    private void assertSameHits(ImageSearchHits expected, ImageSearchHits actual) {
+        assertEquals(expected.length(), actual.length());
+        for (int j = 0; j < expected.length(); j++) {
+            assertEquals(expected.score(j), actual.score(j), 0.000001);
+            assertEquals(expected.documentID(j), actual.documentID(j));
+        }
+    }
+
+    public void testSearch() throws IOException {
+        IndexReader reader = createIndex();
+        assertTrue(reader.leaves().size() > 1);
+        GenericFastImageSearcher linear = new GenericFastImageSearcher(20, CEDD.class, false, reader);
+        GenericDocValuesImageSearcher docValues = new GenericDocValuesImageSearcher(20, CEDD.class, reader);
+        // descending document ids, the query features have to be looked up in random order.
+        for (int doc = numDocs - 1; doc >= 0; doc -= 97) {
+            assertSameHits(linear.search(reader.document(doc), reader), docValues.search(doc));
+        }
+        reader.close();
+    }
+
+    public void testGetFeature() throws IOException {
+        IndexReader reader = createIndex();
+        GenericDocValuesImageSearcher docValues = new GenericDocValuesImageSearcher(20, CEDD.class, reader);
+        CEDD stored = new CEDD();
+        for (int doc = numDocs - 1; doc >= 0; doc -= 13) {
+            LireFeature feature = docValues.getFeature(doc);
+            stored.setByteArrayRepresentation(reader.document(doc).getBinaryValue(fieldName).bytes);
+            assertEquals(0d, stored.getDistance(feature), 0d);
+        }
+        reader.close();
+    }
+
+    public void testSearchBatch() throws IOException {
+        IndexReader reader = createIndex();
+        GenericFastImageSearcher linear = new GenericFastImageSearcher(10, CEDD.class, false, reader);
+        GenericDocValuesImageSearcher docValues = new GenericDocValuesImageSearcher(10, CEDD.class, reader);
+        List<GlobalFeature> queries = new ArrayList<GlobalFeature>();
+        for (int i = 0; i < 50; i++) {
+            queries.add((GlobalFeature) docValues.getFeature(i * 47));
+        }
+        List<ImageSearchHits> batch = docValues.searchBatch(queries, 10);
+        for (int i = 0; i < queries.size(); i++) {
+            assertSameHits(linear.search(reader.document(i * 47), reader), batch.get(i));
+        }
+        reader.close();
+    }
+}
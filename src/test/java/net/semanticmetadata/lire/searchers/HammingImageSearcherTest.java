@@ -0,0 +1,154 @@
+package net.semanticmetadata.lire.searchers;
+
+import junit.framework.TestCase;
+import net.semanticmetadata.lire.SyntheticImages;
+import net.semanticmetadata.lire.builders.DocumentBuilder;
+import net.semanticmetadata.lire.builders.GlobalDocumentBuilder;
+import net.semanticmetadata.lire.imageanalysis.features.global.CEDD;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks the Hamming distance search with and without multi-index hashing against the linear search.
+ */
+public class HammingImageSearcherTest extends TestCase {
+    private int numDocs = 1500;
+    private List<BufferedImage> images = new ArrayList<BufferedImage>(numDocs);
+    private IndexReader reader;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Random r = new Random(17);
+        for (int i = 0; i < numDocs; i++) {
+            BufferedImage image = SyntheticImages.create(r, 32, 8);
+            images.add(image);
+        }
+        Directory directory = new ByteBuffersDirectory();
+        IndexWriterConfig config = new IndexWriterConfig(new WhitespaceAnalyzer());
+        config.setMergePolicy(NoMergePolicy.INSTANCE);
+        IndexWriter iw = new IndexWriter(directory, config);
+        GlobalDocumentBuilder builder = new GlobalDocumentBuilder(true, GlobalDocumentBuilder.HashingMode.BinaryBitSampling);
+        builder.addExtractor(CEDD.class);
+        for (int i = 0; i < numDocs; i++) {
+            iw.addDocument(builder.createDocument(images.get(i), "img" + i));
+            if (i % 500 == 499) iw.commit();
+        }
+        iw.deleteDocuments(new Term(DocumentBuilder.FIELD_NAME_IDENTIFIER, "img42"));
+        iw.commit();
+        iw.close();
+        reader = DirectoryReader.open(directory);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        reader.close();
+        super.tearDown();
+    }
+
+    public void testSearch() throws IOException {
+        ImageSearcher linear = new GenericFastImageSearcher(10, CEDD.class, false, reader);
+        // all the documents are candidates, so the re-ranking gives the exact results.
+        HammingImageSearcher exhaustive = new HammingImageSearcher(10, CEDD.class, reader, numDocs);
+        HammingImageSearcher scan = new HammingImageSearcher(10, CEDD.class, reader, 100);
+        HammingImageSearcher mih = new HammingImageSearcher(10, CEDD.class, reader, 100, true);
+        for (int i = 1; i < numDocs; i += 113) {
+            CEDD query = new CEDD();
+            query.extract(images.get(i));
+            ImageSearchHits expected = linear.search(images.get(i), reader);
+            ImageSearchHits actual = exhaustive.search(query);
+            assertEquals(expected.length(), actual.length());
+            for (int j = 0; j < expected.length(); j++) {
+                assertEquals(expected.score(j), actual.score(j), 0.000001);
+                assertEquals(expected.documentID(j), actual.documentID(j));
+            }
+            // the query image itself has Hamming distance 0 and should be in the short list.
+            actual = scan.search(query);
+            assertEquals(10, actual.length());
+            assertEquals(0d, actual.score(0), 0.000001);
+            assertEquals("img" + i, reader.document(actual.documentID(0)).getValues(DocumentBuilder.FIELD_NAME_IDENTIFIER)[0]);
+            assertEquals(0d, mih.search(query).score(0), 0.000001);
+        }
+    }
+
+    public void testSearchWithinRadius() throws IOException {
+        HammingImageSearcher scan = new HammingImageSearcher(numDocs, CEDD.class, reader, numDocs);
+        HammingImageSearcher mih = new HammingImageSearcher(numDocs, CEDD.class, reader, numDocs, true);
+        for (int i = 1; i < numDocs; i += 113) {
+            CEDD query = new CEDD();
+            query.extract(images.get(i));
+            for (int radius : new int[]{0, 80, 200}) {
+                ImageSearchHits expected = scan.searchWithinRadius(query, radius);
+                ImageSearchHits actual = mih.searchWithinRadius(query, radius);
+                assertTrue(expected.length() > 0);
+                assertEquals(expected.length(), actual.length());
+                for (int j = 0; j < expected.length(); j++) {
+                    assertEquals(expected.documentID(j), actual.documentID(j));
+                }
+            }
+        }
+    }
+
+    public void testFindDuplicates() throws IOException {
+        Directory directory = new ByteBuffersDirectory();
+        IndexWriter iw = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer()));
+        GlobalDocumentBuilder builder = new GlobalDocumentBuilder(true, GlobalDocumentBuilder.HashingMode.BinaryBitSampling);
+        builder.addExtractor(CEDD.class);
+        for (int i = 0; i < 300; i++) {
+            iw.addDocument(builder.createDocument(images.get(i), "img" + i));
+        }
+        iw.commit();
+        iw.addDocument(builder.createDocument(images.get(3), "copy3"));
+        iw.addDocument(builder.createDocument(images.get(5), "copy5"));
+        iw.close();
+        IndexReader reader = DirectoryReader.open(directory);
+        ImageDuplicates duplicates = new HammingImageSearcher(10, CEDD.class, reader, 100).findDuplicates(reader);
+        // the copies have the codes of their originals, other images may share codes as well.
+        List<List<String>> groups = new ArrayList<List<String>>();
+        for (int i = 0; i < duplicates.length(); i++) {
+            assertTrue(duplicates.getDuplicate(i).size() > 1);
+            groups.add(duplicates.getDuplicate(i));
+        }
+        assertTrue(containsGroup(groups, "img3", "copy3"));
+        assertTrue(containsGroup(groups, "img5", "copy5"));
+        assertFalse(containsGroup(groups, "img3", "copy5"));
+        reader.close();
+    }
+
+    private boolean containsGroup(List<List<String>> groups, String first, String second) {
+        for (List<String> group : groups) {
+            if (group.contains(first) && group.contains(second)) return true;
+        }
+        return false;
+    }
+
+    public void testCodeLengthMismatch() throws IOException {
+        Directory directory = new ByteBuffersDirectory();
+        IndexWriter iw = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer()));
+        Document document = new Document();
+        document.add(new BinaryDocValuesField(new CEDD().getFieldName() + DocumentBuilder.BINARY_HASH_FIELD_SUFFIX, new BytesRef(new byte[3])));
+        iw.addDocument(document);
+        iw.close();
+        IndexReader broken = DirectoryReader.open(directory);
+        try {
+            new HammingImageSearcher(10, CEDD.class, broken, 100);
+            fail("codes of the wrong length have to be reported.");
+        } catch (UncheckedIOException e) {
+            assertTrue(e.getMessage().contains("does not match"));
+        } finally {
+            broken.close();
+        }
+    }
+}
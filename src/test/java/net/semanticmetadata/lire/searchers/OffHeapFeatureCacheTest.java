@@ -0,0 +1,94 @@
+package net.semanticmetadata.lire.searchers;
+
+import junit.framework.TestCase;
+import net.semanticmetadata.lire.SyntheticImages;
+import net.semanticmetadata.lire.builders.DocumentBuilder;
+import net.semanticmetadata.lire.builders.GlobalDocumentBuilder;
+import net.semanticmetadata.lire.imageanalysis.features.global.CEDD;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Checks that the off-heap cache returns the same results as the on-heap cache of the GenericFastImageSearcher.
+ */
+public class OffHeapFeatureCacheTest extends TestCase {
+    private int numDocs = 3000;
+
+    private Directory createIndex() throws IOException {
+        Directory directory = new ByteBuffersDirectory();
+        IndexWriter iw = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer()));
+        GlobalDocumentBuilder builder = new GlobalDocumentBuilder(CEDD.class);
+        Random r = new Random(42);
+        for (int i = 0; i < numDocs; i++) {
+            iw.addDocument(builder.createDocument(SyntheticImages.create(r, 32, 8), "img" + i));
+        }
+        // delete some documents to check if deletions are handled.
+        iw.deleteDocuments(new Term(DocumentBuilder.FIELD_NAME_IDENTIFIER, "img7"));
+        iw.deleteDocuments(new Term(DocumentBuilder.FIELD_NAME_IDENTIFIER, "img42"));
+        iw.commit();
+        iw.close();
+        return directory;
+    }
+
+    public void testCache() throws IOException {
+        IndexReader reader = DirectoryReader.open(createIndex());
+        OffHeapFeatureCache cache = new OffHeapFeatureCache(reader, new CEDD().getFieldName(), null, 1024);
+        assertEquals(numDocs - 2, cache.size());
+        OffHeapFeatureCache.Cursor cursor = cache.cursor();
+        CEDD cached = new CEDD();
+        for (int slot = 0; slot < cache.size(); slot++) {
+            int docId = cache.getDocId(slot);
+            cached.setByteArrayRepresentation(cursor.getBuffer(), 0, cursor.load(slot));
+            CEDD stored = new CEDD();
+            stored.setByteArrayRepresentation(reader.document(docId).getBinaryValue(cached.getFieldName()).bytes);
+            assertEquals(0d, stored.getDistance(cached), 0.000001);
+        }
+        cache.close();
+        reader.close();
+    }
+
+    public void testMemoryMappedCache() throws IOException {
+        IndexReader reader = DirectoryReader.open(createIndex());
+        File file = File.createTempFile("lire-cache", ".bin");
+        OffHeapFeatureCache cache = new OffHeapFeatureCache(reader, new CEDD().getFieldName(), file, 2048);
+        assertEquals(numDocs - 2, cache.size());
+        OffHeapFeatureCache.Cursor cursor = cache.cursor();
+        // random access in descending order to check switching pages.
+        for (int slot = cache.size() - 1; slot >= 0; slot--) {
+            assertEquals(cache.getLength(slot), cursor.load(slot));
+        }
+        cache.close();
+        assertFalse(file.exists());
+        reader.close();
+    }
+
+    public void testSearch() throws IOException {
+        IndexReader reader = DirectoryReader.open(createIndex());
+        GenericFastImageSearcher heap = new GenericFastImageSearcher(20, CEDD.class, true, reader);
+        GenericFastImageSearcher offHeap = new GenericFastImageSearcher(20, CEDD.class, reader, false, true);
+        GenericFastImageSearcher linear = new GenericFastImageSearcher(20, CEDD.class, false, reader);
+        for (int i = 0; i < 10; i++) {
+            ImageSearchHits hitsLinear = linear.search(reader.document(i * 17), reader);
+            ImageSearchHits hitsHeap = heap.search(reader.document(i * 17), reader);
+            ImageSearchHits hitsOffHeap = offHeap.search(reader.document(i * 17), reader);
+            assertEquals(hitsLinear.length(), hitsHeap.length());
+            assertEquals(hitsLinear.length(), hitsOffHeap.length());
+            for (int j = 0; j < hitsHeap.length(); j++) {
+                assertEquals(hitsLinear.score(j), hitsHeap.score(j), 0.000001);
+                assertEquals(hitsLinear.score(j), hitsOffHeap.score(j), 0.000001);
+                assertEquals(hitsLinear.documentID(j), hitsOffHeap.documentID(j));
+            }
+        }
+        reader.close();
+    }
+}
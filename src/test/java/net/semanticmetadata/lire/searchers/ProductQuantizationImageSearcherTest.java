@@ -0,0 +1,131 @@
+package net.semanticmetadata.lire.searchers;
+
+import junit.framework.TestCase;
+import net.semanticmetadata.lire.SyntheticImages;
+import net.semanticmetadata.lire.builders.DocumentBuilder;
+import net.semanticmetadata.lire.builders.GlobalDocumentBuilder;
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.global.CEDD;
+import net.semanticmetadata.lire.indexers.hashing.ProductQuantizer;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks the product quantization search against the linear search, for codes in stored fields and DocValues.
+ */
+public class ProductQuantizationImageSearcherTest extends TestCase {
+    private int numDocs = 1500;
+    private List<BufferedImage> images = new ArrayList<BufferedImage>(numDocs);
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Random r = new Random(13);
+        List<GlobalFeature> samples = new ArrayList<GlobalFeature>();
+        for (int i = 0; i < numDocs; i++) {
+            BufferedImage image = SyntheticImages.create(r, 32, 8);
+            images.add(image);
+            if (i % 5 == 0) {
+                CEDD cedd = new CEDD();
+                cedd.extract(image);
+                samples.add(cedd);
+            }
+        }
+        ProductQuantizer.register(ProductQuantizer.train(samples, 16, 32, 10));
+    }
+
+    private IndexReader createIndex(boolean useDocValues) throws IOException {
+        Directory directory = new ByteBuffersDirectory();
+        IndexWriterConfig config = new IndexWriterConfig(new WhitespaceAnalyzer());
+        config.setMergePolicy(NoMergePolicy.INSTANCE);
+        IndexWriter iw = new IndexWriter(directory, config);
+        GlobalDocumentBuilder builder = new GlobalDocumentBuilder(true, GlobalDocumentBuilder.HashingMode.ProductQuantization, useDocValues);
+        builder.addExtractor(CEDD.class);
+        for (int i = 0; i < numDocs; i++) {
+            iw.addDocument(builder.createDocument(images.get(i), "img" + i));
+            if (i % 500 == 499) iw.commit();
+        }
+        iw.deleteDocuments(new Term(DocumentBuilder.FIELD_NAME_IDENTIFIER, "img42"));
+        iw.commit();
+        iw.close();
+        return DirectoryReader.open(directory);
+    }
+
+    private void checkSearch(boolean useDocValues) throws IOException {
+        IndexReader reader = createIndex(useDocValues);
+        ImageSearcher linear = useDocValues ? new GenericDocValuesImageSearcher(10, CEDD.class, reader) : new GenericFastImageSearcher(10, CEDD.class, false, reader);
+        // all the documents are candidates, so the re-ranking gives the exact results.
+        ProductQuantizationImageSearcher exhaustive = new ProductQuantizationImageSearcher(10, CEDD.class, reader, numDocs);
+        ProductQuantizationImageSearcher pq = new ProductQuantizationImageSearcher(10, CEDD.class, reader, 100);
+        for (int i = 1; i < numDocs; i += 113) {
+            CEDD query = new CEDD();
+            query.extract(images.get(i));
+            ImageSearchHits expected = linear.search(images.get(i), reader);
+            ImageSearchHits actual = exhaustive.search(query);
+            assertEquals(expected.length(), actual.length());
+            for (int j = 0; j < expected.length(); j++) {
+                assertEquals(expected.score(j), actual.score(j), 0.000001);
+                assertEquals(expected.documentID(j), actual.documentID(j));
+            }
+            // the query image itself has distance 0 and should be in the short list.
+            actual = pq.search(query);
+            assertEquals(10, actual.length());
+            assertEquals(0d, actual.score(0), 0.000001);
+            assertEquals("img" + i, reader.document(actual.documentID(0)).getValues(DocumentBuilder.FIELD_NAME_IDENTIFIER)[0]);
+        }
+        reader.close();
+    }
+
+    private void checkDuplicates(boolean useDocValues) throws IOException {
+        Directory directory = new ByteBuffersDirectory();
+        IndexWriter iw = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer()));
+        GlobalDocumentBuilder builder = new GlobalDocumentBuilder(true, GlobalDocumentBuilder.HashingMode.ProductQuantization, useDocValues);
+        builder.addExtractor(CEDD.class);
+        for (int i = 0; i < 300; i++) {
+            iw.addDocument(builder.createDocument(images.get(i), "img" + i));
+        }
+        iw.commit();
+        iw.addDocument(builder.createDocument(images.get(3), "copy3"));
+        iw.addDocument(builder.createDocument(images.get(5), "copy5"));
+        iw.addDocument(builder.createDocument(images.get(5), "copy5b"));
+        iw.close();
+        IndexReader reader = DirectoryReader.open(directory);
+        ImageDuplicates duplicates = new ProductQuantizationImageSearcher(10, CEDD.class, reader, 100).findDuplicates(reader);
+        assertEquals(2, duplicates.length());
+        for (int i = 0; i < duplicates.length(); i++) {
+            List<String> identifiers = duplicates.getDuplicate(i);
+            if (identifiers.contains("img3"))
+                assertEquals(new HashSet<String>(Arrays.asList("img3", "copy3")), new HashSet<String>(identifiers));
+            else
+                assertEquals(new HashSet<String>(Arrays.asList("img5", "copy5", "copy5b")), new HashSet<String>(identifiers));
+        }
+        reader.close();
+    }
+
+    public void testSearchStoredCodes() throws IOException {
+        checkSearch(false);
+    }
+
+    public void testSearchDocValuesCodes() throws IOException {
+        checkSearch(true);
+    }
+
+    public void testFindDuplicatesStoredCodes() throws IOException {
+        checkDuplicates(false);
+    }
+
+    public void testFindDuplicatesDocValuesCodes() throws IOException {
+        checkDuplicates(true);
+    }
+}
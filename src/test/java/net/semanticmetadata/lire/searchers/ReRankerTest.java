@@ -0,0 +1,100 @@
+package net.semanticmetadata.lire.searchers;
+
+import junit.framework.TestCase;
+import net.semanticmetadata.lire.SyntheticImages;
+import net.semanticmetadata.lire.builders.GlobalDocumentBuilder;
+import net.semanticmetadata.lire.imageanalysis.features.global.CEDD;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that re-ranking from DocValues, stored fields and the feature cache gives the same results as reading
+ * the whole documents.
+ */
+public class ReRankerTest extends TestCase {
+    private int numDocs = 2000, k = 50;
+    private String fieldName = new CEDD().getFieldName();
+
+    /**
+     * Two segments, the second one has the features as DocValues too.
+     */
+    private IndexReader createIndex() throws IOException {
+        Directory directory = new ByteBuffersDirectory();
+        IndexWriterConfig config = new IndexWriterConfig(new WhitespaceAnalyzer());
+        IndexWriter iw = new IndexWriter(directory, config);
+        GlobalDocumentBuilder builder = new GlobalDocumentBuilder(CEDD.class);
+        Random r = new Random(3);
+        for (int i = 0; i < numDocs; i++) {
+            BufferedImage image = SyntheticImages.create(r, 16, 4);
+            Document document = builder.createDocument(image, "img" + i);
+            if (i >= numDocs / 2)
+                document.add(new BinaryDocValuesField(fieldName, document.getBinaryValue(fieldName)));
+            iw.addDocument(document);
+            if (i == numDocs / 2 - 1) iw.commit();
+        }
+        iw.close();
+        return DirectoryReader.open(directory);
+    }
+
+    public void testReRank() throws IOException {
+        IndexReader reader = createIndex();
+        assertTrue(reader.leaves().size() > 1);
+        OffHeapFeatureCache cache = new OffHeapFeatureCache(reader, fieldName);
+        ReRanker indexed = new ReRanker(reader, fieldName, CEDD.class);
+        ReRanker cached = new ReRanker(cache, CEDD.class);
+        Random r = new Random(5);
+        for (int q = 0; q < 5; q++) {
+            CEDD query = new CEDD();
+            query.setByteArrayRepresentation(reader.document(r.nextInt(numDocs)).getBinaryValue(fieldName).bytes);
+            // candidates in random order, more than one chunk.
+            int[] candidates = new int[1200];
+            for (int i = 0; i < candidates.length; i++) candidates[i] = r.nextInt(numDocs);
+            TopKCollector expected = new TopKCollector(k);
+            ScoreDoc[] scoreDocs = new ScoreDoc[candidates.length];
+            for (int i = 0; i < candidates.length; i++) {
+                CEDD feature = new CEDD();
+                feature.setByteArrayRepresentation(reader.document(candidates[i]).getBinaryValue(fieldName).bytes);
+                expected.insert(query.getDistance(feature), candidates[i]);
+                scoreDocs[i] = new ScoreDoc(candidates[i], 1f);
+            }
+            int[] copy = candidates.clone();
+            assertResults(expected, indexed.reRank(query, candidates, k));
+            assertTrue(Arrays.equals(copy, candidates));
+            assertResults(expected, indexed.reRank(query, scoreDocs, k));
+            assertResults(expected, cached.reRank(query, candidates, k));
+            // a short list is scored in the calling thread.
+            TopKCollector few = new TopKCollector(3);
+            for (int i = 0; i < 10; i++) {
+                CEDD feature = new CEDD();
+                feature.setByteArrayRepresentation(reader.document(candidates[i]).getBinaryValue(fieldName).bytes);
+                few.insert(query.getDistance(feature), candidates[i]);
+            }
+            assertResults(few, indexed.reRank(query, Arrays.copyOf(candidates, 10), 3));
+        }
+        cache.close();
+        reader.close();
+    }
+
+    private void assertResults(TopKCollector expected, TopKCollector actual) {
+        List<SimpleResult> e = expected.getResults(), a = actual.getResults();
+        assertEquals(e.size(), a.size());
+        for (int i = 0; i < e.size(); i++) {
+            assertEquals(e.get(i).getIndexNumber(), a.get(i).getIndexNumber());
+            assertEquals(e.get(i).getDistance(), a.get(i).getDistance(), 1e-9);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package net.semanticmetadata.lire.searchers;
+
+import junit.framework.TestCase;
+import net.semanticmetadata.lire.SyntheticImages;
+import net.semanticmetadata.lire.builders.GlobalDocumentBuilder;
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.global.CEDD;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that batch search returns the same results as searching the queries one by one.
+ */
+public class SearchBatchTest extends TestCase {
+    private int numDocs = 3000;
+    private String fieldName = new CEDD().getFieldName();
+
+    private IndexReader createIndex() throws IOException {
+        Directory directory = new ByteBuffersDirectory();
+        IndexWriter iw = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer()));
+        GlobalDocumentBuilder builder = new GlobalDocumentBuilder(CEDD.class);
+        Random r = new Random(42);
+        for (int i = 0; i < numDocs; i++) {
+            BufferedImage image = SyntheticImages.create(r, 32, 8);
+            Document document = builder.createDocument(image, "img" + i);
+            // the same feature as DocValues for the DocValues based searcher.
+            document.add(new BinaryDocValuesField(fieldName, document.getBinaryValue(fieldName)));
+            iw.addDocument(document);
+        }
+        iw.commit();
+        iw.close();
+        return DirectoryReader.open(directory);
+    }
+
+    private List<GlobalFeature> getQueries(IndexReader reader) throws IOException {
+        List<GlobalFeature> queries = new ArrayList<GlobalFeature>();
+        for (int i = 0; i < 100; i++) {
+            CEDD query = new CEDD();
+            query.setByteArrayRepresentation(reader.document(i * 29).getBinaryValue(fieldName).bytes);
+            queries.add(query);
+        }
+        return queries;
+    }
+
+    private void assertSameHits(ImageSearchHits expected, ImageSearchHits actual) {
+        assertEquals(expected.length(), actual.length());
+        for (int j = 0; j < expected.length(); j++) {
+            assertEquals(expected.score(j), actual.score(j), 0.000001);
+            assertEquals(expected.documentID(j), actual.documentID(j));
+        }
+    }
+
+    public void testSearchBatch() throws IOException {
+        IndexReader reader = createIndex();
+        List<GlobalFeature> queries = getQueries(reader);
+        GenericFastImageSearcher linear = new GenericFastImageSearcher(10, CEDD.class, false, reader);
+        GenericFastImageSearcher cached = new GenericFastImageSearcher(10, CEDD.class, true, reader);
+        GenericFastImageSearcher offHeap = new GenericFastImageSearcher(10, CEDD.class, reader, false, true);
+        GenericDocValuesImageSearcher docValues = new GenericDocValuesImageSearcher(10, CEDD.class, reader);
+        List<ImageSearchHits> linearHits = linear.searchBatch(queries, 10);
+        List<ImageSearchHits> cachedHits = cached.searchBatch(queries, 10);
+        List<ImageSearchHits> offHeapHits = offHeap.searchBatch(queries, 10);
+        List<ImageSearchHits> docValuesHits = docValues.searchBatch(queries, 10);
+        assertEquals(queries.size(), linearHits.size());
+        for (int i = 0; i < queries.size(); i++) {
+            ImageSearchHits expected = linear.search(reader.document(i * 29), reader);
+            assertSameHits(expected, linearHits.get(i));
+            assertSameHits(expected, cachedHits.get(i));
+            assertSameHits(expected, offHeapHits.get(i));
+            assertSameHits(expected, docValuesHits.get(i));
+        }
+        reader.close();
+    }
+}
@@ -0,0 +1,64 @@
+package net.semanticmetadata.lire.searchers;
+
+import junit.framework.TestCase;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * Checks the TopKCollector against the TreeSet based approach it replaces.
+ */
+public class TopKCollectorTest extends TestCase {
+
+    public void testAgainstTreeSet() {
+        Random r = new Random(17);
+        for (int k : new int[]{1, 5, 50, 1000}) {
+            TopKCollector collector = new TopKCollector(k);
+            TreeSet<SimpleResult> treeSet = new TreeSet<SimpleResult>();
+            for (int i = 0; i < 5000; i++) {
+                // few different values to get a lot of ties.
+                double distance = r.nextInt(100) / 10d;
+                collector.insert(distance, i);
+                treeSet.add(new SimpleResult(distance, i));
+                if (treeSet.size() > k) treeSet.pollLast();
+            }
+            assertEquals(treeSet.last().getDistance(), collector.getMaxDistance());
+            List<SimpleResult> results = collector.getResults();
+            int[] docIds = collector.getDocIds();
+            assertEquals(treeSet.size(), results.size());
+            assertEquals(treeSet.size(), docIds.length);
+            Iterator<SimpleResult> iterator = treeSet.iterator();
+            for (int i = 0; i < results.size(); i++) {
+                SimpleResult expected = iterator.next();
+                assertEquals(expected.getDistance(), results.get(i).getDistance());
+                assertEquals(expected.getIndexNumber(), results.get(i).getIndexNumber());
+                assertEquals(expected.getIndexNumber(), docIds[i]);
+            }
+        }
+    }
+
+    public void testMerge() {
+        Random r = new Random(23);
+        TopKCollector all = new TopKCollector(20);
+        TopKCollector[] parts = new TopKCollector[]{new TopKCollector(20), new TopKCollector(20), new TopKCollector(20)};
+        for (int i = 0; i < 3000; i++) {
+            double distance = r.nextDouble();
+            all.insert(distance, i);
+            parts[i % 3].insert(distance, i);
+        }
+        TopKCollector merged = new TopKCollector(20);
+        // merge in reverse order, the result must not depend on it.
+        for (int i = parts.length - 1; i >= 0; i--) merged.addAll(parts[i]);
+        List<SimpleResult> expected = all.getResults();
+        List<SimpleResult> actual = merged.getResults();
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getIndexNumber(), actual.get(i).getIndexNumber());
+        }
+        merged.clear();
+        assertEquals(0, merged.size());
+        assertEquals(-1d, merged.getMaxDistance());
+        assertEquals(Double.MAX_VALUE, merged.getThreshold());
+    }
+}
@@ -0,0 +1,79 @@
+package net.semanticmetadata.lire.searchers;
+
+import junit.framework.TestCase;
+import net.semanticmetadata.lire.utils.VisualWordsTokenStream;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.*;
+import org.apache.lucene.index.*;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.similarities.ClassicSimilarity;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Checks that visual words indexed with term frequencies and searched with a boosted query score like the
+ * repeated visual words string parsed with the QueryParser.
+ */
+public class VisualWordsImageSearcherTest extends TestCase {
+    private int numDocs = 300, numWords = 512;
+    private double[][] histograms = new double[numDocs][];
+
+    private String toVisualWordString(double[] histogram) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < histogram.length; i++) {
+            for (int j = 0; j < (int) histogram[i]; j++) sb.append(Integer.toHexString(i)).append(' ');
+        }
+        return sb.toString();
+    }
+
+    private IndexReader createIndex() throws Exception {
+        Directory directory = new ByteBuffersDirectory();
+        IndexWriter iw = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer()));
+        Random r = new Random(17);
+        for (int i = 0; i < numDocs; i++) {
+            histograms[i] = new double[numWords];
+            for (int j = 0; j < 200; j++) histograms[i][r.nextInt(r.nextBoolean() ? 32 : numWords)]++;
+            String words = toVisualWordString(histograms[i]);
+            Document document = new Document();
+            document.add(new TextField("old", words, Field.Store.YES));
+            document.add(VisualWordsTokenStream.createField("new", histograms[i]));
+            document.add(new StoredField("new", words));
+            iw.addDocument(document);
+        }
+        iw.close();
+        return DirectoryReader.open(directory);
+    }
+
+    public void testScores() throws Exception {
+        IndexReader reader = createIndex();
+        assertEquals(IndexOptions.DOCS_AND_FREQS, FieldInfos.getMergedFieldInfos(reader).fieldInfo("new").getIndexOptions());
+        BooleanQuery.setMaxClauseCount(10000);
+        QueryParser qp = new QueryParser("old", new WhitespaceAnalyzer());
+        IndexSearcher isearcher = new IndexSearcher(reader);
+        isearcher.setSimilarity(new ClassicSimilarity());
+        VisualWordsImageSearcher searcher = new VisualWordsImageSearcher(numDocs, "new");
+        for (int q = 0; q < numDocs; q += 37) {
+            TopDocs expected = isearcher.search(qp.parse(reader.document(q).getValues("old")[0]), numDocs);
+            HashMap<Integer, Float> scores = new HashMap<>();
+            for (ScoreDoc scoreDoc : expected.scoreDocs) scores.put(scoreDoc.doc, scoreDoc.score);
+            ImageSearchHits hits = searcher.search(reader.document(q), reader);
+            ImageSearchHits fromHistogram = searcher.search(histograms[q], reader);
+            assertEquals(expected.scoreDocs.length, hits.length());
+            assertEquals(q, hits.documentID(0));
+            for (int i = 0; i < hits.length(); i++) {
+                float score = scores.get(hits.documentID(i));
+                assertEquals(1d / score, hits.score(i), 1e-5 * hits.score(i));
+                assertEquals(hits.documentID(i), fromHistogram.documentID(i));
+                assertEquals(hits.score(i), fromHistogram.score(i), 1e-5 * hits.score(i));
+            }
+        }
+        reader.close();
+    }
+}
@@ -2,6 +2,8 @@ package net.semanticmetadata.lire.utils;
 
 import org.junit.Test;
 
+import java.util.Random;
+
 import static org.junit.Assert.*;
 
 public class MetricsUtilsTest {
@@ -24,6 +26,58 @@ public class MetricsUtilsTest {
         }
     }
 
+    @Test
+    public void distanceWithThreshold() {
+        Random r = new Random(11);
+        double[] d1 = new double[100], d2 = new double[100];
+        float[] f1 = new float[100], f2 = new float[100];
+        int[] i1 = new int[100], i2 = new int[100];
+        for (int j = 0; j < 100; j++) {
+            for (int i = 0; i < d1.length; i++) {
+                d1[i] = r.nextDouble();
+                d2[i] = r.nextDouble();
+                f1[i] = (float) d1[i];
+                f2[i] = (float) d2[i];
+                i1[i] = r.nextInt(256);
+                i2[i] = r.nextInt(256);
+            }
+            for (double factor : new double[]{0d, 0.5, 0.99, 1d, 2d}) {
+                checkThreshold(MetricsUtils.distL1(d1, d2), MetricsUtils.distL1(d1, d2, MetricsUtils.distL1(d1, d2) * factor), MetricsUtils.distL1(d1, d2) * factor);
+                checkThreshold(MetricsUtils.distL1(f1, f2), MetricsUtils.distL1(f1, f2, MetricsUtils.distL1(f1, f2) * factor), MetricsUtils.distL1(f1, f2) * factor);
+                checkThreshold(MetricsUtils.distL1(i1, i2), MetricsUtils.distL1(i1, i2, MetricsUtils.distL1(i1, i2) * factor), MetricsUtils.distL1(i1, i2) * factor);
+                checkThreshold(MetricsUtils.distL2(d1, d2), MetricsUtils.distL2(d1, d2, MetricsUtils.distL2(d1, d2) * factor), MetricsUtils.distL2(d1, d2) * factor);
+                checkThreshold(MetricsUtils.distL2(f1, f2), MetricsUtils.distL2(f1, f2, MetricsUtils.distL2(f1, f2) * factor), MetricsUtils.distL2(f1, f2) * factor);
+                checkThreshold(MetricsUtils.distL2(i1, i2), MetricsUtils.distL2(i1, i2, MetricsUtils.distL2(i1, i2) * factor), MetricsUtils.distL2(i1, i2) * factor);
+            }
+        }
+    }
+
+    @Test
+    public void hammingDistance() {
+        Random r = new Random(7);
+        long[] h1 = new long[19], h2 = new long[19];
+        for (int j = 0; j < 100; j++) {
+            int expected = 0;
+            for (int i = 0; i < h1.length; i++) {
+                h1[i] = r.nextLong();
+                h2[i] = r.nextLong();
+                for (int bit = 0; bit < 64; bit++)
+                    if ((h1[i] >>> bit & 1) != (h2[i] >>> bit & 1)) expected++;
+            }
+            assertEquals(expected, MetricsUtils.hammingDistance(h1, h2));
+            assertEquals(0, MetricsUtils.hammingDistance(h1, h1));
+            long[] codes = new long[3 * h2.length];
+            System.arraycopy(h2, 0, codes, h2.length, h2.length);
+            assertEquals(expected, MetricsUtils.hammingDistance(h1, codes, h2.length));
+            assertArrayEquals(h2, SerializationUtils.toLongArray(SerializationUtils.toByteArray(codes), h2.length * 8, h2.length * 8));
+        }
+    }
+
+    private void checkThreshold(double distance, double pruned, double threshold) {
+        if (distance <= threshold) assertEquals(distance, pruned, 0d);
+        else assertTrue(pruned > threshold);
+    }
+
 //    static public float cosine(SparseVector v1, SparseVector v2) {
 //        float c;
 //        if (v1.normalized && v2.normalized) {
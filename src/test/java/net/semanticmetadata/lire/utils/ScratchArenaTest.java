@@ -0,0 +1,140 @@
+package net.semanticmetadata.lire.utils;
+
+import junit.framework.TestCase;
+import net.semanticmetadata.lire.imageanalysis.features.ImageContext;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks that the per thread arena hands released arrays out again and keeps them apart between threads.
+ */
+public class ScratchArenaTest extends TestCase {
+    /**
+     * Runs a check with the empty arena of a new thread, other tests might have left arrays in this one's.
+     */
+    private void runInNewThread(final Runnable check) throws Throwable {
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    check.run();
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            }
+        });
+        t.start();
+        t.join();
+        if (error.get() != null) throw error.get();
+    }
+
+    public void testReuse() throws Throwable {
+        runInNewThread(new Runnable() {
+            @Override
+            public void run() {
+                checkReuse();
+            }
+        });
+    }
+
+    private void checkReuse() {
+        ScratchArena arena = ScratchArena.get();
+        assertSame(arena, ScratchArena.get());
+        double[] d = arena.getDoubleArray(1000);
+        // new arrays get the capacity of their bucket.
+        assertEquals(1024, d.length);
+        arena.release(d);
+        // same bucket, so the released array is handed out again.
+        assertSame(d, arena.getDoubleArray(900));
+        // next bucket.
+        arena.release(d);
+        assertNotSame(d, arena.getDoubleArray(1025));
+        assertSame(d, arena.getDoubleArray(1000));
+        // different types are kept apart.
+        int[] i = arena.getIntArray(1000);
+        arena.release(i);
+        assertNotSame(i, arena.getDoubleArray(1000));
+        assertSame(i, arena.getIntArray(1000));
+        // huge arrays are not kept.
+        byte[] b = new byte[ScratchArena.MAX_ARRAY_LENGTH + 1];
+        arena.release(b);
+        assertNotSame(b, arena.getByteArray(ScratchArena.MAX_ARRAY_LENGTH + 1));
+    }
+
+    public void testLargerRequest() throws Throwable {
+        runInNewThread(new Runnable() {
+            @Override
+            public void run() {
+                ScratchArena arena = ScratchArena.get();
+                int[] small = arena.getIntArray(600);
+                arena.release(small);
+                // a larger request of the same bucket gets the array created for the smaller one.
+                int[] large = arena.getIntArray(1000);
+                assertSame(small, large);
+                assertTrue(large.length >= 1000);
+                // arrays not created by the arena only serve the buckets they are long enough for.
+                int[] foreign = new int[1000];
+                arena.release(foreign);
+                assertNotSame(foreign, arena.getIntArray(1000));
+                assertSame(foreign, arena.getIntArray(512));
+            }
+        });
+    }
+
+    public void testThreads() throws Throwable {
+        runInNewThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    checkThreads();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+    }
+
+    private void checkThreads() throws InterruptedException {
+        final int[] array = ScratchArena.get().getIntArray(64);
+        ScratchArena.get().release(array);
+        final AtomicReference<int[]> other = new AtomicReference<>();
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                other.set(ScratchArena.get().getIntArray(64));
+            }
+        });
+        t.start();
+        t.join();
+        assertNotSame(array, other.get());
+        assertSame(array, ScratchArena.get().getIntArray(64));
+    }
+
+    public void testImageContext() throws Throwable {
+        runInNewThread(new Runnable() {
+            @Override
+            public void run() {
+                checkImageContext();
+            }
+        });
+    }
+
+    private void checkImageContext() {
+        BufferedImage image = new BufferedImage(40, 30, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(3, 2, 0x102030);
+        ImageContext context = new ImageContext(image);
+        int[] red = context.getRedPlane();
+        double[] luminance = context.getLuminancePlane();
+        assertEquals(0x10, red[2 * 40 + 3]);
+        assertEquals(0x20, context.getGreenPlane()[2 * 40 + 3]);
+        assertEquals(0x30, context.getBluePlane()[2 * 40 + 3]);
+        context.close();
+        // the next image of the same size works with the same arrays.
+        ImageContext next = new ImageContext(new BufferedImage(40, 30, BufferedImage.TYPE_INT_RGB));
+        assertSame(luminance, next.getLuminancePlane());
+        assertEquals(0, next.getRedPlane()[2 * 40 + 3]);
+        next.close();
+    }
+}
@@ -0,0 +1,56 @@
+package net.semanticmetadata.lire.utils;
+
+import junit.framework.TestCase;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Decodes the test images at full and at reduced resolution and compares them to ImageIO.
+ */
+public class SubsamplingImageDecoderTest extends TestCase {
+    private byte[] jpeg;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        jpeg = Files.readAllBytes(new File("src/test/resources/images/14474347006_99aa0fd981_k.jpg").toPath());
+    }
+
+    public void testFullResolution() throws IOException {
+        BufferedImage expected = ImageIO.read(new File("src/test/resources/images/14474347006_99aa0fd981_k.jpg"));
+        // the image is smaller than twice the minimum size, so it's not subsampled.
+        SubsamplingImageDecoder decoder = new SubsamplingImageDecoder(Math.max(expected.getWidth(), expected.getHeight()) / 2 + 1);
+        BufferedImage image = decoder.decode(jpeg, 0, jpeg.length);
+        assertEquals(expected.getWidth(), image.getWidth());
+        assertEquals(expected.getHeight(), image.getHeight());
+        int w = image.getWidth(), h = image.getHeight();
+        assertTrue(Arrays.equals(expected.getRGB(0, 0, w, h, null, 0, w), image.getRGB(0, 0, w, h, null, 0, w)));
+    }
+
+    public void testSubsampling() throws IOException {
+        BufferedImage full = ImageIO.read(new File("src/test/resources/images/14474347006_99aa0fd981_k.jpg"));
+        SubsamplingImageDecoder decoder = new SubsamplingImageDecoder(300);
+        int subsampling = decoder.getSubsampling(full.getWidth(), full.getHeight());
+        assertTrue(subsampling > 1);
+        BufferedImage image = decoder.decode(jpeg, 0, jpeg.length);
+        assertEquals((full.getWidth() + subsampling - 1) / subsampling, image.getWidth());
+        assertEquals((full.getHeight() + subsampling - 1) / subsampling, image.getHeight());
+        assertTrue(Math.max(image.getWidth(), image.getHeight()) >= 300);
+        assertTrue(Math.max(image.getWidth(), image.getHeight()) < 600);
+        // the readers of the thread are reused, also with other formats in between.
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", png);
+        BufferedImage fromPng = decoder.decode(png.toByteArray(), 0, png.size());
+        assertEquals(image.getWidth(), fromPng.getWidth());
+        assertEquals(image.getHeight(), fromPng.getHeight());
+        assertEquals(image.getWidth(), decoder.decode(jpeg, 0, jpeg.length).getWidth());
+        // no reader for random bytes.
+        assertNull(decoder.decode(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}, 0, 8));
+    }
+}